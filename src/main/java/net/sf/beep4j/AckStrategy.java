@@ -0,0 +1,99 @@
+/*
+ *  Copyright 2006 Simon Raess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.sf.beep4j;
+
+/**
+ * Determines when the SEQ frames that open the receive windows of a
+ * session are written. A channel decides that a SEQ frame is due when 
+ * half of its window has been used up, the strategy decides how long 
+ * the frame may wait to be written together with other data. A newer 
+ * SEQ frame of a channel replaces one that is still waiting, and the
+ * waiting SEQ frames of all channels are written with a single write.
+ * 
+ * @author Simon Raess
+ */
+public final class AckStrategy {
+	
+	public static enum Mode {
+		/**
+		 * SEQ frames are written as soon as they are due.
+		 */
+		THRESHOLD,
+		/**
+		 * SEQ frames wait for the next outbound frame, but at most for 
+		 * the configured delay.
+		 */
+		DELAYED,
+		/**
+		 * SEQ frames that become due while received data is processed 
+		 * wait for the next outbound frame written while processing. 
+		 * The remaining ones are written when processing completes.
+		 */
+		PIGGYBACK
+	}
+	
+	/**
+	 * Writes SEQ frames as soon as they are due.
+	 */
+	public static final AckStrategy THRESHOLD = new AckStrategy(Mode.THRESHOLD, 0);
+	
+	/**
+	 * Writes SEQ frames together with the outbound data of the same I/O cycle.
+	 */
+	public static final AckStrategy PIGGYBACK = new AckStrategy(Mode.PIGGYBACK, 0);
+	
+	private final Mode mode;
+	
+	private final long delay;
+	
+	private AckStrategy(Mode mode, long delay) {
+		this.mode = mode;
+		this.delay = delay;
+	}
+	
+	/**
+	 * Creates a strategy that holds SEQ frames back for at most the given
+	 * number of milliseconds.
+	 * 
+	 * @param delay the maximum delay in milliseconds
+	 * @return the delayed ack strategy
+	 */
+	public static AckStrategy delayed(long delay) {
+		if (delay <= 0) {
+			throw new IllegalArgumentException("delay must be positive: " + delay);
+		}
+		return new AckStrategy(Mode.DELAYED, delay);
+	}
+	
+	public Mode getMode() {
+		return mode;
+	}
+	
+	/**
+	 * Gets the maximum delay of a {@link Mode#DELAYED} strategy.
+	 * 
+	 * @return the delay in milliseconds
+	 */
+	public long getDelay() {
+		return delay;
+	}
+	
+	@Override
+	public String toString() {
+		return "AckStrategy[mode=" + mode + ",delay=" + delay + "]";
+	}
+	
+}
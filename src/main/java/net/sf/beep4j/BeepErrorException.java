@@ -0,0 +1,43 @@
+/*
+ *  Copyright 2006 Simon Raess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.sf.beep4j;
+
+/**
+ * Exception used to fail a {@link BeepFuture} when the remote peer
+ * answered a request with an error element, for instance when it
+ * declined a start channel or close request.
+ * 
+ * @author Simon Raess
+ */
+public class BeepErrorException extends BeepException {
+	
+	private final int code;
+	
+	public BeepErrorException(int code, String message) {
+		super(code + ": " + message);
+		this.code = code;
+	}
+	
+	/**
+	 * Gets the reply code sent by the remote peer.
+	 * 
+	 * @return the reply code
+	 */
+	public int getCode() {
+		return code;
+	}
+	
+}
@@ -0,0 +1,49 @@
+/*
+ *  Copyright 2006 Simon Raess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.sf.beep4j;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+
+/**
+ * Future returned by the asynchronous operations of {@link Channel} and
+ * {@link Session}. In addition to the blocking methods of 
+ * {@link Future} it allows to register {@link FutureListener}s that
+ * are notified once the operation completes.
+ * 
+ * <p>Note that the futures are completed from within the I/O thread
+ * of the session. Blocking on {@link #get()} from within a handler
+ * method invoked by the session therefore dead-locks. Listeners are 
+ * always run on the executor passed to 
+ * {@link #addListener(FutureListener, Executor)} and never directly
+ * on the I/O thread.</p>
+ * 
+ * @param <V> the type of the result
+ * @author Simon Raess
+ */
+public interface BeepFuture<V> extends Future<V> {
+	
+	/**
+	 * Registers a listener that is notified as soon as this future completes.
+	 * If the future has already completed the listener is passed to the
+	 * executor immediately.
+	 * 
+	 * @param listener the listener to be notified
+	 * @param executor the executor on which the listener is run
+	 */
+	void addListener(FutureListener<V> listener, Executor executor);
+	
+}
@@ -46,17 +46,91 @@ public interface Channel {
 	 */
 	MessageBuilder createMessageBuilder();
 	
+	/**
+	 * Determines whether the outbound data pending on this channel and its
+	 * session is below the configured {@link WriteLimits}. Applications 
+	 * should not send further messages while the channel is not writable.
+	 * 
+	 * @return true iff the channel is writable
+	 * @see WritabilityAwareChannelHandler
+	 */
+	boolean isWritable();
+	
+	/**
+	 * Sets the priority of this channel. When several channels of the 
+	 * session have data to send, each gets a share of the connection
+	 * proportional to its priority. The default priority is 1.
+	 * 
+	 * @param priority the priority, at least 1
+	 * @throws IllegalArgumentException if the priority is smaller than 1
+	 */
+	void setPriority(int priority);
+	
+	/**
+	 * Sets the maximum payload size of the frames sent on this channel.
+	 * Larger messages are sent as a sequence of frames, which bounds
+	 * the buffering needed per frame on both peers. Overrides the 
+	 * maximum frame size of the session.
+	 * 
+	 * @param maxFrameSize the maximum payload size in bytes, at least 1
+	 * @throws IllegalArgumentException if the size is smaller than 1
+	 */
+	void setMaxFrameSize(int maxFrameSize);
+	
+	/**
+	 * Sets the policy that keeps this channel from sending tiny frames
+	 * while the receive window of the remote peer is nearly full. 
+	 * Overrides the policy of the session.
+	 * 
+	 * @param policy the silly window avoidance policy
+	 * @see SillyWindowAvoidance
+	 */
+	void setSillyWindowAvoidance(SillyWindowAvoidance policy);
+	
+	/**
+	 * Limits the amount of received data the application holds on this
+	 * channel. With a limit, the receive window is only opened again once
+	 * received messages have been released: when the handler or listener
+	 * returns, or later if the message has been retained (see 
+	 * {@link net.sf.beep4j.buffer.ReferenceCounted}). The remote peer can
+	 * then never send more than <var>limit</var> bytes ahead of the 
+	 * application. Frames of a message that is not yet complete are not
+	 * counted, unless the message is streamed, as they cannot be released
+	 * before the rest of the message has arrived. A limit of 0, the
+	 * default, opens the window as soon as data is received.
+	 *
+	 * @param limit the maximum number of unreleased bytes or 0
+	 * @throws IllegalArgumentException if the limit is negative
+	 */
+	void setConsumptionLimit(int limit);
+	
 	/**
 	 * Sends a message on this channel to the remote peer. This
 	 * method returns fairly quickly. That is, it does not wait for
 	 * the answer to arrive. Instead, the reply is received through
-	 * the reply listener.
+	 * the reply listener. The reference of a 
+	 * {@link net.sf.beep4j.buffer.ReferenceCounted} message is passed to
+	 * the session, which releases the message once it has been written.
 	 * 
 	 * @param message the message to be sent
 	 * @param listener the listener receiving the reply
+	 * @throws WriteLimitExceededException if the channel is not writable
+	 *         and the session uses the {@link WriteLimits.Policy#FAIL} policy
 	 */
 	void sendMessage(Message message, ReplyListener listener);
 	
+	/**
+	 * Sends a message on this channel to the remote peer. The returned
+	 * future completes with the {@link Reply} as soon as the RPY, the ERR
+	 * or the terminating NUL has been received. Like 
+	 * {@link #sendMessage(Message, ReplyListener)} this method does not wait
+	 * for the reply, so any number of messages can be kept in flight.
+	 * 
+	 * @param message the message to be sent
+	 * @return a future completing with the reply
+	 */
+	BeepFuture<Reply> sendMessage(Message message);
+	
 	/**
 	 * Closes the channel. The channel is 
 	 * closed as soon as the conditions specified by section 2.3.1.3 of the
@@ -69,4 +143,13 @@ public interface Channel {
 	 */
 	void close(CloseChannelCallback callback);
 	
+	/**
+	 * Closes the channel. The returned future completes as soon as the
+	 * remote peer accepted the close request. If the other peer declines
+	 * the request, the future fails with a {@link BeepErrorException}.
+	 * 
+	 * @return a future completing when the channel is closed
+	 */
+	BeepFuture<Void> close();
+	
 }
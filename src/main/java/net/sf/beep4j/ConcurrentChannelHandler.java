@@ -0,0 +1,36 @@
+/*
+ *  Copyright 2006 Simon Raess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.sf.beep4j;
+
+/**
+ * Marker interface for ChannelHandlers that can process several 
+ * received messages of their channel at the same time. If the session
+ * delivers messages through an asynchronous 
+ * {@link net.sf.beep4j.dispatch.Dispatcher}, 
+ * {@link ChannelHandler#messageReceived(Message, ResponseHandler)} of 
+ * such a handler is invoked concurrently for pipelined MSGs, so a slow 
+ * request does not hold up the requests behind it.
+ * 
+ * <p>The responses may be sent in any order. The framework buffers 
+ * responses that complete early and sends them in the order the MSGs 
+ * were received, as required by BEEP. All other callbacks of the channel,
+ * as well as streamed messages, are still delivered in order.</p>
+ * 
+ * @author Simon Raess
+ */
+public interface ConcurrentChannelHandler extends ChannelHandler {
+
+}
@@ -0,0 +1,46 @@
+/*
+ *  Copyright 2006 Simon Raess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.sf.beep4j;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Callback interface used to receive the content of a streamed message
+ * incrementally. The content is passed on frame by frame as the frames
+ * arrive, without reassembling the message first.
+ * 
+ * @author Simon Raess
+ * @see StreamingChannelHandler
+ * @see StreamingReplyListener
+ */
+public interface ContentListener {
+	
+	/**
+	 * Invoked for each chunk of content of the message. The buffer is
+	 * only valid for the duration of the call. Applications that need
+	 * the bytes afterwards have to copy them.
+	 * 
+	 * @param content the next chunk of content
+	 */
+	void contentReceived(ByteBuffer content);
+	
+	/**
+	 * Invoked after the last chunk of content has been received. No 
+	 * further methods are invoked on the listener after this method.
+	 */
+	void contentCompleted();
+	
+}
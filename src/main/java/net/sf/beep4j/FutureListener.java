@@ -0,0 +1,34 @@
+/*
+ *  Copyright 2006 Simon Raess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.sf.beep4j;
+
+/**
+ * Listener interface for {@link BeepFuture} objects.
+ * 
+ * @param <V> the type of the result of the future
+ * @author Simon Raess
+ */
+public interface FutureListener<V> {
+	
+	/**
+	 * Invoked when the future has completed, either successfully,
+	 * with a failure or because it was cancelled.
+	 * 
+	 * @param future the completed future
+	 */
+	void operationComplete(BeepFuture<V> future);
+	
+}
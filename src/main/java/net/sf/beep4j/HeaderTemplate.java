@@ -0,0 +1,44 @@
+/*
+ *  Copyright 2006 Simon Raess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.sf.beep4j;
+
+/**
+ * An immutable set of MIME headers that can be shared by any number of
+ * messages. The wire representation of the headers is computed only
+ * once. Profiles that always send the same content type should create
+ * a template once ({@link MessageBuilder#createHeaderTemplate()}) and
+ * apply it to each new MessageBuilder 
+ * ({@link MessageBuilder#setHeaderTemplate(HeaderTemplate)}).
+ * 
+ * @author Simon Raess
+ */
+public interface HeaderTemplate {
+	
+	/**
+	 * Gets the content type of the template, without parameters.
+	 * 
+	 * @return the content type
+	 */
+	String getContentType();
+	
+	/**
+	 * Gets the name of the charset of the template.
+	 * 
+	 * @return the charset name
+	 */
+	String getCharsetName();
+	
+}
@@ -114,11 +114,20 @@ public interface Message {
 	
 	/**
 	 * Writes the complete message (headers and content) into a
-	 * ByteBuffer, which can then be used to send the message over
-	 * the network.
+	 * ByteBuffer. The content is copied, messages are sent with
+	 * {@link #asByteBuffers()}.
 	 * 
 	 * @return the Message written into a ByteBuffer
 	 */
 	ByteBuffer asByteBuffer();
+	
+	/**
+	 * Gets the complete message (headers and content) as a sequence
+	 * of read-only buffers, which can then be written to the network
+	 * with a gathering write. The content is not copied.
+	 * 
+	 * @return the buffers of the message
+	 */
+	ByteBuffer[] asByteBuffers();
 			
 }
@@ -47,6 +47,25 @@ import java.nio.ByteBuffer;
  */
 public interface MessageBuilder {
 	
+	/**
+	 * Replaces the headers of the message with the headers of the 
+	 * given template. The template is shared as long as no headers
+	 * are modified afterwards.
+	 * 
+	 * @param template the template to use
+	 * @throws IllegalArgumentException if the template was not created
+	 *         by a compatible MessageBuilder
+	 */
+	void setHeaderTemplate(HeaderTemplate template);
+	
+	/**
+	 * Creates an immutable template from the headers set so far. The
+	 * template can be reused for any number of messages.
+	 * 
+	 * @return the new template
+	 */
+	HeaderTemplate createHeaderTemplate();
+	
 	/**
 	 * Sets the content type of the message.
 	 * 
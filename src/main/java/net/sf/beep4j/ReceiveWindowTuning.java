@@ -0,0 +1,90 @@
+/*
+ *  Copyright 2006 Simon Raess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.sf.beep4j;
+
+/**
+ * Bounds for the autotuning of the receive windows of a session. With 
+ * autotuning each channel measures the rate at which the remote peer 
+ * fills its window and the round trip time of its SEQ frames. It then 
+ * advertises a window that is large enough for the peer not to stall 
+ * waiting for the next SEQ frame, that is, about twice the bandwidth 
+ * delay product of the channel.
+ * 
+ * <p>A window never grows beyond {@link #getMaxWindowSize()} and the
+ * windows of all channels of a session never grow beyond 
+ * {@link #getMaxSessionWindowSize()} in total. A window is never 
+ * smaller than the configured receive buffer size. Windows shrink 
+ * again when the peer sends less data.</p>
+ * 
+ * @author Simon Raess
+ */
+public final class ReceiveWindowTuning {
+	
+	/**
+	 * Every channel keeps the configured receive buffer size.
+	 */
+	public static final ReceiveWindowTuning DISABLED = new ReceiveWindowTuning(0, 0);
+	
+	/**
+	 * Windows of up to 1 MB per channel and 16 MB per session.
+	 */
+	public static final ReceiveWindowTuning DEFAULT = 
+			new ReceiveWindowTuning(1024 * 1024, 16 * 1024 * 1024);
+	
+	private final int maxWindowSize;
+	
+	private final long maxSessionWindowSize;
+	
+	/**
+	 * Creates a new ReceiveWindowTuning. A maximum window size of 0
+	 * disables autotuning.
+	 * 
+	 * @param maxWindowSize the maximum window size of a channel
+	 * @param maxSessionWindowSize the maximum total window size of a session
+	 */
+	public ReceiveWindowTuning(int maxWindowSize, long maxSessionWindowSize) {
+		if (maxWindowSize < 0 || maxSessionWindowSize < 0) {
+			throw new IllegalArgumentException("window sizes must not be negative "
+					+ "(channel=" + maxWindowSize + ",session=" + maxSessionWindowSize + ")");
+		}
+		this.maxWindowSize = maxWindowSize;
+		this.maxSessionWindowSize = maxSessionWindowSize;
+	}
+	
+	public int getMaxWindowSize() {
+		return maxWindowSize;
+	}
+	
+	public long getMaxSessionWindowSize() {
+		return maxSessionWindowSize;
+	}
+	
+	/**
+	 * Determines whether the receive windows are tuned at all.
+	 * 
+	 * @return true iff autotuning is enabled
+	 */
+	public boolean isEnabled() {
+		return maxWindowSize > 0;
+	}
+	
+	@Override
+	public String toString() {
+		return "ReceiveWindowTuning[channel=" + maxWindowSize 
+				+ ",session=" + maxSessionWindowSize + "]";
+	}
+	
+}
@@ -0,0 +1,140 @@
+/*
+ *  Copyright 2006 Simon Raess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.sf.beep4j;
+
+import java.util.Collections;
+import java.util.List;
+
+import net.sf.beep4j.buffer.ReferenceCounted;
+import net.sf.beep4j.internal.util.Assert;
+
+/**
+ * Result of a message exchange started with {@link Channel#sendMessage(Message)}.
+ * A reply is either a positive reply (RPY), a negative reply (ERR) or
+ * a list of answers (ANS) terminated by a NUL.
+ * 
+ * <p>The messages contained in a reply are retained until {@link #release()}
+ * is called. Applications that do not release the reply simply leave
+ * the underlying buffers to the garbage collector.</p>
+ * 
+ * @author Simon Raess
+ */
+public final class Reply implements ReferenceCounted {
+	
+	private final boolean error;
+	
+	private final Message message;
+	
+	private final List<Message> answers;
+	
+	private Reply(boolean error, Message message, List<Message> answers) {
+		this.error = error;
+		this.message = message;
+		this.answers = answers;
+	}
+	
+	/**
+	 * Creates a reply for a RPY message.
+	 * 
+	 * @param message the received message
+	 * @return the reply
+	 */
+	public static Reply rpy(Message message) {
+		Assert.notNull("message", message);
+		return new Reply(false, message, Collections.<Message>emptyList());
+	}
+	
+	/**
+	 * Creates a reply for an ERR message.
+	 * 
+	 * @param message the received message
+	 * @return the reply
+	 */
+	public static Reply err(Message message) {
+		Assert.notNull("message", message);
+		return new Reply(true, message, Collections.<Message>emptyList());
+	}
+	
+	/**
+	 * Creates a reply for a one-to-many exchange.
+	 * 
+	 * @param answers the received ANS messages
+	 * @return the reply
+	 */
+	public static Reply answers(List<Message> answers) {
+		Assert.notNull("answers", answers);
+		return new Reply(false, null, Collections.unmodifiableList(answers));
+	}
+	
+	/**
+	 * Determines whether the remote peer answered with an ERR message.
+	 * 
+	 * @return true iff the reply is a negative reply
+	 */
+	public boolean isError() {
+		return error;
+	}
+	
+	/**
+	 * Gets the RPY or ERR message. Returns null for one-to-many exchanges.
+	 * 
+	 * @return the received message or null
+	 */
+	public Message getMessage() {
+		return message;
+	}
+	
+	/**
+	 * Gets the ANS messages of a one-to-many exchange. The list is
+	 * empty for RPY and ERR replies.
+	 * 
+	 * @return the unmodifiable list of answers
+	 */
+	public List<Message> getAnswers() {
+		return answers;
+	}
+	
+	public void retain() {
+		if (message instanceof ReferenceCounted) {
+			((ReferenceCounted) message).retain();
+		}
+		for (Message answer : answers) {
+			if (answer instanceof ReferenceCounted) {
+				((ReferenceCounted) answer).retain();
+			}
+		}
+	}
+	
+	public void release() {
+		if (message instanceof ReferenceCounted) {
+			((ReferenceCounted) message).release();
+		}
+		for (Message answer : answers) {
+			if (answer instanceof ReferenceCounted) {
+				((ReferenceCounted) answer).release();
+			}
+		}
+	}
+	
+	@Override
+	public String toString() {
+		if (message == null) {
+			return "Reply[ANS*" + answers.size() + "]";
+		}
+		return "Reply[" + (error ? "ERR" : "RPY") + "]";
+	}
+	
+}
@@ -29,6 +29,12 @@ package net.sf.beep4j;
  *   <li>MSG/ANS: zero or more ANS messages terminated with a NUL message, many-to-one exchange</li>
  * </ul>
  * 
+ * <p>Sending a {@link net.sf.beep4j.buffer.ReferenceCounted} message passes
+ * the reference of the caller to the session, which releases the message
+ * once it has been written. A message that is still needed afterwards,
+ * such as a received message that is sent back, has to be retained 
+ * first.</p>
+ * 
  * @author Simon Raess
  */
 public interface ResponseHandler {
@@ -77,5 +83,18 @@ public interface ResponseHandler {
 	 * @throws IllegalStateException if a response has already been sent
 	 */
 	void sendRPY(Message message);
+	
+	/**
+	 * Registers a callback that is invoked as soon as all responses sent so
+	 * far through this handler have been passed to the transport. Responses
+	 * are held back while the receive window of the other peer is full, so 
+	 * this callback allows to produce ANS messages only as fast as the 
+	 * remote peer consumes them. The callback is invoked from within the
+	 * I/O layer and must not block.
+	 * 
+	 * @param callback the callback to be invoked
+	 * @throws IllegalArgumentException if the callback is null
+	 */
+	void whenSent(Runnable callback);
 
 }
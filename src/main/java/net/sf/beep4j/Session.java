@@ -39,14 +39,16 @@ public interface Session {
 	 * Tries to start a new channel using the profile identified by the given
 	 * uri. The returned Future can be used to wait until the channel has
 	 * been established. It returns only after the passed in
-	 * {@link ChannelHandler#channelOpened(Channel)} method returns.
+	 * {@link ChannelHandler#channelOpened(Channel)} method returns. If the
+	 * remote peer declines the request, the future fails with a
+	 * {@link BeepErrorException}.
 	 * 
 	 * @param profileUri the uri of the profile to be used on the channel
 	 * @param handler the channel handler for the new channel
 	 * @return a Future that can be used to await the successful establishment
 	 *         of the channel.
 	 */
-	void startChannel(String profileUri, ChannelHandler handler);
+	BeepFuture<Channel> startChannel(String profileUri, ChannelHandler handler);
 	
 	/**
 	 * Tries to start a new channel using the profile passed in. Use this
@@ -59,7 +61,7 @@ public interface Session {
 	 * @return a Future that can be used to await the successfuly establishment
 	 *         of the channel
 	 */
-	void startChannel(ProfileInfo profile, ChannelHandler handler);
+	BeepFuture<Channel> startChannel(ProfileInfo profile, ChannelHandler handler);
 
 	/**
 	 * Tries to start a new channel using one of the profiles passed in. Use this
@@ -72,7 +74,7 @@ public interface Session {
 	 * @return a Future that can be used to await the successfuly establishment
 	 *         of the channel
 	 */
-	void startChannel(ProfileInfo[] profiles, ChannelHandlerFactory factory);
+	BeepFuture<Channel> startChannel(ProfileInfo[] profiles, ChannelHandlerFactory factory);
 	
 	/**
 	 * Closes the session. Note that this method blocks until all outstanding
@@ -82,4 +84,19 @@ public interface Session {
 	 */
 	void close();
 	
+	/**
+	 * Runs the given task as a batch. The frames written by the session 
+	 * while the task runs are held back and written together once it has
+	 * completed, which saves writes if the task sends several messages
+	 * or replies. The batch only applies to the current thread, the 
+	 * writes of other threads are not held back; they may however cause
+	 * the frames held so far to be written early. The task must not wait
+	 * for anything that depends on a response of the other peer, such as
+	 * a {@link BeepFuture}, as the requests of the task have not
+	 * necessarily been written yet.
+	 * 
+	 * @param task the task to run
+	 */
+	void batch(Runnable task);
+	
 }
@@ -0,0 +1,104 @@
+/*
+ *  Copyright 2006 Simon Raess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.sf.beep4j;
+
+/**
+ * Policy that keeps a channel from sending many tiny frames when the 
+ * receive window of the remote peer is nearly full. Each frame carries a
+ * full header and trailer, so splitting a message at every few bytes that
+ * become available wastes bandwidth and write calls.
+ * 
+ * <p>A message that does not fit into the remaining window is only split 
+ * if at least a fraction of the window, or the maximum frame size if that 
+ * is smaller, is available. Otherwise the data is held back until the 
+ * remote peer opens its window further, but never longer than the maximum
+ * delay. Messages that fit into the remaining window are never held 
+ * back.</p>
+ * 
+ * @author Simon Raess
+ * @see Channel#setSillyWindowAvoidance(SillyWindowAvoidance)
+ */
+public final class SillyWindowAvoidance {
+	
+	/**
+	 * Frames are split at whatever the remote window permits.
+	 */
+	public static final SillyWindowAvoidance DISABLED = new SillyWindowAvoidance(0, 0);
+	
+	/**
+	 * Waits for half the window, but at most 200 milliseconds.
+	 */
+	public static final SillyWindowAvoidance DEFAULT = new SillyWindowAvoidance(0.5f, 200);
+	
+	private final float windowFraction;
+	
+	private final long maxDelay;
+	
+	/**
+	 * Creates a new SillyWindowAvoidance policy.
+	 * 
+	 * @param windowFraction the fraction of the remote window that must be 
+	 *        available before a frame is split, 0 disables the policy
+	 * @param maxDelay the maximum time in milliseconds data is held back
+	 */
+	public SillyWindowAvoidance(float windowFraction, long maxDelay) {
+		if (windowFraction < 0 || windowFraction > 1) {
+			throw new IllegalArgumentException("window fraction must be between "
+					+ "0 and 1: " + windowFraction);
+		}
+		if (maxDelay < 0) {
+			throw new IllegalArgumentException("maximum delay must not be negative: " + maxDelay);
+		}
+		this.windowFraction = windowFraction;
+		this.maxDelay = maxDelay;
+	}
+	
+	public float getWindowFraction() {
+		return windowFraction;
+	}
+	
+	public long getMaxDelay() {
+		return maxDelay;
+	}
+	
+	/**
+	 * Determines whether data is ever held back by this policy.
+	 * 
+	 * @return true iff the policy is enabled
+	 */
+	public boolean isEnabled() {
+		return windowFraction > 0 && maxDelay > 0;
+	}
+	
+	/**
+	 * Computes the number of bytes that must be available in the remote 
+	 * window before a message is split.
+	 * 
+	 * @param windowSize the size of the remote window
+	 * @param maxFrameSize the maximum frame size of the channel
+	 * @return the minimum size of a split frame
+	 */
+	public int getThreshold(int windowSize, int maxFrameSize) {
+		return Math.min((int) (windowSize * windowFraction), maxFrameSize);
+	}
+	
+	@Override
+	public String toString() {
+		return "SillyWindowAvoidance[windowFraction=" + windowFraction 
+				+ ",maxDelay=" + maxDelay + "]";
+	}
+	
+}
@@ -0,0 +1,45 @@
+/*
+ *  Copyright 2006 Simon Raess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.sf.beep4j;
+
+/**
+ * Extension of the ChannelHandler interface for applications that want
+ * to process incoming messages incrementally. If the ChannelHandler of
+ * a channel implements this interface, received messages are not 
+ * reassembled. Instead {@link #messageStarted(Message, ResponseHandler)}
+ * is invoked as soon as the MIME headers of the message have been 
+ * received, and the content is passed to the returned 
+ * {@link ContentListener} as it arrives. 
+ * {@link ChannelHandler#messageReceived(Message, ResponseHandler)} is 
+ * not invoked for such messages.
+ * 
+ * @author Simon Raess
+ */
+public interface StreamingChannelHandler extends ChannelHandler {
+	
+	/**
+	 * Invoked by the framework when the MIME headers of a message have
+	 * been received. The passed in message has the headers of the 
+	 * received message but no content.
+	 * 
+	 * @param header the headers of the message
+	 * @param handler the handler used to return a response
+	 * @return the listener that receives the content, or null if the
+	 *         content should be discarded
+	 */
+	ContentListener messageStarted(Message header, ResponseHandler handler);
+	
+}
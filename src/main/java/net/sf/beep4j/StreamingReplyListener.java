@@ -0,0 +1,52 @@
+/*
+ *  Copyright 2006 Simon Raess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.sf.beep4j;
+
+/**
+ * Extension of the ReplyListener interface for applications that want
+ * to process RPY and ANS replies incrementally. Instead of 
+ * {@link ReplyListener#receiveRPY(Message)} and 
+ * {@link ReplyListener#receiveANS(Message)} the corresponding 
+ * started methods are invoked as soon as the MIME headers of the reply
+ * have been received. The content is then passed to the returned 
+ * {@link ContentListener} as it arrives. ERR and NUL replies are 
+ * delivered as usual.
+ * 
+ * @author Simon Raess
+ */
+public interface StreamingReplyListener extends ReplyListener {
+	
+	/**
+	 * Invoked when the MIME headers of an ANS reply have been received. 
+	 * For a one-to-many exchange style this method can be invoked 0 or 
+	 * more times.
+	 * 
+	 * @param header the headers of the reply
+	 * @return the listener that receives the content, or null if the
+	 *         content should be discarded
+	 */
+	ContentListener answerStarted(Message header);
+	
+	/**
+	 * Invoked when the MIME headers of a RPY reply have been received.
+	 * 
+	 * @param header the headers of the reply
+	 * @return the listener that receives the content, or null if the
+	 *         content should be discarded
+	 */
+	ContentListener replyStarted(Message header);
+	
+}
@@ -0,0 +1,39 @@
+/*
+ *  Copyright 2006 Simon Raess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.sf.beep4j;
+
+/**
+ * ChannelHandler that is notified whenever the writability of its
+ * channel changes (see {@link Channel#isWritable()}). Applications
+ * that produce large amounts of data should stop sending messages when 
+ * the channel becomes unwritable and resume when it becomes writable
+ * again. Otherwise the outbound data is buffered in memory until the 
+ * remote peer consumes it.
+ * 
+ * @author Simon Raess
+ * @see WriteLimits
+ */
+public interface WritabilityAwareChannelHandler extends ChannelHandler {
+	
+	/**
+	 * Invoked when the channel becomes writable or unwritable. The 
+	 * notification is delivered like the other events of the channel.
+	 * 
+	 * @param writable the new writability of the channel
+	 */
+	void channelWritabilityChanged(boolean writable);
+	
+}
@@ -0,0 +1,31 @@
+/*
+ *  Copyright 2006 Simon Raess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.sf.beep4j;
+
+/**
+ * Thrown by {@link Channel#sendMessage(Message, ReplyListener)} if the
+ * channel is not writable and the session uses the 
+ * {@link WriteLimits.Policy#FAIL} policy.
+ * 
+ * @author Simon Raess
+ */
+public class WriteLimitExceededException extends BeepException {
+	
+	public WriteLimitExceededException(String message) {
+		super(message);
+	}
+	
+}
@@ -0,0 +1,133 @@
+/*
+ *  Copyright 2006 Simon Raess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.sf.beep4j;
+
+import net.sf.beep4j.internal.util.Assert;
+
+/**
+ * Limits for the amount of outbound data that may be pending on a session
+ * and on each of its channels. Pending data is data that has been sent by
+ * the application but not yet been passed to the transport, usually because
+ * the receive window of the remote peer is full.
+ * 
+ * <p>A channel becomes unwritable as soon as its pending data, or the
+ * pending data of the whole session, exceeds the high watermark. It becomes 
+ * writable again as soon as the pending data falls below the low watermark.
+ * See {@link Channel#isWritable()} and {@link WritabilityAwareChannelHandler}.
+ * The {@link Policy} determines what happens if a message is sent on an
+ * unwritable channel.</p>
+ * 
+ * @author Simon Raess
+ */
+public final class WriteLimits {
+	
+	/**
+	 * Determines how {@link Channel#sendMessage(Message, ReplyListener)} 
+	 * behaves on an unwritable channel. Replies are never held back.
+	 */
+	public static enum Policy {
+		/**
+		 * The message is queued anyway, the application is only notified.
+		 */
+		NOTIFY,
+		/**
+		 * The sending thread blocks until the channel is writable again. 
+		 * Messages sent from within the I/O thread are queued without 
+		 * blocking, as the window could otherwise never be updated.
+		 */
+		BLOCK,
+		/**
+		 * A {@link WriteLimitExceededException} is thrown.
+		 */
+		FAIL
+	}
+	
+	/**
+	 * The default limits: 64 KB per channel, 1 MB per session, notify only.
+	 */
+	public static final WriteLimits DEFAULT = new WriteLimits(
+			64 * 1024, 32 * 1024, 1024 * 1024, 512 * 1024, Policy.NOTIFY);
+	
+	private final int channelHighWatermark;
+	
+	private final int channelLowWatermark;
+	
+	private final int sessionHighWatermark;
+	
+	private final int sessionLowWatermark;
+	
+	private final Policy policy;
+	
+	public WriteLimits(
+			int channelHighWatermark, int channelLowWatermark, 
+			int sessionHighWatermark, int sessionLowWatermark,
+			Policy policy) {
+		Assert.notNull("policy", policy);
+		validate("channel", channelHighWatermark, channelLowWatermark);
+		validate("session", sessionHighWatermark, sessionLowWatermark);
+		this.channelHighWatermark = channelHighWatermark;
+		this.channelLowWatermark = channelLowWatermark;
+		this.sessionHighWatermark = sessionHighWatermark;
+		this.sessionLowWatermark = sessionLowWatermark;
+		this.policy = policy;
+	}
+	
+	private static void validate(String name, int high, int low) {
+		if (low < 0 || high < low) {
+			throw new IllegalArgumentException(name + " watermarks must satisfy "
+					+ "0 <= low <= high (low=" + low + ",high=" + high + ")");
+		}
+	}
+	
+	/**
+	 * Creates a copy of these limits with another policy.
+	 * 
+	 * @param policy the new policy
+	 * @return the new limits
+	 */
+	public WriteLimits withPolicy(Policy policy) {
+		return new WriteLimits(channelHighWatermark, channelLowWatermark, 
+				sessionHighWatermark, sessionLowWatermark, policy);
+	}
+	
+	public int getChannelHighWatermark() {
+		return channelHighWatermark;
+	}
+	
+	public int getChannelLowWatermark() {
+		return channelLowWatermark;
+	}
+	
+	public int getSessionHighWatermark() {
+		return sessionHighWatermark;
+	}
+	
+	public int getSessionLowWatermark() {
+		return sessionLowWatermark;
+	}
+	
+	public Policy getPolicy() {
+		return policy;
+	}
+	
+	@Override
+	public String toString() {
+		return "WriteLimits[channel=" + channelLowWatermark + "/" + channelHighWatermark 
+				+ ",session=" + sessionLowWatermark + "/" + sessionHighWatermark 
+				+ ",policy=" + policy + "]";
+	}
+	
+}
@@ -0,0 +1,53 @@
+/*
+ *  Copyright 2006 Simon Raess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.sf.beep4j.buffer;
+
+/**
+ * Service provider interface for the allocation of the buffers used by
+ * the frame pipeline. Implementations must be thread-safe.
+ * 
+ * @author Simon Raess
+ */
+public interface BufferAllocator {
+	
+	/**
+	 * Allocates a buffer with at least the given capacity. The limit of
+	 * the returned buffer is set to <var>capacity</var>, its position is
+	 * zero.
+	 * 
+	 * @param capacity the required capacity
+	 * @return the allocated buffer with a reference count of one
+	 */
+	ManagedBuffer allocate(int capacity);
+	
+	/**
+	 * Determines whether the buffers of this allocator are reused after they
+	 * have been released. If this method returns false, callers are free
+	 * to keep referring to a buffer after releasing it.
+	 * 
+	 * @return true iff released buffers are recycled
+	 */
+	boolean isPooled();
+	
+	/**
+	 * Invoked by a {@link ManagedBuffer} allocated by this allocator
+	 * when its reference count reaches zero.
+	 * 
+	 * @param buffer the released buffer
+	 */
+	void recycle(ManagedBuffer buffer);
+	
+}
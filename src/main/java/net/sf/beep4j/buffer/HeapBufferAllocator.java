@@ -0,0 +1,46 @@
+/*
+ *  Copyright 2006 Simon Raess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.sf.beep4j.buffer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * BufferAllocator that allocates a new heap buffer for each request.
+ * Released buffers are left to the garbage collector. This is the 
+ * default allocator.
+ * 
+ * @author Simon Raess
+ */
+public class HeapBufferAllocator implements BufferAllocator {
+	
+	/**
+	 * Shared instance of the allocator.
+	 */
+	public static final HeapBufferAllocator INSTANCE = new HeapBufferAllocator();
+	
+	public ManagedBuffer allocate(int capacity) {
+		return new ManagedBuffer(ByteBuffer.allocate(capacity), this);
+	}
+	
+	public boolean isPooled() {
+		return false;
+	}
+	
+	public void recycle(ManagedBuffer buffer) {
+		// the garbage collector takes care of released buffers
+	}
+	
+}
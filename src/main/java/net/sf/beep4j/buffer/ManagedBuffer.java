@@ -0,0 +1,104 @@
+/*
+ *  Copyright 2006 Simon Raess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.sf.beep4j.buffer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.sf.beep4j.internal.util.Assert;
+
+/**
+ * A reference counted ByteBuffer allocated by a {@link BufferAllocator}.
+ * The buffer is handed back to the allocator as soon as the reference
+ * count reaches zero.
+ * 
+ * @author Simon Raess
+ */
+public final class ManagedBuffer implements ReferenceCounted {
+	
+	private final ByteBuffer buffer;
+	
+	private final BufferAllocator allocator;
+	
+	private final AtomicInteger references = new AtomicInteger(1);
+	
+	/**
+	 * Creates a new ManagedBuffer with a reference count of one.
+	 * 
+	 * @param buffer the underlying ByteBuffer
+	 * @param allocator the allocator the buffer is returned to
+	 */
+	public ManagedBuffer(ByteBuffer buffer, BufferAllocator allocator) {
+		Assert.notNull("buffer", buffer);
+		Assert.notNull("allocator", allocator);
+		this.buffer = buffer;
+		this.allocator = allocator;
+	}
+	
+	/**
+	 * Gets the underlying ByteBuffer.
+	 * 
+	 * @return the underlying buffer
+	 */
+	public ByteBuffer getBuffer() {
+		return buffer;
+	}
+	
+	/**
+	 * Gets the current reference count.
+	 * 
+	 * @return the reference count
+	 */
+	public int getReferenceCount() {
+		return references.get();
+	}
+	
+	/**
+	 * Resets the reference count to one. Only to be used by allocators
+	 * that hand out a recycled buffer.
+	 */
+	void reset() {
+		buffer.clear();
+		references.set(1);
+	}
+	
+	public void retain() {
+		for (;;) {
+			int count = references.get();
+			if (count <= 0) {
+				throw new IllegalStateException("buffer has already been released");
+			} else if (references.compareAndSet(count, count + 1)) {
+				return;
+			}
+		}
+	}
+	
+	public void release() {
+		int count = references.decrementAndGet();
+		if (count == 0) {
+			allocator.recycle(this);
+		} else if (count < 0) {
+			references.set(0);
+			throw new IllegalStateException("buffer has already been released");
+		}
+	}
+	
+	@Override
+	public String toString() {
+		return "ManagedBuffer[buffer=" + buffer + ",references=" + references.get() + "]";
+	}
+	
+}
@@ -0,0 +1,160 @@
+/*
+ *  Copyright 2006 Simon Raess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.sf.beep4j.buffer;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * BufferAllocator that keeps released buffers in slabs of power of two 
+ * sized buffers and hands them out again on later requests. Requests
+ * larger than the largest slab are not pooled.
+ * 
+ * @author Simon Raess
+ */
+public class PooledBufferAllocator implements BufferAllocator {
+	
+	/**
+	 * The default capacity of the smallest slab.
+	 */
+	public static final int DEFAULT_MIN_CAPACITY = 64;
+	
+	/**
+	 * The default capacity of the largest slab.
+	 */
+	public static final int DEFAULT_MAX_CAPACITY = 64 * 1024;
+	
+	/**
+	 * The default number of buffers kept per slab.
+	 */
+	public static final int DEFAULT_MAX_POOLED = 256;
+	
+	private final boolean direct;
+	
+	private final int minShift;
+	
+	private final int maxCapacity;
+	
+	private final int maxPooled;
+	
+	private final Queue<ManagedBuffer>[] slabs;
+	
+	private final AtomicInteger[] sizes;
+	
+	/**
+	 * Creates a new PooledBufferAllocator with the default slab sizes.
+	 * 
+	 * @param direct whether direct buffers are allocated
+	 */
+	public PooledBufferAllocator(boolean direct) {
+		this(direct, DEFAULT_MIN_CAPACITY, DEFAULT_MAX_CAPACITY, DEFAULT_MAX_POOLED);
+	}
+	
+	/**
+	 * Creates a new PooledBufferAllocator.
+	 * 
+	 * @param direct whether direct buffers are allocated
+	 * @param minCapacity the capacity of the smallest slab, is rounded up to a power of two
+	 * @param maxCapacity the capacity of the largest slab, is rounded up to a power of two
+	 * @param maxPooled the maximum number of buffers kept per slab
+	 */
+	public PooledBufferAllocator(boolean direct, int minCapacity, int maxCapacity, int maxPooled) {
+		if (minCapacity <= 0 || maxCapacity < minCapacity) {
+			throw new IllegalArgumentException("0 < minCapacity <= maxCapacity must hold: "
+					+ minCapacity + ", " + maxCapacity);
+		}
+		this.direct = direct;
+		this.minShift = shift(minCapacity);
+		int maxShift = shift(maxCapacity);
+		this.maxCapacity = 1 << maxShift;
+		this.maxPooled = maxPooled;
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		Queue<ManagedBuffer>[] slabs = new Queue[maxShift - minShift + 1];
+		this.slabs = slabs;
+		this.sizes = new AtomicInteger[slabs.length];
+		for (int i = 0; i < slabs.length; i++) {
+			slabs[i] = new ConcurrentLinkedQueue<ManagedBuffer>();
+			sizes[i] = new AtomicInteger();
+		}
+	}
+	
+	private static int shift(int capacity) {
+		int shift = 0;
+		while ((1 << shift) < capacity) {
+			shift++;
+		}
+		return shift;
+	}
+	
+	private int slab(int capacity) {
+		return Math.max(0, shift(capacity) - minShift);
+	}
+	
+	public ManagedBuffer allocate(int capacity) {
+		if (capacity > maxCapacity) {
+			return new ManagedBuffer(newBuffer(capacity), this);
+		}
+		
+		int slab = slab(capacity);
+		ManagedBuffer result = slabs[slab].poll();
+		if (result == null) {
+			result = new ManagedBuffer(newBuffer(1 << (slab + minShift)), this);
+		} else {
+			sizes[slab].decrementAndGet();
+			result.reset();
+		}
+		result.getBuffer().limit(capacity);
+		return result;
+	}
+	
+	private ByteBuffer newBuffer(int capacity) {
+		return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+	}
+	
+	public boolean isPooled() {
+		return true;
+	}
+	
+	public void recycle(ManagedBuffer buffer) {
+		int capacity = buffer.getBuffer().capacity();
+		if (capacity > maxCapacity || capacity < (1 << minShift) 
+				|| Integer.bitCount(capacity) != 1) {
+			return;
+		}
+		int slab = slab(capacity);
+		if (sizes[slab].incrementAndGet() <= maxPooled) {
+			slabs[slab].offer(buffer);
+		} else {
+			sizes[slab].decrementAndGet();
+		}
+	}
+	
+	/**
+	 * Gets the number of buffers currently kept in the pool.
+	 * 
+	 * @return the number of pooled buffers
+	 */
+	public int getPooledCount() {
+		int result = 0;
+		for (AtomicInteger size : sizes) {
+			result += size.get();
+		}
+		return result;
+	}
+	
+}
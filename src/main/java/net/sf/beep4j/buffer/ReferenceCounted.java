@@ -0,0 +1,42 @@
+/*
+ *  Copyright 2006 Simon Raess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.sf.beep4j.buffer;
+
+/**
+ * Objects implementing this interface hold resources that are returned
+ * to their owner as soon as the last reference is released. A newly 
+ * created object has a reference count of one.
+ * 
+ * @author Simon Raess
+ */
+public interface ReferenceCounted {
+	
+	/**
+	 * Increments the reference count by one. Every invocation of this method
+	 * must be balanced by an invocation of {@link #release()}.
+	 */
+	void retain();
+	
+	/**
+	 * Decrements the reference count by one. The resources are returned 
+	 * to their owner when the count reaches zero. The object must not be
+	 * used afterwards.
+	 * 
+	 * @throws IllegalStateException if the object has already been released
+	 */
+	void release();
+	
+}
@@ -0,0 +1,42 @@
+/*
+ *  Copyright 2006 Simon Raess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.sf.beep4j.dispatch;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Service provider interface for the delivery of received messages and
+ * replies to the application. A session asks the dispatcher for a queue
+ * per channel and passes each callback of a channel to that queue.
+ * 
+ * <p>The events passed to one queue must be processed in the order they
+ * are passed in and never concurrently. Events of different queues may
+ * be processed in parallel. Implementations must be thread-safe, a
+ * dispatcher may be shared by several sessions.</p>
+ * 
+ * @author Simon Raess
+ */
+public interface Dispatcher {
+	
+	/**
+	 * Creates the queue of a newly opened channel. The queue is simply
+	 * dropped by the session when the channel is closed.
+	 * 
+	 * @return the Executor processing the events of the channel
+	 */
+	Executor createQueue();
+	
+}
@@ -0,0 +1,133 @@
+/*
+ *  Copyright 2006 Simon Raess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.sf.beep4j.dispatch;
+
+import java.lang.reflect.Method;
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Dispatcher that processes the events of each channel as tasks of an
+ * arbitrary Executor. Every channel has an ordered mailbox. While the
+ * mailbox holds events, exactly one task of the channel drains it;
+ * the task ends as soon as the mailbox is empty.
+ * 
+ * <p>Together with an executor that starts a new thread per task, each
+ * busy channel gets a thread of its own and handlers may block without
+ * stalling other channels. On Java 21 and later 
+ * {@link #newVirtualThreadDispatcher()} uses a virtual thread per task,
+ * which scales to a very large number of channels without sizing a
+ * thread pool.</p>
+ * 
+ * @author Simon Raess
+ */
+public class ExecutorDispatcher implements Dispatcher {
+	
+	private static final Logger LOG = LoggerFactory.getLogger(ExecutorDispatcher.class);
+	
+	private final Executor executor;
+	
+	/**
+	 * Creates a new ExecutorDispatcher. The executor is not shut down
+	 * by the dispatcher.
+	 * 
+	 * @param executor the Executor running the mailbox tasks
+	 */
+	public ExecutorDispatcher(Executor executor) {
+		if (executor == null) {
+			throw new IllegalArgumentException("executor cannot be null");
+		}
+		this.executor = executor;
+	}
+	
+	/**
+	 * Creates an ExecutorDispatcher that runs each mailbox task on a new
+	 * virtual thread. The library is compiled for older Java versions, 
+	 * the virtual thread executor is therefore looked up reflectively.
+	 * 
+	 * @return the new dispatcher
+	 * @throws UnsupportedOperationException if the runtime has no virtual threads
+	 */
+	public static ExecutorDispatcher newVirtualThreadDispatcher() {
+		try {
+			Method method = java.util.concurrent.Executors.class.getMethod(
+					"newVirtualThreadPerTaskExecutor");
+			return new ExecutorDispatcher((Executor) method.invoke(null));
+		} catch (NoSuchMethodException e) {
+			throw new UnsupportedOperationException("virtual threads require Java 21 or later");
+		} catch (Exception e) {
+			throw new UnsupportedOperationException("cannot create virtual thread executor: " + e);
+		}
+	}
+	
+	public Executor createQueue() {
+		return new Mailbox();
+	}
+	
+	/*
+	 * The events of a channel. A task draining the mailbox has been
+	 * submitted to the executor iff running is true.
+	 */
+	private class Mailbox implements Executor, Runnable {
+		
+		private final LinkedList<Runnable> events = new LinkedList<Runnable>();
+		
+		private boolean running;
+		
+		public void execute(Runnable event) {
+			synchronized (this) {
+				events.addLast(event);
+				if (running) {
+					return;
+				}
+				running = true;
+			}
+			try {
+				executor.execute(this);
+			} catch (RuntimeException e) {
+				synchronized (this) {
+					events.clear();
+					running = false;
+				}
+				throw e;
+			}
+		}
+		
+		private synchronized Runnable nextEvent() {
+			Runnable event = events.poll();
+			if (event == null) {
+				running = false;
+			}
+			return event;
+		}
+		
+		public void run() {
+			Runnable event;
+			while ((event = nextEvent()) != null) {
+				try {
+					event.run();
+				} catch (RuntimeException e) {
+					LOG.warn("event of channel threw an exception", e);
+				}
+			}
+		}
+		
+	}
+	
+}
@@ -0,0 +1,228 @@
+/*
+ *  Copyright 2006 Simon Raess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.sf.beep4j.dispatch;
+
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Dispatcher that processes the events of different channels in parallel
+ * on a fixed pool of threads organized according to the leader/followers
+ * pattern. The threads of the pool take turns: one thread, the leader,
+ * waits until a channel has pending events. It then promotes one of the
+ * followers to be the new leader and processes the events of the channel
+ * itself, before following again.
+ * 
+ * <pre>
+ *   while (true) {
+ *     waitForPromotion()
+ *     ChannelQueue queue = fetchQueue()
+ *     giveUpLead()
+ *     processEvents(queue)
+ *   }
+ * </pre>
+ * 
+ * <p>A channel is handed to at most one thread at a time, so the events 
+ * of a channel are processed in order. A thread processes at most
+ * {@link #DEFAULT_BATCH_SIZE} events of a channel before the channel is
+ * put back at the end of the ready list, busy channels therefore cannot
+ * starve the others.</p>
+ * 
+ * @author Simon Raess
+ */
+public class LeaderFollowersDispatcher implements Dispatcher {
+	
+	private static final Logger LOG = LoggerFactory.getLogger(LeaderFollowersDispatcher.class);
+	
+	/**
+	 * The default number of events processed per channel in one turn.
+	 */
+	public static final int DEFAULT_BATCH_SIZE = 16;
+	
+	/**
+	 * The lock held by the leader.
+	 */
+	private final Lock leaderLock = new ReentrantLock();
+	
+	/**
+	 * The channels with pending events that are not processed by a thread.
+	 */
+	private final LinkedList<ChannelQueue> ready = new LinkedList<ChannelQueue>();
+	
+	private final Thread[] threads;
+	
+	private final int batchSize;
+	
+	private volatile boolean disposed;
+	
+	/**
+	 * Creates a new LeaderFollowersDispatcher and starts its threads.
+	 * 
+	 * @param threadCount the number of threads of the pool
+	 */
+	public LeaderFollowersDispatcher(int threadCount) {
+		this(threadCount, DEFAULT_BATCH_SIZE);
+	}
+	
+	/**
+	 * Creates a new LeaderFollowersDispatcher and starts its threads. 
+	 * The threads are daemon threads.
+	 * 
+	 * @param threadCount the number of threads of the pool
+	 * @param batchSize the maximum number of events of a channel processed in one turn
+	 */
+	public LeaderFollowersDispatcher(int threadCount, int batchSize) {
+		if (threadCount <= 0) {
+			throw new IllegalArgumentException("threadCount must be positive: " + threadCount);
+		}
+		if (batchSize <= 0) {
+			throw new IllegalArgumentException("batchSize must be positive: " + batchSize);
+		}
+		this.batchSize = batchSize;
+		this.threads = new Thread[threadCount];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread(new Runnable() {
+				public void run() {
+					follow();
+				}
+			}, "beep4j-dispatcher-" + i);
+			threads[i].setDaemon(true);
+			threads[i].start();
+		}
+	}
+	
+	public Executor createQueue() {
+		if (disposed) {
+			throw new IllegalStateException("dispatcher has been disposed");
+		}
+		return new ChannelQueue();
+	}
+	
+	/**
+	 * Stops the threads of the pool. Pending events are discarded.
+	 */
+	public void dispose() {
+		disposed = true;
+		synchronized (ready) {
+			ready.clear();
+			ready.notifyAll();
+		}
+		for (int i = 0; i < threads.length; i++) {
+			threads[i].interrupt();
+		}
+	}
+	
+	private void follow() {
+		while (!disposed) {
+			ChannelQueue queue;
+			try {
+				leaderLock.lockInterruptibly();
+			} catch (InterruptedException e) {
+				return;
+			}
+			try {
+				queue = fetchQueue();
+			} finally {
+				// promotes one of the followers
+				leaderLock.unlock();
+			}
+			if (queue == null) {
+				return;
+			}
+			queue.processEvents();
+		}
+	}
+	
+	/*
+	 * Only the leader waits here, notify is therefore sufficient to
+	 * wake it up.
+	 */
+	private ChannelQueue fetchQueue() {
+		synchronized (ready) {
+			while (ready.isEmpty() && !disposed) {
+				try {
+					ready.wait();
+				} catch (InterruptedException e) {
+					return null;
+				}
+			}
+			return disposed ? null : ready.removeFirst();
+		}
+	}
+	
+	private void schedule(ChannelQueue queue) {
+		synchronized (ready) {
+			ready.addLast(queue);
+			ready.notify();
+		}
+	}
+	
+	/*
+	 * The events of a channel. The channel is in the ready list or 
+	 * processed by a thread iff scheduled is true.
+	 */
+	private class ChannelQueue implements Executor {
+		
+		private final LinkedList<Runnable> events = new LinkedList<Runnable>();
+		
+		private boolean scheduled;
+		
+		public void execute(Runnable event) {
+			if (disposed) {
+				throw new IllegalStateException("dispatcher has been disposed");
+			}
+			synchronized (this) {
+				events.addLast(event);
+				if (scheduled) {
+					return;
+				}
+				scheduled = true;
+			}
+			schedule(this);
+		}
+		
+		private synchronized Runnable nextEvent() {
+			Runnable event = events.poll();
+			if (event == null) {
+				scheduled = false;
+			}
+			return event;
+		}
+		
+		private void processEvents() {
+			for (int i = 0; i < batchSize; i++) {
+				Runnable event = nextEvent();
+				if (event == null) {
+					return;
+				}
+				try {
+					event.run();
+				} catch (RuntimeException e) {
+					LOG.warn("event of channel threw an exception", e);
+				}
+			}
+			// give the other channels a chance
+			schedule(this);
+		}
+		
+	}
+	
+}
@@ -0,0 +1,41 @@
+/*
+ *  Copyright 2006 Simon Raess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.sf.beep4j.dispatch;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Dispatcher that processes each event immediately on the calling thread,
+ * i.e. the thread of the transport. This is the default dispatcher.
+ * 
+ * @author Simon Raess
+ */
+public class SynchronousDispatcher implements Dispatcher, Executor {
+	
+	/**
+	 * Shared instance of the dispatcher.
+	 */
+	public static final SynchronousDispatcher INSTANCE = new SynchronousDispatcher();
+	
+	public Executor createQueue() {
+		return this;
+	}
+	
+	public void execute(Runnable event) {
+		event.run();
+	}
+	
+}
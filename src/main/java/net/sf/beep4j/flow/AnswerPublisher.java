@@ -0,0 +1,237 @@
+/*
+ *  Copyright 2006 Simon Raess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.sf.beep4j.flow;
+
+import java.util.LinkedList;
+
+import net.sf.beep4j.Channel;
+import net.sf.beep4j.Message;
+import net.sf.beep4j.ReplyListener;
+import net.sf.beep4j.buffer.ReferenceCounted;
+import net.sf.beep4j.internal.util.Assert;
+
+/**
+ * ReplyListener that publishes the ANS messages of a one-to-many exchange
+ * to a single {@link Subscriber}. Pass the publisher as listener to
+ * {@link Channel#sendMessage(Message, ReplyListener)} and subscribe to it:
+ * 
+ * <pre>
+ *   AnswerPublisher publisher = new AnswerPublisher();
+ *   channel.sendMessage(message, publisher);
+ *   publisher.subscribe(subscriber);
+ * </pre>
+ * 
+ * <p>Answers are delivered only as requested by the subscriber. Answers
+ * that arrive before they are requested are retained and buffered. 
+ * Ownership of a delivered message passes to the subscriber, which
+ * should release it once it is done. The terminating NUL completes the
+ * subscriber. A RPY is delivered as single item and an ERR is signalled
+ * as {@link ErrorReplyException}.</p>
+ * 
+ * @author Simon Raess
+ */
+public class AnswerPublisher implements Publisher<Message>, ReplyListener {
+	
+	private final LinkedList<Message> answers = new LinkedList<Message>();
+	
+	private Subscriber<? super Message> subscriber;
+	
+	private long demand;
+	
+	private boolean completed;
+	
+	private Throwable failure;
+	
+	private boolean cancelled;
+	
+	private boolean terminated;
+	
+	private boolean emitting;
+	
+	// --> start of Publisher methods <--
+	
+	public void subscribe(Subscriber<? super Message> subscriber) {
+		Assert.notNull("subscriber", subscriber);
+		synchronized (this) {
+			if (this.subscriber == null) {
+				this.subscriber = subscriber;
+				emitting = true;
+			} else {
+				subscriber = reject(subscriber);
+			}
+		}
+		if (subscriber != null) {
+			subscriber.onSubscribe(new AnswerSubscription());
+			synchronized (this) {
+				emitting = false;
+			}
+			emit();
+		}
+	}
+	
+	private Subscriber<? super Message> reject(Subscriber<? super Message> subscriber) {
+		subscriber.onSubscribe(new Subscription() {
+			public void request(long n) {
+				// ignored
+			}
+			public void cancel() {
+				// ignored
+			}
+		});
+		subscriber.onError(new IllegalStateException(
+				"AnswerPublisher supports only a single subscriber"));
+		return null;
+	}
+	
+	// --> end of Publisher methods <--
+	
+	// --> start of ReplyListener methods <--
+	
+	public void receiveANS(Message message) {
+		enqueue(message);
+		emit();
+	}
+	
+	public void receiveNUL() {
+		synchronized (this) {
+			completed = true;
+		}
+		emit();
+	}
+	
+	public void receiveRPY(Message message) {
+		enqueue(message);
+		receiveNUL();
+	}
+	
+	public void receiveERR(Message message) {
+		retain(message);
+		fail(new ErrorReplyException(message));
+	}
+	
+	// --> end of ReplyListener methods <--
+	
+	private void enqueue(Message message) {
+		retain(message);
+		synchronized (this) {
+			if (!cancelled && !terminated) {
+				answers.addLast(message);
+				return;
+			}
+		}
+		release(message);
+	}
+	
+	private void fail(Throwable throwable) {
+		synchronized (this) {
+			if (failure == null) {
+				failure = throwable;
+			}
+		}
+		emit();
+	}
+	
+	/*
+	 * Delivers buffered answers and terminal signals. Only one thread 
+	 * emits at a time, a thread calling this method while another one 
+	 * is emitting (including re-entrant calls from the subscriber) leaves 
+	 * the work to the emitting thread.
+	 */
+	private void emit() {
+		synchronized (this) {
+			if (emitting || subscriber == null) {
+				return;
+			}
+			emitting = true;
+		}
+		while (true) {
+			Message next = null;
+			Throwable error = null;
+			synchronized (this) {
+				if (cancelled || terminated) {
+					emitting = false;
+					releaseAnswers();
+					return;
+				} else if (failure != null) {
+					error = failure;
+					terminated = true;
+					releaseAnswers();
+				} else if (demand > 0 && !answers.isEmpty()) {
+					next = answers.removeFirst();
+					demand--;
+				} else if (answers.isEmpty() && completed) {
+					terminated = true;
+				} else {
+					emitting = false;
+					return;
+				}
+			}
+			if (next != null) {
+				subscriber.onNext(next);
+			} else if (error != null) {
+				subscriber.onError(error);
+			} else {
+				subscriber.onComplete();
+			}
+		}
+	}
+	
+	private void releaseAnswers() {
+		while (!answers.isEmpty()) {
+			release(answers.removeFirst());
+		}
+	}
+	
+	private static void retain(Message message) {
+		if (message instanceof ReferenceCounted) {
+			((ReferenceCounted) message).retain();
+		}
+	}
+	
+	private static void release(Message message) {
+		if (message instanceof ReferenceCounted) {
+			((ReferenceCounted) message).release();
+		}
+	}
+	
+	private class AnswerSubscription implements Subscription {
+		
+		public void request(long n) {
+			if (n <= 0) {
+				fail(new IllegalArgumentException("request must be positive: " + n));
+				return;
+			}
+			synchronized (AnswerPublisher.this) {
+				demand += n;
+				if (demand < 0) {
+					demand = Long.MAX_VALUE;
+				}
+			}
+			emit();
+		}
+		
+		public void cancel() {
+			synchronized (AnswerPublisher.this) {
+				cancelled = true;
+				if (!emitting) {
+					releaseAnswers();
+				}
+			}
+		}
+		
+	}
+	
+}
@@ -0,0 +1,110 @@
+/*
+ *  Copyright 2006 Simon Raess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.sf.beep4j.flow;
+
+import java.io.PrintWriter;
+
+import net.sf.beep4j.Message;
+import net.sf.beep4j.MessageBuilder;
+import net.sf.beep4j.ResponseHandler;
+import net.sf.beep4j.internal.util.Assert;
+
+/**
+ * Subscriber that sends the received items as ANS messages of a 
+ * one-to-many exchange. Further answers are requested only after the
+ * previous ones have been passed to the transport (see 
+ * {@link ResponseHandler#whenSent(Runnable)}), that is, only while the
+ * receive window of the remote peer has room for them. At most 
+ * <var>prefetch</var> answers are therefore queued locally.
+ * 
+ * <p>The subscriber takes ownership of the received items and passes
+ * them on to the session with {@link ResponseHandler#sendANS(Message)}.</p>
+ * 
+ * <p>Completion of the publisher sends the terminating NUL. A failure
+ * is reported with an ERR if no answer has been sent yet, otherwise 
+ * the exchange is terminated with a NUL.</p>
+ * 
+ * @author Simon Raess
+ */
+public class AnswerSubscriber implements Subscriber<Message> {
+	
+	private final ResponseHandler handler;
+	
+	private final int prefetch;
+	
+	private final Runnable requestNext = new Runnable() {
+		public void run() {
+			subscription.request(1);
+		}
+	};
+	
+	private volatile Subscription subscription;
+	
+	private boolean answered;
+	
+	public AnswerSubscriber(ResponseHandler handler) {
+		this(handler, 1);
+	}
+	
+	public AnswerSubscriber(ResponseHandler handler, int prefetch) {
+		Assert.notNull("handler", handler);
+		if (prefetch <= 0) {
+			throw new IllegalArgumentException("prefetch must be positive: " + prefetch);
+		}
+		this.handler = handler;
+		this.prefetch = prefetch;
+	}
+	
+	// --> start of Subscriber methods <--
+	
+	public void onSubscribe(Subscription subscription) {
+		Assert.notNull("subscription", subscription);
+		if (this.subscription != null) {
+			subscription.cancel();
+			return;
+		}
+		this.subscription = subscription;
+		subscription.request(prefetch);
+	}
+	
+	public void onNext(Message item) {
+		Assert.notNull("item", item);
+		handler.sendANS(item);
+		answered = true;
+		handler.whenSent(requestNext);
+	}
+	
+	public void onError(Throwable throwable) {
+		if (answered) {
+			handler.sendNUL();
+		} else {
+			MessageBuilder builder = handler.createMessageBuilder();
+			builder.setContentType("text", "plain");
+			builder.setCharsetName("UTF-8");
+			PrintWriter writer = new PrintWriter(builder.getWriter());
+			writer.print(throwable.getMessage() != null ? throwable.getMessage() : throwable.toString());
+			writer.close();
+			handler.sendERR(builder.getMessage());
+		}
+	}
+	
+	public void onComplete() {
+		handler.sendNUL();
+	}
+	
+	// --> end of Subscriber methods <--
+	
+}
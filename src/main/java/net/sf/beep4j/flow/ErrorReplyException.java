@@ -0,0 +1,45 @@
+/*
+ *  Copyright 2006 Simon Raess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.sf.beep4j.flow;
+
+import net.sf.beep4j.BeepException;
+import net.sf.beep4j.Message;
+
+/**
+ * Signalled by an {@link AnswerPublisher} when the remote peer answered
+ * the message with an ERR instead of a one-to-many reply.
+ * 
+ * @author Simon Raess
+ */
+public class ErrorReplyException extends BeepException {
+	
+	private final transient Message reply;
+	
+	public ErrorReplyException(Message reply) {
+		super("remote peer replied with ERR");
+		this.reply = reply;
+	}
+	
+	/**
+	 * Gets the received ERR message.
+	 * 
+	 * @return the ERR message
+	 */
+	public Message getReply() {
+		return reply;
+	}
+	
+}
@@ -0,0 +1,39 @@
+/*
+ *  Copyright 2006 Simon Raess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.sf.beep4j.flow;
+
+/**
+ * A producer of a potentially unbounded number of items that are
+ * delivered to a {@link Subscriber} according to the demand it signals.
+ * The interfaces of this package follow the contract of 
+ * <code>java.util.concurrent.Flow</code> (Reactive Streams), so
+ * adapting them to that API is a matter of delegation.
+ * 
+ * @param <T> the type of the published items
+ * @author Simon Raess
+ */
+public interface Publisher<T> {
+	
+	/**
+	 * Adds the given subscriber. The publisher calls 
+	 * {@link Subscriber#onSubscribe(Subscription)} before any other
+	 * method of the subscriber.
+	 * 
+	 * @param subscriber the subscriber
+	 */
+	void subscribe(Subscriber<? super T> subscriber);
+	
+}
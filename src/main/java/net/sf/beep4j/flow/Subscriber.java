@@ -0,0 +1,56 @@
+/*
+ *  Copyright 2006 Simon Raess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.sf.beep4j.flow;
+
+/**
+ * Receiver of the items of a {@link Publisher}. The methods are invoked 
+ * by one thread at a time, in the order 
+ * <code>onSubscribe onNext* (onError | onComplete)?</code>.
+ * 
+ * @param <T> the type of the received items
+ * @author Simon Raess
+ */
+public interface Subscriber<T> {
+	
+	/**
+	 * Invoked before any other method. No items are delivered until
+	 * {@link Subscription#request(long)} is called.
+	 * 
+	 * @param subscription the subscription
+	 */
+	void onSubscribe(Subscription subscription);
+	
+	/**
+	 * Invoked with the next item.
+	 * 
+	 * @param item the item
+	 */
+	void onNext(T item);
+	
+	/**
+	 * Invoked when the publisher failed. No further methods are invoked.
+	 * 
+	 * @param throwable the failure
+	 */
+	void onError(Throwable throwable);
+	
+	/**
+	 * Invoked when all items have been delivered. No further methods are
+	 * invoked.
+	 */
+	void onComplete();
+	
+}
@@ -0,0 +1,40 @@
+/*
+ *  Copyright 2006 Simon Raess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.sf.beep4j.flow;
+
+/**
+ * Link between a {@link Publisher} and a {@link Subscriber}.
+ * 
+ * @author Simon Raess
+ */
+public interface Subscription {
+	
+	/**
+	 * Adds <var>n</var> items to the demand of the subscriber. A 
+	 * non-positive value causes the publisher to signal an 
+	 * IllegalArgumentException through {@link Subscriber#onError(Throwable)}.
+	 * 
+	 * @param n the number of additionally requested items
+	 */
+	void request(long n);
+	
+	/**
+	 * Stops the delivery of items. Items may still be delivered for
+	 * a short while.
+	 */
+	void cancel();
+	
+}
@@ -15,15 +15,27 @@
  */
 package net.sf.beep4j.internal;
 
+import java.nio.ByteBuffer;
+
+import net.sf.beep4j.BeepErrorException;
+import net.sf.beep4j.BeepFuture;
 import net.sf.beep4j.Channel;
 import net.sf.beep4j.ChannelHandler;
 import net.sf.beep4j.CloseChannelCallback;
 import net.sf.beep4j.CloseChannelRequest;
+import net.sf.beep4j.ContentListener;
 import net.sf.beep4j.Message;
 import net.sf.beep4j.MessageBuilder;
+import net.sf.beep4j.Reply;
 import net.sf.beep4j.ReplyListener;
 import net.sf.beep4j.ResponseHandler;
 import net.sf.beep4j.Session;
+import net.sf.beep4j.SillyWindowAvoidance;
+import net.sf.beep4j.StreamingChannelHandler;
+import net.sf.beep4j.StreamingReplyListener;
+import net.sf.beep4j.WritabilityAwareChannelHandler;
+import net.sf.beep4j.buffer.BufferAllocator;
+import net.sf.beep4j.buffer.HeapBufferAllocator;
 import net.sf.beep4j.internal.message.DefaultMessageBuilder;
 import net.sf.beep4j.internal.util.Assert;
 
@@ -35,9 +47,11 @@ class ChannelImpl implements Channel, ChannelHandler, InternalChannel {
 	
 	private final int channelNumber;
 	
+	private final BufferAllocator allocator;
+	
 	private ChannelHandler channelHandler;
 	
-	private State state = new Alive();
+	private volatile State state = new Alive();
 	
 	/**
 	 * Counter that counts how many messages we have sent but to which we
@@ -55,14 +69,26 @@ class ChannelImpl implements Channel, ChannelHandler, InternalChannel {
 			InternalSession session, 
 			String profile, 
 			int channelNumber) {
+		this(session, profile, channelNumber, HeapBufferAllocator.INSTANCE);
+	}
+	
+	public ChannelImpl(
+			InternalSession session, 
+			String profile, 
+			int channelNumber,
+			BufferAllocator allocator) {
 		this.session = session;
 		this.profile = profile;
 		this.channelNumber = channelNumber;
+		this.allocator = allocator;
 	}
 	
 	public ChannelHandler initChannel(ChannelHandler channelHandler) {
 		Assert.notNull("channelHandler", channelHandler);
 		this.channelHandler = channelHandler;
+		if (channelHandler instanceof StreamingChannelHandler) {
+			return new StreamingChannelHandlerWrapper();
+		}
 		return this;
 	}
 	
@@ -87,7 +113,33 @@ class ChannelImpl implements Channel, ChannelHandler, InternalChannel {
 	}
 	
 	public MessageBuilder createMessageBuilder() {
-		return new DefaultMessageBuilder();
+		return new DefaultMessageBuilder(allocator);
+	}
+	
+	public boolean isWritable() {
+		return session.isWritable(channelNumber);
+	}
+	
+	public void setPriority(int priority) {
+		session.setChannelPriority(channelNumber, priority);
+	}
+	
+	public void setMaxFrameSize(int maxFrameSize) {
+		session.setChannelMaxFrameSize(channelNumber, maxFrameSize);
+	}
+	
+	public void setSillyWindowAvoidance(SillyWindowAvoidance policy) {
+		session.setChannelSillyWindowAvoidance(channelNumber, policy);
+	}
+	
+	public void setConsumptionLimit(int limit) {
+		session.setChannelConsumptionLimit(channelNumber, limit);
+	}
+	
+	public void channelWritabilityChanged(boolean writable) {
+		if (channelHandler instanceof WritabilityAwareChannelHandler) {
+			((WritabilityAwareChannelHandler) channelHandler).channelWritabilityChanged(writable);
+		}
 	}
 	
 	protected void setState(State state) {
@@ -98,7 +150,18 @@ class ChannelImpl implements Channel, ChannelHandler, InternalChannel {
 	public void sendMessage(final Message message, final ReplyListener listener) {
 		Assert.notNull("message", message);
 		Assert.notNull("listener", listener);
-		state.sendMessage(message, new ReplyListenerWrapper(listener));
+		if (listener instanceof StreamingReplyListener) {
+			state.sendMessage(message, new StreamingReplyListenerWrapper((StreamingReplyListener) listener));
+		} else {
+			state.sendMessage(message, new ReplyListenerWrapper(listener));
+		}
+	}
+	
+	public BeepFuture<Reply> sendMessage(Message message) {
+		DefaultFuture<Reply> future = new DefaultFuture<Reply>();
+		sendMessage(message, new FutureReplyListener(future));
+		session.addPendingFuture(future);
+		return future;
 	}
 	
 	public void close(CloseChannelCallback callback) {
@@ -106,6 +169,20 @@ class ChannelImpl implements Channel, ChannelHandler, InternalChannel {
 		state.closeInitiated(callback);
 	}
 	
+	public BeepFuture<Void> close() {
+		final DefaultFuture<Void> future = new DefaultFuture<Void>();
+		close(new CloseChannelCallback() {
+			public void closeAccepted() {
+				future.setValue(null);
+			}
+			public void closeDeclined(int code, String message) {
+				future.setFailure(new BeepErrorException(code, message));
+			}
+		});
+		session.addPendingFuture(future);
+		return future;
+	}
+	
 	public void channelClosed() {
 		channelHandler.channelClosed();
 	}
@@ -126,6 +203,10 @@ class ChannelImpl implements Channel, ChannelHandler, InternalChannel {
 		state.closeRequested(request);
 	}
 	
+	private ContentListener messageStarted(Message header, ResponseHandler handler) {
+		return state.messageStarted(header, new ResponseHandlerWrapper(handler));
+	}
+	
 	private synchronized void incrementOutstandingReplyCount() {
 		outstandingReplyCount++;
 	}
@@ -189,6 +270,73 @@ class ChannelImpl implements Channel, ChannelHandler, InternalChannel {
 		}
 	}
 	
+	/*
+	 * Wrapper for StreamingReplyListener that decrements the counter
+	 * whenever the content of a RPY has been completely received.
+	 */
+	private class StreamingReplyListenerWrapper extends ReplyListenerWrapper 
+			implements StreamingReplyListener {
+		
+		private final StreamingReplyListener target;
+		
+		private StreamingReplyListenerWrapper(StreamingReplyListener target) {
+			super(target);
+			this.target = target;
+		}
+		
+		public ContentListener answerStarted(Message header) {
+			return target.answerStarted(header);
+		}
+		
+		public ContentListener replyStarted(Message header) {
+			final ContentListener listener = target.replyStarted(header);
+			return new ContentListener() {
+				public void contentReceived(ByteBuffer content) {
+					if (listener != null) {
+						listener.contentReceived(content);
+					}
+				}
+				public void contentCompleted() {
+					decrementOutstandingReplyCount();
+					if (listener != null) {
+						listener.contentCompleted();
+					}
+				}
+			};
+		}
+	}
+	
+	/*
+	 * Decorator of this channel that is returned from initChannel if
+	 * the ChannelHandler of the application streams messages.
+	 */
+	private class StreamingChannelHandlerWrapper implements StreamingChannelHandler {
+		
+		public void channelOpened(Channel c) {
+			ChannelImpl.this.channelOpened(c);
+		}
+		
+		public void channelStartFailed(int code, String message) {
+			ChannelImpl.this.channelStartFailed(code, message);
+		}
+		
+		public void messageReceived(Message message, ResponseHandler handler) {
+			ChannelImpl.this.messageReceived(message, handler);
+		}
+		
+		public ContentListener messageStarted(Message header, ResponseHandler handler) {
+			return ChannelImpl.this.messageStarted(header, handler);
+		}
+		
+		public void closeRequested(CloseChannelRequest request) {
+			ChannelImpl.this.closeRequested(request);
+		}
+		
+		public void channelClosed() {
+			ChannelImpl.this.channelClosed();
+		}
+	}
+	
 	private class ResponseHandlerWrapper implements ResponseHandler {
 		
 		private final ResponseHandler target;
@@ -220,6 +368,10 @@ class ChannelImpl implements Channel, ChannelHandler, InternalChannel {
 			decrementOutstandingResponseCount();
 			target.sendRPY(message);
 		}
+		
+		public void whenSent(Runnable callback) {
+			target.whenSent(callback);
+		}
 	}
 	
 	private static interface State {
@@ -234,6 +386,8 @@ class ChannelImpl implements Channel, ChannelHandler, InternalChannel {
 		
 		void messageReceived(Message message, ResponseHandler handler);
 		
+		ContentListener messageStarted(Message header, ResponseHandler handler);
+		
 	}
 	
 	private static abstract class AbstractState implements State {
@@ -257,6 +411,10 @@ class ChannelImpl implements Channel, ChannelHandler, InternalChannel {
 		public void messageReceived(Message message, ResponseHandler handler) {
 			throw new IllegalStateException();
 		}
+		
+		public ContentListener messageStarted(Message header, ResponseHandler handler) {
+			throw new IllegalStateException();
+		}
 	}
 	
 	private class Alive extends AbstractState {
@@ -271,6 +429,11 @@ class ChannelImpl implements Channel, ChannelHandler, InternalChannel {
 			channelHandler.messageReceived(message, handler);
 		}
 		
+		@Override
+		public ContentListener messageStarted(Message header, ResponseHandler handler) {
+			return ((StreamingChannelHandler) channelHandler).messageStarted(header, handler);
+		}
+		
 		@Override
 		public void closeInitiated(CloseChannelCallback callback) {
 			setState(new CloseInitiated(callback));
@@ -297,6 +460,11 @@ class ChannelImpl implements Channel, ChannelHandler, InternalChannel {
 			channelHandler.messageReceived(message, handler);
 		}
 		
+		@Override
+		public ContentListener messageStarted(Message header, ResponseHandler handler) {
+			return ((StreamingChannelHandler) channelHandler).messageStarted(header, handler);
+		}
+		
 		@Override
 		public void checkCondition() {
 			if (isReadyToShutdown()) {
@@ -346,6 +514,11 @@ class ChannelImpl implements Channel, ChannelHandler, InternalChannel {
 			channelHandler.messageReceived(message, handler);
 		}
 		
+		@Override
+		public ContentListener messageStarted(Message header, ResponseHandler handler) {
+			return ((StreamingChannelHandler) channelHandler).messageStarted(header, handler);
+		}
+		
 		@Override
 		public void checkCondition() {
 			if (isReadyToShutdown()) {
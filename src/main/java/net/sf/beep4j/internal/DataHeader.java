@@ -16,7 +16,6 @@
 package net.sf.beep4j.internal;
 
 import java.nio.ByteBuffer;
-import java.nio.charset.Charset;
 
 import net.sf.beep4j.ProtocolException;
 import net.sf.beep4j.internal.util.Assert;
@@ -29,15 +28,28 @@ import net.sf.beep4j.internal.util.ByteUtil;
  */
 public class DataHeader {
 	
-	private static final String EOL = "\r\n";
+	private static final byte CR = '\r';
+	
+	private static final byte LF = '\n';
 
 	private static final char FINAL = '.';
 
 	private static final char INTERMEDIATE = '*';
 
-	private static final String SPACE = " ";
-
-	private static final Charset charset = Charset.forName("US-ASCII");
+	private static final byte SPACE = ' ';
+	
+	/**
+	 * The ASCII encoded keywords indexed by the ordinal of the MessageType.
+	 */
+	private static final byte[][] KEYWORDS;
+	
+	static {
+		MessageType[] types = MessageType.values();
+		KEYWORDS = new byte[types.length][];
+		for (int i = 0; i < types.length; i++) {
+			KEYWORDS[i] = ByteUtil.toASCII(types[i].name());
+		}
+	}
 	
 	/**
 	 * The message type of the frame.
@@ -122,6 +134,105 @@ public class DataHeader {
 		}
 	}
 	
+	/**
+	 * Determines whether the header line in the passed in buffer is the
+	 * header of a data frame (i.e. MSG, RPY, ERR, ANS or NUL). The position
+	 * of the buffer is not modified.
+	 * 
+	 * @param header the header line without the terminating CRLF
+	 * @return true iff the header line starts with a standard message type
+	 */
+	public static final boolean isDataHeader(ByteBuffer header) {
+		return peekMessageType(header) != null;
+	}
+	
+	/**
+	 * Parses the header line contained in the passed in buffer into a 
+	 * DataHeader. The header is parsed directly from the bytes between 
+	 * the position and the limit of the buffer, no intermediate Strings
+	 * are created. The position of the buffer is advanced to the limit.
+	 * 
+	 * @param header the header line without the terminating CRLF
+	 * @return the parsed header
+	 */
+	public static final DataHeader parseHeader(ByteBuffer header) {
+		int tokens = ByteUtil.countTokens(header);
+		if (tokens == 0) {
+			throw new ProtocolException("header has 0 tokens");
+		}
+		
+		MessageType type = peekMessageType(header);
+		if (type == null) {
+			throw new ProtocolException("'" + ByteUtil.toASCIIString(header) 
+					+ "' does not start with a valid message type");
+		}
+		
+		if (type == MessageType.ANS && tokens != 7) {
+			throw new ProtocolException("expecting 7 tokens in ANS header, was " + tokens);
+		} else if (type != MessageType.ANS && tokens != 6) {
+			throw new ProtocolException("expecting 6 tokens in header, was " + tokens);
+		}
+		
+		// skip the message type and the following space
+		header.position(header.position() + 4);
+		
+		int channel = ByteUtil.parseUnsignedInt("channel number", header);
+		int messageNumber = ByteUtil.parseUnsignedInt("message number", header);
+		boolean intermediate = parseIntermediate(header);
+		long sequenceNumber = ByteUtil.parseUnsignedLong("sequence number", header);
+		int payloadSize = ByteUtil.parseUnsignedInt("size", header);
+		
+		if (MessageType.ANS == type) {
+			int answerNumber = ByteUtil.parseUnsignedInt("answer number", header);
+			return new ANSHeader(channel, messageNumber, intermediate, sequenceNumber, payloadSize, answerNumber);
+		} else {
+			return new DataHeader(type, channel, messageNumber, intermediate, sequenceNumber, payloadSize);
+		}
+	}
+	
+	private static MessageType peekMessageType(ByteBuffer header) {
+		int position = header.position();
+		if (header.remaining() < 3) {
+			return null;
+		} else if (header.remaining() > 3 && header.get(position + 3) != ' ') {
+			return null;
+		}
+		
+		byte b0 = header.get(position);
+		byte b1 = header.get(position + 1);
+		byte b2 = header.get(position + 2);
+		
+		if (b0 == 'M' && b1 == 'S' && b2 == 'G') {
+			return MessageType.MSG;
+		} else if (b0 == 'R' && b1 == 'P' && b2 == 'Y') {
+			return MessageType.RPY;
+		} else if (b0 == 'A' && b1 == 'N' && b2 == 'S') {
+			return MessageType.ANS;
+		} else if (b0 == 'E' && b1 == 'R' && b2 == 'R') {
+			return MessageType.ERR;
+		} else if (b0 == 'N' && b1 == 'U' && b2 == 'L') {
+			return MessageType.NUL;
+		} else {
+			return null;
+		}
+	}
+	
+	private static boolean parseIntermediate(ByteBuffer header) {
+		int start = header.position();
+		byte indicator = header.get();
+		if (header.hasRemaining() && header.get() != ' ') {
+			header.position(start);
+			throw new ProtocolException("'" + ByteUtil.toASCIIString(header) 
+					+ "' contains an invalid intermediate indicator");
+		} else if (indicator == INTERMEDIATE) {
+			return true;
+		} else if (indicator == FINAL) {
+			return false;
+		} else {
+			throw new ProtocolException("'" + (char) indicator + "' is an invalid intermediate indicator");
+		}
+	}
+	
 	private static MessageType parseMessageType(String s) {
 		try {
 			return MessageType.valueOf(s);
@@ -189,21 +300,56 @@ public class DataHeader {
 	 * @return the converted ByteBuffer 
 	 */
 	public ByteBuffer asByteBuffer() {
-		StringBuilder builder = new StringBuilder(type.name());
-		
-		builder.append(SPACE);
-		builder.append(channel);
-		builder.append(SPACE);
-		builder.append(messageNumber);
-		builder.append(SPACE);
-		builder.append(intermediate ? INTERMEDIATE : FINAL);
-		builder.append(SPACE);
-		builder.append(sequenceNumber);
-		builder.append(SPACE);
-		builder.append(payloadSize);
-		builder.append(EOL);
-		
-		return charset.encode(builder.toString());
+		ByteBuffer buffer = ByteBuffer.allocate(getEncodedLength());
+		writeTo(buffer);
+		buffer.flip();
+		return buffer;
+	}
+	
+	/**
+	 * Gets the number of bytes needed to encode this header including
+	 * the terminating CRLF.
+	 * 
+	 * @return the encoded length of the header
+	 */
+	public int getEncodedLength() {
+		return getFieldsLength() + 2;
+	}
+	
+	/**
+	 * Writes the ASCII encoded header including the terminating CRLF 
+	 * at the current position of the passed in buffer. The buffer must 
+	 * have at least {@link #getEncodedLength()} bytes remaining.
+	 * 
+	 * @param buffer the buffer to write to
+	 */
+	public void writeTo(ByteBuffer buffer) {
+		writeFields(buffer);
+		buffer.put(CR);
+		buffer.put(LF);
+	}
+	
+	protected int getFieldsLength() {
+		return KEYWORDS[type.ordinal()].length
+		     + 1 + ByteUtil.digits(channel)
+		     + 1 + ByteUtil.digits(messageNumber)
+		     + 2
+		     + 1 + ByteUtil.digits(sequenceNumber)
+		     + 1 + ByteUtil.digits(payloadSize);
+	}
+	
+	protected void writeFields(ByteBuffer buffer) {
+		buffer.put(KEYWORDS[type.ordinal()]);
+		buffer.put(SPACE);
+		ByteUtil.putUnsigned(buffer, channel);
+		buffer.put(SPACE);
+		ByteUtil.putUnsigned(buffer, messageNumber);
+		buffer.put(SPACE);
+		buffer.put((byte) (intermediate ? INTERMEDIATE : FINAL));
+		buffer.put(SPACE);
+		ByteUtil.putUnsigned(buffer, sequenceNumber);
+		buffer.put(SPACE);
+		ByteUtil.putUnsigned(buffer, payloadSize);
 	}
 	
 	@Override
@@ -275,26 +421,16 @@ public class DataHeader {
 		}
 		
 		@Override
-		public ByteBuffer asByteBuffer() {
-			StringBuilder builder = new StringBuilder();
-			
-			builder.append(type.name());
-			builder.append(SPACE);
-			builder.append(channel);
-			builder.append(SPACE);
-			builder.append(messageNumber);
-			builder.append(SPACE);
-			builder.append(intermediate ? INTERMEDIATE : FINAL);
-			builder.append(SPACE);
-			builder.append(sequenceNumber);
-			builder.append(SPACE);
-			builder.append(payloadSize);
-			builder.append(SPACE);
-			builder.append(answerNumber);
-			builder.append(EOL);
-			
-			return charset.encode(builder.toString());
-		}		
+		protected int getFieldsLength() {
+			return super.getFieldsLength() + 1 + ByteUtil.digits(answerNumber);
+		}
+		
+		@Override
+		protected void writeFields(ByteBuffer buffer) {
+			super.writeFields(buffer);
+			buffer.put(SPACE);
+			ByteUtil.putUnsigned(buffer, answerNumber);
+		}
 
 		@Override
 		public boolean equals(Object obj) {
@@ -0,0 +1,185 @@
+/*
+ *  Copyright 2006 Simon Raess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.sf.beep4j.internal;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import net.sf.beep4j.BeepFuture;
+import net.sf.beep4j.FutureListener;
+import net.sf.beep4j.internal.util.Assert;
+
+/**
+ * Default implementation of the {@link BeepFuture} interface. The
+ * future is completed by the session through either 
+ * {@link #setValue(Object)} or {@link #setFailure(Throwable)}. Only
+ * the first completion has an effect.
+ * 
+ * @param <V> the type of the result
+ * @author Simon Raess
+ */
+public class DefaultFuture<V> implements BeepFuture<V> {
+	
+	private boolean done;
+	
+	private boolean cancelled;
+	
+	private V value;
+	
+	private Throwable failure;
+	
+	private List<Registration> listeners = new LinkedList<Registration>();
+	
+	/**
+	 * Completes the future successfully.
+	 * 
+	 * @param value the result of the operation
+	 * @return true if the future was completed by this call
+	 */
+	public boolean setValue(V value) {
+		synchronized (this) {
+			if (done) {
+				return false;
+			}
+			this.value = value;
+		}
+		return complete();
+	}
+	
+	/**
+	 * Completes the future with a failure.
+	 * 
+	 * @param failure the cause of the failure
+	 * @return true if the future was completed by this call
+	 */
+	public boolean setFailure(Throwable failure) {
+		Assert.notNull("failure", failure);
+		synchronized (this) {
+			if (done) {
+				return false;
+			}
+			this.failure = failure;
+		}
+		return complete();
+	}
+	
+	private boolean complete() {
+		List<Registration> registrations;
+		synchronized (this) {
+			done = true;
+			registrations = listeners;
+			listeners = null;
+			notifyAll();
+		}
+		for (Registration registration : registrations) {
+			registration.fire();
+		}
+		return true;
+	}
+	
+	// --> start of Future methods <--
+	
+	/**
+	 * Cancels the future. Note that cancelling does not abort the underlying
+	 * BEEP exchange, a reply arriving afterwards is simply ignored.
+	 */
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		synchronized (this) {
+			if (done) {
+				return false;
+			}
+			cancelled = true;
+		}
+		return complete();
+	}
+	
+	public synchronized boolean isCancelled() {
+		return cancelled;
+	}
+	
+	public synchronized boolean isDone() {
+		return done;
+	}
+	
+	public synchronized V get() throws InterruptedException, ExecutionException {
+		while (!done) {
+			wait();
+		}
+		return getResult();
+	}
+	
+	public synchronized V get(long timeout, TimeUnit unit) 
+			throws InterruptedException, ExecutionException, TimeoutException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (!done) {
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0) {
+				throw new TimeoutException();
+			}
+			TimeUnit.NANOSECONDS.timedWait(this, remaining);
+		}
+		return getResult();
+	}
+	
+	private V getResult() throws ExecutionException {
+		if (cancelled) {
+			throw new CancellationException();
+		} else if (failure != null) {
+			throw new ExecutionException(failure);
+		}
+		return value;
+	}
+	
+	// --> end of Future methods <--
+	
+	// --> start of BeepFuture methods <--
+	
+	public void addListener(FutureListener<V> listener, Executor executor) {
+		Assert.notNull("listener", listener);
+		Assert.notNull("executor", executor);
+		Registration registration = new Registration(listener, executor);
+		synchronized (this) {
+			if (!done) {
+				listeners.add(registration);
+				return;
+			}
+		}
+		registration.fire();
+	}
+	
+	// --> end of BeepFuture methods <--
+	
+	private class Registration implements Runnable {
+		private final FutureListener<V> listener;
+		private final Executor executor;
+		private Registration(FutureListener<V> listener, Executor executor) {
+			this.listener = listener;
+			this.executor = executor;
+		}
+		private void fire() {
+			executor.execute(this);
+		}
+		public void run() {
+			listener.operationComplete(DefaultFuture.this);
+		}
+	}
+	
+}
@@ -16,7 +16,13 @@
 package net.sf.beep4j.internal;
 
 import java.nio.ByteBuffer;
-import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.sf.beep4j.buffer.BufferAllocator;
+import net.sf.beep4j.buffer.HeapBufferAllocator;
+import net.sf.beep4j.buffer.ManagedBuffer;
+import net.sf.beep4j.buffer.ReferenceCounted;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -34,6 +40,10 @@ public class DefaultStreamParser implements StreamParser, ParseStateContext {
 	
 	private final ParseState trailerState = new TrailerState();
 	
+	private final boolean zeroCopy;
+	
+	private final BufferAllocator allocator;
+	
 	// conversational state
 	
 	private ParseState state;
@@ -42,9 +52,43 @@ public class DefaultStreamParser implements StreamParser, ParseStateContext {
 	
 	private ByteBuffer payload;
 	
+	private ManagedBuffer payloadBuffer;
+	
 	public DefaultStreamParser(FrameHandler handler, TransportMapping mapping) {
+		this(handler, mapping, false);
+	}
+	
+	/**
+	 * Creates a new DefaultStreamParser. If <var>zeroCopy</var> is true,
+	 * frame payloads that are completely contained in a buffer passed to
+	 * {@link #process(ByteBuffer)} are not copied, they share the content
+	 * of that buffer. This mode must only be used if the caller does not 
+	 * reuse the buffers it passes to this parser.
+	 * 
+	 * @param handler the FrameHandler receiving the parsed frames
+	 * @param mapping the TransportMapping
+	 * @param zeroCopy whether fully buffered payloads are sliced instead of copied
+	 */
+	public DefaultStreamParser(FrameHandler handler, TransportMapping mapping, boolean zeroCopy) {
+		this(handler, mapping, zeroCopy, HeapBufferAllocator.INSTANCE);
+	}
+	
+	/**
+	 * Creates a new DefaultStreamParser that allocates the payload buffers
+	 * from the given allocator. The receiver of the frames is responsible
+	 * to release them.
+	 * 
+	 * @param handler the FrameHandler receiving the parsed frames
+	 * @param mapping the TransportMapping
+	 * @param zeroCopy whether fully buffered payloads are sliced instead of copied
+	 * @param allocator the allocator for payload buffers
+	 */
+	public DefaultStreamParser(FrameHandler handler, TransportMapping mapping, 
+			boolean zeroCopy, BufferAllocator allocator) {
 		this.handler = handler;
 		this.mapping = mapping;
+		this.zeroCopy = zeroCopy;
+		this.allocator = allocator;
 		this.state = headerState;
 	}
 	
@@ -53,18 +97,21 @@ public class DefaultStreamParser implements StreamParser, ParseStateContext {
 	}
 		
 	protected void forward(Frame frame) {
-		handler.handleFrame(frame);
+		// the window must have moved before a synchronous handler reports
+		// the consumption of the frame
 		if (frame.getHeader().getPayloadSize() > 0) {				
 			mapping.frameReceived(
 					frame.getChannelNumber(), frame.getSequenceNumber(), frame.getSize());
 		}
+		handler.handleFrame(frame);
 	}
 		
-	public void handleHeader(String[] tokens) {
-		LOG.info("got header: " + Arrays.toString(tokens));
-		
-		if (isStandardType(tokens[0])) {			
-			header = DataHeader.parseHeader(tokens);
+	public void handleHeader(ByteBuffer buffer) {
+		if (DataHeader.isDataHeader(buffer)) {
+			header = DataHeader.parseHeader(buffer);
+			if (LOG.isInfoEnabled()) {
+				LOG.info("got header: " + header);
+			}
 
 			int channel = header.getChannel();
 			int size = header.getPayloadSize();
@@ -72,19 +119,16 @@ public class DefaultStreamParser implements StreamParser, ParseStateContext {
 			mapping.checkFrame(channel, seqno, size);
 			
 			LOG.info("moving to payload state");
-			state = new PayloadState(header.getPayloadSize());
+			state = new PayloadState(header.getPayloadSize(), zeroCopy);
 			
 		} else {
-			mapping.processMappingFrame(tokens);
+			mapping.processMappingFrame(buffer);
 		}
 	}
 	
-	private boolean isStandardType(String type) {
-		return MessageType.ANS.name().equals(type)
-		    || MessageType.ERR.name().equals(type)
-		    || MessageType.MSG.name().equals(type)
-		    || MessageType.NUL.name().equals(type)
-		    || MessageType.RPY.name().equals(type);
+	public ByteBuffer allocatePayload(int size) {
+		payloadBuffer = allocator.allocate(size);
+		return payloadBuffer.getBuffer();
 	}
 	
 	public void handlePayload(ByteBuffer payload) {
@@ -95,11 +139,53 @@ public class DefaultStreamParser implements StreamParser, ParseStateContext {
 	
 	public void handleTrailer() {
 		LOG.info("got trailer, moving to header state");
-		Frame frame = new Frame(header, payload);
-		forward(frame);
+		ReferenceCounted owner = payloadBuffer;
+		if (header.getPayloadSize() > 0 && mapping.isConsumptionDriven(header.getChannel())) {
+			owner = new ConsumptionTracker(owner, header.getChannel(), header.getPayloadSize());
+		}
+		Frame frame = new Frame(header, payload, owner);
 		header = null;
 		payload = null;
+		payloadBuffer = null;
+		forward(frame);
 		state = headerState;
 	}
 
+	/*
+	 * Reports the consumption of a frame to the mapping as soon as the
+	 * last reference to the frame has been released, or earlier if the
+	 * frame is marked as consumed. The consumption is reported once.
+	 */
+	private class ConsumptionTracker implements ReferenceCounted, Frame.Consumable {
+		private final AtomicInteger references = new AtomicInteger(1);
+		private final AtomicBoolean consumed = new AtomicBoolean();
+		private final ReferenceCounted owner;
+		private final int channel;
+		private final int size;
+		private ConsumptionTracker(ReferenceCounted owner, int channel, int size) {
+			this.owner = owner;
+			this.channel = channel;
+			this.size = size;
+		}
+		public void retain() {
+			references.incrementAndGet();
+			if (owner != null) {
+				owner.retain();
+			}
+		}
+		public void release() {
+			if (owner != null) {
+				owner.release();
+			}
+			if (references.decrementAndGet() == 0) {
+				consumed();
+			}
+		}
+		public void consumed() {
+			if (consumed.compareAndSet(false, true)) {
+				mapping.frameConsumed(channel, size);
+			}
+		}
+	}
+
 }
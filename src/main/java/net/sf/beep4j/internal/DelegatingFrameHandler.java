@@ -55,4 +55,8 @@ public class DelegatingFrameHandler implements FrameHandler, SessionListener {
 		handlers.remove(channelNumber);
 	}
 	
+	public void sessionClosed() {
+		// nothing to do
+	}
+	
 }
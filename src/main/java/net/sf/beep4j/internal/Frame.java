@@ -16,19 +16,85 @@
 package net.sf.beep4j.internal;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
+import net.sf.beep4j.buffer.BufferAllocator;
+import net.sf.beep4j.buffer.ManagedBuffer;
+import net.sf.beep4j.buffer.ReferenceCounted;
 import net.sf.beep4j.internal.util.Assert;
 import net.sf.beep4j.transport.Transport;
 
-public class Frame {
+public class Frame implements ReferenceCounted {
+	private static final ByteBuffer TRAILER = 
+			ByteBuffer.wrap(Constants.TRAILER_BYTES).asReadOnlyBuffer();
+	
 	private DataHeader header;
-	private ByteBuffer payload;
+	private ByteBuffer[] segments;
+	private ReferenceCounted owner;
+	private ManagedBuffer encodedHeader;
 	
 	public Frame(DataHeader header, ByteBuffer payload) {
-		Assert.notNull("header", header);
+		this(header, payload, null);
+	}
+	
+	/**
+	 * Creates a new Frame whose payload is backed by a reference counted
+	 * buffer. Releasing the frame releases the owner of the payload.
+	 * 
+	 * @param header the header of the frame
+	 * @param payload the payload of the frame
+	 * @param owner the owner of the payload buffer, may be null
+	 */
+	public Frame(DataHeader header, ByteBuffer payload, ReferenceCounted owner) {
+		this(header, new ByteBuffer[] { payload }, owner);
 		Assert.notNull("payload", payload);
+	}
+	
+	/**
+	 * Creates a new Frame whose payload is the concatenation of the
+	 * remaining bytes of the given segments. The segments are written 
+	 * as they are, without copying them into a single buffer.
+	 * 
+	 * @param header the header of the frame
+	 * @param segments the segments of the payload
+	 * @param owner the owner of the segment buffers, may be null
+	 */
+	public Frame(DataHeader header, ByteBuffer[] segments, ReferenceCounted owner) {
+		Assert.notNull("header", header);
+		Assert.notNull("segments", segments);
 		this.header = header;
-		this.payload = payload;
+		this.segments = segments;
+		this.owner = owner;
+	}
+	
+	public void retain() {
+		if (owner != null) {
+			owner.retain();
+		}
+	}
+	
+	public void release() {
+		if (owner != null) {
+			owner.release();
+		}
+		if (encodedHeader != null) {
+			encodedHeader.release();
+			encodedHeader = null;
+		}
+	}
+	
+	/**
+	 * Reports the payload of this frame as consumed before the frame is
+	 * released. The frames of a message that is being assembled can only
+	 * be released together with the complete message. Holding back their
+	 * window credit until then would keep a message larger than the
+	 * consumption limit of the channel from ever completing.
+	 */
+	public void consumed() {
+		if (owner instanceof Consumable) {
+			((Consumable) owner).consumed();
+		}
 	}
 	
 	public DataHeader getHeader() {
@@ -59,7 +125,21 @@ public class Frame {
 		return header.getPayloadSize();
 	}
 	
+	/**
+	 * Gets the payload of the frame. The payload of a frame with several
+	 * segments is copied into a new buffer.
+	 * 
+	 * @return the payload
+	 */
 	public ByteBuffer getPayload() {
+		if (segments.length == 1) {
+			return segments[0];
+		}
+		ByteBuffer payload = ByteBuffer.allocate(getSize());
+		for (ByteBuffer segment : segments) {
+			payload.put(segment.duplicate());
+		}
+		payload.flip();
 		return payload;
 	}
 	
@@ -67,37 +147,71 @@ public class Frame {
 		Frame[] result = new Frame[2];
 		
 		DataHeader[] headers = header.split(size);
-		ByteBuffer[] buffers = splitPayload(getPayload(), size);
+		List<ByteBuffer> first = new ArrayList<ByteBuffer>();
+		List<ByteBuffer> second = new ArrayList<ByteBuffer>();
+		splitPayload(size, first, second);
 		
-		result[0] = new Frame(headers[0], buffers[0]);		
-		result[1] = new Frame(headers[1], buffers[1]);
+		// the reference of this frame is passed on to the first part,
+		// the second part needs its own reference
+		retain();
+		result[0] = new Frame(headers[0], first.toArray(new ByteBuffer[first.size()]), owner);		
+		result[1] = new Frame(headers[1], second.toArray(new ByteBuffer[second.size()]), owner);
 		
 		return result;
 	}
-		
-	private ByteBuffer[] splitPayload(ByteBuffer payload, int size) {
-		ByteBuffer[] result = new ByteBuffer[2];
-		
-		payload.position(0).limit(size);
-		result[0] = payload.slice();
-		
-		payload.position(size);
-		payload.limit(payload.capacity());
-		result[1] = payload.slice();
-		
-		return result;
+	
+	/*
+	 * Distributes the segments on the two parts, splitting the segment 
+	 * that contains the boundary.
+	 */
+	private void splitPayload(int size, List<ByteBuffer> first, List<ByteBuffer> second) {
+		int remaining = size;
+		for (ByteBuffer segment : segments) {
+			if (remaining >= segment.remaining()) {
+				first.add(segment);
+				remaining -= segment.remaining();
+			} else if (remaining > 0) {
+				ByteBuffer copy = segment.duplicate();
+				int start = copy.position();
+				int end = copy.limit();
+				
+				copy.limit(start + remaining);
+				first.add(copy.slice());
+				
+				copy.limit(end);
+				copy.position(start + remaining);
+				second.add(copy.slice());
+				remaining = 0;
+			} else {
+				second.add(segment);
+			}
+		}
 	}
 
-	public void send(Transport transport) {
-		ByteBuffer headerBuffer = header.asByteBuffer();
+	/**
+	 * Writes the frame to the given Transport. The header, the payload
+	 * segments and the trailer are passed as separate buffers, the 
+	 * payload is not copied. The transport releases the frame once it 
+	 * has been written. The header is encoded into a buffer from the 
+	 * given allocator, which is owned by the frame and returned to the
+	 * allocator when the frame is released.
+	 * 
+	 * @param transport the Transport to write to
+	 * @param allocator the allocator for the header buffer
+	 */
+	public void send(Transport transport, BufferAllocator allocator) {
+		encodedHeader = allocator.allocate(header.getEncodedLength());
+		ByteBuffer encoded = encodedHeader.getBuffer();
+		header.writeTo(encoded);
+		encoded.flip();
 		
-		ByteBuffer buffer = ByteBuffer.allocate(headerBuffer.remaining() + getSize() + 5);
-		buffer.put(headerBuffer);
-		buffer.put(getPayload());
-		buffer.put(Constants.TRAILER_BYTES);
-		buffer.flip();
-		
-		transport.sendBytes(buffer);
+		ByteBuffer[] buffers = new ByteBuffer[segments.length + 2];
+		buffers[0] = encoded;
+		for (int i = 0; i < segments.length; i++) {
+			buffers[i + 1] = segments[i].duplicate();
+		}
+		buffers[buffers.length - 1] = TRAILER.duplicate();
+		transport.sendBytes(buffers, this);
 	}
 	
 	@Override
@@ -109,7 +223,7 @@ public class Frame {
 		} else if (obj.getClass().equals(getClass())) {
 			Frame frame = (Frame) obj;
 			return header.equals(frame.header)
-			    && payload.equals(frame.payload);
+			    && getPayload().equals(frame.getPayload());
 		} else {
 			return false;
 		}
@@ -120,4 +234,18 @@ public class Frame {
 		return "Frame[header=" + getHeader() + "]";
 	}
 
-}
\ No newline at end of file
+	/**
+	 * Implemented by owners of received payloads that report the
+	 * consumption of the payload to the transport mapping.
+	 */
+	public static interface Consumable {
+		
+		/**
+		 * Reports the payload as consumed. Subsequent invocations, as
+		 * well as releasing the payload, do not report it again.
+		 */
+		void consumed();
+		
+	}
+	
+}
@@ -0,0 +1,109 @@
+/*
+ *  Copyright 2006 Simon Raess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.sf.beep4j.internal;
+
+import java.util.LinkedList;
+import java.util.List;
+
+import net.sf.beep4j.BeepFuture;
+import net.sf.beep4j.FutureListener;
+import net.sf.beep4j.Message;
+import net.sf.beep4j.Reply;
+import net.sf.beep4j.ReplyListener;
+import net.sf.beep4j.buffer.ReferenceCounted;
+import net.sf.beep4j.dispatch.SynchronousDispatcher;
+import net.sf.beep4j.internal.util.Assert;
+
+/**
+ * ReplyListener that collects the response to a message and completes
+ * a {@link DefaultFuture} with the resulting {@link Reply}. The received
+ * messages are retained because they are handed to the application
+ * after the listener method has returned. Messages that cannot be 
+ * handed to the application because the future has already been
+ * completed, cancelled or failed are released again.
+ * 
+ * @author Simon Raess
+ */
+class FutureReplyListener implements ReplyListener {
+	
+	private final DefaultFuture<Reply> future;
+	
+	private final List<Message> answers = new LinkedList<Message>();
+	
+	FutureReplyListener(DefaultFuture<Reply> future) {
+		Assert.notNull("future", future);
+		this.future = future;
+		// cancelled or failed, the answers are never handed to the application
+		future.addListener(new FutureListener<Reply>() {
+			public void operationComplete(BeepFuture<Reply> future) {
+				releaseAnswers();
+			}
+		}, SynchronousDispatcher.INSTANCE);
+	}
+	
+	public synchronized void receiveANS(Message message) {
+		if (!future.isDone()) {
+			answers.add(retain(message));
+		}
+	}
+	
+	public synchronized void receiveNUL() {
+		List<Message> result = new LinkedList<Message>(answers);
+		answers.clear();
+		if (!future.setValue(Reply.answers(result))) {
+			release(result);
+		}
+	}
+	
+	public void receiveERR(Message message) {
+		complete(Reply.err(retain(message)), message);
+	}
+	
+	public void receiveRPY(Message message) {
+		complete(Reply.rpy(retain(message)), message);
+	}
+	
+	private void complete(Reply reply, Message message) {
+		if (!future.setValue(reply)) {
+			release(message);
+		}
+	}
+	
+	private synchronized void releaseAnswers() {
+		release(answers);
+		answers.clear();
+	}
+	
+	private static Message retain(Message message) {
+		if (message instanceof ReferenceCounted) {
+			((ReferenceCounted) message).retain();
+		}
+		return message;
+	}
+	
+	private static void release(Message message) {
+		if (message instanceof ReferenceCounted) {
+			((ReferenceCounted) message).release();
+		}
+	}
+	
+	private static void release(List<Message> messages) {
+		for (Message message : messages) {
+			release(message);
+		}
+	}
+	
+}
@@ -16,15 +16,15 @@
 package net.sf.beep4j.internal;
 
 import java.nio.ByteBuffer;
-import java.nio.CharBuffer;
-import java.nio.charset.Charset;
 
 import net.sf.beep4j.ProtocolException;
 
 /**
  * ParseState to read the header of a BEEP message. If a valid header
- * is found, the method {@link ParseStateContext#handleHeader(String[])}
- * is invoked and the tokenized header is passed in.
+ * is found, the method {@link ParseStateContext#handleHeader(ByteBuffer)}
+ * is invoked and the header line is passed in. The header line is neither 
+ * decoded nor tokenized, it is up to the context to parse it directly
+ * from the buffer.
  * 
  * @author Simon Raess
  */
@@ -66,8 +66,8 @@ final class HeaderState implements ParseState {
 			// Step past the LF
 			buffer.position(buffer.position() + 1);
 			
-			String[] tokens = tokenize(tmp);	
-			context.handleHeader(tokens);
+			checkSpaces(tmp);
+			context.handleHeader(tmp);
 			
 			tmp.clear();
 			
@@ -87,24 +87,17 @@ final class HeaderState implements ParseState {
 		}
 	}
 		
-	private String[] tokenize(ByteBuffer header) {
+	private void checkSpaces(ByteBuffer header) {
 		boolean space = false;
 		
-		ByteBuffer copy = header.asReadOnlyBuffer();
-		int remaining = copy.remaining();
-		for (int i = 0; i < remaining; i++) {
-			byte current = copy.get();
+		int limit = header.limit();
+		for (int i = header.position(); i < limit; i++) {
+			byte current = header.get(i);
 			if (space && current == (byte) ' ') {
 				throw new ProtocolException("two consecutive spaces in header");
 			}
 			space = current == (byte) ' ';
 		}
-		
-		Charset charset = Charset.forName("US-ASCII");
-		CharBuffer buffer = charset.decode(header);
-			
-		String[] tmp = buffer.toString().split(" ");			
-		return tmp;
 	}
 	
 	private int findLF(ByteBuffer buf) {
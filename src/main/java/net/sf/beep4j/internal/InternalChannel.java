@@ -58,4 +58,12 @@ public interface InternalChannel extends Channel {
 	 */
 	boolean isDead();
 	
+	/**
+	 * Notifies the channel that its writability changed. The channel
+	 * passes the notification on to a {@link net.sf.beep4j.WritabilityAwareChannelHandler}.
+	 * 
+	 * @param writable the new writability
+	 */
+	void channelWritabilityChanged(boolean writable);
+	
 }
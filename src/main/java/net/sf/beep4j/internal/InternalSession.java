@@ -19,11 +19,24 @@ import net.sf.beep4j.CloseChannelCallback;
 import net.sf.beep4j.Message;
 import net.sf.beep4j.ReplyListener;
 import net.sf.beep4j.Session;
+import net.sf.beep4j.SillyWindowAvoidance;
 
 public interface InternalSession extends Session {
 	
 	void sendMessage(int channelNumber, Message message, ReplyListener listener);
 	
+	boolean isWritable(int channelNumber);
+	
+	void setChannelPriority(int channelNumber, int priority);
+	
+	void setChannelMaxFrameSize(int channelNumber, int maxFrameSize);
+	
+	void setChannelSillyWindowAvoidance(int channelNumber, SillyWindowAvoidance policy);
+	
+	void setChannelConsumptionLimit(int channelNumber, int limit);
+	
 	void requestChannelClose(int channelNumber, final CloseChannelCallback callback);
 	
+	<V> void addPendingFuture(DefaultFuture<V> future);
+	
 }
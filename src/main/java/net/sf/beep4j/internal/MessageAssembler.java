@@ -21,8 +21,10 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 
+import net.sf.beep4j.ContentListener;
 import net.sf.beep4j.Message;
 import net.sf.beep4j.ProtocolException;
+import net.sf.beep4j.buffer.ReferenceCounted;
 import net.sf.beep4j.internal.DataHeader.ANSHeader;
 import net.sf.beep4j.internal.message.DefaultMessageParser;
 import net.sf.beep4j.internal.message.MessageParser;
@@ -32,7 +34,23 @@ import org.slf4j.LoggerFactory;
 
 /**
  * MessageAssembler assembles fragmented frames into a Message.
- * The assembled Messages are passed to a MessageHandler.
+ * The assembled Messages are passed to a MessageHandler. The payloads
+ * of the frames are not copied, a fragmented message keeps them as
+ * segments (see {@link net.sf.beep4j.internal.message.CompositeMessage}). 
+ * The messages, and thereby their frames, are released after the 
+ * MessageHandler returns. A MessageHandler that needs a message after 
+ * returning must retain it.
+ * 
+ * <p>The frames of a message that is still incomplete are marked as
+ * consumed (see {@link Frame#consumed()}) as soon as they have been
+ * added to the message. Only the frames of complete messages count
+ * against the consumption limit of a channel.</p>
+ * 
+ * <p>If the MessageHandler is a {@link StreamingMessageHandler}, it is
+ * asked on the first frame of each message whether the message should
+ * be streamed. Streamed messages are not assembled: their MIME headers
+ * are collected until the end of the header block, then each payload
+ * chunk is passed to a {@link ContentListener} as the frames arrive.</p>
  * 
  * @author Simon Raess
  */
@@ -40,12 +58,18 @@ public class MessageAssembler implements FrameHandler {
 	
 	private static final Logger LOG = LoggerFactory.getLogger(MessageAssembler.class);
 	
+	private static final int INITIAL_HEADER_SIZE = 256;
+	
 	private final MessageHandler handler;
 	
+	private final StreamingMessageHandler streamHandler;
+	
 	private State state;
 
 	public MessageAssembler(MessageHandler handler) {
 		this.handler = handler;
+		this.streamHandler = handler instanceof StreamingMessageHandler 
+				? (StreamingMessageHandler) handler : null;
 	}
 
 	
@@ -79,42 +103,65 @@ public class MessageAssembler implements FrameHandler {
 		
 		LOG.info("creating message from " + frames.size() + " frames");
 		
-		int total = 0;
-		for (Frame frame : frames) {
-			long check = total + frame.getSize();
-			if (check > Integer.MAX_VALUE) {
+		MessageParser parser = new DefaultMessageParser();
+		
+		if (frames.size() == 1) {
+			// the message takes over the reference of the frame
+			Frame frame = frames.get(0);
+			return parser.parse(frame.getPayload(), frame);
+		}
+		
+		ByteBuffer[] buffers = new ByteBuffer[frames.size()];
+		long total = 0;
+		for (int i = 0; i < buffers.length; i++) {
+			Frame frame = frames.get(i);
+			total += frame.getSize();
+			if (total > Integer.MAX_VALUE) {
 				throw new ProtocolException("total message length is longer "
-						+ "than supported: " + check);
+						+ "than supported: " + total);
 			}
-			total += frame.getPayload().remaining();
+			buffers[i] = frame.getPayload();
 		}
 		
 		LOG.info("total payload size is " + total);
 		
-		ByteBuffer buffer = ByteBuffer.allocate(total);
-		for (Frame frame : frames) {
-			buffer.put(frame.getPayload());
-		}
-		buffer.flip();
-		
-		MessageParser parser = new DefaultMessageParser();
-		return parser.parse(buffer);
+		// the message takes over the references of the frames
+		return parser.parse(buffers, frames.toArray(new Frame[frames.size()]));
 	}
 
 	protected void receive(MessageType type, int channelNumber, int messageNumber, Message message) {
-		if (MessageType.ERR == type) {
-			handler.receiveERR(channelNumber, messageNumber, message);
-		} else if (MessageType.MSG == type) {
-			handler.receiveMSG(channelNumber, messageNumber, message);
-		} else if (MessageType.RPY == type) {
-			handler.receiveRPY(channelNumber, messageNumber, message);
-		} else {
-			throw new IllegalArgumentException("unkown type: " + type);
+		try {
+			if (MessageType.ERR == type) {
+				handler.receiveERR(channelNumber, messageNumber, message);
+			} else if (MessageType.MSG == type) {
+				handler.receiveMSG(channelNumber, messageNumber, message);
+			} else if (MessageType.RPY == type) {
+				handler.receiveRPY(channelNumber, messageNumber, message);
+			} else {
+				throw new IllegalArgumentException("unkown type: " + type);
+			}
+		} finally {
+			release(message);
 		}
 	}
 	
 	protected void receive(int channelNumber, int messageNumber, int answerNumber, Message message) {
-		handler.receiveANS(channelNumber, messageNumber, answerNumber, message);
+		try {
+			handler.receiveANS(channelNumber, messageNumber, answerNumber, message);
+		} finally {
+			release(message);
+		}
+	}
+	
+	private boolean isStreaming(MessageType type, int channelNumber, int messageNumber) {
+		return streamHandler != null 
+		    && streamHandler.isStreaming(type, channelNumber, messageNumber);
+	}
+	
+	private void release(Message message) {
+		if (message instanceof ReferenceCounted) {
+			((ReferenceCounted) message).release();
+		}
 	}
 	
 	private static interface State {
@@ -124,6 +171,7 @@ public class MessageAssembler implements FrameHandler {
 	private class NormalState implements State {
 		private List<Frame> fragments;
 		private DataHeader last;
+		private ContentStream stream;
 		
 		private NormalState() { 
 			this.fragments = new LinkedList<Frame>();
@@ -140,12 +188,29 @@ public class MessageAssembler implements FrameHandler {
 			if (hasPreviousFrame()) {
 				validateMessageNumber(header);
 				validateMatchingFragmentTypes(last.getType(), type);
+			} else if (isStreaming(type, frame.getChannelNumber(), frame.getMessageNumber())) {
+				LOG.info("streaming message " + frame.getMessageNumber());
+				stream = new ContentStream(type, frame.getChannelNumber(), frame.getMessageNumber(), -1);
 			}
 			
-			fragments.add(frame);
+			if (stream != null) {
+				stream.append(frame);
+			} else {
+				fragments.add(frame);
+				if (header.isIntermediate()) {
+					frame.consumed();
+				}
+			}
 			
 			if (header.isIntermediate()) {
 				last = (DataHeader) frame.getHeader();
+			} else if (stream != null) {
+				LOG.info("got complete streamed message");
+				last = null;
+				ContentStream completed = stream;
+				stream = null;
+				state = null;
+				completed.complete();
 			} else {
 				LOG.info("got complete message with " + fragments.size() + " fragments");
 				last = null;
@@ -197,10 +262,12 @@ public class MessageAssembler implements FrameHandler {
 	
 	private class AnsState implements State {
 		private Map<Integer, List<Frame>> fragments;
+		private Map<Integer, ContentStream> streams;
 		private int messageNumber = -1;
 		
 		private AnsState() {
 			this.fragments = new HashMap<Integer, List<Frame>>();
+			this.streams = new HashMap<Integer, ContentStream>();
 		}
 		
 		public void append(Frame frame, MessageHandler handler) {
@@ -214,13 +281,33 @@ public class MessageAssembler implements FrameHandler {
 			
 			if (MessageType.ANS == type) {
 				ANSHeader header = (ANSHeader) frame.getHeader();
+				int answerNumber = header.getAnswerNumber();
+				ContentStream stream = streams.get(answerNumber);
+				if (stream == null && !fragments.containsKey(answerNumber)
+						&& isStreaming(type, frame.getChannelNumber(), frame.getMessageNumber())) {
+					LOG.info("streaming answer " + answerNumber);
+					stream = new ContentStream(type, frame.getChannelNumber(), 
+							frame.getMessageNumber(), answerNumber);
+					streams.put(answerNumber, stream);
+				}
+				if (stream != null) {
+					stream.append(frame);
+					if (!header.isIntermediate()) {
+						streams.remove(answerNumber);
+						stream.complete();
+					}
+					return;
+				}
+				
 				List<Frame> frames = fragments.get(header.getAnswerNumber());
 				if (frames == null) {
 					frames = new LinkedList<Frame>();
 					fragments.put(header.getAnswerNumber(), frames);
 				}
 				frames.add(frame);
-				if (!header.isIntermediate()) {
+				if (header.isIntermediate()) {
+					frame.consumed();
+				} else {
 					fragments.remove(header.getAnswerNumber());
 					receive(frame.getChannelNumber(), 
 							frame.getMessageNumber(), 
@@ -249,6 +336,7 @@ public class MessageAssembler implements FrameHandler {
 				
 				fragments.clear();
 				state = null;
+				frame.release();
 				handler.receiveNUL(frame.getChannelNumber(), frame.getMessageNumber());
 				
 			} else {
@@ -274,9 +362,104 @@ public class MessageAssembler implements FrameHandler {
 		}
 				
 		private boolean hasUnfinishedAnsMessages() {
-			return fragments.size() > 0;
+			return fragments.size() > 0 || streams.size() > 0;
+		}
+		
+	}
+	
+	/*
+	 * Passes the content of a streamed message to a ContentListener. The
+	 * MIME headers are collected until the empty line terminating the
+	 * header block has been received. The ContentListener is obtained
+	 * from the StreamingMessageHandler at that point. Each frame is 
+	 * released as soon as its content has been passed on.
+	 */
+	private class ContentStream {
+		private final MessageType type;
+		private final int channelNumber;
+		private final int messageNumber;
+		private final int answerNumber;
+		private ByteBuffer header = ByteBuffer.allocate(INITIAL_HEADER_SIZE);
+		private byte prev;
+		private boolean armed = true;
+		private boolean started;
+		private ContentListener listener;
+		
+		private ContentStream(MessageType type, int channelNumber, int messageNumber, int answerNumber) {
+			this.type = type;
+			this.channelNumber = channelNumber;
+			this.messageNumber = messageNumber;
+			this.answerNumber = answerNumber;
+		}
+		
+		public void append(Frame frame) {
+			try {
+				ByteBuffer payload = frame.getPayload().duplicate();
+				if (!started) {
+					scanHeader(payload);
+				}
+				if (started && listener != null && payload.hasRemaining()) {
+					listener.contentReceived(payload.slice());
+				}
+			} finally {
+				frame.release();
+			}
+		}
+		
+		public void complete() {
+			if (!started) {
+				// the header block was not terminated, the whole
+				// payload is treated as header like DefaultMessageParser does
+				start();
+			}
+			if (listener != null) {
+				listener.contentCompleted();
+			}
 		}
 		
+		/*
+		 * Consumes header bytes from the payload until the end of the header
+		 * block has been found.
+		 */
+		private void scanHeader(ByteBuffer payload) {
+			while (payload.hasRemaining()) {
+				byte current = payload.get();
+				if (!header.hasRemaining()) {
+					ByteBuffer tmp = ByteBuffer.allocate(header.capacity() * 2);
+					header.flip();
+					tmp.put(header);
+					header = tmp;
+				}
+				header.put(current);
+				if (prev == (byte) '\r' && current == (byte) '\n') {
+					if (armed) {
+						start();
+						return;
+					}
+					armed = true;
+				} else if (current != '\r') {
+					armed = false;
+				}
+				prev = current;
+			}
+		}
+		
+		private void start() {
+			header.flip();
+			Message message = new DefaultMessageParser().parse(header);
+			header = null;
+			started = true;
+			
+			if (MessageType.MSG == type) {
+				listener = streamHandler.startMSG(channelNumber, messageNumber, message);
+			} else if (MessageType.RPY == type) {
+				listener = streamHandler.startRPY(channelNumber, messageNumber, message);
+			} else if (MessageType.ANS == type) {
+				listener = streamHandler.startANS(channelNumber, messageNumber, answerNumber, message);
+			} else {
+				throw new IllegalArgumentException("cannot stream messages of type " + type);
+			}
+		}
 	}
 	
 }
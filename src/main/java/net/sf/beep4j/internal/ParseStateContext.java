@@ -26,11 +26,23 @@ import java.nio.ByteBuffer;
 public interface ParseStateContext {
 	
 	/**
-	 * Callback method invoked when a header has been parsed.
+	 * Callback method invoked when a header has been read. The buffer
+	 * contains the header line without the terminating CRLF. It is
+	 * only valid for the duration of the call.
 	 * 
-	 * @param tokens the header tokens
+	 * @param header the buffer containing the header line
 	 */
-	void handleHeader(String[] tokens);
+	void handleHeader(ByteBuffer header);
+	
+	/**
+	 * Invoked by a ParseState that needs a buffer to copy a payload
+	 * into, i.e. if the payload cannot be passed on as a slice of the
+	 * processed buffer.
+	 * 
+	 * @param size the size of the payload
+	 * @return a buffer with position zero and limit <var>size</var>
+	 */
+	ByteBuffer allocatePayload(int size);
 	
 	/**
 	 * Callback method invoked when the payload has been received.
@@ -40,6 +40,12 @@ final class PayloadState implements ParseState {
 	 */
 	private ByteBuffer payload;
 	
+	/**
+	 * Whether a payload that is completely contained in the processed
+	 * buffer is passed on as slice of that buffer instead of a copy.
+	 */
+	private final boolean zeroCopy;
+	
 	/**
 	 * Creates a new PayloadState that reads exactly <var>payloadSize</var> 
 	 * bytes from the incoming buffers.
@@ -47,12 +53,34 @@ final class PayloadState implements ParseState {
 	 * @param payloadSize the number of bytes in the payload
 	 */
 	PayloadState(int payloadSize) {
+		this(payloadSize, false);
+	}
+	
+	/**
+	 * Creates a new PayloadState that reads exactly <var>payloadSize</var> 
+	 * bytes from the incoming buffers. If <var>zeroCopy</var> is true and 
+	 * the whole payload is contained in the first processed buffer, the 
+	 * payload is passed to the context as a slice of that buffer. The bytes
+	 * are only copied if the payload spans several buffers.
+	 * 
+	 * @param payloadSize the number of bytes in the payload
+	 * @param zeroCopy whether fully buffered payloads are sliced
+	 */
+	PayloadState(int payloadSize, boolean zeroCopy) {
 		this.position = 0;
 		this.size = payloadSize;
-		this.payload = ByteBuffer.allocate(payloadSize);
+		this.zeroCopy = zeroCopy;
 	}
 	
 	public final boolean process(ByteBuffer buffer, ParseStateContext context) {
+		if (zeroCopy && position == 0 && buffer.remaining() >= size) {
+			return processSlice(buffer, context);
+		}
+		
+		if (payload == null) {
+			payload = context.allocatePayload(size);
+		}
+		
 		// calculate the number of bytes to be read
 		int available = buffer.remaining();
 		int remaining = size - position;
@@ -76,5 +104,19 @@ final class PayloadState implements ParseState {
 		
 		return false;
 	}
+
+	private boolean processSlice(ByteBuffer buffer, ParseStateContext context) {
+		int limit = buffer.limit();
+		int end = buffer.position() + size;
+		
+		buffer.limit(end);
+		ByteBuffer slice = buffer.slice();
+		buffer.limit(limit);
+		buffer.position(end);
+		
+		position = size;
+		context.handlePayload(slice);
+		return buffer.hasRemaining();
+	}
 	
 }
@@ -22,16 +22,29 @@ import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import net.sf.beep4j.BeepErrorException;
+import net.sf.beep4j.BeepException;
+import net.sf.beep4j.BeepFuture;
 import net.sf.beep4j.Channel;
 import net.sf.beep4j.ChannelHandler;
 import net.sf.beep4j.ChannelHandlerFactory;
 import net.sf.beep4j.CloseChannelCallback;
 import net.sf.beep4j.CloseChannelRequest;
+import net.sf.beep4j.ConcurrentChannelHandler;
+import net.sf.beep4j.ContentListener;
+import net.sf.beep4j.FutureListener;
 import net.sf.beep4j.Message;
 import net.sf.beep4j.MessageBuilder;
 import net.sf.beep4j.ProfileInfo;
@@ -39,6 +52,17 @@ import net.sf.beep4j.ProtocolException;
 import net.sf.beep4j.ReplyListener;
 import net.sf.beep4j.ResponseHandler;
 import net.sf.beep4j.SessionHandler;
+import net.sf.beep4j.SillyWindowAvoidance;
+import net.sf.beep4j.StreamingChannelHandler;
+import net.sf.beep4j.StreamingReplyListener;
+import net.sf.beep4j.WriteLimitExceededException;
+import net.sf.beep4j.WriteLimits;
+import net.sf.beep4j.buffer.BufferAllocator;
+import net.sf.beep4j.buffer.HeapBufferAllocator;
+import net.sf.beep4j.buffer.ManagedBuffer;
+import net.sf.beep4j.buffer.ReferenceCounted;
+import net.sf.beep4j.dispatch.Dispatcher;
+import net.sf.beep4j.dispatch.SynchronousDispatcher;
 import net.sf.beep4j.internal.message.DefaultMessageBuilder;
 import net.sf.beep4j.internal.profile.BEEPError;
 import net.sf.beep4j.internal.profile.ChannelManagementProfile;
@@ -64,24 +88,30 @@ import org.slf4j.LoggerFactory;
  *  <li>manage channel start and close</li>
  * </ul>
  * 
+ * <p>Lifecycle transitions (session start and close, channel start and
+ * close) are serialized on the session itself. Everything that belongs to
+ * a single channel (message numbers, reply listeners, response handlers)
+ * is kept in a per channel entry that is guarded by its own lock. Sending
+ * on one channel therefore never waits for another channel. Incoming 
+ * data is parsed by one thread at a time.</p>
+ * 
+ * <p>Received messages and replies are validated on the thread of the
+ * transport and then passed to the {@link Dispatcher} of the session,
+ * which invokes the ChannelHandler or ReplyListener of the application.
+ * Channel 0 is always processed synchronously, because the frames 
+ * following a channel start can only be parsed after the channel has
+ * been registered.</p>
+ * 
  * @author Simon Raess
  */
 public class SessionImpl 
-		implements MessageHandler, SessionManager, InternalSession, TransportContext, FrameHandlerFactory {
+		implements StreamingMessageHandler, SessionManager, InternalSession, TransportContext, FrameHandlerFactory {
 	
 	private final Logger LOG = LoggerFactory.getLogger(SessionImpl.class);
 	
 	private final boolean initiator;
 	
-	private final Map<Integer,Sequence<Integer>> messageNumberSequences = new HashMap<Integer,Sequence<Integer>>();
-	
-	private final Map<Integer,LinkedList<ReplyListenerHolder>> replyListeners = new HashMap<Integer,LinkedList<ReplyListenerHolder>>();
-	
-	private final Map<String,ResponseHandler> responseHandlers = new HashMap<String,ResponseHandler>();
-	
-	private final Map<Integer,Channel> channels = new HashMap<Integer,Channel>();
-	
-	private final Map<Integer,ChannelHandler> channelHandlers = new HashMap<Integer,ChannelHandler>(); 
+	private final Map<Integer,ChannelEntry> channels = new ConcurrentHashMap<Integer,ChannelEntry>();
 	
 	private final ChannelManagementProfile channelManagementProfile;
 	
@@ -93,9 +123,29 @@ public class SessionImpl
 	
 	private final List<SessionListener> listeners = Collections.synchronizedList(new ArrayList<SessionListener>());
 	
+	/**
+	 * Futures returned to the application that have not completed yet.
+	 */
+	private final Set<DefaultFuture<?>> pendingFutures = 
+			Collections.synchronizedSet(new HashSet<DefaultFuture<?>>());
+	
 	private final StreamParser parser;
 	
-	private SessionState currentState;
+	private final boolean zeroCopy;
+	
+	private final BufferAllocator allocator;
+	
+	private final Dispatcher dispatcher;
+	
+	private final WriteLimits.Policy writePolicy;
+	
+	/**
+	 * The mapping callbacks deferred by the current thread, null if the 
+	 * thread does not defer callbacks.
+	 */
+	private final ThreadLocal<List<Runnable>> deferredCallbacks = new ThreadLocal<List<Runnable>>();
+	
+	private volatile SessionState currentState;
 	
 	private SessionState initialState;
 	
@@ -108,13 +158,86 @@ public class SessionImpl
 	/**
 	 * The greeting received from the other peer.
 	 */
-	private Greeting greeting;
+	private volatile Greeting greeting;
 	
 	public SessionImpl(boolean initiator, SessionHandler sessionHandler, TransportMapping mapping) {
+		this(initiator, sessionHandler, mapping, false);
+	}
+	
+	/**
+	 * Creates a new SessionImpl. If <var>zeroCopy</var> is true, the
+	 * transport guarantees that it never reuses a buffer passed to 
+	 * {@link #messageReceived(ByteBuffer)}. Frame payloads are then
+	 * passed on as slices of the received buffers instead of copies.
+	 * 
+	 * @param initiator whether this is the initiating peer
+	 * @param sessionHandler the SessionHandler of the application
+	 * @param mapping the TransportMapping
+	 * @param zeroCopy whether received buffers may be shared
+	 */
+	public SessionImpl(boolean initiator, SessionHandler sessionHandler, TransportMapping mapping, boolean zeroCopy) {
+		this(initiator, sessionHandler, mapping, zeroCopy, HeapBufferAllocator.INSTANCE);
+	}
+	
+	/**
+	 * Creates a new SessionImpl that allocates all buffers of the 
+	 * inbound frame pipeline as well as the buffers of message builders
+	 * from the given allocator.
+	 * 
+	 * @param initiator whether this is the initiating peer
+	 * @param sessionHandler the SessionHandler of the application
+	 * @param mapping the TransportMapping
+	 * @param zeroCopy whether received buffers may be shared
+	 * @param allocator the BufferAllocator of the session
+	 */
+	public SessionImpl(boolean initiator, SessionHandler sessionHandler, TransportMapping mapping, 
+			boolean zeroCopy, BufferAllocator allocator) {
+		this(initiator, sessionHandler, mapping, zeroCopy, allocator, SynchronousDispatcher.INSTANCE);
+	}
+	
+	/**
+	 * Creates a new SessionImpl that delivers received messages and 
+	 * replies through the given dispatcher.
+	 * 
+	 * @param initiator whether this is the initiating peer
+	 * @param sessionHandler the SessionHandler of the application
+	 * @param mapping the TransportMapping
+	 * @param zeroCopy whether received buffers may be shared
+	 * @param allocator the BufferAllocator of the session
+	 * @param dispatcher the Dispatcher invoking the application callbacks
+	 */
+	public SessionImpl(boolean initiator, SessionHandler sessionHandler, TransportMapping mapping, 
+			boolean zeroCopy, BufferAllocator allocator, Dispatcher dispatcher) {
+		this(initiator, sessionHandler, mapping, zeroCopy, allocator, dispatcher, WriteLimits.Policy.NOTIFY);
+	}
+	
+	/**
+	 * Creates a new SessionImpl that applies the given policy when the
+	 * application sends a message on an unwritable channel. The limits
+	 * themselves are enforced by the TransportMapping.
+	 * 
+	 * @param initiator whether this is the initiating peer
+	 * @param sessionHandler the SessionHandler of the application
+	 * @param mapping the TransportMapping
+	 * @param zeroCopy whether received buffers may be shared
+	 * @param allocator the BufferAllocator of the session
+	 * @param dispatcher the Dispatcher invoking the application callbacks
+	 * @param writePolicy the policy for unwritable channels
+	 */
+	public SessionImpl(boolean initiator, SessionHandler sessionHandler, TransportMapping mapping, 
+			boolean zeroCopy, BufferAllocator allocator, Dispatcher dispatcher, 
+			WriteLimits.Policy writePolicy) {
 		Assert.notNull("sessionHandler", sessionHandler);
 		Assert.notNull("mapping", mapping);
+		Assert.notNull("allocator", allocator);
+		Assert.notNull("dispatcher", dispatcher);
+		Assert.notNull("writePolicy", writePolicy);
 		
 		this.initiator = initiator;
+		this.writePolicy = writePolicy;
+		this.zeroCopy = zeroCopy;
+		this.allocator = allocator;
+		this.dispatcher = dispatcher;
 		this.sessionHandler = sessionHandler;
 		this.mapping = mapping;
 		addSessionListener(mapping);
@@ -136,7 +259,7 @@ public class SessionImpl
 	}
 
 	protected StreamParser createStreamParser(FrameHandler frameHandler, TransportMapping mapping) {
-		return new DefaultStreamParser(frameHandler, mapping);
+		return new DefaultStreamParser(frameHandler, mapping, zeroCopy, allocator);
 	}
 	
 	protected ChannelManagementProfile createChannelManagementProfile(boolean initiator) {
@@ -148,17 +271,15 @@ public class SessionImpl
 		InternalChannel channel = createChannel(this, "", 0);
 		channelHandler = channel.initChannel(channelHandler);
 		channelHandler.channelOpened(channel);
-		registerChannel(0, channel, channelHandler);
+		registerChannel(0, channel, channelHandler, false);
 	}
 		
 	protected InternalChannel createChannel(InternalSession session, String profileUri, int channelNumber) {
-		return new ChannelImpl(session, profileUri, channelNumber);
+		return new ChannelImpl(session, profileUri, channelNumber, allocator);
 	}
 
-	protected ResponseHandler createResponseHandler(TransportMapping mapping, int channelNumber, int messageNumber) {
-		ResponseHandler responseHandler = new DefaultResponseHandler(mapping, channelNumber, messageNumber);
-		setResponseHandler(channelNumber, messageNumber, responseHandler);
-		return responseHandler;
+	protected DefaultResponseHandler createResponseHandler(TransportMapping mapping, int channelNumber, int messageNumber) {
+		return new DefaultResponseHandler(mapping, channelNumber, messageNumber);
 	}
 	
 	private String traceInfo() {
@@ -179,7 +300,12 @@ public class SessionImpl
 	
 	private void setCurrentState(SessionState currentState) {
 		info("setting session state from " + this.currentState + " to " + currentState);
+		SessionState previous = this.currentState;
 		this.currentState = currentState;
+		if (currentState == deadState && previous != deadState) {
+			fireSessionClosed();
+			failPendingFutures();
+		}
 	}
 
 	private SessionState getCurrentState() {
@@ -208,6 +334,14 @@ public class SessionImpl
 		
 	}
 	
+	protected void fireSessionClosed() {
+		SessionListener[] list = listeners.toArray(new SessionListener[listeners.size()]);
+		for (int i = 0; i < list.length; i++) {
+			SessionListener listener = list[i];
+			listener.sessionClosed();
+		}
+	}
+	
 	private int getNextChannelNumber() {
 		return channelNumberSequence.next();
 	}
@@ -229,25 +363,222 @@ public class SessionImpl
 		return channels.size() > 1;
 	}
 
-	private void registerChannel(int channelNumber, Channel channel, ChannelHandler handler) {
-		channels.put(channelNumber, channel);
-		channelHandlers.put(channelNumber, handler);
-		messageNumberSequences.put(channelNumber, new IntegerSequence(1, 1));
-		replyListeners.put(channelNumber, new LinkedList<ReplyListenerHolder>());
+	private synchronized void registerChannel(int channelNumber, InternalChannel channel, 
+			ChannelHandler handler, boolean concurrent) {
+		Executor queue = channelNumber == 0 ? SynchronousDispatcher.INSTANCE : dispatcher.createQueue();
+		channels.put(channelNumber, new ChannelEntry(channel, handler, queue, 
+				concurrent ? dispatcher : null));
 		fireChannelStarted(channelNumber);
 	}
 
-	private void unregisterChannel(int channelNumber) {
+	private synchronized void unregisterChannel(int channelNumber) {
 		channels.remove(channelNumber);
-		channelHandlers.remove(channelNumber);
-		messageNumberSequences.remove(channelNumber);
-		replyListeners.remove(channelNumber);
 		fireChannelClosed(channelNumber);
 	}
-
-	private void registerReplyListener(int channelNumber, int messageNumber, ReplyListener listener) {
-		LinkedList<ReplyListenerHolder> expectedReplies = replyListeners.get(channelNumber);
-		expectedReplies.addLast(new ReplyListenerHolder(messageNumber, listener));
+	
+	private ChannelEntry getChannelEntry(int channelNumber) {
+		ChannelEntry entry = channels.get(channelNumber);
+		if (entry == null) {
+			throw new InternalException("no open channel with channel number " + channelNumber);
+		}
+		return entry;
+	}
+	
+	private void dispatch(int channelNumber, final Message message, final Runnable event) {
+		dispatch(channelNumber, message, event, false);
+	}
+	
+	/*
+	 * Passes an event for the application to the queue of the channel. The
+	 * message, if any, is retained until the event has been processed.
+	 * Unordered events of a concurrent channel get a queue of their own.
+	 */
+	private void dispatch(int channelNumber, final Message message, final Runnable event, boolean unordered) {
+		ChannelEntry entry = getChannelEntry(channelNumber);
+		if (!entry.isDispatched()) {
+			event.run();
+			return;
+		}
+		if (message instanceof ReferenceCounted) {
+			((ReferenceCounted) message).retain();
+		}
+		entry.dispatch(new Runnable() {
+			public void run() {
+				try {
+					event.run();
+				} finally {
+					if (message instanceof ReferenceCounted) {
+						((ReferenceCounted) message).release();
+					}
+				}
+			}
+		}, unordered);
+	}
+	
+	/*
+	 * Dispatches the start of a streamed message. If the channel is 
+	 * dispatched, the returned ContentListener passes the content on
+	 * to the ContentListener of the application through the queue of 
+	 * the channel.
+	 */
+	private ContentListener dispatchStart(int channelNumber, final ContentStart start) {
+		ChannelEntry entry = getChannelEntry(channelNumber);
+		if (!entry.isDispatched()) {
+			return start.start();
+		}
+		final DispatchedContentListener listener = new DispatchedContentListener(entry);
+		entry.dispatch(new Runnable() {
+			public void run() {
+				listener.target = start.start();
+			}
+		}, false);
+		return listener;
+	}
+	
+	private static interface ContentStart {
+		ContentListener start();
+	}
+	
+	/*
+	 * The chunks are only valid while contentReceived runs, they are 
+	 * therefore copied before they are dispatched. The target is only
+	 * accessed from events of the channel, which are processed in order.
+	 */
+	private class DispatchedContentListener implements ContentListener {
+		private final ChannelEntry entry;
+		private ContentListener target;
+		private DispatchedContentListener(ChannelEntry entry) {
+			this.entry = entry;
+		}
+		public void contentReceived(ByteBuffer content) {
+			final ManagedBuffer copy = allocator.allocate(content.remaining());
+			copy.getBuffer().put(content).flip();
+			entry.dispatch(new Runnable() {
+				public void run() {
+					try {
+						if (target != null) {
+							target.contentReceived(copy.getBuffer());
+						}
+					} finally {
+						copy.release();
+					}
+				}
+			}, false);
+		}
+		public void contentCompleted() {
+			entry.dispatch(new Runnable() {
+				public void run() {
+					if (target != null) {
+						target.contentCompleted();
+					}
+				}
+			}, false);
+		}
+	}
+	
+	/*
+	 * Holds the state of a single open channel. All methods are synchronized
+	 * on the entry, they never call out to application code.
+	 */
+	private static class ChannelEntry {
+		private final InternalChannel channel;
+		private final ChannelHandler handler;
+		private final Executor queue;
+		private final Dispatcher unorderedDispatcher;
+		private final Sequence<Integer> messageNumberSequence = new IntegerSequence(1, 1);
+		private final LinkedList<ReplyListenerHolder> replyListeners = new LinkedList<ReplyListenerHolder>();
+		// in the order the MSGs have been received
+		private final Map<Integer,DefaultResponseHandler> responseHandlers = new LinkedHashMap<Integer,DefaultResponseHandler>();
+		private final AtomicBoolean writable = new AtomicBoolean(true);
+		protected ChannelEntry(InternalChannel channel, ChannelHandler handler, Executor queue, Dispatcher unorderedDispatcher) {
+			this.channel = channel;
+			this.handler = handler;
+			this.queue = queue;
+			this.unorderedDispatcher = unorderedDispatcher;
+		}
+		protected InternalChannel getChannel() {
+			return channel;
+		}
+		protected boolean setWritable(boolean value) {
+			return writable.compareAndSet(!value, value);
+		}
+		protected ChannelHandler getChannelHandler() {
+			return handler;
+		}
+		protected boolean isDispatched() {
+			return !(queue instanceof SynchronousDispatcher);
+		}
+		protected void dispatch(Runnable event, boolean unordered) {
+			if (unordered && unorderedDispatcher != null) {
+				unorderedDispatcher.createQueue().execute(event);
+			} else {
+				queue.execute(event);
+			}
+		}
+		protected synchronized void sendMessage(TransportMapping mapping, int channelNumber, 
+				Message message, ReplyListener listener) {
+			// the message number, the reply listener queue and the frames
+			// on the wire must all be in the same order
+			int messageNumber = messageNumberSequence.next();
+			replyListeners.addLast(new ReplyListenerHolder(messageNumber, listener));
+			mapping.sendMSG(channelNumber, messageNumber, message);
+		}
+		protected synchronized ReplyListenerHolder getReplyListener() {
+			if (replyListeners.isEmpty()) {
+				throw new ProtocolException("received a reply but expects no outstanding replies");
+			}
+			return replyListeners.getFirst();
+		}
+		protected synchronized boolean isStreamingReply() {
+			return !replyListeners.isEmpty() && replyListeners.getFirst().isStreaming();
+		}
+		protected synchronized ReplyListenerHolder unregisterReplyListener() {
+			return replyListeners.removeFirst();
+		}
+		protected synchronized boolean registerResponseHandler(int messageNumber, DefaultResponseHandler responseHandler) {
+			if (responseHandlers.containsKey(messageNumber)) {
+				return false;
+			}
+			responseHandlers.put(messageNumber, responseHandler);
+			responseHandler.registered = true;
+			return true;
+		}
+		/*
+		 * Replies must be sent in the order the MSGs have been received.
+		 * A reply is sent right away if all earlier MSGs have been answered
+		 * completely, otherwise it is buffered until then. The handler is
+		 * marked complete in the same step its last reply is queued, so 
+		 * that it is never removed before that reply has been sent.
+		 */
+		protected synchronized void sendReply(DefaultResponseHandler handler, ReplyOperation reply, boolean completes) {
+			if (!handler.registered) {
+				handler.complete |= completes;
+				reply.send();
+				return;
+			} else if (responseHandlers.get(handler.messageNumber) != handler) {
+				// removed after its complete reply has been sent, only 
+				// whenSent callbacks are left
+				reply.send();
+				return;
+			}
+			handler.pending.addLast(reply);
+			handler.complete |= completes;
+			Iterator<DefaultResponseHandler> it = responseHandlers.values().iterator();
+			while (it.hasNext()) {
+				DefaultResponseHandler head = it.next();
+				while (!head.pending.isEmpty()) {
+					head.pending.removeFirst().send();
+				}
+				if (!head.complete) {
+					return;
+				}
+				it.remove();
+			}
+		}
+	}
+	
+	private static interface ReplyOperation {
+		void send();
 	}
 	
 	private static class ReplyListenerHolder {
@@ -257,21 +588,12 @@ public class SessionImpl
 			this.messageNumber = messageNumber;
 			this.replyListener = listener;
 		}
-		protected void receiveANS(int channelNumber, int messageNumber, Message message) {
-			validateMessageNumber(channelNumber, messageNumber);
-			replyListener.receiveANS(message);
-		}
-		protected void receiveNUL(int channelNumber, int messageNumber) {
-			validateMessageNumber(channelNumber, messageNumber);
-			replyListener.receiveNUL();
+		protected boolean isStreaming() {
+			return replyListener instanceof StreamingReplyListener;
 		}
-		protected void receiveERR(int channelNumber, int messageNumber, Message message) {
+		protected ReplyListener getReplyListener(int channelNumber, int messageNumber) {
 			validateMessageNumber(channelNumber, messageNumber);
-			replyListener.receiveERR(message);
-		}
-		protected void receiveRPY(int channelNumber, int messageNumber, Message message) {
-			validateMessageNumber(channelNumber, messageNumber);
-			replyListener.receiveRPY(message);
+			return replyListener;
 		}
 		private void validateMessageNumber(int channelNumber, int messageNumber) {
 			if (this.messageNumber != messageNumber) {
@@ -284,51 +606,173 @@ public class SessionImpl
 	}
 	
 	private ReplyListenerHolder unregisterReplyListener(int channelNumber) {
-		LinkedList<ReplyListenerHolder> listeners = replyListeners.get(channelNumber);
-		return listeners.removeFirst();
+		return getChannelEntry(channelNumber).unregisterReplyListener();
 	}
-
-	private int getNextMessageNumber(int channelNumber) {
-		Sequence<Integer> sequence = getMessageNumberSequence(channelNumber);
-		Integer next = sequence.next();
-		return next;
+	
+	private ReplyListener getReplyListener(int channelNumber, int messageNumber) {
+		ReplyListenerHolder holder = getChannelEntry(channelNumber).getReplyListener();
+		return holder.getReplyListener(channelNumber, messageNumber);
 	}
-
-	private Sequence<Integer> getMessageNumberSequence(int channelNumber) {
-		Sequence<Integer> result = messageNumberSequences.get(channelNumber);
-		if (result == null) {
-			throw new InternalException("no open channel with channel number " + channelNumber);
+	
+	/*
+	 * Gets and unregisters the reply listener for a complete reply. The
+	 * listener is also unregistered if the message number does not match.
+	 * A reply without outstanding listener fails with a ProtocolException
+	 * and leaves the queue untouched.
+	 */
+	private ReplyListener takeReplyListener(int channelNumber, int messageNumber) {
+		ReplyListenerHolder holder = getChannelEntry(channelNumber).getReplyListener();
+		try {
+			return holder.getReplyListener(channelNumber, messageNumber);
+		} finally {
+			unregisterReplyListener(channelNumber);
 		}
-		return result;
 	}
 	
-	private ReplyListenerHolder getReplyListener(int channelNumber, int messageNumber) {
-		LinkedList<ReplyListenerHolder> listeners = replyListeners.get(channelNumber);
-		if (listeners.isEmpty()) {
-			throw new ProtocolException("received a reply but expects no outstanding replies");
+	private boolean setResponseHandler(int channelNumber, int messageNumber, DefaultResponseHandler responseHandler) {
+		return getChannelEntry(channelNumber).registerResponseHandler(messageNumber, responseHandler);
+	}
+	
+	private ChannelHandler getChannelHandler(int channelNumber) {
+		return getChannelEntry(channelNumber).getChannelHandler();
+	}
+	
+	private void sendReply(int channelNumber, DefaultResponseHandler handler, ReplyOperation reply, boolean completes) {
+		ChannelEntry entry = channels.get(channelNumber);
+		if (entry == null) {
+			handler.complete |= completes;
+			reply.send();
+		} else {
+			entry.sendReply(handler, reply, completes);
+			updateWritability(channelNumber);
 		}
-		return listeners.getFirst();
 	}
 	
-	private ResponseHandler getResponseHandler(int channelNumber, int messageNumber) {
-		ResponseHandler handler = responseHandlers.get(key(channelNumber, messageNumber));
-		return handler;
+	/*
+	 * The mapping runs its callbacks on whichever thread happens to write,
+	 * which may hold the lock of a ChannelEntry or a response handler. 
+	 * Between deferCallbacks and runDeferredCallbacks, the callbacks 
+	 * returned by deferrable are therefore only collected. They are run
+	 * once the thread has left the outermost such section and released 
+	 * all the locks.
+	 */
+	private boolean deferCallbacks() {
+		if (deferredCallbacks.get() != null) {
+			return false;
+		}
+		deferredCallbacks.set(new LinkedList<Runnable>());
+		return true;
 	}
 	
-	private void setResponseHandler(int channelNumber, int messageNumber, ResponseHandler responseHandler) {
-		responseHandlers.put(key(channelNumber, messageNumber), responseHandler);
+	private void runDeferredCallbacks(boolean deferring) {
+		if (!deferring) {
+			return;
+		}
+		List<Runnable> callbacks = deferredCallbacks.get();
+		deferredCallbacks.remove();
+		for (Runnable callback : callbacks) {
+			callback.run();
+		}
 	}
 	
-	private ChannelHandler getChannelHandler(int channelNumber) {
-		return channelHandlers.get(channelNumber);
+	private Runnable deferrable(final Runnable callback) {
+		return new Runnable() {
+			public void run() {
+				List<Runnable> callbacks = deferredCallbacks.get();
+				if (callbacks == null) {
+					callback.run();
+				} else {
+					callbacks.add(callback);
+				}
+			}
+		};
 	}
 	
-	private String key(int channelNumber, int messageNumber) {
-		return channelNumber + ":" + messageNumber;
+	/*
+	 * Returns a callback that passes the given application callback to
+	 * the dispatcher of the channel.
+	 */
+	private Runnable dispatched(final int channelNumber, final Runnable callback) {
+		return new Runnable() {
+			public void run() {
+				ChannelEntry entry = channels.get(channelNumber);
+				if (entry == null) {
+					callback.run();
+				} else {
+					entry.dispatch(callback, false);
+				}
+			}
+		};
+	}
+	
+	/*
+	 * Applies the write policy before a message is sent on an unwritable
+	 * channel. The I/O thread must never block, as it processes the SEQ
+	 * frames that make the channel writable again. A blocked sender is
+	 * woken up and fails when the session is closed or the connection 
+	 * is lost.
+	 */
+	private void awaitWritable(int channelNumber) {
+		if (writePolicy == WriteLimits.Policy.NOTIFY || isWritable(channelNumber)) {
+			return;
+		} else if (writePolicy == WriteLimits.Policy.FAIL) {
+			throw new WriteLimitExceededException("channel " + channelNumber 
+					+ " is not writable");
+		} else if (Thread.holdsLock(parser)) {
+			return;
+		}
+		// the frames held back by a batch could be the ones the peer waits for
+		mapping.flushBatch();
+		final CountDownLatch latch = new CountDownLatch(1);
+		mapping.whenWritable(channelNumber, deferrable(new Runnable() {
+			public void run() {
+				latch.countDown();
+			}
+		}));
+		try {
+			latch.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new BeepException("interrupted while waiting for channel " 
+					+ channelNumber + " to become writable", e);
+		}
+		// the waiters are woken up when the session dies
+		if (getCurrentState() == deadState) {
+			throw new BeepException("session closed while waiting for channel " 
+					+ channelNumber + " to become writable");
+		}
 	}
 	
-	private void replyCompleted(int channelNumber, int messageNumber) {
-		responseHandlers.remove(key(channelNumber, messageNumber));
+	/*
+	 * Notifies the channel when it becomes unwritable and registers for the
+	 * notification that it is writable again. That notification fires 
+	 * on the writer, it is deferred until the writer has released its 
+	 * locks and then passed to the dispatcher of the channel.
+	 */
+	private void updateWritability(final int channelNumber) {
+		final ChannelEntry entry = channels.get(channelNumber);
+		if (channelNumber == 0 || entry == null || mapping.isWritable(channelNumber)) {
+			return;
+		}
+		if (entry.setWritable(false)) {
+			fireWritabilityChanged(channelNumber, entry, false);
+			mapping.whenWritable(channelNumber, deferrable(new Runnable() {
+				public void run() {
+					if (entry.setWritable(true)) {
+						fireWritabilityChanged(channelNumber, entry, true);
+					}
+				}
+			}));
+		}
+	}
+	
+	private void fireWritabilityChanged(int channelNumber, final ChannelEntry entry, final boolean writable) {
+		info("channel " + channelNumber + " writable=" + writable);
+		entry.dispatch(new Runnable() {
+			public void run() {
+				entry.getChannel().channelWritabilityChanged(writable);
+			}
+		}, false);
 	}
 
 	
@@ -341,12 +785,12 @@ public class SessionImpl
 		return greeting.getProfiles();
 	}
 	
-	public synchronized void startChannel(String profileUri, ChannelHandler handler) {
-		startChannel(new ProfileInfo(profileUri), handler);
+	public synchronized BeepFuture<Channel> startChannel(String profileUri, ChannelHandler handler) {
+		return startChannel(new ProfileInfo(profileUri), handler);
 	}
 	
-	public synchronized void startChannel(final ProfileInfo profile, final ChannelHandler handler) {
-		startChannel(new ProfileInfo[] { profile }, new ChannelHandlerFactory() {
+	public synchronized BeepFuture<Channel> startChannel(final ProfileInfo profile, final ChannelHandler handler) {
+		return startChannel(new ProfileInfo[] { profile }, new ChannelHandlerFactory() {
 			public ChannelHandler createChannelHandler(ProfileInfo info) {
 				if (!profile.getUri().equals(info.getUri())) {
 					throw new IllegalArgumentException("profile URIs do not match: "
@@ -360,14 +804,27 @@ public class SessionImpl
 		});
 	}
 	
-	public synchronized void startChannel(ProfileInfo[] profiles, ChannelHandlerFactory factory) {
-		getCurrentState().startChannel(profiles, factory);
+	public synchronized BeepFuture<Channel> startChannel(ProfileInfo[] profiles, ChannelHandlerFactory factory) {
+		DefaultFuture<Channel> future = new DefaultFuture<Channel>();
+		getCurrentState().startChannel(profiles, factory, future);
+		addPendingFuture(future);
+		return future;
 	}
 	
 	public synchronized void close() {
 		getCurrentState().closeSession();
 	}
 	
+	public void batch(Runnable task) {
+		Assert.notNull("task", task);
+		mapping.beginBatch();
+		try {
+			task.run();
+		} finally {
+			mapping.endBatch();
+		}
+	}
+	
 	// --> end of Session methods <--
 	
 	
@@ -380,8 +837,62 @@ public class SessionImpl
 	 * - register the reply listener under that number
 	 * - pass the message to the underlying transport mapping
 	 */	
-	public synchronized void sendMessage(int channelNumber, Message message, ReplyListener listener) {
-		getCurrentState().sendMessage(channelNumber, message, listener);
+	public void sendMessage(int channelNumber, Message message, ReplyListener listener) {
+		awaitWritable(channelNumber);
+		boolean deferring = deferCallbacks();
+		try {
+			getCurrentState().sendMessage(channelNumber, message, listener);
+		} finally {
+			runDeferredCallbacks(deferring);
+		}
+		updateWritability(channelNumber);
+	}
+	
+	public boolean isWritable(int channelNumber) {
+		return channelNumber == 0 || mapping.isWritable(channelNumber);
+	}
+	
+	public void setChannelPriority(int channelNumber, int priority) {
+		mapping.setChannelPriority(channelNumber, priority);
+	}
+	
+	public void setChannelMaxFrameSize(int channelNumber, int maxFrameSize) {
+		mapping.setChannelMaxFrameSize(channelNumber, maxFrameSize);
+	}
+	
+	public void setChannelSillyWindowAvoidance(int channelNumber, SillyWindowAvoidance policy) {
+		mapping.setChannelSillyWindowAvoidance(channelNumber, policy);
+	}
+	
+	public void setChannelConsumptionLimit(int channelNumber, int limit) {
+		mapping.setChannelConsumptionLimit(channelNumber, limit);
+	}
+	
+	/*
+	 * The future is failed if the session dies before it completes. It
+	 * is removed again as soon as it has been completed.
+	 */
+	public <V> void addPendingFuture(final DefaultFuture<V> future) {
+		pendingFutures.add(future);
+		future.addListener(new FutureListener<V>() {
+			public void operationComplete(BeepFuture<V> completed) {
+				pendingFutures.remove(future);
+			}
+		}, SynchronousDispatcher.INSTANCE);
+		if (getCurrentState() == deadState) {
+			future.setFailure(new BeepException("session has been closed"));
+		}
+	}
+	
+	private void failPendingFutures() {
+		DefaultFuture<?>[] futures;
+		synchronized (pendingFutures) {
+			futures = pendingFutures.toArray(new DefaultFuture<?>[pendingFutures.size()]);
+		}
+		BeepException cause = new BeepException("session has been closed");
+		for (DefaultFuture<?> future : futures) {
+			future.setFailure(cause);
+		}
 	}
 
 	/*
@@ -429,7 +940,7 @@ public class SessionImpl
 	 * that is the application, which decides what to do with the request to
 	 * close the channel.
 	 */
-	public synchronized void channelCloseRequested(final int channelNumber, final CloseChannelRequest request) {
+	public void channelCloseRequested(final int channelNumber, final CloseChannelRequest request) {
 		ChannelHandler handler = getChannelHandler(channelNumber);
 		handler.closeRequested(new CloseChannelRequest() {
 			public void reject() {
@@ -451,28 +962,28 @@ public class SessionImpl
 	
 	// --> start of MessageHandler methods <-- 
 
-	public synchronized void receiveMSG(int channelNumber, int messageNumber, Message message) {
+	public void receiveMSG(int channelNumber, int messageNumber, Message message) {
 		info("received MSG: channel=" + channelNumber + ",message=" + messageNumber);
 		getCurrentState().receiveMSG(channelNumber, messageNumber, message);
 	}
 
-	public synchronized void receiveANS(int channelNumber, int messageNumber, int answerNumber, Message message) {
+	public void receiveANS(int channelNumber, int messageNumber, int answerNumber, Message message) {
 		info("received ANS: channel=" + channelNumber + ",message=" + messageNumber
 				 + ",answer=" + answerNumber);
 		getCurrentState().receiveANS(channelNumber, messageNumber, answerNumber, message);
 	}
 	
-	public synchronized void receiveNUL(int channelNumber, int messageNumber) {
+	public void receiveNUL(int channelNumber, int messageNumber) {
 		info("received NUL: channel=" + channelNumber + ",message=" + messageNumber);
 		getCurrentState().receiveNUL(channelNumber, messageNumber);
 	}
 
-	public synchronized void receiveERR(int channelNumber, int messageNumber, Message message) {
+	public void receiveERR(int channelNumber, int messageNumber, Message message) {
 		info("received ERR: channel=" + channelNumber + ",message=" + messageNumber);
 		getCurrentState().receiveERR(channelNumber, messageNumber, message);
 	}
 		
-	public synchronized void receiveRPY(int channelNumber, int messageNumber, Message message) {
+	public void receiveRPY(int channelNumber, int messageNumber, Message message) {
 		info("received RPY: channel=" + channelNumber + ",message=" + messageNumber);
 		getCurrentState().receiveRPY(channelNumber, messageNumber, message);
 	}
@@ -480,6 +991,31 @@ public class SessionImpl
 	// --> end of MessageHandler methods <--
 	
 	
+	// --> start of StreamingMessageHandler methods <--
+	
+	public boolean isStreaming(MessageType type, int channelNumber, int messageNumber) {
+		return getCurrentState().isStreaming(type, channelNumber, messageNumber);
+	}
+	
+	public ContentListener startMSG(int channelNumber, int messageNumber, Message header) {
+		info("receiving streamed MSG: channel=" + channelNumber + ",message=" + messageNumber);
+		return getCurrentState().startMSG(channelNumber, messageNumber, header);
+	}
+	
+	public ContentListener startRPY(int channelNumber, int messageNumber, Message header) {
+		info("receiving streamed RPY: channel=" + channelNumber + ",message=" + messageNumber);
+		return getCurrentState().startRPY(channelNumber, messageNumber, header);
+	}
+	
+	public ContentListener startANS(int channelNumber, int messageNumber, int answerNumber, Message header) {
+		info("receiving streamed ANS: channel=" + channelNumber + ",message=" + messageNumber
+				 + ",answer=" + answerNumber);
+		return getCurrentState().startANS(channelNumber, messageNumber, answerNumber, header);
+	}
+	
+	// --> end of StreamingMessageHandler methods <--
+	
+	
 	// --> start of TransportContext methods <--
 	
 	/*
@@ -492,12 +1028,12 @@ public class SessionImpl
 		getCurrentState().connectionEstablished(address);
 	}
 	
-	public synchronized void exceptionCaught(Throwable cause) {
+	public void exceptionCaught(Throwable cause) {
 		// TODO: implement this method
 		LOG.warn("exception caught by transport", cause);
 	}
 	
-	public synchronized void messageReceived(ByteBuffer buffer) {
+	public void messageReceived(ByteBuffer buffer) {
 		if (LOG.isDebugEnabled()) {
 			ByteArrayOutputStream stream = new ByteArrayOutputStream();
 			HexDump.dump(buffer, stream);
@@ -511,16 +1047,32 @@ public class SessionImpl
 			info("received message with size " + buffer.remaining());
 		}
 		
+		// the parser is stateful, the received data is processed by 
+		// one thread at a time
+		boolean deferring = deferCallbacks();
 		try {
-			parser.process(buffer);
-		} catch (ProtocolException e) {
-			warn("dropping connection because of a protocol exception", e);
-			try {
-				sessionHandler.sessionClosed();
-			} finally {
-				setCurrentState(deadState);
-				mapping.closeTransport();
+			synchronized (parser) {
+				mapping.receiveStarted();
+				try {
+					parser.process(buffer);
+				} catch (ProtocolException e) {
+					warn("dropping connection because of a protocol exception", e);
+					protocolViolated();
+				} finally {
+					mapping.receiveCompleted();
+				}
 			}
+		} finally {
+			runDeferredCallbacks(deferring);
+		}
+	}
+	
+	private synchronized void protocolViolated() {
+		try {
+			sessionHandler.sessionClosed();
+		} finally {
+			setCurrentState(deadState);
+			mapping.closeTransport();
 		}
 	}
 	
@@ -531,11 +1083,11 @@ public class SessionImpl
 	
 	// --> end of TransportContext methods <--
 	
-	protected static interface SessionState extends MessageHandler {
+	protected static interface SessionState extends StreamingMessageHandler {
 		
 		void connectionEstablished(SocketAddress address);
 		
-		void startChannel(ProfileInfo[] profiles, ChannelHandlerFactory factory);
+		void startChannel(ProfileInfo[] profiles, ChannelHandlerFactory factory, DefaultFuture<Channel> future);
 		
 		void sendMessage(int channelNumber, Message message, ReplyListener listener);
 		
@@ -558,7 +1110,7 @@ public class SessionImpl
 					+ getName() + ">");
 		}
 		
-		public void startChannel(ProfileInfo[] profiles, ChannelHandlerFactory factory) {
+		public void startChannel(ProfileInfo[] profiles, ChannelHandlerFactory factory, DefaultFuture<Channel> future) {
 			throw new IllegalStateException("" +
 					"cannot start channel in state <" + getName() + ">");
 		}
@@ -606,6 +1158,30 @@ public class SessionImpl
 					+ "message RPY, channel=" + channelNumber + ",message=" + messageNumber);
 		}
 		
+		public boolean isStreaming(MessageType type, int channelNumber, int messageNumber) {
+			return false;
+		}
+		
+		public ContentListener startMSG(int channelNumber, int messageNumber, Message header) {
+			throw new IllegalStateException(
+					"internal error: unexpected method invocation in state <" + getName() + ">: "
+					+ "streamed MSG, channel=" + channelNumber + ",message=" + messageNumber);
+		}
+		
+		public ContentListener startRPY(int channelNumber, int messageNumber, Message header) {
+			throw new IllegalStateException(
+					"internal error: unexpected method invocation in state <" + getName() + ">: "
+					+ "streamed RPY, channel=" + channelNumber + ",message=" + messageNumber);
+		}
+		
+		public ContentListener startANS(int channelNumber, int messageNumber, int answerNumber, Message header) {
+			throw new IllegalStateException(
+					"internal error: unexpected method invocation in state <" + getName() + ">: "
+					+ "streamed ANS, channel=" + channelNumber 
+					+ ",message=" + messageNumber
+					+ ",answerNumber=" + answerNumber);
+		}
+		
 		public void closeSession() {
 			throw new IllegalStateException("cannot close session");
 		}
@@ -624,7 +1200,7 @@ public class SessionImpl
 		}
 		
 		public void connectionEstablished(SocketAddress address) {
-			ResponseHandler responseHandler = new InitialResponseHandler(mapping);
+			DefaultResponseHandler responseHandler = new InitialResponseHandler(mapping);
 			setResponseHandler(0, 0, responseHandler);
 			if (!channelManagementProfile.connectionEstablished(address, sessionHandler, responseHandler)) {
 				setCurrentState(deadState);
@@ -696,7 +1272,8 @@ public class SessionImpl
 		}
 		
 		@Override
-		public void startChannel(final ProfileInfo[] profiles, final ChannelHandlerFactory factory) {
+		public void startChannel(final ProfileInfo[] profiles, final ChannelHandlerFactory factory, 
+				final DefaultFuture<Channel> future) {
 			final int channelNumber = getNextChannelNumber();
 			channelManagementProfile.startChannel(channelNumber, profiles, new StartChannelCallback() {
 				public void channelCreated(ProfileInfo info) {
@@ -704,21 +1281,22 @@ public class SessionImpl
 					InternalChannel channel = createChannel(
 							SessionImpl.this, info.getUri(), channelNumber);
 					ChannelHandler channelHandler = channel.initChannel(handler);
-					registerChannel(channelNumber, channel, channelHandler);
+					registerChannel(channelNumber, channel, channelHandler, 
+							handler instanceof ConcurrentChannelHandler);
 					channelHandler.channelOpened(channel);
+					future.setValue(channel);
 				}
 				public void channelFailed(int code, String message) {
 					factory.startChannelFailed(code, message);
+					future.setFailure(new BeepErrorException(code, message));
 				}
 			});
 		}
 		
 		@Override
 		public void sendMessage(int channelNumber, Message message, ReplyListener listener) {
-			int messageNumber = getNextMessageNumber(channelNumber);
-			info("send message: channel=" + channelNumber + ",message=" + messageNumber);
-			registerReplyListener(channelNumber, messageNumber, listener);
-			mapping.sendMSG(channelNumber, messageNumber, message);
+			info("send message: channel=" + channelNumber);
+			getChannelEntry(channelNumber).sendMessage(mapping, channelNumber, message, listener);
 		}
 		
 		@Override
@@ -749,15 +1327,26 @@ public class SessionImpl
 			InternalChannel channel = createChannel(SessionImpl.this, info.getUri(), channelNumber);
 			ChannelHandler handler = channel.initChannel(response.getChannelHandler());
 			handler.channelOpened(channel);
-			registerChannel(channelNumber, channel, handler);
+			registerChannel(channelNumber, channel, handler, 
+					response.getChannelHandler() instanceof ConcurrentChannelHandler);
 			
 			return response;
 		}
 		
 		@Override
-		public void receiveMSG(int channelNumber, int messageNumber, Message message) {
-			ResponseHandler responseHandler = getResponseHandler(channelNumber, messageNumber);
-			if (responseHandler != null) {
+		public void receiveMSG(int channelNumber, int messageNumber, final Message message) {
+			final ResponseHandler responseHandler = newResponseHandler(channelNumber, messageNumber);
+			final ChannelHandler handler = getChannelHandler(channelNumber);
+			dispatch(channelNumber, message, new Runnable() {
+				public void run() {
+					handler.messageReceived(message, responseHandler);
+				}
+			}, true);
+		}
+		
+		private ResponseHandler newResponseHandler(int channelNumber, int messageNumber) {
+			DefaultResponseHandler responseHandler = createResponseHandler(mapping, channelNumber, messageNumber);
+			if (!setResponseHandler(channelNumber, messageNumber, responseHandler)) {
 				// Validation of frames according to the BEEP specification section 2.2.1.1.
 				//
 				// A frame is poorly formed if the header starts with "MSG", and 
@@ -768,46 +1357,115 @@ public class SessionImpl
 						+ "that has been received but for which a reply has not been "
 						+ "completely sent.");
 			}
-			responseHandler = createResponseHandler(mapping, channelNumber, messageNumber);
-			
-			ChannelHandler handler = getChannelHandler(channelNumber);
-			handler.messageReceived(message, responseHandler);
+			return responseHandler;
 		}
 
 		@Override
-		public void receiveANS(int channelNumber, int messageNumber, int answerNumber, Message message) {
-			ReplyListenerHolder listener = getReplyListener(channelNumber, messageNumber);
-			listener.receiveANS(channelNumber, messageNumber, message);
+		public void receiveANS(int channelNumber, int messageNumber, int answerNumber, final Message message) {
+			final ReplyListener listener = getReplyListener(channelNumber, messageNumber);
+			dispatch(channelNumber, message, new Runnable() {
+				public void run() {
+					listener.receiveANS(message);
+				}
+			});
 		}
 		
 		@Override
 		public void receiveNUL(int channelNumber, int messageNumber) {
-			ReplyListenerHolder listener = getReplyListener(channelNumber, messageNumber);
-			try {
-				listener.receiveNUL(channelNumber, messageNumber);
-			} finally {
-				unregisterReplyListener(channelNumber);
-			}
+			final ReplyListener listener = takeReplyListener(channelNumber, messageNumber);
+			dispatch(channelNumber, null, new Runnable() {
+				public void run() {
+					listener.receiveNUL();
+				}
+			});
 		}
 
 		@Override
-		public void receiveERR(int channelNumber, int messageNumber, Message message) {
-			ReplyListenerHolder listener = getReplyListener(channelNumber, messageNumber);
-			try {
-				listener.receiveERR(channelNumber, messageNumber, message);
-			} finally {
-				unregisterReplyListener(channelNumber);
-			}
+		public void receiveERR(int channelNumber, int messageNumber, final Message message) {
+			final ReplyListener listener = takeReplyListener(channelNumber, messageNumber);
+			dispatch(channelNumber, message, new Runnable() {
+				public void run() {
+					listener.receiveERR(message);
+				}
+			});
 		}
 
 		@Override
-		public void receiveRPY(int channelNumber, int messageNumber, Message message) {
-			ReplyListenerHolder listener = getReplyListener(channelNumber, messageNumber);
+		public void receiveRPY(int channelNumber, int messageNumber, final Message message) {
+			final ReplyListener listener = takeReplyListener(channelNumber, messageNumber);
+			dispatch(channelNumber, message, new Runnable() {
+				public void run() {
+					listener.receiveRPY(message);
+				}
+			});
+		}
+		
+		@Override
+		public boolean isStreaming(MessageType type, int channelNumber, int messageNumber) {
+			if (MessageType.MSG == type) {
+				return getChannelHandler(channelNumber) instanceof StreamingChannelHandler;
+			} else if (MessageType.RPY == type || MessageType.ANS == type) {
+				ChannelEntry entry = channels.get(channelNumber);
+				return entry != null && entry.isStreamingReply();
+			} else {
+				return false;
+			}
+		}
+		
+		@Override
+		public ContentListener startMSG(int channelNumber, int messageNumber, final Message header) {
+			final ResponseHandler responseHandler = newResponseHandler(channelNumber, messageNumber);
+			final StreamingChannelHandler handler = (StreamingChannelHandler) getChannelHandler(channelNumber);
+			return dispatchStart(channelNumber, new ContentStart() {
+				public ContentListener start() {
+					return handler.messageStarted(header, responseHandler);
+				}
+			});
+		}
+		
+		@Override
+		public ContentListener startANS(int channelNumber, int messageNumber, int answerNumber, final Message header) {
+			final ReplyListener listener = getReplyListener(channelNumber, messageNumber);
+			return dispatchStart(channelNumber, new ContentStart() {
+				public ContentListener start() {
+					return ((StreamingReplyListener) listener).answerStarted(header);
+				}
+			});
+		}
+		
+		@Override
+		public ContentListener startRPY(final int channelNumber, int messageNumber, final Message header) {
+			ReplyListenerHolder holder = getChannelEntry(channelNumber).getReplyListener();
+			final ContentListener target;
 			try {
-				listener.receiveRPY(channelNumber, messageNumber, message);
-			} finally {
+				final ReplyListener listener = holder.getReplyListener(channelNumber, messageNumber);
+				target = dispatchStart(channelNumber, new ContentStart() {
+					public ContentListener start() {
+						return ((StreamingReplyListener) listener).replyStarted(header);
+					}
+				});
+			} catch (RuntimeException e) {
 				unregisterReplyListener(channelNumber);
+				throw e;
 			}
+			
+			// the reply listener is unregistered when the reply is complete
+			return new ContentListener() {
+				public void contentReceived(ByteBuffer content) {
+					if (target != null) {
+						target.contentReceived(content);
+					}
+				}
+				public void contentCompleted() {
+					try {
+						if (target != null) {
+							target.contentCompleted();
+						}
+					} finally {
+						unregisterReplyListener(channelNumber);
+					}
+				}
+			};
 		}
 		
 		@Override
@@ -914,6 +1572,10 @@ public class SessionImpl
 				
 	}
 	
+	/*
+	 * The replies are passed to the ChannelEntry, which sends them in the
+	 * order the MSGs have been received.
+	 */
 	protected class DefaultResponseHandler implements ResponseHandler {
 		
 		private final TransportMapping mapping;
@@ -922,9 +1584,29 @@ public class SessionImpl
 		
 		private final int messageNumber;
 		
+		/**
+		 * The number of the next answer, only used while the reply 
+		 * operations are sent.
+		 */
 		private int answerNumber = 0;
 		
-		private boolean complete;
+		/**
+		 * Whether the complete reply has been queued. Set together with
+		 * queuing that reply, under the lock of the ChannelEntry.
+		 */
+		private volatile boolean complete;
+		
+		/**
+		 * Whether the handler has been registered with the ChannelEntry,
+		 * guarded by the ChannelEntry.
+		 */
+		private boolean registered;
+		
+		/**
+		 * Replies waiting for earlier MSGs to be answered, guarded by 
+		 * the ChannelEntry.
+		 */
+		private final LinkedList<ReplyOperation> pending = new LinkedList<ReplyOperation>();
 		
 		public DefaultResponseHandler(TransportMapping mapping, int channel, int messageNumber) {
 			Assert.notNull("mapping", mapping);
@@ -938,45 +1620,80 @@ public class SessionImpl
 				throw new IllegalStateException("a complete reply has already been sent");
 			}
 		}
-
-		private void complete() {
-			complete = true;
-			replyCompleted(channel, messageNumber);
-		}
 		
 		public MessageBuilder createMessageBuilder() {
-			return new DefaultMessageBuilder();
+			return new DefaultMessageBuilder(allocator);
 		}
 
-		public void sendANS(Message message) {
+		/*
+		 * Queues the reply operation while holding the lock of this handler.
+		 * The callbacks of the mapping that fire meanwhile are run after the
+		 * lock has been released.
+		 */
+		private void reply(ReplyOperation reply, boolean checked, boolean completes) {
+			boolean deferring = deferCallbacks();
+			try {
+				synchronized (this) {
+					if (checked) {
+						checkCompletion();
+					}
+					sendReply(channel, this, reply, completes);
+				}
+			} finally {
+				runDeferredCallbacks(deferring);
+			}
+		}
+		
+		public void sendANS(final Message message) {
 			Assert.notNull("message", message);
-			checkCompletion();
-			info("sendANS on channel " + channel + " to message "
-					+ messageNumber + " (" + answerNumber + ")");
-			mapping.sendANS(channel, messageNumber, answerNumber++, message);
+			reply(new ReplyOperation() {
+				public void send() {
+					// numbered in the order the answers are sent
+					int answerNumber = DefaultResponseHandler.this.answerNumber++;
+					info("sendANS on channel " + channel + " to message "
+							+ messageNumber + " (" + answerNumber + ")");
+					mapping.sendANS(channel, messageNumber, answerNumber, message);
+				}
+			}, true, false);
 		}
 		
-		public void sendERR(Message message) {
+		public void sendERR(final Message message) {
 			Assert.notNull("message", message);
-			checkCompletion();
 			info("sendERR on channel " + channel + " to message " + messageNumber);
-			mapping.sendERR(channel, messageNumber, message);
-			complete();
+			reply(new ReplyOperation() {
+				public void send() {
+					mapping.sendERR(channel, messageNumber, message);
+				}
+			}, true, true);
 		}
 		
 		public void sendNUL() {
-			checkCompletion();
 			info("sendNUL on channel " + channel + " to message " + messageNumber);
-			mapping.sendNUL(channel, messageNumber);
-			complete();
+			reply(new ReplyOperation() {
+				public void send() {
+					mapping.sendNUL(channel, messageNumber);
+				}
+			}, true, true);
 		}
 		
-		public void sendRPY(Message message) {
+		public void sendRPY(final Message message) {
 			Assert.notNull("message", message);
-			checkCompletion();
 			info("sendRPY on channel " + channel + " to message " + messageNumber);
-			mapping.sendRPY(channel, messageNumber, message);
-			complete();
+			reply(new ReplyOperation() {
+				public void send() {
+					mapping.sendRPY(channel, messageNumber, message);
+				}
+			}, true, true);
+		}
+		
+		public void whenSent(final Runnable callback) {
+			Assert.notNull("callback", callback);
+			reply(new ReplyOperation() {
+				public void send() {
+					// the callback may send, it must not run under the locks of the writer
+					mapping.whenSent(channel, deferrable(dispatched(channel, callback)));
+				}
+			}, false, false);
 		}
 		
 	}
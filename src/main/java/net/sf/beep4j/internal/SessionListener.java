@@ -21,4 +21,6 @@ public interface SessionListener {
 	
 	void channelClosed(int channelNumber);
 	
+	void sessionClosed();
+	
 }
@@ -0,0 +1,73 @@
+/*
+ *  Copyright 2006 Simon Raess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.sf.beep4j.internal;
+
+import net.sf.beep4j.ContentListener;
+import net.sf.beep4j.Message;
+
+/**
+ * Extension of the MessageHandler interface for processors that can
+ * receive messages incrementally. The {@link MessageAssembler} asks
+ * the handler on the first frame of each message whether the message
+ * should be streamed.
+ * 
+ * @author Simon Raess
+ */
+public interface StreamingMessageHandler extends MessageHandler {
+	
+	/**
+	 * Determines whether the message starting with the given frame
+	 * should be streamed.
+	 * 
+	 * @param type the type of the message
+	 * @param channelNumber the channel number
+	 * @param messageNumber the message number
+	 * @return true iff the message should be streamed
+	 */
+	boolean isStreaming(MessageType type, int channelNumber, int messageNumber);
+	
+	/**
+	 * Start to receive a MSG message.
+	 * 
+	 * @param channelNumber the channel number
+	 * @param messageNumber the message number
+	 * @param header the headers of the message
+	 * @return the listener for the content, may be null
+	 */
+	ContentListener startMSG(int channelNumber, int messageNumber, Message header);
+	
+	/**
+	 * Start to receive a RPY message.
+	 * 
+	 * @param channelNumber the channel number
+	 * @param messageNumber the message number
+	 * @param header the headers of the message
+	 * @return the listener for the content, may be null
+	 */
+	ContentListener startRPY(int channelNumber, int messageNumber, Message header);
+	
+	/**
+	 * Start to receive an ANS message.
+	 * 
+	 * @param channelNumber the channel number
+	 * @param messageNumber the message number
+	 * @param answerNumber the answer number
+	 * @param header the headers of the message
+	 * @return the listener for the content, may be null
+	 */
+	ContentListener startANS(int channelNumber, int messageNumber, int answerNumber, Message header);
+	
+}
@@ -15,7 +15,10 @@
  */
 package net.sf.beep4j.internal;
 
+import java.nio.ByteBuffer;
+
 import net.sf.beep4j.Message;
+import net.sf.beep4j.SillyWindowAvoidance;
 
 /**
  * A TransportMapping implements a transport mapping as described by
@@ -31,20 +34,26 @@ import net.sf.beep4j.Message;
  *  <li>process any transport specific mapping frame</li>
  * </ul>
  * 
+ * <p>The send methods take over the reference of a 
+ * {@link net.sf.beep4j.buffer.ReferenceCounted} message. The message 
+ * is released after its last frame has been written.</p>
+ * 
  * @author Simon Raess
  */
 public interface TransportMapping extends SessionListener {
 	
 	/**
-	 * Process a mapping frame. This method receives the header tokens.
+	 * Process a mapping frame. This method receives the header line
+	 * (without the terminating CRLF) as it was read from the stream.
+	 * The mapping is responsible to parse the header from the buffer.
 	 * As the TCP mapping is currently the only existing mapping, this
 	 * is sufficient. If there ever exists another mapping that defines
 	 * a payload for mapping frames, some changes would have to be
 	 * implemented.
 	 * 
-	 * @param token the header tokens (i.e. header is split on spaces)
+	 * @param header the buffer containing the header line
 	 */
-	void processMappingFrame(String[] token);
+	void processMappingFrame(ByteBuffer header);
 	
 	/**
 	 * Checks that an incoming frame is valid. This method is called
@@ -67,6 +76,69 @@ public interface TransportMapping extends SessionListener {
 	 */
 	void frameReceived(int channel, long seqno, int size);
 	
+	/**
+	 * Invoked by the framework before it processes received data. 
+	 */
+	void receiveStarted();
+	
+	/**
+	 * Invoked by the framework after it processed received data. Data 
+	 * that the mapping held back to write it together with the outbound
+	 * data of the I/O cycle must now be written.
+	 */
+	void receiveCompleted();
+	
+	/**
+	 * Opens a batch for the current thread. Data the thread writes while
+	 * its batch is open may be held back by the mapping until the batch
+	 * has been closed. Batches do not hold back the writes of other 
+	 * threads. Every invocation must be balanced by an invocation of 
+	 * {@link #endBatch()} on the same thread.
+	 */
+	void beginBatch();
+	
+	/**
+	 * Closes a batch opened by {@link #beginBatch()}. The held back data
+	 * is written when the current thread has no batch open anymore.
+	 */
+	void endBatch();
+	
+	/**
+	 * Writes the data held back by the open batches immediately. Invoked
+	 * by the framework before a thread blocks on the outcome of a write.
+	 */
+	void flushBatch();
+	
+	/**
+	 * Determines whether the receive window of the channel is only opened
+	 * when the application has consumed the received frames. If so, the
+	 * framework must invoke {@link #frameConsumed(int, int)} as soon as
+	 * a received frame has been released.
+	 * 
+	 * @param channel the channel number
+	 * @return true iff the window is opened on consumption
+	 */
+	boolean isConsumptionDriven(int channel);
+	
+	/**
+	 * Invoked by the framework when a received frame has been released, 
+	 * that is, the application consumed it.
+	 * 
+	 * @param channel the channel number of the frame
+	 * @param size the payload size of the frame
+	 */
+	void frameConsumed(int channel, int size);
+	
+	/**
+	 * Sets the maximum number of received bytes on the given channel that
+	 * the application may hold without having released them.
+	 * 
+	 * @param channel the channel number
+	 * @param limit the maximum number of unreleased bytes, 0 to open the
+	 *        window as soon as data is received
+	 */
+	void setChannelConsumptionLimit(int channel, int limit);
+	
 	/**
 	 * Sends a message of type MSG.
 	 * 
@@ -112,6 +184,61 @@ public interface TransportMapping extends SessionListener {
 	 */
 	void sendNUL(int channel, int messageNumber);
 	
+	/**
+	 * Invokes the <var>callback</var> as soon as everything sent so far
+	 * on the given channel has been passed to the transport.
+	 * 
+	 * @param channel the channel number
+	 * @param callback the callback to be invoked
+	 */
+	void whenSent(int channel, Runnable callback);
+	
+	/**
+	 * Determines whether the outbound data pending on the given channel
+	 * and on the whole session is below the configured limits.
+	 * 
+	 * @param channel the channel number
+	 * @return true iff the channel is writable
+	 */
+	boolean isWritable(int channel);
+	
+	/**
+	 * Sets the priority of the channel, that is, its share of the 
+	 * connection relative to the other channels when several channels
+	 * have data to send.
+	 * 
+	 * @param channel the channel number
+	 * @param priority the priority, at least 1
+	 */
+	void setChannelPriority(int channel, int priority);
+	
+	/**
+	 * Sets the maximum payload size of the frames sent on the given
+	 * channel. Larger messages are sent as several frames.
+	 * 
+	 * @param channel the channel number
+	 * @param maxFrameSize the maximum payload size of a frame
+	 */
+	void setChannelMaxFrameSize(int channel, int maxFrameSize);
+	
+	/**
+	 * Sets the silly window avoidance policy of the given channel.
+	 * 
+	 * @param channel the channel number
+	 * @param policy the silly window avoidance policy
+	 */
+	void setChannelSillyWindowAvoidance(int channel, SillyWindowAvoidance policy);
+	
+	/**
+	 * Invokes the <var>callback</var> as soon as the given channel is
+	 * writable. If the channel is writable, the callback is invoked
+	 * immediately. The callback is also invoked if the channel is closed.
+	 * 
+	 * @param channel the channel number
+	 * @param callback the callback to be invoked
+	 */
+	void whenWritable(int channel, Runnable callback);
+	
 	/**
 	 * Instructs the mapping to close the underlying Transport object.
 	 */
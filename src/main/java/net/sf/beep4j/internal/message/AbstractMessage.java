@@ -0,0 +1,98 @@
+/*
+ *  Copyright 2006 Simon Raess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.sf.beep4j.internal.message;
+
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+
+import net.sf.beep4j.Message;
+
+/**
+ * Base class for Message implementations. It implements the methods
+ * that depend only on the MessageHeader.
+ * 
+ * @author Simon Raess
+ */
+public abstract class AbstractMessage implements Message {
+	
+	private final MessageHeader header;
+	
+	protected AbstractMessage(MessageHeader header) {
+		this.header = header;
+	}
+	
+	protected MessageHeader getMessageHeader() {
+		return header;
+	}
+	
+	public String getContentType() {
+		return header.getContentType();
+	}
+	
+	protected String getCharsetName() {
+		return header.getCharset();
+	}
+	
+	protected String getTransferEncoding() {
+		return header.getTransferEncoding();
+	}
+	
+	public Iterator<String> getHeaderNames() {
+		return header.getHeaderNames();
+	}
+	
+	public String getHeader(String name) {
+		return header.getHeader(name);
+	}
+	
+	public Reader getReader() {
+		if (getCharsetName() == null) {
+			throw new IllegalStateException("no charset has been defined, "
+					+ "use method with charset parameter");
+		}
+		Charset charset = Charset.forName(getCharsetName());
+		return getReader(charset);
+	}
+	
+	public Reader getReader(String charsetName) {
+		Charset charset = Charset.forName(charsetName);
+		return getReader(charset);
+	}
+	
+	/**
+	 * Gets a Reader that decodes the content with the given charset.
+	 * 
+	 * @param charset the charset of the content
+	 * @return the fully configured Reader
+	 */
+	protected abstract Reader getReader(Charset charset);
+	
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		} else if (obj == null) {
+			return false;
+		} else if (obj instanceof Message) {
+			Message m = (Message) obj;
+			return asByteBuffer().equals(m.asByteBuffer());
+		} else {
+			return false;
+		}
+	}
+	
+}
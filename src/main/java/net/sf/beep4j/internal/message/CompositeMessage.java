@@ -0,0 +1,139 @@
+/*
+ *  Copyright 2006 Simon Raess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.sf.beep4j.internal.message;
+
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import net.sf.beep4j.buffer.ReferenceCounted;
+import net.sf.beep4j.internal.util.ByteBufferInputStream;
+
+/**
+ * Message implementation whose content consists of several segments,
+ * typically the payloads of the frames of a fragmented message. The
+ * segments are not copied into a single buffer unless 
+ * {@link #getContentBuffer()} or {@link #asByteBuffer()} is called.
+ * 
+ * @author Simon Raess
+ */
+public class CompositeMessage extends AbstractMessage implements ReferenceCounted {
+	
+	private final ByteBuffer[] segments;
+	
+	private final ReferenceCounted[] owners;
+	
+	private ByteBuffer content;
+	
+	private ByteBuffer buffer;
+	
+	/**
+	 * Creates a new CompositeMessage. The content of the message is the
+	 * concatenation of the remaining bytes of the segments. Releasing
+	 * the message releases all the owners.
+	 * 
+	 * @param header the message header
+	 * @param segments the segments of the content
+	 * @param owners the owners of the segment buffers
+	 */
+	public CompositeMessage(MessageHeader header, ByteBuffer[] segments, ReferenceCounted[] owners) {
+		super(header);
+		this.segments = segments;
+		this.owners = owners;
+	}
+	
+	public void retain() {
+		for (ReferenceCounted owner : owners) {
+			owner.retain();
+		}
+	}
+	
+	public void release() {
+		for (ReferenceCounted owner : owners) {
+			owner.release();
+		}
+	}
+	
+	/**
+	 * Gets the number of content segments of this message.
+	 * 
+	 * @return the number of segments
+	 */
+	public int getSegmentCount() {
+		return segments.length;
+	}
+	
+	private int getContentLength() {
+		int length = 0;
+		for (ByteBuffer segment : segments) {
+			length += segment.remaining();
+		}
+		return length;
+	}
+	
+	public InputStream getInputStream() {
+		List<InputStream> streams = new ArrayList<InputStream>(segments.length);
+		for (ByteBuffer segment : segments) {
+			streams.add(new ByteBufferInputStream(segment));
+		}
+		return new SequenceInputStream(Collections.enumeration(streams));
+	}
+	
+	@Override
+	protected Reader getReader(Charset charset) {
+		return new InputStreamReader(getInputStream(), charset);
+	}
+	
+	public synchronized ByteBuffer getContentBuffer() {
+		if (content == null) {
+			content = ByteBuffer.allocate(getContentLength());
+			for (ByteBuffer segment : segments) {
+				content.put(segment.duplicate());
+			}
+			content.flip();
+		}
+		return content.asReadOnlyBuffer();
+	}
+	
+	public synchronized ByteBuffer asByteBuffer() {
+		if (buffer == null) {
+			ByteBuffer header = getMessageHeader().asByteBuffer();
+			buffer = ByteBuffer.allocate(header.remaining() + getContentLength());
+			buffer.put(header);
+			for (ByteBuffer segment : segments) {
+				buffer.put(segment.duplicate());
+			}
+			buffer.flip();
+		}
+		return buffer.asReadOnlyBuffer();
+	}
+	
+	public ByteBuffer[] asByteBuffers() {
+		ByteBuffer[] result = new ByteBuffer[segments.length + 1];
+		result[0] = getMessageHeader().asByteBuffer();
+		for (int i = 0; i < segments.length; i++) {
+			result[i + 1] = segments[i].asReadOnlyBuffer();
+		}
+		return result;
+	}
+	
+}
@@ -0,0 +1,248 @@
+/*
+ *  Copyright 2006 Simon Raess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.sf.beep4j.internal.message;
+
+import java.io.StringReader;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.sf.beep4j.internal.message.contenttype.ContentTypeParser;
+import net.sf.beep4j.internal.message.contenttype.ParseException;
+
+/**
+ * Immutable parsed value of a Content-Type header (see RFC 2045). 
+ * Values are parsed by a hand-written parser that handles the common
+ * forms, i.e. tokens and quoted strings without escapes. Everything
+ * else, e.g. comments, is passed on to the JavaCC generated 
+ * {@link ContentTypeParser}. Parsed values are kept in a small cache 
+ * that evicts the least recently used value, as most messages use one
+ * of a few content types.
+ * 
+ * @author Simon Raess
+ */
+public final class ContentType {
+	
+	/**
+	 * The maximum number of cached values.
+	 */
+	static final int MAX_CACHE_SIZE = 64;
+	
+	private static final Map<String, ContentType> CACHE = 
+			new LruCache();
+	
+	private final String type;
+	
+	private final String subtype;
+	
+	private final Map<String, String> parameters;
+	
+	private ContentType(String type, String subtype, Map<String, String> parameters) {
+		this.type = type.toLowerCase();
+		this.subtype = subtype.toLowerCase();
+		this.parameters = Collections.unmodifiableMap(parameters);
+	}
+	
+	/**
+	 * Parses the value of a Content-Type header.
+	 * 
+	 * @param value the value to parse
+	 * @return the parsed content type
+	 * @throws IllegalArgumentException if the value cannot be parsed
+	 */
+	public static ContentType parse(String value) {
+		ContentType result;
+		synchronized (CACHE) {
+			result = CACHE.get(value);
+		}
+		if (result == null) {
+			result = new FastParser(value).parse();
+			if (result == null) {
+				result = parseSlow(value);
+			}
+			synchronized (CACHE) {
+				CACHE.put(value, result);
+			}
+		}
+		return result;
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static ContentType parseSlow(String value) {
+		ContentTypeParser parser = new ContentTypeParser(new StringReader(value));
+		try {
+			parser.parseAll();
+			return new ContentType(parser.getType(), parser.getSubType(), 
+					new HashMap<String, String>(parser.getParameters()));
+		} catch (ParseException e) {
+			// TODO: proper exception type
+			throw new IllegalArgumentException(e);
+		}
+	}
+	
+	/**
+	 * @return the lower case type
+	 */
+	public String getType() {
+		return type;
+	}
+	
+	/**
+	 * @return the lower case subtype
+	 */
+	public String getSubtype() {
+		return subtype;
+	}
+	
+	/**
+	 * Gets the value of a parameter.
+	 * 
+	 * @param name the lower case name of the parameter
+	 * @return the value of the parameter or null
+	 */
+	public String getParameter(String name) {
+		return parameters.get(name);
+	}
+	
+	@Override
+	public String toString() {
+		return type + "/" + subtype + parameters;
+	}
+	
+	/*
+	 * Parser for the common forms of Content-Type values. The parse method
+	 * returns null as soon as it encounters anything it does not handle,
+	 * the value is then parsed by the JavaCC generated parser.
+	 */
+	private static class FastParser {
+		private final String value;
+		private int position;
+		
+		private FastParser(String value) {
+			this.value = value;
+		}
+		
+		private ContentType parse() {
+			String type = token();
+			if (type == null || !skip('/')) {
+				return null;
+			}
+			String subtype = token();
+			if (subtype == null) {
+				return null;
+			}
+			Map<String, String> parameters = new HashMap<String, String>(2);
+			skipWhitespace();
+			while (position < value.length()) {
+				if (!skip(';')) {
+					return null;
+				}
+				String name = token();
+				if (name == null || !skip('=')) {
+					return null;
+				}
+				skipWhitespace();
+				String parameter = position < value.length() && value.charAt(position) == '"'
+						? quotedString() : token();
+				if (parameter == null) {
+					return null;
+				}
+				parameters.put(name.toLowerCase(), parameter);
+				skipWhitespace();
+			}
+			return new ContentType(type, subtype, parameters);
+		}
+		
+		private void skipWhitespace() {
+			while (position < value.length()) {
+				char c = value.charAt(position);
+				if (c != ' ' && c != '\t') {
+					break;
+				}
+				position++;
+			}
+		}
+		
+		private boolean skip(char c) {
+			skipWhitespace();
+			if (position < value.length() && value.charAt(position) == c) {
+				position++;
+				return true;
+			}
+			return false;
+		}
+		
+		/*
+		 * Reads a token. Tokens consisting of digits only are left to the
+		 * JavaCC parser, whose grammar treats them separately.
+		 */
+		private String token() {
+			skipWhitespace();
+			int start = position;
+			boolean digits = true;
+			while (position < value.length() && isTokenChar(value.charAt(position))) {
+				digits &= Character.isDigit(value.charAt(position));
+				position++;
+			}
+			if (position == start || digits) {
+				return null;
+			}
+			return value.substring(start, position);
+		}
+		
+		private String quotedString() {
+			int start = position + 1;
+			int end = value.indexOf('"', start);
+			int escape = value.indexOf('\\', start);
+			if (end == -1 || (escape != -1 && escape < end)) {
+				return null;
+			}
+			position = end + 1;
+			return value.substring(start, end);
+		}
+		
+		private static boolean isTokenChar(char c) {
+			if (c <= 0x20 || c >= 0x7f) {
+				return false;
+			}
+			switch (c) {
+			case '(': case ')': case '<': case '>': case '@': case ',': 
+			case ';': case ':': case '\\': case '"': case '/': case '[': 
+			case ']': case '?': case '=':
+				return false;
+			default:
+				return true;
+			}
+		}
+	}
+	
+	/*
+	 * Access ordered map that evicts the least recently used value 
+	 * beyond MAX_CACHE_SIZE.
+	 */
+	private static class LruCache extends LinkedHashMap<String, ContentType> {
+		private static final long serialVersionUID = 1L;
+		private LruCache() {
+			super(16, 0.75f, true);
+		}
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, ContentType> eldest) {
+			return size() > MAX_CACHE_SIZE;
+		}
+	}
+	
+}
@@ -20,65 +20,57 @@ import java.io.Reader;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
 import java.nio.charset.Charset;
-import java.util.Iterator;
 
-import net.sf.beep4j.Message;
+import net.sf.beep4j.buffer.ReferenceCounted;
 import net.sf.beep4j.internal.util.ByteBufferInputStream;
 import net.sf.beep4j.internal.util.CharSequenceReader;
 
-public class DefaultMessage implements Message {
+public class DefaultMessage extends AbstractMessage implements ReferenceCounted {
 	
 	private final ByteBuffer content;
 	
-	private final MessageHeader header;
+	private final ReferenceCounted owner;
 	
 	private ByteBuffer buffer;
 	
 	public DefaultMessage(MessageHeader header, ByteBuffer content) {
-		this.header = header;
-		this.content = content;
-	}
-		
-	public String getContentType() {
-		return header.getContentType();
-	}
-	
-	protected String getCharsetName() {
-		return header.getCharset();
+		this(header, content, null);
 	}
 	
-	protected String getTransferEncoding() {
-		return header.getTransferEncoding();
+	/**
+	 * Creates a new DefaultMessage whose content is backed by a reference
+	 * counted buffer. The content must not be accessed after the message
+	 * has been released.
+	 * 
+	 * @param header the message header
+	 * @param content the content of the message
+	 * @param owner the owner of the content buffer, may be null
+	 */
+	public DefaultMessage(MessageHeader header, ByteBuffer content, ReferenceCounted owner) {
+		super(header);
+		this.content = content;
+		this.owner = owner;
 	}
 	
-	public Iterator<String> getHeaderNames() {
-		return header.getHeaderNames();
+	public void retain() {
+		if (owner != null) {
+			owner.retain();
+		}
 	}
 	
-	public String getHeader(String name) {
-		return header.getHeader(name);
+	public void release() {
+		if (owner != null) {
+			owner.release();
+		}
 	}
-	
+		
 	public InputStream getInputStream() {
 		ByteBuffer buffer = content.asReadOnlyBuffer();
 		return new ByteBufferInputStream(buffer);
 	}
 	
-	public Reader getReader() {
-		if (getCharsetName() == null) {
-			throw new IllegalStateException("no charset has been defined, "
-					+ "use method with charset parameter");
-		}
-		Charset charset = Charset.forName(getCharsetName());
-		return getReader(charset);
-	}
-	
-	public Reader getReader(String charsetName) {
-		Charset charset = Charset.forName(charsetName);
-		return getReader(charset);
-	}
-	
-	private Reader getReader(Charset charset) {
+	@Override
+	protected Reader getReader(Charset charset) {
 		CharBuffer buffer = charset.decode(content.asReadOnlyBuffer());
 		return new CharSequenceReader(buffer);
 	}
@@ -89,7 +81,7 @@ public class DefaultMessage implements Message {
 	
 	public synchronized ByteBuffer asByteBuffer() {
 		if (buffer == null) {
-			ByteBuffer header = this.header.asByteBuffer();
+			ByteBuffer header = getMessageHeader().asByteBuffer();
 			ByteBuffer content = this.content.asReadOnlyBuffer();
 			buffer = ByteBuffer.allocate(header.remaining() + content.remaining());
 			buffer.put(header);
@@ -99,18 +91,11 @@ public class DefaultMessage implements Message {
 		return buffer.asReadOnlyBuffer();
 	}
 	
-	@Override
-	public boolean equals(Object obj) {
-		if (this == obj) {
-			return true;
-		} else if (obj == null) {
-			return false;
-		} else if (obj instanceof Message) {
-			Message m = (Message) obj;
-			return asByteBuffer().equals(m.asByteBuffer());
-		} else {
-			return false;
-		}
+	public ByteBuffer[] asByteBuffers() {
+		return new ByteBuffer[] {
+				getMessageHeader().asByteBuffer(),
+				content.asReadOnlyBuffer()
+		};
 	}
 	
 }
@@ -22,35 +22,84 @@ import java.io.Writer;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 
+import net.sf.beep4j.HeaderTemplate;
 import net.sf.beep4j.Message;
 import net.sf.beep4j.MessageBuilder;
+import net.sf.beep4j.buffer.BufferAllocator;
+import net.sf.beep4j.buffer.HeapBufferAllocator;
+import net.sf.beep4j.buffer.ManagedBuffer;
+import net.sf.beep4j.internal.util.Assert;
 
 public class DefaultMessageBuilder implements MessageBuilder {
 	
-	private final MessageHeader header;
+	private MessageHeader header;
 	
 	private final ByteArrayOutputStream target;
 	
-	private ByteBuffer buffer;
+	private final BufferAllocator allocator;
+	
+	private ManagedBuffer buffer;
 	
 	private String charset;
 	
 	public DefaultMessageBuilder() {
-		header = new MessageHeader();
-		target = new ByteArrayOutputStream();
+		this(HeapBufferAllocator.INSTANCE);
+	}
+	
+	/**
+	 * Creates a new DefaultMessageBuilder that allocates content buffers 
+	 * from the given allocator. The message built from such a buffer holds
+	 * the only reference to it. Sending the message passes this reference
+	 * to the session, which releases the message once it has been written.
+	 * A message that is not sent has to be released by the application.
+	 * 
+	 * @param allocator the allocator for content buffers
+	 */
+	public DefaultMessageBuilder(BufferAllocator allocator) {
+		this.header = new MessageHeader();
+		this.target = new ByteArrayOutputStream();
+		this.allocator = allocator;
+	}
+	
+	/*
+	 * Replaces a shared header template by a private copy before the
+	 * header is modified.
+	 */
+	private MessageHeader getModifiableHeader() {
+		if (header instanceof SharedMessageHeader) {
+			header = new MessageHeader(header);
+		}
+		return header;
+	}
+	
+	public void setHeaderTemplate(HeaderTemplate template) {
+		Assert.notNull("template", template);
+		if (!(template instanceof SharedMessageHeader)) {
+			throw new IllegalArgumentException("unsupported template type: " 
+					+ template.getClass().getName());
+		}
+		this.header = (SharedMessageHeader) template;
+		this.charset = template.getCharsetName();
+	}
+	
+	public HeaderTemplate createHeaderTemplate() {
+		if (header instanceof SharedMessageHeader) {
+			return (SharedMessageHeader) header;
+		}
+		return new SharedMessageHeader(header);
 	}
 	
 	public void addHeader(String name, String value) {
-		header.addHeader(name, value);
+		getModifiableHeader().addHeader(name, value);
 	}
 	
 	public void setCharsetName(String charset) {
 		this.charset = charset;
-		header.setCharset(charset);
+		getModifiableHeader().setCharset(charset);
 	}
 	
 	public void setContentType(String type, String subtype) {
-		header.setContentType(type, subtype);
+		getModifiableHeader().setContentType(type, subtype);
 	}
 
 	public OutputStream getOutputStream() {
@@ -64,16 +113,17 @@ public class DefaultMessageBuilder implements MessageBuilder {
 	}
 	
 	public ByteBuffer getContentBuffer(int size) {
-		buffer = ByteBuffer.allocate(size);
-		return buffer;
+		buffer = allocator.allocate(size);
+		return buffer.getBuffer();
 	}
 	
 	public Message getMessage() {
 		if (buffer == null) {
 			return new DefaultMessage(header, ByteBuffer.wrap(target.toByteArray()));
 		} else {
-			buffer.flip();
-			return new DefaultMessage(header, buffer.asReadOnlyBuffer());
+			ByteBuffer content = buffer.getBuffer();
+			content.flip();
+			return new DefaultMessage(header, content.asReadOnlyBuffer(), buffer);
 		}
 	}
 
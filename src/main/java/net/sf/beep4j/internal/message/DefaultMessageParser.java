@@ -16,11 +16,11 @@
 package net.sf.beep4j.internal.message;
 
 import java.nio.ByteBuffer;
-import java.nio.CharBuffer;
-import java.nio.charset.Charset;
-import java.util.BitSet;
+import java.util.ArrayList;
+import java.util.List;
 
 import net.sf.beep4j.Message;
+import net.sf.beep4j.buffer.ReferenceCounted;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -29,19 +29,11 @@ public class DefaultMessageParser implements MessageParser {
 
 	private static final Logger LOG = LoggerFactory.getLogger(MessageParser.class);
 	
-	private static final BitSet fieldChars;
-	
-    static {
-        fieldChars = new BitSet();
-        for (int i = 0x21; i <= 0x39; i++) {
-            fieldChars.set(i);
-        }
-        for (int i = 0x3b; i <= 0x7e; i++) {
-            fieldChars.set(i);
-        }
-    }
-
 	public Message parse(ByteBuffer buffer) {
+		return parse(buffer, null);
+	}
+	
+	public Message parse(ByteBuffer buffer, ReferenceCounted owner) {
 		buffer.mark();
 		int pos = 0;
 		byte prev = 0;
@@ -67,66 +59,79 @@ public class DefaultMessageParser implements MessageParser {
 		buffer.reset();
 		buffer.limit(pos);
 
-		MessageHeader header = parseHeader(buffer);
+		MessageHeader header = new MessageHeader(buffer);
 		
-		return new DefaultMessage(header, content);
+		return new DefaultMessage(header, content, owner);
 	}
 	
-    private MessageHeader parseHeader(ByteBuffer buffer) {
-		StringBuffer sb = new StringBuffer();
+	public Message parse(ByteBuffer[] buffers, ReferenceCounted[] owners) {
+		int segment = buffers.length;
+		int pos = -1;
+		byte prev = 0;
+		boolean armed = true;
 		
-		Charset charset = Charset.forName("US-ASCII");
-		CharBuffer chars = charset.decode(buffer);
-		sb.append(chars);
-
-		int start = 0;
-		int pos = 0;
-
-		MessageHeader header = new MessageHeader();
+		search:
+		for (int i = 0; i < buffers.length; i++) {
+			ByteBuffer buffer = buffers[i];
+			for (int j = buffer.position(); j < buffer.limit(); j++) {
+				byte current = buffer.get(j);
+				if (prev == (byte) '\r' && current == (byte) '\n') {
+					if (armed) {
+						segment = i;
+						pos = j + 1;
+						break search;
+					}
+					armed = true;
+				} else if (current != '\r') {
+					armed = false;
+				}
+				prev = current;
+			}
+		}
+		
+		List<ByteBuffer> content = new ArrayList<ByteBuffer>(buffers.length);
+		ByteBuffer headerBuffer;
 		
-		while (pos < sb.length()) {
-			while (pos < sb.length() && sb.charAt(pos) != '\r') {
-				pos++;
+		if (pos == -1) {
+			// no body found, see parse(ByteBuffer, ReferenceCounted)
+			headerBuffer = ByteBuffer.allocate(0);
+		} else if (segment == 0) {
+			headerBuffer = buffers[0].duplicate();
+			headerBuffer.limit(pos);
+		} else {
+			// the header spans several segments, copy it
+			int length = pos - buffers[segment].position();
+			for (int i = 0; i < segment; i++) {
+				length += buffers[i].remaining();
 			}
-			if (pos < sb.length() - 1 && sb.charAt(pos + 1) != '\n') {
-				pos++;
-				continue;
+			headerBuffer = ByteBuffer.allocate(length);
+			for (int i = 0; i < segment; i++) {
+				headerBuffer.put(buffers[i].duplicate());
 			}
-
-			if (pos >= sb.length() - 2 || fieldChars.get(sb.charAt(pos + 2))) {
-
-				/*
-				 * field should be the complete field data excluding the 
-				 * trailing \r\n.
-				 */
-				String field = sb.substring(start, pos);
-				start = pos + 2;
-
-				/*
-				 * Check for a valid field.
-				 */
-				int index = field.indexOf(':');
-				boolean valid = false;
-				if (index != -1 && fieldChars.get(field.charAt(0))) {
-					valid = true;
-					String fieldName = field.substring(0, index).trim();
-					for (int i = 0; i < fieldName.length(); i++) {
-						if (!fieldChars.get(fieldName.charAt(i))) {
-							valid = false;
-							break;
-						}
-					}
-
-					if (valid) {
-						header.addHeader(fieldName, field.substring(index + 1));
-					}
+			ByteBuffer last = buffers[segment].duplicate();
+			last.limit(pos);
+			headerBuffer.put(last);
+			headerBuffer.flip();
+		}
+		
+		if (pos != -1) {
+			ByteBuffer first = buffers[segment].duplicate();
+			first.position(pos);
+			if (first.hasRemaining()) {
+				content.add(first.slice());
+			}
+			for (int i = segment + 1; i < buffers.length; i++) {
+				if (buffers[i].hasRemaining()) {
+					content.add(buffers[i].slice());
 				}
 			}
-
-			pos += 2;
 		}
-
-		return header;
+		
+		LOG.info("message body consists of " + content.size() + " segments");
+		
+		MessageHeader header = new MessageHeader(headerBuffer);
+		
+		return new CompositeMessage(header, content.toArray(new ByteBuffer[content.size()]), owners);
 	}
 
 }
@@ -15,27 +15,60 @@
  */
 package net.sf.beep4j.internal.message;
 
-import java.io.StringReader;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
 import java.nio.charset.Charset;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 
 import net.sf.beep4j.Message;
-import net.sf.beep4j.internal.message.contenttype.ContentTypeParser;
-import net.sf.beep4j.internal.message.contenttype.ParseException;
 
+/**
+ * The MIME header of a message. A MessageHeader is either built up
+ * programmatically or created from the raw header block of a received
+ * message. In the latter case the block is only parsed when the header
+ * is accessed for the first time, the Content-Type value only when the
+ * content type or the charset is requested. An empty header block is
+ * never parsed at all.
+ * 
+ * @author Simon Raess
+ */
 public class MessageHeader {
 	
 	private static final String EOL = "\r\n";
+	
+	private static final Charset ASCII_CHARSET = Charset.forName("US-ASCII");
+	
+	private static final BitSet fieldChars;
+	
+    static {
+        fieldChars = new BitSet();
+        for (int i = 0x21; i <= 0x39; i++) {
+            fieldChars.set(i);
+        }
+        for (int i = 0x3b; i <= 0x7e; i++) {
+            fieldChars.set(i);
+        }
+    }
 
 	private final Map<String,String> header;
 	
 	private ByteBuffer buffer;
 	
+	/**
+	 * The unparsed header block, null if there is nothing to parse.
+	 */
+	private byte[] raw;
+	
+	/**
+	 * The unparsed value of the Content-Type header, null if there
+	 * is nothing to parse.
+	 */
+	private String contentType;
+	
 	private String type = "application";
 	
 	private String subtype = "octet-stream";
@@ -48,9 +81,43 @@ public class MessageHeader {
 		this.header = new HashMap<String,String>();
 	}
 	
+	/**
+	 * Creates a new MessageHeader with the same headers as the given
+	 * MessageHeader.
+	 * 
+	 * @param source the MessageHeader to copy
+	 */
+	protected MessageHeader(MessageHeader source) {
+		source.ensureContentType();
+		synchronized (source) {
+			this.header = new HashMap<String,String>(source.header);
+			this.type = source.type;
+			this.subtype = source.subtype;
+			this.charset = source.charset;
+			this.transferEncoding = source.transferEncoding;
+		}
+	}
+	
+	/**
+	 * Creates a new MessageHeader from the raw header block of a message,
+	 * including the empty line terminating it. The remaining bytes of
+	 * the block are copied, so the buffer can be released afterwards.
+	 * 
+	 * @param block the raw header block
+	 */
+	public MessageHeader(ByteBuffer block) {
+		this();
+		// a block consisting of the empty line only has no fields
+		if (block.remaining() > EOL.length()) {
+			this.raw = new byte[block.remaining()];
+			block.duplicate().get(raw);
+		}
+	}
+	
 	public void addHeader(String name, String value) {
+		ensureParsed();
 		if (Message.CONTENT_TYPE.equalsIgnoreCase(name)) {
-			parseContentType(value.trim());
+			contentType = value.trim();
 		} else if (Message.CONTENT_TRANSFER_ENCODING.equalsIgnoreCase(name)) {
 			parseContentTransferEncoding(value);
 		} else {
@@ -59,52 +126,115 @@ public class MessageHeader {
 	}
 	
 	public void setContentType(String type, String subtype) {
+		ensureContentType();
 		this.type = type.toLowerCase();
 		this.subtype = subtype.toLowerCase();
 	}
 	
 	public String getContentType() {
+		ensureContentType();
 		return type + "/" + subtype;
 	}
 	
 	public void setCharset(String name) {
+		ensureContentType();
 		this.charset = name;
 	}
 	
 	public String getCharset() {
+		ensureContentType();
 		return charset;
 	}
 	
 	public void setTransferEncoding(String transferEncoding) {
+		ensureParsed();
 		this.transferEncoding = transferEncoding.toLowerCase();
 	}
 	
 	public String getTransferEncoding() {
+		ensureParsed();
 		return transferEncoding;
 	}
 	
+	private synchronized void ensureParsed() {
+		if (raw != null) {
+			byte[] block = raw;
+			raw = null;
+			parseFields(ASCII_CHARSET.decode(ByteBuffer.wrap(block)).toString());
+		}
+	}
+	
+	private synchronized void ensureContentType() {
+		ensureParsed();
+		if (contentType != null) {
+			String value = contentType;
+			contentType = null;
+			parseContentType(value);
+		}
+	}
+	
+	private void parseFields(String block) {
+		int start = 0;
+		int pos = 0;
+
+		while (pos < block.length()) {
+			while (pos < block.length() && block.charAt(pos) != '\r') {
+				pos++;
+			}
+			if (pos < block.length() - 1 && block.charAt(pos + 1) != '\n') {
+				pos++;
+				continue;
+			}
+
+			if (pos >= block.length() - 2 || fieldChars.get(block.charAt(pos + 2))) {
+
+				/*
+				 * field should be the complete field data excluding the 
+				 * trailing \r\n.
+				 */
+				String field = block.substring(start, pos);
+				start = pos + 2;
+
+				/*
+				 * Check for a valid field.
+				 */
+				int index = field.indexOf(':');
+				boolean valid = false;
+				if (index != -1 && fieldChars.get(field.charAt(0))) {
+					valid = true;
+					String fieldName = field.substring(0, index).trim();
+					for (int i = 0; i < fieldName.length(); i++) {
+						if (!fieldChars.get(fieldName.charAt(i))) {
+							valid = false;
+							break;
+						}
+					}
+
+					if (valid) {
+						addHeader(fieldName, field.substring(index + 1));
+					}
+				}
+			}
+
+			pos += 2;
+		}
+	}
+	
 	private void parseContentType(String value) {
-		ContentTypeParser parser = new ContentTypeParser(new StringReader(value));
+		ContentType parsed = ContentType.parse(value);
+		this.type = parsed.getType();
+		this.subtype = parsed.getSubtype();
+		this.charset = parsed.getParameter("charset");
 		
-		try {
-			parser.parseAll();
-			this.type = parser.getType().toLowerCase();
-			this.subtype = parser.getSubType().toLowerCase();
-			this.charset = (String) parser.getParameters().get("charset");
-		
-			if (this.charset == null && "application/beep+xml".equals(getContentType())) {
-				this.charset = "UTF-8";
-			} else if (this.charset == null && "text".equals(type)) {
-				this.charset = "US-ASCII";
-			}
-		} catch (ParseException e) {
-			// TODO: proper exception type
-			throw new IllegalArgumentException(e);
+		if (this.charset == null && "application/beep+xml".equals(getContentType())) {
+			this.charset = "UTF-8";
+		} else if (this.charset == null && "text".equals(type)) {
+			this.charset = "US-ASCII";
 		}
 	}
 	
 	private void parseContentTransferEncoding(String value) {
-		value = value.toLowerCase();
+		value = value.trim().toLowerCase();
 		if (Message.BINARY_TRANSFER_ENCODING.equals(value)) {
 			transferEncoding = value;
 		} else if (Message.BASE64_TRANSFER_ENCODING.equals(value)) {
@@ -116,14 +246,17 @@ public class MessageHeader {
 	}
 	
 	public Iterator<String> getHeaderNames() {
+		ensureParsed();
 		return Collections.unmodifiableCollection(header.keySet()).iterator();
 	}
 	
 	public String getHeader(String name) {
+		ensureParsed();
 		return header.get(name);
 	}
 	
 	public synchronized ByteBuffer asByteBuffer() {
+		ensureContentType();
 		if (buffer == null) {
 			StringBuilder builder = new StringBuilder();
 			
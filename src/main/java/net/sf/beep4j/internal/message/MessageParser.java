@@ -18,9 +18,33 @@ package net.sf.beep4j.internal.message;
 import java.nio.ByteBuffer;
 
 import net.sf.beep4j.Message;
+import net.sf.beep4j.buffer.ReferenceCounted;
 
 public interface MessageParser {
 	
 	Message parse(ByteBuffer buffer);
 	
+	/**
+	 * Parses the buffer into a Message. The returned message keeps 
+	 * a reference to the owner of the buffer and releases it when the
+	 * message itself is released.
+	 * 
+	 * @param buffer the buffer to parse
+	 * @param owner the owner of the buffer, may be null
+	 * @return the parsed Message
+	 */
+	Message parse(ByteBuffer buffer, ReferenceCounted owner);
+	
+	/**
+	 * Parses the concatenation of the buffers into a Message without
+	 * copying the content into a single buffer. The returned message
+	 * keeps a reference to the owners and releases them when the 
+	 * message itself is released.
+	 * 
+	 * @param buffers the buffers to parse
+	 * @param owners the owners of the buffers
+	 * @return the parsed Message
+	 */
+	Message parse(ByteBuffer[] buffers, ReferenceCounted[] owners);
+	
 }
@@ -0,0 +1,57 @@
+/*
+ *  Copyright 2006 Simon Raess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.sf.beep4j.internal.message;
+
+import net.sf.beep4j.HeaderTemplate;
+
+/**
+ * Immutable MessageHeader that is shared by many messages. The header 
+ * is encoded when the template is created.
+ * 
+ * @author Simon Raess
+ */
+final class SharedMessageHeader extends MessageHeader implements HeaderTemplate {
+	
+	SharedMessageHeader(MessageHeader source) {
+		super(source);
+		asByteBuffer();
+	}
+	
+	public String getCharsetName() {
+		return getCharset();
+	}
+	
+	@Override
+	public void addHeader(String name, String value) {
+		throw new UnsupportedOperationException("header template is immutable");
+	}
+	
+	@Override
+	public void setContentType(String type, String subtype) {
+		throw new UnsupportedOperationException("header template is immutable");
+	}
+	
+	@Override
+	public void setCharset(String name) {
+		throw new UnsupportedOperationException("header template is immutable");
+	}
+	
+	@Override
+	public void setTransferEncoding(String transferEncoding) {
+		throw new UnsupportedOperationException("header template is immutable");
+	}
+	
+}
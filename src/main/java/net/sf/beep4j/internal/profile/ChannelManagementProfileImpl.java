@@ -21,6 +21,7 @@ import net.sf.beep4j.Channel;
 import net.sf.beep4j.ChannelHandler;
 import net.sf.beep4j.CloseChannelCallback;
 import net.sf.beep4j.CloseChannelRequest;
+import net.sf.beep4j.HeaderTemplate;
 import net.sf.beep4j.Message;
 import net.sf.beep4j.MessageBuilder;
 import net.sf.beep4j.ProfileInfo;
@@ -32,6 +33,7 @@ import net.sf.beep4j.internal.CloseCallback;
 import net.sf.beep4j.internal.DefaultStartSessionRequest;
 import net.sf.beep4j.internal.SessionManager;
 import net.sf.beep4j.internal.StartChannelResponse;
+import net.sf.beep4j.internal.message.DefaultMessageBuilder;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -45,6 +47,11 @@ public class ChannelManagementProfileImpl implements ChannelHandler, ChannelMana
 	
 	private static final Logger LOG = LoggerFactory.getLogger(ChannelManagementProfile.class);
 	
+	/**
+	 * The header shared by all channel management messages.
+	 */
+	private static final HeaderTemplate HEADER = createHeaderTemplate();
+	
 	private SessionManager manager;
 	
 	private Channel channel;
@@ -69,10 +76,16 @@ public class ChannelManagementProfileImpl implements ChannelHandler, ChannelMana
 		return new SaxMessageParser();
 	}
 	
-	protected MessageBuilder createMessageBuilder() {
-		MessageBuilder builder = channel.createMessageBuilder();
+	private static HeaderTemplate createHeaderTemplate() {
+		MessageBuilder builder = new DefaultMessageBuilder();
 		builder.setContentType("application", "beep+xml");
 		builder.setCharsetName("UTF-8");
+		return builder.createHeaderTemplate();
+	}
+	
+	protected MessageBuilder createMessageBuilder() {
+		MessageBuilder builder = channel.createMessageBuilder();
+		builder.setHeaderTemplate(HEADER);
 		return builder;
 	}
 	
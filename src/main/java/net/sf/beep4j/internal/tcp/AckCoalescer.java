@@ -0,0 +1,159 @@
+/*
+ *  Copyright 2006 Simon Raess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.sf.beep4j.internal.tcp;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.beep4j.AckStrategy;
+import net.sf.beep4j.buffer.ReferenceCounted;
+import net.sf.beep4j.internal.util.Assert;
+import net.sf.beep4j.transport.Transport;
+
+/**
+ * Holds back the SEQ frames of the channels of a session according to 
+ * an {@link AckStrategy}. Waiting SEQ frames are written in front of 
+ * the next outbound frame or all together with a single write. Only
+ * the latest SEQ frame of each channel is kept, as it acknowledges 
+ * everything its predecessors did.
+ * 
+ * <p>Writes go to the transport while holding the lock of this object,
+ * so that the SEQ frames of a channel are never reordered. Delayed SEQ
+ * frames are written by the writer executor, the timer only signals 
+ * that they are due.</p>
+ * 
+ * @author Simon Raess
+ */
+final class AckCoalescer {
+	
+	private final Transport transport;
+	
+	private final ScheduledExecutorService timer;
+	
+	private final Executor writer;
+	
+	private volatile AckStrategy strategy = AckStrategy.THRESHOLD;
+	
+	/**
+	 * The thread processing received data, if any.
+	 */
+	private volatile Thread receivingThread;
+	
+	// guarded by this
+	
+	private final Map<Integer, ByteBuffer> pending = new LinkedHashMap<Integer, ByteBuffer>();
+	
+	private boolean flushScheduled;
+	
+	AckCoalescer(Transport transport, ScheduledExecutorService timer, Executor writer) {
+		this.transport = transport;
+		this.timer = timer;
+		this.writer = writer;
+	}
+	
+	void setStrategy(AckStrategy strategy) {
+		Assert.notNull("strategy", strategy);
+		this.strategy = strategy;
+		flush();
+	}
+	
+	void receiveStarted() {
+		receivingThread = Thread.currentThread();
+	}
+	
+	void receiveCompleted() {
+		receivingThread = null;
+		if (strategy.getMode() == AckStrategy.Mode.PIGGYBACK) {
+			flush();
+		}
+	}
+	
+	/**
+	 * Writes or holds back the SEQ frame of the given channel.
+	 * 
+	 * @param channel the channel number
+	 * @param seq the SEQ frame
+	 */
+	synchronized void acknowledge(int channel, ByteBuffer seq) {
+		AckStrategy strategy = this.strategy;
+		pending.remove(channel);
+		if (strategy.getMode() == AckStrategy.Mode.THRESHOLD
+				|| strategy.getMode() == AckStrategy.Mode.PIGGYBACK 
+				&& receivingThread != Thread.currentThread()) {
+			if (pending.isEmpty()) {
+				transport.sendBytes(seq);
+			} else {
+				pending.put(channel, seq);
+				flush();
+			}
+			return;
+		}
+		pending.put(channel, seq);
+		if (strategy.getMode() == AckStrategy.Mode.DELAYED && !flushScheduled) {
+			flushScheduled = true;
+			final Runnable flush = new Runnable() {
+				public void run() {
+					synchronized (AckCoalescer.this) {
+						flushScheduled = false;
+						flush();
+					}
+				}
+			};
+			timer.schedule(new Runnable() {
+				public void run() {
+					writer.execute(flush);
+				}
+			}, strategy.getDelay(), TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	/**
+	 * Writes an outbound frame, preceded by the waiting SEQ frames.
+	 * 
+	 * @param buffers the buffers of the frame
+	 * @param owner the owner of the buffers
+	 */
+	synchronized void send(ByteBuffer[] buffers, ReferenceCounted owner) {
+		if (pending.isEmpty()) {
+			transport.sendBytes(buffers, owner);
+		} else {
+			ByteBuffer[] combined = new ByteBuffer[pending.size() + buffers.length];
+			pending.values().toArray(combined);
+			System.arraycopy(buffers, 0, combined, pending.size(), buffers.length);
+			pending.clear();
+			transport.sendBytes(combined, owner);
+		}
+	}
+	
+	/**
+	 * Writes all waiting SEQ frames with a single write.
+	 */
+	synchronized void flush() {
+		if (pending.isEmpty()) {
+			return;
+		} else if (pending.size() == 1) {
+			transport.sendBytes(pending.values().iterator().next());
+		} else {
+			transport.sendBytes(pending.values().toArray(new ByteBuffer[pending.size()]), null);
+		}
+		pending.clear();
+	}
+	
+}
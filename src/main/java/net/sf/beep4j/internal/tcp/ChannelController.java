@@ -16,6 +16,9 @@
 package net.sf.beep4j.internal.tcp;
 
 import net.sf.beep4j.Message;
+import net.sf.beep4j.ReceiveWindowTuning;
+import net.sf.beep4j.SillyWindowAvoidance;
+import net.sf.beep4j.buffer.BufferAllocator;
 
 /**
  * Controller object that knows about the channel's send and receive
@@ -23,6 +26,10 @@ import net.sf.beep4j.Message;
  * thinks that's necessary as well as to fragment / queue outgoing
  * messages to respect the window of the other peer.
  * 
+ * <p>The send methods and {@link #updateSendWindow(long, int)} are 
+ * invoked by one thread at a time. The receive side methods may be
+ * invoked concurrently to them.</p>
+ * 
  * @author Simon Raess
  */
 public interface ChannelController {
@@ -40,6 +47,15 @@ public interface ChannelController {
 	 */
 	void updateSendWindow(long ackno, int size);
 	
+	/**
+	 * Sets the allocator for the headers of outgoing frames. A header
+	 * buffer is returned to the allocator once its frame has been 
+	 * written.
+	 * 
+	 * @param allocator the allocator for frame headers
+	 */
+	void setBufferAllocator(BufferAllocator allocator);
+	
 	/**
 	 * Send an ANS message with the given messageNumber and answerNumber on
 	 * the channel of this controller.
@@ -84,6 +100,83 @@ public interface ChannelController {
 	 * @param message the Message to be sent
 	 */
 	void sendRPY(int messageNumber, Message message);
+	
+	/**
+	 * Invokes the <var>callback</var> as soon as all the messages sent
+	 * so far through this controller have been passed to the transport.
+	 * If there are no queued frames, the callback is invoked immediately.
+	 * 
+	 * @param callback the callback to be invoked
+	 */
+	void whenSent(Runnable callback);
+	
+	/**
+	 * Gets the total number of payload bytes passed to the transport by
+	 * this controller. The counter does not wrap like sequence numbers do.
+	 * It is advanced before the frame is passed to the transport and may
+	 * be read by any thread.
+	 * 
+	 * @return the number of sent payload bytes
+	 */
+	long getSentBytes();
+	
+	/**
+	 * Determines whether there are queued frames that can be sent, 
+	 * that is, whether {@link #sendQueuedFrames(int)} would make progress.
+	 * 
+	 * @return true iff there are frames that fit into the window
+	 */
+	boolean hasSendableFrames();
+	
+	/**
+	 * Sends queued frames that fit into the window of the remote peer,
+	 * but at most <var>maxBytes</var> payload bytes. Frames are split
+	 * as necessary.
+	 * 
+	 * @param maxBytes the maximum number of payload bytes to send
+	 * @return the number of sent payload bytes
+	 */
+	int sendQueuedFrames(int maxBytes);
+	
+	/**
+	 * Sets the maximum payload size of outgoing frames. Larger messages
+	 * are segmented into several frames, independent of the window of
+	 * the remote peer.
+	 * 
+	 * @param maxFrameSize the maximum payload size of a frame
+	 */
+	void setMaxFrameSize(int maxFrameSize);
+	
+	/**
+	 * Sets the policy that avoids splitting messages into tiny frames 
+	 * when the window of the remote peer is nearly full.
+	 * 
+	 * @param policy the silly window avoidance policy
+	 */
+	void setSillyWindowAvoidance(SillyWindowAvoidance policy);
+	
+	/**
+	 * Gets the time until data that is held back by the silly window 
+	 * avoidance policy is sent anyway.
+	 * 
+	 * @return the delay in milliseconds or -1 if no data is held back
+	 */
+	long getHoldBackDelay();
+	
+	/**
+	 * Enables or disables the autotuning of the receive window of this
+	 * channel.
+	 * 
+	 * @param tuning the bounds of the autotuning
+	 * @param budget the receive window budget of the session, may be null
+	 */
+	void setReceiveWindowTuning(ReceiveWindowTuning tuning, ReceiveBudget budget);
+	
+	/**
+	 * Notifies the controller that its channel has been closed. The
+	 * controller releases the window space it took from the session.
+	 */
+	void channelClosed();
 
 	/**
 	 * <p>Validation of the sequence number according to the BEEP specification section
@@ -105,5 +198,31 @@ public interface ChannelController {
 	 * @param size the size of the frame
 	 */
 	void frameReceived(long seqno, int size);
+	
+	/**
+	 * Determines whether the window is only opened when the application
+	 * consumed the received data, in which case the consumption must be
+	 * reported through {@link #frameConsumed(int)}.
+	 * 
+	 * @return true iff the window is opened on consumption
+	 */
+	boolean isConsumptionDriven();
+	
+	/**
+	 * Sets the maximum number of received bytes the application may hold
+	 * without having consumed them. A limit of 0 opens the window as soon
+	 * as a frame has been received.
+	 * 
+	 * @param limit the maximum number of unconsumed bytes or 0
+	 */
+	void setConsumptionLimit(int limit);
+	
+	/**
+	 * Notifies the controller that the application consumed a received 
+	 * frame of the given size.
+	 * 
+	 * @param size the payload size of the frame
+	 */
+	void frameConsumed(int size);
 
 }
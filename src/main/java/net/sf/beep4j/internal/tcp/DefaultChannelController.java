@@ -16,11 +16,15 @@
 package net.sf.beep4j.internal.tcp;
 
 import java.nio.ByteBuffer;
-import java.nio.charset.Charset;
 import java.util.LinkedList;
 
 import net.sf.beep4j.Message;
+import net.sf.beep4j.ReceiveWindowTuning;
+import net.sf.beep4j.SillyWindowAvoidance;
 import net.sf.beep4j.ProtocolException;
+import net.sf.beep4j.buffer.BufferAllocator;
+import net.sf.beep4j.buffer.HeapBufferAllocator;
+import net.sf.beep4j.buffer.ReferenceCounted;
 import net.sf.beep4j.internal.DataHeader;
 import net.sf.beep4j.internal.Frame;
 import net.sf.beep4j.internal.MessageType;
@@ -35,10 +39,14 @@ public class DefaultChannelController implements ChannelController {
 	
 	private static final Logger LOG = LoggerFactory.getLogger(ChannelController.class);
 	
-	private static final Charset ASCII_CHARSET = Charset.forName("US-ASCII");
-
 	public static final int MINIMUM_FRAME_SIZE = 1;
 	
+	/**
+	 * The maximum frame size used unless configured otherwise. Frames
+	 * are then only limited by the window of the remote peer.
+	 */
+	public static final int UNLIMITED_FRAME_SIZE = Integer.MAX_VALUE;
+	
 	private final int channel;
 	
 	private final SlidingWindow window;
@@ -47,75 +55,174 @@ public class DefaultChannelController implements ChannelController {
 	
 	private final LinkedList<Frame> frames = new LinkedList<Frame>();
 	
+	private final LinkedList<SentCallback> sentCallbacks = new LinkedList<SentCallback>();
+	
+	/**
+	 * Total number of payload bytes enqueued respectively passed to the
+	 * transport. Unlike sequence numbers these counters do not wrap.
+	 */
+	private long enqueuedBytes;
+	
+	private volatile long sentBytes;
+	
 	private final Transport transport;
 	
+	private volatile BufferAllocator allocator = HeapBufferAllocator.INSTANCE;
+	
+	private final boolean scheduled;
+	
 	private long seqno;
 
 	private int advertisedSize;
 	
+	private volatile int maxFrameSize = UNLIMITED_FRAME_SIZE;
+	
+	private volatile SillyWindowAvoidance sillyWindowAvoidance = SillyWindowAvoidance.DISABLED;
+	
+	/**
+	 * The time in nanoseconds since when data is held back or -1.
+	 */
+	private long heldSince = -1;
+	
+	// receive window autotuning, guarded by this
+	
+	private ReceiveWindowTuning receiveWindowTuning = ReceiveWindowTuning.DISABLED;
+	
+	private ReceiveBudget receiveBudget;
+	
+	private final int minimumWindowSize;
+	
+	/**
+	 * The time in nanoseconds the last SEQ frame was sent or -1.
+	 */
+	private long seqSentAt = -1;
+	
+	/**
+	 * The number of bytes received since the last SEQ frame was sent.
+	 */
+	private long receivedSinceSeq;
+	
+	/**
+	 * The number of bytes the remote peer could send before the last SEQ
+	 * frame. Receiving more than that completes a round trip sample.
+	 */
+	private long roundTripMark = -1;
+	
+	/**
+	 * Smoothed round trip time in nanoseconds or -1.
+	 */
+	private long roundTripTime = -1;
+	
+	// consumption driven flow control, guarded by this
+	
+	/**
+	 * The maximum number of received bytes that have not been consumed
+	 * by the application or 0 if the window is opened on receipt.
+	 */
+	private int consumptionLimit;
+	
+	/**
+	 * A limit set by the application that takes effect with the next
+	 * frame, see {@link #checkFrame(long, int)}.
+	 */
+	private int requestedConsumptionLimit;
+	
+	/**
+	 * The sequence number up to which the application consumed the
+	 * received data.
+	 */
+	private long consumedPosition;
+	
 	public DefaultChannelController(Transport transport, int channel, int bufferSize) {
 	    this(transport, channel, bufferSize, bufferSize);
 	}
 	
 	public DefaultChannelController(Transport transport, int channel, int sendBufferSize, int receiveBufferSize) {
+		this(transport, channel, sendBufferSize, receiveBufferSize, false);
+	}
+	
+	/**
+	 * Creates a new DefaultChannelController. If <var>scheduled</var> is true,
+	 * the controller only queues outgoing frames. They are sent when 
+	 * {@link #sendQueuedFrames(int)} is invoked, which allows a scheduler to
+	 * interleave the frames of several channels.
+	 * 
+	 * @param transport the Transport
+	 * @param channel the channel number
+	 * @param sendBufferSize the initial window size of the remote peer
+	 * @param receiveBufferSize the local window size
+	 * @param scheduled whether the frames are sent by a scheduler
+	 */
+	public DefaultChannelController(Transport transport, int channel, int sendBufferSize, 
+			int receiveBufferSize, boolean scheduled) {
 		Assert.notNull("transport", transport);
 		this.transport = transport;
 		this.channel = channel;
+		this.scheduled = scheduled;
 		this.senderWindow = new SlidingWindow(sendBufferSize);
 		this.window = new SlidingWindow(receiveBufferSize);
+		this.minimumWindowSize = receiveBufferSize;
 		this.advertisedSize = sendBufferSize;
 	}
 	
+	public void setBufferAllocator(BufferAllocator allocator) {
+		Assert.notNull("allocator", allocator);
+		this.allocator = allocator;
+	}
+	
 	public void updateSendWindow(long ackno, int size) {
 		LOG.info("update send window: ackno=" + ackno + ",window=" + size);
 		senderWindow.slide(ackno, size);
-		sendFrames(transport);
+		flush();
 	}
 	
 	public void sendANS(int messageNumber, int answerNumber, Message message) {
 		LOG.info("sendANS to message " + messageNumber + " with answer number " 
 				+ answerNumber + " on channel " + channel);
-		ByteBuffer buffer = message.asByteBuffer();
+		ByteBuffer[] buffers = message.asByteBuffers();
+		int size = remaining(buffers);
 		DataHeader header = new ANSHeader(
 				channel, messageNumber, false, 
 				seqno, 
-				buffer.remaining(), answerNumber);
+				size, answerNumber);
 
-		seqno += buffer.remaining();
+		seqno += size;
 		
-		Frame frame = new Frame(header, buffer);
+		Frame frame = new Frame(header, buffers, owner(message));
 		enqueueFrame(frame);
-		sendFrames(transport);
+		flush();
 	}
 	
 	public void sendERR(int messageNumber, Message message) {
 		LOG.info("sendERR to message " + messageNumber + " on channel " + channel);
-		ByteBuffer buffer = message.asByteBuffer();
+		ByteBuffer[] buffers = message.asByteBuffers();
+		int size = remaining(buffers);
 		DataHeader header = new DataHeader(
 				MessageType.ERR,
 				channel, messageNumber, false, 
-				seqno, buffer.remaining());
+				seqno, size);
 		
-		seqno += buffer.remaining();
+		seqno += size;
 		
-		Frame frame = new Frame(header, buffer);
+		Frame frame = new Frame(header, buffers, owner(message));
 		enqueueFrame(frame);
-		sendFrames(transport);
+		flush();
 	}
 	
 	public void sendMSG(int messageNumber, Message message) {
 		LOG.info("sendMSG with message number " + messageNumber + " on channel " + channel);
-		ByteBuffer buffer = message.asByteBuffer();
+		ByteBuffer[] buffers = message.asByteBuffers();
+		int size = remaining(buffers);
 		DataHeader header = new DataHeader(
 				MessageType.MSG,
 				channel, messageNumber, false, 
-				seqno, buffer.remaining());
+				seqno, size);
 		
-		seqno += buffer.remaining();
+		seqno += size;
 		
-		Frame frame = new Frame(header, buffer);
+		Frame frame = new Frame(header, buffers, owner(message));
 		enqueueFrame(frame);
-		sendFrames(transport);
+		flush();
 	}
 	
 	public void sendNUL(int messageNumber) {
@@ -127,25 +234,65 @@ public class DefaultChannelController implements ChannelController {
 		
 		Frame frame = new Frame(header, ByteBuffer.allocate(0));
 		enqueueFrame(frame);
-		sendFrames(transport);
+		flush();
 	}
 	
 	public void sendRPY(int messageNumber, Message message) {
 		LOG.info("sendRPY to message " + messageNumber + " on channel " + channel);
-		ByteBuffer buffer = message.asByteBuffer();
+		ByteBuffer[] buffers = message.asByteBuffers();
+		int size = remaining(buffers);
 		DataHeader header = new DataHeader(
 				MessageType.RPY,
 				channel, messageNumber, false, 
-				seqno, buffer.remaining());
+				seqno, size);
 		
-		seqno += buffer.remaining();
+		seqno += size;
 		
-		Frame frame = new Frame(header, buffer);
+		Frame frame = new Frame(header, buffers, owner(message));
 		enqueueFrame(frame);
-		int count = sendFrames(transport);
+		int count = flush();
 		LOG.info("sendRPY caused " + count + " frames to be sent");
 	}
 	
+	public void whenSent(Runnable callback) {
+		Assert.notNull("callback", callback);
+		if (sentBytes >= enqueuedBytes) {
+			callback.run();
+		} else {
+			sentCallbacks.addLast(new SentCallback(enqueuedBytes, callback));
+		}
+	}
+	
+	public long getSentBytes() {
+		return sentBytes;
+	}
+	
+	public void setMaxFrameSize(int maxFrameSize) {
+		if (maxFrameSize < MINIMUM_FRAME_SIZE) {
+			throw new IllegalArgumentException("maximum frame size must be at least " 
+					+ MINIMUM_FRAME_SIZE + ": " + maxFrameSize);
+		}
+		this.maxFrameSize = maxFrameSize;
+	}
+	
+	/**
+	 * Sets the silly window avoidance policy. The policy only applies to
+	 * scheduled controllers, an unscheduled controller has nobody to send
+	 * the held back data once the maximum delay expired.
+	 */
+	public void setSillyWindowAvoidance(SillyWindowAvoidance policy) {
+		Assert.notNull("policy", policy);
+		this.sillyWindowAvoidance = policy;
+	}
+	
+	public long getHoldBackDelay() {
+		if (heldSince < 0) {
+			return -1;
+		}
+		long elapsed = (System.nanoTime() - heldSince) / 1000000;
+		return Math.max(0, sillyWindowAvoidance.getMaxDelay() - elapsed);
+	}
+	
 	long id;
 	
 	public synchronized void checkFrame(long seqno, int payloadSize) {
@@ -157,9 +304,14 @@ public class DefaultChannelController implements ChannelController {
 			throw new ProtocolException("message larger than remaining window size (remaining="
 					+ window.remaining() + ",payload size=" + payloadSize + ")");
 		}
+		// frames already being parsed are not tracked, enable the limit
+		// only once nothing is in between
+		if (consumptionLimit == 0 && requestedConsumptionLimit > 0) {
+			consumptionLimit = requestedConsumptionLimit;
+		}
 	}
 	
-	public void frameReceived(long seqno, int size) {
+	public synchronized void frameReceived(long seqno, int size) {
 		if (seqno != window.getPosition()) {
 			throw new IllegalStateException("sequence number " + seqno + " does not "
 					+ "match expected sequence number " + window.getPosition());
@@ -168,71 +320,323 @@ public class DefaultChannelController implements ChannelController {
 		LOG.info("frameReceived on channel " + channel + ": seqno=" + seqno + ",size=" + size + ",advertised=" + advertisedSize);
 		window.moveBy(size);
 		LOG.info("receiver window = " + window);
+		
+		long now = nanoTime();
+		sampleRoundTrip(size, now);
+		
+		int windowSize = window.getWindowSize();
+		if (consumptionLimit > 0) {
+			// the window is opened as the application consumes the data
+			if (advertisedSize != windowSize) {
+				advertise(consumedPosition, now);
+			}
+			return;
+		}
+		consumedPosition = window.getPosition();
 
 		// If we haven't advertised to our peer that we have a non-standard window size,
 		// do so at the first opportunity otherwise we will deadlock, because the peer
         // has filled up the 4K window, but we aren't going to respond until more data
         // is written.  Otherwise, make sure we only advertise when the window
         // has moved by more than 1/2 of the window size.
-		int windowSize = window.getWindowSize();
 		if (advertisedSize != windowSize ||
 				window.remaining() <= 0.5 * windowSize) {
-			long ackno = seqno + size;
-			advertisedSize = windowSize;
-			window.slide(ackno, windowSize);
-			LOG.info("sending SEQ frame on channel " + channel + ": ackno=" + ackno + ",window=" + windowSize);
-			LOG.info("receiver window = " + window);
-			transport.sendBytes(createSEQFrame(channel, ackno, windowSize));
+			advertise(window.getPosition(), now);
+		}
+	}
+	
+	public synchronized boolean isConsumptionDriven() {
+		return consumptionLimit > 0;
+	}
+	
+	/**
+	 * Sets the maximum number of received bytes the application may hold
+	 * without having consumed them. With a limit the window is only
+	 * opened when the application consumes received data, the window is
+	 * never larger than the limit. A limit of 0 opens the window as soon
+	 * as data is received.
+	 * 
+	 * @param limit the maximum number of unconsumed bytes or 0
+	 */
+	public synchronized void setConsumptionLimit(int limit) {
+		if (limit < 0) {
+			throw new IllegalArgumentException("consumption limit must not be negative: " + limit);
+		}
+		requestedConsumptionLimit = limit;
+		if (limit > 0 && consumptionLimit > 0) {
+			consumptionLimit = limit;
+		} else if (limit == 0 && consumptionLimit > 0) {
+			// return the credit of everything received so far
+			consumptionLimit = 0;
+			consumedPosition = window.getPosition();
+			if (window.remaining() <= 0.5 * window.getWindowSize()) {
+				advertise(consumedPosition, nanoTime());
+			}
+		}
+	}
+	
+	public synchronized void frameConsumed(int size) {
+		if (consumptionLimit == 0) {
+			// the credit has already been returned
+			return;
+		}
+		consumedPosition = (consumedPosition + size) % (SlidingWindow.MAX + 1);
+		long consumed = distance(window.getStart(), consumedPosition);
+		if (consumed >= 0.5 * Math.min(window.getWindowSize(), consumptionLimit)) {
+			advertise(consumedPosition, nanoTime());
+		}
+	}
+	
+	/*
+	 * Slides the receive window to the given acknowledged position and 
+	 * sends a SEQ frame.
+	 */
+	private void advertise(long ackno, long now) {
+		int remaining = (int) distance(ackno, window.getEnd());
+		int unreceived = window.remaining();
+		int windowSize = nextWindowSize(window.getWindowSize(), remaining, now);
+		advertisedSize = windowSize;
+		window.slide(ackno, windowSize);
+		seqSentAt = now;
+		receivedSinceSeq = 0;
+		roundTripMark = unreceived;
+		LOG.info("sending SEQ frame on channel " + channel + ": ackno=" + ackno + ",window=" + windowSize);
+		LOG.info("receiver window = " + window);
+		transport.sendBytes(createSEQFrame(channel, ackno, windowSize));
+	}
+	
+	private static long distance(long from, long to) {
+		return (to - from + SlidingWindow.MAX + 1) % (SlidingWindow.MAX + 1);
+	}
+	
+	/**
+	 * Enables or disables the autotuning of the receive window. The window
+	 * space beyond the configured receive buffer size is taken from the
+	 * given budget, which is shared by the channels of a session.
+	 * 
+	 * @param tuning the bounds of the autotuning
+	 * @param budget the budget of the session, may be null
+	 */
+	public synchronized void setReceiveWindowTuning(ReceiveWindowTuning tuning, ReceiveBudget budget) {
+		Assert.notNull("tuning", tuning);
+		this.receiveWindowTuning = tuning;
+		this.receiveBudget = budget;
+	}
+	
+	public synchronized int getReceiveWindowSize() {
+		return window.getWindowSize();
+	}
+	
+	public synchronized void channelClosed() {
+		int grown = window.getWindowSize() - minimumWindowSize;
+		if (receiveBudget != null && grown > 0) {
+			receiveBudget.release(grown);
+		}
+		receiveBudget = null;
+	}
+	
+	/*
+	 * The remote peer cannot send beyond the end of the window before 
+	 * it received our last SEQ frame. The first frame that does so thus 
+	 * arrives at least one round trip after the SEQ frame was sent.
+	 */
+	private void sampleRoundTrip(int size, long now) {
+		receivedSinceSeq += size;
+		if (roundTripMark >= 0 && receivedSinceSeq > roundTripMark) {
+			long sample = now - seqSentAt;
+			if (roundTripTime < 0 || sample < roundTripTime) {
+				roundTripTime = sample;
+			} else {
+				roundTripTime = (7 * roundTripTime + sample) / 8;
+			}
+			roundTripMark = -1;
+		}
+	}
+	
+	/*
+	 * Computes the window to advertise. With autotuning it is twice the
+	 * amount of data the peer sends per round trip, bounded by the tuning
+	 * limits and the session budget, and at most doubles per SEQ frame.
+	 * The window never exceeds the consumption limit and its right edge
+	 * never moves to the left.
+	 */
+	private int nextWindowSize(int windowSize, int remaining, long now) {
+		int newSize = tuneWindow(windowSize, now);
+		if (consumptionLimit > 0) {
+			newSize = Math.min(newSize, consumptionLimit);
+		}
+		newSize = Math.max(newSize, remaining);
+		
+		if (receiveBudget != null) {
+			int grown = Math.max(0, windowSize - minimumWindowSize);
+			int growth = Math.max(0, newSize - minimumWindowSize) - grown;
+			if (growth > 0) {
+				newSize -= growth - receiveBudget.acquire(growth);
+			} else if (growth < 0) {
+				receiveBudget.release(-growth);
+			}
+		}
+		if (newSize != windowSize) {
+			LOG.info("changed receive window of channel " + channel + " from " + windowSize 
+					+ " to " + newSize + " (rtt=" + roundTripTime + "ns)");
+		}
+		return newSize;
+	}
+	
+	private int tuneWindow(int windowSize, long now) {
+		ReceiveWindowTuning tuning = receiveWindowTuning;
+		long elapsed = now - seqSentAt;
+		if (!tuning.isEnabled() || seqSentAt < 0 || roundTripTime <= 0 || elapsed <= 0) {
+			return windowSize;
+		}
+		long target = (long) (2.0 * receivedSinceSeq * roundTripTime / elapsed);
+		target = Math.min(target, 2L * windowSize);
+		target = Math.min(target, tuning.getMaxWindowSize());
+		return (int) Math.max(target, minimumWindowSize);
+	}
+	
+	long nanoTime() {
+		return System.nanoTime();
+	}
+	
+	private static int remaining(ByteBuffer[] buffers) {
+		int size = 0;
+		for (ByteBuffer buffer : buffers) {
+			size += buffer.remaining();
 		}
+		return size;
+	}
+	
+	/*
+	 * The reference passed with the message is taken over by the frame, 
+	 * which is released once it has been written.
+	 */
+	private static ReferenceCounted owner(Message message) {
+		return message instanceof ReferenceCounted ? (ReferenceCounted) message : null;
 	}
 	
 	private ByteBuffer createSEQFrame(int channel, long ackno, int window) {
-		StringBuilder buf = new StringBuilder(SEQHeader.TYPE);
-		buf.append(" ");
-		buf.append(channel);
-		buf.append(" ");
-		buf.append(ackno);
-		buf.append(" ");
-		buf.append(window);
-		buf.append("\r\n");
-		return ASCII_CHARSET.encode(buf.toString());
+		return new SEQHeader(channel, ackno, window).asByteBuffer();
 	}
 
+	/*
+	 * Sends the queued frames right away unless the frames are scheduled
+	 * by the owner of this controller.
+	 */
+	private int flush() {
+		return scheduled ? 0 : sendFrames(transport);
+	}
+	
 	private void enqueueFrame(Frame frame) {
+		enqueuedBytes += frame.getSize();
 		frames.addLast(frame);
 	}
 	
+	public int sendQueuedFrames(int maxBytes) {
+		int sent = 0;
+		int size;
+		
+		while ((size = sendFrame(transport, maxBytes - sent)) >= 0) {
+			sent += size;
+		}
+		
+		fireSentCallbacks();
+		return sent;
+	}
+	
+	public boolean hasSendableFrames() {
+		if (frames.isEmpty()) {
+			return false;
+		}
+		int remaining = senderWindow.remaining();
+		return frames.getFirst().getSize() == 0 
+				|| remaining >= MINIMUM_FRAME_SIZE && !holdBack(remaining);
+	}
+	
 	protected int sendFrames(Transport transport) {
 		int count = 0;
-		Frame frame;
 		
-		while ((frame = nextFrame()) != null) {
-			LOG.info("send frame " + frame.getHeader());
-			senderWindow.moveBy(frame.getSize());
-			frame.send(transport);
-			LOG.info("sender window = " + senderWindow);
+		while (sendFrame(transport, Integer.MAX_VALUE) >= 0) {
 			count++;
 		}
 		
+		fireSentCallbacks();
 		return count;
 	}
 	
-	private Frame nextFrame() {
+	/*
+	 * Sends the next frame, split so that it fits into the window and 
+	 * does not exceed the given limit nor the maximum frame size. Returns
+	 * the size of the sent frame or -1 if no frame could be sent.
+	 */
+	private int sendFrame(Transport transport, int limit) {
+		int remaining = senderWindow.remaining();
+		if (holdBack(remaining)) {
+			return -1;
+		}
+		Frame frame = nextFrame(Math.min(Math.min(limit, maxFrameSize), remaining));
+		if (frame == null) {
+			return -1;
+		}
+		heldSince = -1;
+		LOG.info("send frame " + frame.getHeader());
+		senderWindow.moveBy(frame.getSize());
+		sentBytes += frame.getSize();
+		frame.send(transport, allocator);
+		LOG.info("sender window = " + senderWindow);
+		return frame.getSize();
+	}
+	
+	/*
+	 * Determines whether the next frame must be held back because only a
+	 * small part of the remote window is available. Starts the delay 
+	 * the first time data is held back.
+	 */
+	private boolean holdBack(int remaining) {
+		SillyWindowAvoidance policy = sillyWindowAvoidance;
+		if (!scheduled || !policy.isEnabled() || frames.isEmpty()) {
+			return false;
+		}
+		if (remaining < MINIMUM_FRAME_SIZE) {
+			// the window is closed, the next SEQ frame triggers sending
+			heldSince = -1;
+			return false;
+		}
+		int wanted = Math.min(frames.getFirst().getSize(), maxFrameSize);
+		int threshold = policy.getThreshold(senderWindow.getWindowSize(), maxFrameSize);
+		if (wanted <= remaining || remaining >= threshold) {
+			heldSince = -1;
+			return false;
+		}
+		long now = System.nanoTime();
+		if (heldSince < 0) {
+			heldSince = now;
+		}
+		return (now - heldSince) / 1000000 < policy.getMaxDelay();
+	}
+	
+	private void fireSentCallbacks() {
+		while (!sentCallbacks.isEmpty() && sentCallbacks.getFirst().isSent()) {
+			sentCallbacks.removeFirst().callback.run();
+		}
+	}
+	
+	private Frame nextFrame(int available) {
 		if (frames.isEmpty()) {
 			return null;
 		} else {
 			Frame frame = frames.removeFirst();
 			
-			if (frame.getSize() <= senderWindow.remaining()) {
+			if (frame.getSize() <= available) {
 				LOG.info("sending frame unchanged (channel=" + channel + ")");
 				if (frames.isEmpty()) {
 					LOG.info("sending last frame in buffer (channel=" + channel + ")");
 				}
 				return frame;
-			} else if (senderWindow.remaining() >= MINIMUM_FRAME_SIZE) {
-				LOG.info("split frame at position " + senderWindow.remaining() 
+			} else if (available >= MINIMUM_FRAME_SIZE) {
+				LOG.info("split frame at position " + available 
 						+ " (channel=" + channel + ")");
-				Frame[] split = frame.split(senderWindow.remaining());
+				Frame[] split = frame.split(available);
 				frames.addFirst(split[1]);
 				return split[0];
 			} else {
@@ -242,4 +646,16 @@ public class DefaultChannelController implements ChannelController {
 		}
 	}
 	
+	private class SentCallback {
+		private final long position;
+		private final Runnable callback;
+		private SentCallback(long position, Runnable callback) {
+			this.position = position;
+			this.callback = callback;
+		}
+		private boolean isSent() {
+			return sentBytes >= position;
+		}
+	}
+	
 }
@@ -0,0 +1,63 @@
+/*
+ *  Copyright 2006 Simon Raess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.sf.beep4j.internal.tcp;
+
+/**
+ * Accounts for the receive window space that autotuning grants to the
+ * channels of a session beyond their configured receive buffer size.
+ * 
+ * @author Simon Raess
+ */
+public final class ReceiveBudget {
+	
+	private long limit;
+	
+	private long allocated;
+	
+	public ReceiveBudget(long limit) {
+		this.limit = limit;
+	}
+	
+	public synchronized void setLimit(long limit) {
+		this.limit = limit;
+	}
+	
+	public synchronized long getAllocated() {
+		return allocated;
+	}
+	
+	/**
+	 * Acquires up to <var>wanted</var> bytes of the budget.
+	 * 
+	 * @param wanted the number of bytes to acquire
+	 * @return the number of bytes acquired
+	 */
+	public synchronized int acquire(int wanted) {
+		int granted = (int) Math.min(wanted, Math.max(0, limit - allocated));
+		allocated += granted;
+		return granted;
+	}
+	
+	/**
+	 * Returns previously acquired bytes to the budget.
+	 * 
+	 * @param size the number of bytes
+	 */
+	public synchronized void release(int size) {
+		allocated -= size;
+	}
+	
+}
@@ -15,6 +15,8 @@
  */
 package net.sf.beep4j.internal.tcp;
 
+import java.nio.ByteBuffer;
+
 import net.sf.beep4j.ProtocolException;
 import net.sf.beep4j.internal.util.ByteUtil;
 
@@ -28,6 +30,8 @@ public class SEQHeader {
 	
 	public static final String TYPE = "SEQ";
 	
+	private static final byte[] TYPE_BYTES = ByteUtil.toASCII(TYPE);
+	
 	private int channel;
 	
 	private long acknowledgeNumber;
@@ -52,6 +56,42 @@ public class SEQHeader {
 		this.windowSize = ByteUtil.parseUnsignedInt("window size", tokens[3]);
 	}
 	
+	/**
+	 * Determines whether the header line in the passed in buffer is a SEQ
+	 * header. The position of the buffer is not modified.
+	 * 
+	 * @param header the header line without the terminating CRLF
+	 * @return true iff the first token of the header is SEQ
+	 */
+	public static boolean isSEQHeader(ByteBuffer header) {
+		return ByteUtil.startsWithToken(header, TYPE_BYTES);
+	}
+	
+	/**
+	 * Parses the header line contained in the passed in buffer directly 
+	 * from its bytes. The position of the buffer is advanced to the limit.
+	 * 
+	 * @param header the header line without the terminating CRLF
+	 * @return the parsed SEQ header
+	 */
+	public static SEQHeader parseHeader(ByteBuffer header) {
+		if (!isSEQHeader(header)) {
+			throw new ProtocolException("unkown header type: " + ByteUtil.toASCIIString(header));
+		}
+		if (ByteUtil.countTokens(header) != 4) {
+			throw new ProtocolException("header must consist of 4 tokens");
+		}
+		
+		// skip the type and the following space
+		header.position(header.position() + TYPE_BYTES.length + 1);
+		
+		int channel = ByteUtil.parseUnsignedInt("channel", header);
+		long acknowledgeNumber = ByteUtil.parseUnsignedLong("acknowledge number", header);
+		int windowSize = ByteUtil.parseUnsignedInt("window size", header);
+		
+		return new SEQHeader(channel, acknowledgeNumber, windowSize);
+	}
+	
 	public final String getType() {
 		return TYPE;
 	}
@@ -72,6 +112,51 @@ public class SEQHeader {
 		return windowSize;
 	}
 	
+	/**
+	 * Converts the header into a ByteBuffer.
+	 * 
+	 * @return the converted ByteBuffer
+	 */
+	public ByteBuffer asByteBuffer() {
+		ByteBuffer buffer = ByteBuffer.allocate(getEncodedLength());
+		writeTo(buffer);
+		buffer.flip();
+		return buffer;
+	}
+	
+	/**
+	 * Gets the number of bytes needed to encode this header including
+	 * the terminating CRLF.
+	 * 
+	 * @return the encoded length of the header
+	 */
+	public int getEncodedLength() {
+		return TYPE_BYTES.length
+		     + 1 + ByteUtil.digits(channel)
+		     + 1 + ByteUtil.digits(acknowledgeNumber)
+		     + 1 + ByteUtil.digits(windowSize)
+		     + 2;
+	}
+	
+	/**
+	 * Writes the ASCII encoded header including the terminating CRLF
+	 * at the current position of the passed in buffer. The buffer must
+	 * have at least {@link #getEncodedLength()} bytes remaining.
+	 * 
+	 * @param buffer the buffer to write to
+	 */
+	public void writeTo(ByteBuffer buffer) {
+		buffer.put(TYPE_BYTES);
+		buffer.put((byte) ' ');
+		ByteUtil.putUnsigned(buffer, channel);
+		buffer.put((byte) ' ');
+		ByteUtil.putUnsigned(buffer, acknowledgeNumber);
+		buffer.put((byte) ' ');
+		ByteUtil.putUnsigned(buffer, windowSize);
+		buffer.put((byte) '\r');
+		buffer.put((byte) '\n');
+	}
+	
 	public String[] getTokens() {
 		return new String[] {
 			"SEQ", "" + getChannel(), "" + getAcknowledgeNumber(), "" + getWindowSize()
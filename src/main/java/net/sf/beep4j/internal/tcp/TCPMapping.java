@@ -15,29 +15,193 @@
  */
 package net.sf.beep4j.internal.tcp;
 
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
+import net.sf.beep4j.AckStrategy;
 import net.sf.beep4j.Message;
 import net.sf.beep4j.ProtocolException;
+import net.sf.beep4j.ReceiveWindowTuning;
+import net.sf.beep4j.SillyWindowAvoidance;
+import net.sf.beep4j.WriteLimits;
+import net.sf.beep4j.buffer.BufferAllocator;
+import net.sf.beep4j.buffer.HeapBufferAllocator;
+import net.sf.beep4j.buffer.ReferenceCounted;
 import net.sf.beep4j.internal.TransportMapping;
 import net.sf.beep4j.internal.util.Assert;
+import net.sf.beep4j.internal.util.ByteUtil;
+import net.sf.beep4j.internal.util.MpscRingBuffer;
 import net.sf.beep4j.transport.Transport;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * TransportMapping for TCP (RFC 3081). Outgoing messages and received
+ * SEQ frames are turned into commands that are passed through a 
+ * lock-free ring buffer. The thread that publishes a command drains 
+ * the ring buffer unless another thread is already doing so. The 
+ * ChannelControllers are therefore only ever used by a single writer
+ * and sending threads never block on each other.
+ * 
+ * <p>The mapping keeps track of the outbound bytes that have been 
+ * submitted but not yet been passed to the transport and derives the
+ * writability of the channels from it (see {@link WriteLimits}).</p>
+ * 
+ * <p>The ChannelControllers created by the mapping itself only queue
+ * their frames. The writer sends them using deficit round robin: in
+ * every round each channel with sendable frames may send up to 
+ * quantum times its priority bytes. Frames are split accordingly, so
+ * a large message only gets its share of the connection and small
+ * messages on other channels are not held up behind it. Pending 
+ * commands are processed between two rounds.</p>
+ * 
+ * <p>Writes a thread issues while it has a batch open are held back and
+ * passed to the transport with a single gathering write when the batch
+ * ends (see {@link #beginBatch()} and {@link #setWriteBatching(boolean)}).</p>
+ * 
+ * @author Simon Raess
+ */
 public class TCPMapping implements TransportMapping, ChannelControllerFactory {
 
+	private static final Logger LOG = LoggerFactory.getLogger(TCPMapping.class);
+	
 	public static final int DEFAULT_BUFFER_SIZE = 4096;
 	
+	/**
+	 * The number of outbound commands that can be pending.
+	 */
+	public static final int OUTBOUND_CAPACITY = 1024;
+	
+	/**
+	 * The default number of bytes a channel of priority 1 may send 
+	 * per scheduling round.
+	 */
+	public static final int DEFAULT_QUANTUM = 4096;
+	
+	/**
+	 * Signals when data held back by the silly window avoidance policy 
+	 * must be sent and when delayed SEQ frames are due. Shared by all 
+	 * sessions, it therefore never writes to a transport itself but 
+	 * hands the writing to the {@link #WRITER}.
+	 */
+	private static final ScheduledExecutorService TIMER = 
+			Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "beep4j-timer");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+	
+	/**
+	 * Drains the sessions on behalf of the {@link #TIMER}. Every session
+	 * occupies at most one thread, so a session whose transport blocks
+	 * does not hold up the others.
+	 */
+	private static final Executor WRITER = 
+			Executors.newCachedThreadPool(new ThreadFactory() {
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "beep4j-writer");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+	
 	private final Transport transport;
 	
 	private final ChannelControllerFactory factory;
 	
 	private final int sendBufferSize;
-        private final int receiveBufferSize;
 	
-	private final Map<Integer, ChannelController> channels = 
-			new HashMap<Integer, ChannelController>();
-
+	private final int receiveBufferSize;
+	
+	private final WriteLimits limits;
+	
+	private final Map<Integer, ChannelEntry> channels = 
+			new ConcurrentHashMap<Integer, ChannelEntry>();
+	
+	private volatile BufferAllocator allocator = HeapBufferAllocator.INSTANCE;
+	
+	private final MpscRingBuffer<OutboundCommand> outbound;
+	
+	private final AtomicBoolean draining = new AtomicBoolean();
+	
+	/**
+	 * The channels whose hold back delay expired, activated by the writer.
+	 */
+	private final Queue<ChannelEntry> wakeUps = new ConcurrentLinkedQueue<ChannelEntry>();
+	
+	/**
+	 * Whether a drain of this session has been handed to the 
+	 * {@link #WRITER} and not yet started.
+	 */
+	private final AtomicBoolean wakeUpRequested = new AtomicBoolean();
+	
+	/**
+	 * Set when an outbound command failed and the session is closed.
+	 */
+	private final AtomicBoolean failed = new AtomicBoolean();
+	
+	/**
+	 * Callbacks of {@link #whenSent(int, Runnable)} that are due. They are
+	 * only accessed by the writer and run after it gave up its role.
+	 */
+	private List<Runnable> completedCallbacks = new ArrayList<Runnable>();
+	
+	/**
+	 * Outbound bytes of all channels that have not yet been passed to 
+	 * the transport.
+	 */
+	private final AtomicLong sessionPending = new AtomicLong();
+	
+	private volatile boolean sessionWritable = true;
+	
+	private volatile boolean closed;
+	
+	private final Object sessionLock = new Object();
+	
+	/**
+	 * Channels with sendable frames in round robin order, only accessed
+	 * by the writer.
+	 */
+	private final LinkedList<ChannelEntry> activeChannels = new LinkedList<ChannelEntry>();
+	
+	private volatile int quantum = DEFAULT_QUANTUM;
+	
+	private volatile int maxFrameSize = DefaultChannelController.UNLIMITED_FRAME_SIZE;
+	
+	private volatile SillyWindowAvoidance sillyWindowAvoidance = SillyWindowAvoidance.DISABLED;
+	
+	private volatile ReceiveWindowTuning receiveWindowTuning = ReceiveWindowTuning.DISABLED;
+	
+	private final ReceiveBudget receiveBudget = new ReceiveBudget(0);
+	
+	private final AckCoalescer acks;
+	
+	private final WriteBatcher writes;
+	
+	private volatile boolean writeBatching;
+	
+	/**
+	 * Whether the receive cycle in progress opened a batch. Only accessed
+	 * by the thread that processes received data.
+	 */
+	private boolean receiveBatch;
 	
 	public TCPMapping(Transport transport) {
 		this(transport, null);
@@ -52,13 +216,137 @@ public class TCPMapping implements TransportMapping, ChannelControllerFactory {
 	}
 	
 	public TCPMapping(Transport transport, ChannelControllerFactory factory, int sendBufferSize, int receiveBufferSize) {
+		this(transport, factory, sendBufferSize, receiveBufferSize, WriteLimits.DEFAULT);
+	}
+	
+	public TCPMapping(Transport transport, ChannelControllerFactory factory, int sendBufferSize, 
+			int receiveBufferSize, WriteLimits limits) {
 		Assert.notNull("transport", transport);
+		Assert.notNull("limits", limits);
 		this.transport = transport;
+		this.limits = limits;
 		this.factory = factory != null ? factory : this;
 		this.sendBufferSize = sendBufferSize;
 		this.receiveBufferSize = receiveBufferSize;
+		this.writes = new WriteBatcher(transport);
+		this.acks = new AckCoalescer(writes, TIMER, WRITER);
+		
+		OutboundCommand[] commands = new OutboundCommand[OUTBOUND_CAPACITY];
+		for (int i = 0; i < commands.length; i++) {
+			commands[i] = new OutboundCommand();
+		}
+		this.outbound = new MpscRingBuffer<OutboundCommand>(commands);
+	}
+	
+	/**
+	 * Sets the allocator the headers of outgoing frames are encoded into,
+	 * typically the allocator of the session. The allocator applies to 
+	 * existing channels as well as to channels started later.
+	 * 
+	 * @param allocator the allocator for frame headers
+	 */
+	public void setBufferAllocator(BufferAllocator allocator) {
+		Assert.notNull("allocator", allocator);
+		this.allocator = allocator;
+		for (ChannelEntry entry : channels.values()) {
+			entry.controller.setBufferAllocator(allocator);
+		}
 	}
 	
+	/**
+	 * Sets the number of bytes a channel of priority 1 may send per
+	 * scheduling round. This is the maximum frame size sent in one turn.
+	 * 
+	 * @param quantum the quantum in bytes
+	 */
+	public void setQuantum(int quantum) {
+		if (quantum < DefaultChannelController.MINIMUM_FRAME_SIZE) {
+			throw new IllegalArgumentException("quantum must be at least " 
+					+ DefaultChannelController.MINIMUM_FRAME_SIZE + ": " + quantum);
+		}
+		this.quantum = quantum;
+	}
+	
+	/**
+	 * Sets the maximum payload size of the frames sent on the channels 
+	 * of this session. Messages are segmented into frames of at most 
+	 * this size, regardless of the window of the remote peer. The size
+	 * applies to existing channels as well as to channels started later,
+	 * see {@link #setChannelMaxFrameSize(int, int)} to override it for
+	 * a single channel.
+	 * 
+	 * @param maxFrameSize the maximum payload size of a frame
+	 */
+	public void setMaxFrameSize(int maxFrameSize) {
+		if (maxFrameSize < DefaultChannelController.MINIMUM_FRAME_SIZE) {
+			throw new IllegalArgumentException("maximum frame size must be at least " 
+					+ DefaultChannelController.MINIMUM_FRAME_SIZE + ": " + maxFrameSize);
+		}
+		this.maxFrameSize = maxFrameSize;
+		for (ChannelEntry entry : channels.values()) {
+			entry.controller.setMaxFrameSize(maxFrameSize);
+		}
+	}
+	
+	/**
+	 * Sets the silly window avoidance policy of the channels of this 
+	 * session. The policy applies to existing channels as well as to 
+	 * channels started later, see 
+	 * {@link #setChannelSillyWindowAvoidance(int, SillyWindowAvoidance)}
+	 * to override it for a single channel.
+	 * 
+	 * @param policy the silly window avoidance policy
+	 */
+	public void setSillyWindowAvoidance(SillyWindowAvoidance policy) {
+		Assert.notNull("policy", policy);
+		this.sillyWindowAvoidance = policy;
+		for (ChannelEntry entry : channels.values()) {
+			entry.controller.setSillyWindowAvoidance(policy);
+		}
+	}
+	
+	/**
+	 * Sets the strategy that determines when the SEQ frames of the 
+	 * channels of this session are written. The strategy only applies
+	 * to channels created by this mapping, not to the controllers of a
+	 * custom {@link ChannelControllerFactory}.
+	 * 
+	 * @param strategy the ack strategy
+	 */
+	public void setAckStrategy(AckStrategy strategy) {
+		acks.setStrategy(strategy);
+	}
+	
+	/**
+	 * Enables or disables write batching. If enabled, the data written 
+	 * while received data is processed, i.e. SEQ frames, replies sent 
+	 * synchronously by the handlers and frames released by an updated
+	 * send window, is held back and written with a single gathering 
+	 * write once the received data has been processed. Like the ack 
+	 * strategy, batching only applies to channels created by this 
+	 * mapping.
+	 * 
+	 * @param writeBatching whether writes are batched per receive cycle
+	 */
+	public void setWriteBatching(boolean writeBatching) {
+		this.writeBatching = writeBatching;
+	}
+	
+	/**
+	 * Enables or disables the autotuning of the receive windows of the
+	 * channels of this session. The configured receive buffer size is
+	 * the minimum window size of each channel.
+	 * 
+	 * @param tuning the bounds of the autotuning
+	 */
+	public void setReceiveWindowTuning(ReceiveWindowTuning tuning) {
+		Assert.notNull("tuning", tuning);
+		this.receiveWindowTuning = tuning;
+		receiveBudget.setLimit(tuning.getMaxSessionWindowSize());
+		for (ChannelEntry entry : channels.values()) {
+			entry.controller.setReceiveWindowTuning(tuning, receiveBudget);
+		}
+	}
 	
 	// --> start of SessionListener methods <--
 	
@@ -68,11 +356,40 @@ public class TCPMapping implements TransportMapping, ChannelControllerFactory {
 					+ channelNumber);
 		}
 		ChannelController controller = factory.createChannelController(channelNumber, transport);
-		channels.put(channelNumber, controller);
+		if (maxFrameSize != DefaultChannelController.UNLIMITED_FRAME_SIZE) {
+			controller.setMaxFrameSize(maxFrameSize);
+		}
+		if (sillyWindowAvoidance != SillyWindowAvoidance.DISABLED) {
+			controller.setSillyWindowAvoidance(sillyWindowAvoidance);
+		}
+		if (allocator != HeapBufferAllocator.INSTANCE) {
+			controller.setBufferAllocator(allocator);
+		}
+		if (receiveWindowTuning.isEnabled()) {
+			controller.setReceiveWindowTuning(receiveWindowTuning, receiveBudget);
+		}
+		channels.put(channelNumber, new ChannelEntry(controller));
 	}
 	
 	public void channelClosed(int channelNumber) {
-		channels.remove(channelNumber);
+		ChannelEntry entry = channels.remove(channelNumber);
+		if (entry != null) {
+			entry.controller.channelClosed();
+			// wake up whoever waits for the channel
+			for (Runnable callback : entry.removeWritableCallbacks()) {
+				callback.run();
+			}
+		}
+	}
+	
+	public void sessionClosed() {
+		closed = true;
+		// wake up whoever waits for any of the channels
+		for (ChannelEntry entry : channels.values()) {
+			for (Runnable callback : entry.removeWritableCallbacks()) {
+				callback.run();
+			}
+		}
 	}
 	
 	// --> end of SessionListener methods <--
@@ -81,7 +398,11 @@ public class TCPMapping implements TransportMapping, ChannelControllerFactory {
 	// --> start of ChannelControllerFactory methods <--
 	
 	public DefaultChannelController createChannelController(int channelNumber, Transport transport) {
-		return new DefaultChannelController(transport, channelNumber, sendBufferSize, receiveBufferSize);
+		if (transport == this.transport) {
+			// SEQ frames are coalesced by the ack strategy of the session
+			transport = new ChannelTransport(channelNumber);
+		}
+		return new DefaultChannelController(transport, channelNumber, sendBufferSize, receiveBufferSize, true);
 	}
 	
 	// --> end of ChannelControllerFactory methods <--
@@ -96,54 +417,553 @@ public class TCPMapping implements TransportMapping, ChannelControllerFactory {
 	public void frameReceived(int channel, long seqno, int size) {
 		getChannelController(channel).frameReceived(seqno, size);
 	}
+	
+	public void receiveStarted() {
+		receiveBatch = writeBatching;
+		if (receiveBatch) {
+			writes.begin();
+		}
+		acks.receiveStarted();
+	}
+	
+	public void receiveCompleted() {
+		acks.receiveCompleted();
+		if (receiveBatch) {
+			receiveBatch = false;
+			writes.end();
+		}
+	}
+	
+	public void beginBatch() {
+		writes.begin();
+	}
+	
+	public void endBatch() {
+		writes.end();
+	}
+	
+	public void flushBatch() {
+		writes.flush();
+	}
+	
+	public boolean isConsumptionDriven(int channel) {
+		return getChannelController(channel).isConsumptionDriven();
+	}
+	
+	public void frameConsumed(int channel, int size) {
+		ChannelEntry entry = channels.get(channel);
+		if (entry != null) {
+			entry.controller.frameConsumed(size);
+		}
+	}
+	
+	public void setChannelConsumptionLimit(int channel, int limit) {
+		getChannelController(channel).setConsumptionLimit(limit);
+	}
 
-	public void processMappingFrame(String[] tokens) {
-		if (!tokens[0].equals(SEQHeader.TYPE)) {
-			throw new ProtocolException("unsupported frame type: " + tokens[0]);
+	public void processMappingFrame(ByteBuffer headerLine) {
+		if (!SEQHeader.isSEQHeader(headerLine)) {
+			throw new ProtocolException("unsupported frame type: " 
+					+ ByteUtil.toASCIIString(headerLine));
 		}
 		
-		SEQHeader header = new SEQHeader(tokens);
+		SEQHeader header = SEQHeader.parseHeader(headerLine);
 		int channel = header.getChannel();
 		long ackno = header.getAcknowledgeNumber();
 		int size = header.getWindowSize();
 			
 		// adapt the local view of the other peers window			
-		getChannelController(channel).updateSendWindow(ackno, size);
+		ChannelEntry entry = getChannelEntry(channel);
+		entry.validateWindow(channel, ackno, size);
+		long sequence = claim();
+		outbound.get(sequence).setWindow(entry, ackno, size);
+		publish(sequence);
 	}
 	
 	public void sendANS(int channel, int messageNumber, int answerNumber, Message message) {
-		getChannelController(channel).sendANS(messageNumber, answerNumber, message);
+		submit(OutboundCommand.ANS, channel, messageNumber, answerNumber, message);
 	}
 	
 	public void sendERR(int channel, int messageNumber, Message message) {
-		getChannelController(channel).sendERR(messageNumber, message);
+		submit(OutboundCommand.ERR, channel, messageNumber, 0, message);
 	}
 	
 	public void sendMSG(int channel, int messageNumber, Message message) {
-		getChannelController(channel).sendMSG(messageNumber, message);		
+		submit(OutboundCommand.MSG, channel, messageNumber, 0, message);
 	}
 	
 	public void sendNUL(int channel, int messageNumber) {
-		getChannelController(channel).sendNUL(messageNumber);
+		submit(OutboundCommand.NUL, channel, messageNumber, 0, null);
 	}
 	
 	public void sendRPY(int channel, int messageNumber, Message message) {
-		getChannelController(channel).sendRPY(messageNumber, message);
+		submit(OutboundCommand.RPY, channel, messageNumber, 0, message);
+	}
+	
+	public void whenSent(int channel, Runnable callback) {
+		Assert.notNull("callback", callback);
+		ChannelEntry entry = getChannelEntry(channel);
+		long sequence = claim();
+		outbound.get(sequence).setCallback(entry, callback);
+		publish(sequence);
+	}
+	
+	public void setChannelPriority(int channel, int priority) {
+		if (priority < 1) {
+			throw new IllegalArgumentException("priority must be positive: " + priority);
+		}
+		getChannelEntry(channel).priority = priority;
+	}
+	
+	public void setChannelMaxFrameSize(int channel, int maxFrameSize) {
+		getChannelController(channel).setMaxFrameSize(maxFrameSize);
+	}
+	
+	public void setChannelSillyWindowAvoidance(int channel, SillyWindowAvoidance policy) {
+		getChannelController(channel).setSillyWindowAvoidance(policy);
+	}
+	
+	public boolean isWritable(int channel) {
+		return sessionWritable && getChannelEntry(channel).writable;
+	}
+	
+	public void whenWritable(int channel, Runnable callback) {
+		Assert.notNull("callback", callback);
+		ChannelEntry entry = channels.get(channel);
+		if (entry == null || entry.addWritableCallback(callback)) {
+			callback.run();
+		}
 	}
 	
 	public void closeTransport() {
-		transport.closeTransport();
+		writes.closeTransport();
 	}
 	
 	// --> end of TransportMapping methods <--
 	
 				
+	private void submit(int type, int channel, int messageNumber, int answerNumber, Message message) {
+		ChannelEntry entry = getChannelEntry(channel);
+		entry.submitted(message != null ? size(message) : 0);
+		long sequence = claim();
+		outbound.get(sequence).set(type, entry, messageNumber, answerNumber, message);
+		publish(sequence);
+	}
+	
+	private static int size(Message message) {
+		int size = 0;
+		for (ByteBuffer buffer : message.asByteBuffers()) {
+			size += buffer.remaining();
+		}
+		return size;
+	}
+	
+	private long claim() {
+		long sequence;
+		while ((sequence = outbound.tryClaim()) < 0) {
+			// the ring is full, drain it or give the writer a chance
+			if (!drain()) {
+				Thread.yield();
+			}
+		}
+		return sequence;
+	}
+	
+	/*
+	 * A command published while the writer is giving up its role would
+	 * be stranded, the ring is therefore checked again after draining.
+	 */
+	private void publish(long sequence) {
+		outbound.publish(sequence);
+		drainAll();
+	}
+	
+	private void drainAll() {
+		while (drain() && (outbound.peek() != null || !wakeUps.isEmpty())) {
+			// try again
+		}
+	}
+	
+	/*
+	 * Executes the published commands unless another thread is doing so.
+	 * Returns false if another thread is the writer. Due callbacks are
+	 * run after the writer role has been given up, as they may submit
+	 * further commands.
+	 */
+	private boolean drain() {
+		if (!draining.compareAndSet(false, true)) {
+			return false;
+		}
+		List<Runnable> callbacks;
+		try {
+			do {
+				OutboundCommand command;
+				while ((command = outbound.peek()) != null) {
+					ChannelEntry entry = command.entry;
+					try {
+						command.execute();
+					} catch (RuntimeException e) {
+						failed(e);
+					} finally {
+						command.clear();
+						outbound.advance();
+					}
+					entry.update();
+					activate(entry);
+				}
+				ChannelEntry woken;
+				while ((woken = wakeUps.poll()) != null) {
+					woken.wakeUpScheduled = false;
+					if (channels.containsValue(woken)) {
+						activate(woken);
+					}
+				}
+			} while (schedule());
+			callbacks = completedCallbacks;
+			if (!callbacks.isEmpty()) {
+				completedCallbacks = new ArrayList<Runnable>();
+			}
+		} finally {
+			draining.set(false);
+		}
+		for (Runnable callback : callbacks) {
+			try {
+				callback.run();
+			} catch (RuntimeException e) {
+				LOG.warn("sent callback failed", e);
+			}
+		}
+		return true;
+	}
+	
+	/*
+	 * A failed command leaves the state of its channel undefined, the 
+	 * session is therefore closed.
+	 */
+	private void failed(RuntimeException e) {
+		if (failed.compareAndSet(false, true)) {
+			LOG.error("outbound command failed, closing the session", e);
+			closeTransport();
+		} else {
+			LOG.debug("outbound command failed after closing the session", e);
+		}
+	}
+	
+	private void activate(ChannelEntry entry) {
+		if (entry.active) {
+			return;
+		} else if (entry.controller.hasSendableFrames()) {
+			entry.active = true;
+			activeChannels.addLast(entry);
+		} else {
+			scheduleWakeUp(entry);
+		}
+	}
+	
+	/*
+	 * Makes sure the writer sends the data the controller holds back 
+	 * once the maximum delay of the silly window avoidance expired. The
+	 * timer only marks the channel, the session is drained by the 
+	 * current writer or, if there is none, on a thread of the WRITER.
+	 */
+	private void scheduleWakeUp(final ChannelEntry entry) {
+		long delay = entry.controller.getHoldBackDelay();
+		if (delay < 0 || entry.wakeUpScheduled) {
+			return;
+		}
+		entry.wakeUpScheduled = true;
+		TIMER.schedule(new Runnable() {
+			public void run() {
+				wakeUps.add(entry);
+				if (wakeUpRequested.compareAndSet(false, true)) {
+					WRITER.execute(new Runnable() {
+						public void run() {
+							wakeUpRequested.set(false);
+							drainAll();
+						}
+					});
+				}
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+	
+	/*
+	 * Runs one round of the deficit round robin scheduler. Returns false
+	 * if there was no channel with sendable frames.
+	 */
+	private boolean schedule() {
+		if (activeChannels.isEmpty()) {
+			return false;
+		}
+		Iterator<ChannelEntry> it = activeChannels.iterator();
+		while (it.hasNext()) {
+			ChannelEntry entry = it.next();
+			boolean failed = false;
+			entry.deficit += (long) quantum * entry.priority;
+			try {
+				entry.deficit -= entry.controller.sendQueuedFrames(
+						(int) Math.min(entry.deficit, Integer.MAX_VALUE));
+			} catch (RuntimeException e) {
+				LOG.warn("sending frames failed", e);
+				failed = true;
+			}
+			entry.update();
+			if (failed || !entry.controller.hasSendableFrames()) {
+				it.remove();
+				entry.active = false;
+				entry.deficit = 0;
+				scheduleWakeUp(entry);
+			}
+		}
+		return true;
+	}
+	
+	private static long distance(long from, long to) {
+		return (to - from + SlidingWindow.MAX + 1) % (SlidingWindow.MAX + 1);
+	}
+	
 	private ChannelController getChannelController(int channel) {
-		ChannelController controller = channels.get(new Integer(channel));
-		if (controller == null) {
+		return getChannelEntry(channel).controller;
+	}
+	
+	private ChannelEntry getChannelEntry(int channel) {
+		ChannelEntry entry = channels.get(new Integer(channel));
+		if (entry == null) {
 			throw new ProtocolException("unkown channel: " + channel);
 		}
-		return controller;
+		return entry;
+	}
+	
+	/*
+	 * Invoked by the writer when the session became writable again.
+	 */
+	private void sessionDrained() {
+		synchronized (sessionLock) {
+			if (sessionWritable || sessionPending.get() > limits.getSessionLowWatermark()) {
+				return;
+			}
+			sessionWritable = true;
+		}
+		for (ChannelEntry entry : channels.values()) {
+			entry.fireWritable();
+		}
+	}
+	
+	/*
+	 * Outbound state of a channel. The pending bytes are updated by the 
+	 * submitting threads and the writer, the sent bytes only by the writer.
+	 */
+	private final class ChannelEntry {
+		private final ChannelController controller;
+		private final AtomicLong pending = new AtomicLong();
+		private volatile boolean writable = true;
+		private volatile int priority = 1;
+		// scheduler state, only accessed by the writer
+		private boolean active;
+		private boolean wakeUpScheduled;
+		private long deficit;
+		private long sentBytes;
+		// the window announced by the other peer, only accessed by the 
+		// thread processing received data
+		private long remoteAckno;
+		private int remoteWindow = sendBufferSize;
+		// guarded by this
+		private final LinkedList<Runnable> writableCallbacks = new LinkedList<Runnable>();
+		private ChannelEntry(ChannelController controller) {
+			this.controller = controller;
+		}
+		/*
+		 * Validates a received SEQ frame before it is passed to the writer.
+		 * The acknowledged position must lie between the previous one and
+		 * the sent position, which the controller advances before it 
+		 * writes a frame, and the right window edge must not move left.
+		 */
+		private void validateWindow(int channel, long ackno, int window) {
+			long acknowledged = distance(remoteAckno, ackno);
+			long sent = distance(remoteAckno, controller.getSentBytes() % (SlidingWindow.MAX + 1));
+			if (acknowledged > sent) {
+				throw new ProtocolException("SEQ on channel " + channel 
+						+ " acknowledges unsent data: ackno=" + ackno);
+			} else if (acknowledged + window < remoteWindow) {
+				throw new ProtocolException("SEQ on channel " + channel 
+						+ " moves the right window edge to the left: ackno=" 
+						+ ackno + ",window=" + window);
+			}
+			remoteAckno = ackno;
+			remoteWindow = window;
+		}
+		private void submitted(int size) {
+			if (size == 0) {
+				return;
+			}
+			long channelPending = pending.addAndGet(size);
+			long total = sessionPending.addAndGet(size);
+			if (writable && channelPending > limits.getChannelHighWatermark()) {
+				synchronized (this) {
+					if (pending.get() > limits.getChannelHighWatermark()) {
+						writable = false;
+					}
+				}
+			}
+			if (sessionWritable && total > limits.getSessionHighWatermark()) {
+				synchronized (sessionLock) {
+					if (sessionPending.get() > limits.getSessionHighWatermark()) {
+						sessionWritable = false;
+					}
+				}
+			}
+		}
+		private void update() {
+			long sent = controller.getSentBytes();
+			long delta = sent - sentBytes;
+			if (delta == 0) {
+				return;
+			}
+			sentBytes = sent;
+			long channelPending = pending.addAndGet(-delta);
+			long total = sessionPending.addAndGet(-delta);
+			if (!writable && channelPending <= limits.getChannelLowWatermark()) {
+				synchronized (this) {
+					if (pending.get() <= limits.getChannelLowWatermark()) {
+						writable = true;
+					}
+				}
+				fireWritable();
+			}
+			if (!sessionWritable && total <= limits.getSessionLowWatermark()) {
+				sessionDrained();
+			}
+		}
+		/*
+		 * Returns true if the channel is writable or the session has been
+		 * closed, in which case the callback has not been registered.
+		 */
+		private synchronized boolean addWritableCallback(Runnable callback) {
+			if (closed || writable && sessionWritable) {
+				return true;
+			}
+			writableCallbacks.add(callback);
+			return false;
+		}
+		private synchronized List<Runnable> removeWritableCallbacks() {
+			List<Runnable> callbacks = new ArrayList<Runnable>(writableCallbacks);
+			writableCallbacks.clear();
+			return callbacks;
+		}
+		/*
+		 * Invoked by the writer, the callbacks are run after draining.
+		 */
+		private void fireWritable() {
+			synchronized (this) {
+				if (!writable || !sessionWritable || writableCallbacks.isEmpty()) {
+					return;
+				}
+			}
+			completedCallbacks.addAll(removeWritableCallbacks());
+		}
+	}
+
+	
+	private Runnable completion(final Runnable callback) {
+		return new Runnable() {
+			public void run() {
+				completedCallbacks.add(callback);
+			}
+		};
+	}
+	
+	/*
+	 * Preallocated entry of the outbound ring buffer.
+	 */
+	private final class OutboundCommand {
+		private static final int MSG = 0;
+		private static final int RPY = 1;
+		private static final int ERR = 2;
+		private static final int ANS = 3;
+		private static final int NUL = 4;
+		private static final int SEQ = 5;
+		private static final int SENT = 6;
+		private int type;
+		private ChannelEntry entry;
+		private int messageNumber;
+		private int answerNumber;
+		private Message message;
+		private long ackno;
+		private int window;
+		private Runnable callback;
+		private void set(int type, ChannelEntry entry, int messageNumber, 
+				int answerNumber, Message message) {
+			this.type = type;
+			this.entry = entry;
+			this.messageNumber = messageNumber;
+			this.answerNumber = answerNumber;
+			this.message = message;
+		}
+		private void setWindow(ChannelEntry entry, long ackno, int window) {
+			this.type = SEQ;
+			this.entry = entry;
+			this.ackno = ackno;
+			this.window = window;
+		}
+		private void setCallback(ChannelEntry entry, Runnable callback) {
+			this.type = SENT;
+			this.entry = entry;
+			this.callback = callback;
+		}
+		private void execute() {
+			ChannelController controller = entry.controller;
+			switch (type) {
+			case MSG:
+				controller.sendMSG(messageNumber, message);
+				break;
+			case RPY:
+				controller.sendRPY(messageNumber, message);
+				break;
+			case ERR:
+				controller.sendERR(messageNumber, message);
+				break;
+			case ANS:
+				controller.sendANS(messageNumber, answerNumber, message);
+				break;
+			case NUL:
+				controller.sendNUL(messageNumber);
+				break;
+			case SEQ:
+				controller.updateSendWindow(ackno, window);
+				break;
+			case SENT:
+				controller.whenSent(completion(callback));
+				break;
+			default:
+				throw new IllegalStateException("unknown command type " + type);
+			}
+		}
+		private void clear() {
+			entry = null;
+			message = null;
+			callback = null;
+		}
 	}
 
+	/*
+	 * The transport of the channel controllers created by this mapping.
+	 * SEQ frames and outbound frames pass through the ack coalescer 
+	 * and the write batcher.
+	 */
+	private final class ChannelTransport implements Transport {
+		private final int channel;
+		private ChannelTransport(int channel) {
+			this.channel = channel;
+		}
+		public void sendBytes(ByteBuffer buffer) {
+			acks.acknowledge(channel, buffer);
+		}
+		public void sendBytes(ByteBuffer[] buffers, ReferenceCounted owner) {
+			acks.send(buffers, owner);
+		}
+		public void closeTransport() {
+			writes.closeTransport();
+		}
+	}
+	
 }
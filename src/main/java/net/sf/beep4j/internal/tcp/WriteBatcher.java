@@ -0,0 +1,204 @@
+/*
+ *  Copyright 2006 Simon Raess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.sf.beep4j.internal.tcp;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.sf.beep4j.buffer.ReferenceCounted;
+import net.sf.beep4j.transport.Transport;
+
+/**
+ * Transport that holds back the writes a thread issues while it has a
+ * batch open and passes them to the underlying transport with a single
+ * gathering write when the batch ends. Batches are opened per thread.
+ * 
+ * <p>The held writes of all threads are kept in one list, as the frames
+ * of a channel may be written by different threads and must stay in 
+ * order. A thread without an open batch therefore writes the held data
+ * together with its own, and the end of any batch writes everything 
+ * held so far. A thread inside a batch never holds back the writes of
+ * other threads.</p>
+ * 
+ * <p>The held data is also written as soon as it reaches 
+ * {@link #MAX_BATCH_SIZE} bytes. A batch of at most 
+ * {@link #COPY_THRESHOLD} bytes is copied into a single buffer, as a 
+ * transport without gathering writes, such as MINA 1.x, would 
+ * otherwise write the small frames one by one.</p>
+ * 
+ * @author Simon Raess
+ */
+final class WriteBatcher implements Transport {
+	
+	/**
+	 * The number of held bytes at which a batch is written early.
+	 */
+	static final int MAX_BATCH_SIZE = 64 * 1024;
+	
+	/**
+	 * The number of held bytes up to which a batch is copied into a 
+	 * single buffer.
+	 */
+	static final int COPY_THRESHOLD = 8 * 1024;
+	
+	private final Transport transport;
+	
+	/**
+	 * The number of batches the current thread has open.
+	 */
+	private final ThreadLocal<int[]> openBatches = new ThreadLocal<int[]>() {
+		@Override
+		protected int[] initialValue() {
+			return new int[1];
+		}
+	};
+	
+	// guarded by this
+	
+	private final List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+	
+	private final List<ReferenceCounted> owners = new ArrayList<ReferenceCounted>();
+	
+	private int size;
+	
+	WriteBatcher(Transport transport) {
+		this.transport = transport;
+	}
+	
+	void begin() {
+		openBatches.get()[0]++;
+	}
+	
+	void end() {
+		int[] open = openBatches.get();
+		if (open[0] == 0) {
+			throw new IllegalStateException("the current thread has no open batch");
+		}
+		open[0]--;
+		if (open[0] == 0) {
+			flush();
+		}
+	}
+	
+	private boolean isBatching() {
+		return openBatches.get()[0] > 0;
+	}
+	
+	/**
+	 * Writes the held buffers, even if a batch is still open.
+	 */
+	synchronized void flush() {
+		if (buffers.isEmpty()) {
+			return;
+		}
+		ByteBuffer[] held = buffers.toArray(new ByteBuffer[buffers.size()]);
+		ReferenceCounted owner = null;
+		if (owners.size() == 1) {
+			owner = owners.get(0);
+		} else if (owners.size() > 1) {
+			owner = new CompositeOwner(owners.toArray(new ReferenceCounted[owners.size()]));
+		}
+		int heldSize = size;
+		buffers.clear();
+		owners.clear();
+		size = 0;
+		if (held.length == 1 && owner == null) {
+			transport.sendBytes(held[0]);
+		} else if (held.length > 1 && heldSize <= COPY_THRESHOLD) {
+			transport.sendBytes(copy(held, heldSize));
+			if (owner != null) {
+				owner.release();
+			}
+		} else {
+			transport.sendBytes(held, owner);
+		}
+	}
+	
+	// --> start of Transport methods <--
+	
+	public synchronized void sendBytes(ByteBuffer buffer) {
+		if (!isBatching() && buffers.isEmpty()) {
+			transport.sendBytes(buffer);
+		} else {
+			hold(buffer);
+			flushIfDue();
+		}
+	}
+	
+	public synchronized void sendBytes(ByteBuffer[] buffers, ReferenceCounted owner) {
+		if (!isBatching() && this.buffers.isEmpty()) {
+			transport.sendBytes(buffers, owner);
+		} else {
+			for (int i = 0; i < buffers.length; i++) {
+				hold(buffers[i]);
+			}
+			if (owner != null) {
+				owners.add(owner);
+			}
+			flushIfDue();
+		}
+	}
+	
+	public void closeTransport() {
+		flush();
+		transport.closeTransport();
+	}
+	
+	// --> end of Transport methods <--
+	
+	private static ByteBuffer copy(ByteBuffer[] buffers, int size) {
+		ByteBuffer copy = ByteBuffer.allocate(size);
+		for (int i = 0; i < buffers.length; i++) {
+			copy.put(buffers[i].duplicate());
+		}
+		copy.flip();
+		return copy;
+	}
+	
+	private void hold(ByteBuffer buffer) {
+		buffers.add(buffer);
+		size += buffer.remaining();
+	}
+	
+	private void flushIfDue() {
+		if (!isBatching() || size >= MAX_BATCH_SIZE) {
+			flush();
+		}
+	}
+	
+	/*
+	 * Owner of a gathering write that combines the buffers of several
+	 * writes. Releasing it releases each of the original owners.
+	 */
+	private static final class CompositeOwner implements ReferenceCounted {
+		private final ReferenceCounted[] owners;
+		private CompositeOwner(ReferenceCounted[] owners) {
+			this.owners = owners;
+		}
+		public void retain() {
+			for (int i = 0; i < owners.length; i++) {
+				owners[i].retain();
+			}
+		}
+		public void release() {
+			for (int i = 0; i < owners.length; i++) {
+				owners[i].release();
+			}
+		}
+	}
+	
+}
@@ -74,7 +74,7 @@ public class ByteBufferInputStream extends InputStream {
 	@Override
 	public int read() throws IOException {
 		checkClosed();
-		return buffer.hasRemaining() ? buffer.get() : -1;
+		return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
 	}
 	
 	@Override
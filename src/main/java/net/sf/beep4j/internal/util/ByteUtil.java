@@ -16,6 +16,7 @@
 package net.sf.beep4j.internal.util;
 
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 
 import net.sf.beep4j.ProtocolException;
 
@@ -83,4 +84,156 @@ public final class ByteUtil {
 		}
 	}
 	
+	/**
+	 * Parses a field that must be in the range 0..2147483647 directly from
+	 * the ASCII encoded bytes of the buffer. Parsing starts at the current
+	 * position of the buffer and stops at the next space or the limit.
+	 * The position is advanced past the digits and the terminating space.
+	 * 
+	 * @param field the name of the field
+	 * @param buffer the buffer to parse
+	 * @return the value returned as an int
+	 * @throws ProtocolException if the parsed value does not conform to the 
+	 *                           expected format and range
+	 */
+	public static final int parseUnsignedInt(String field, ByteBuffer buffer) {
+		return (int) parseUnsigned(field, buffer, 2147483647L);
+	}
+	
+	/**
+	 * Parses a field that must be in the range 0..4294967295 directly from
+	 * the ASCII encoded bytes of the buffer. Parsing starts at the current
+	 * position of the buffer and stops at the next space or the limit.
+	 * The position is advanced past the digits and the terminating space.
+	 * 
+	 * @param field the name of the field
+	 * @param buffer the buffer to parse
+	 * @return the value returned as a long
+	 * @throws ProtocolException if the parsed value does not conform to the 
+	 *                           expected format and range
+	 */
+	public static final long parseUnsignedLong(String field, ByteBuffer buffer) {
+		return parseUnsigned(field, buffer, 4294967295L);
+	}
+	
+	private static long parseUnsigned(String field, ByteBuffer buffer, long max) {
+		long result = 0;
+		int digits = 0;
+		while (buffer.hasRemaining()) {
+			byte current = buffer.get();
+			if (current == ' ') {
+				break;
+			} else if (current < '0' || current > '9') {
+				throw new ProtocolException(field + ": invalid character '" 
+						+ (char) current + "'");
+			}
+			result = result * 10 + (current - '0');
+			if (result > max) {
+				throw new ProtocolException(field + " must be in range 0.." + max);
+			}
+			digits++;
+		}
+		if (digits == 0) {
+			throw new ProtocolException(field + ": missing value");
+		}
+		return result;
+	}
+	
+	/**
+	 * Computes the number of decimal digits of the given non-negative 
+	 * value.
+	 * 
+	 * @param value the value, must not be negative
+	 * @return the number of ASCII digits needed to write the value
+	 */
+	public static final int digits(long value) {
+		int result = 1;
+		while (value >= 10) {
+			value /= 10;
+			result++;
+		}
+		return result;
+	}
+	
+	/**
+	 * Writes the decimal ASCII representation of the given non-negative
+	 * value at the current position of the buffer. The position is
+	 * advanced by the number of digits written.
+	 * 
+	 * @param buffer the target buffer
+	 * @param value the value, must not be negative
+	 */
+	public static final void putUnsigned(ByteBuffer buffer, long value) {
+		int end = buffer.position() + digits(value);
+		int index = end;
+		do {
+			buffer.put(--index, (byte) ('0' + (int) (value % 10)));
+			value /= 10;
+		} while (value != 0);
+		buffer.position(end);
+	}
+	
+	/**
+	 * Counts the number of space separated tokens between the position
+	 * and the limit of the buffer. The position of the buffer is not
+	 * modified.
+	 * 
+	 * @param buffer the buffer containing the tokens
+	 * @return the number of tokens
+	 */
+	public static final int countTokens(ByteBuffer buffer) {
+		int position = buffer.position();
+		int limit = buffer.limit();
+		if (position == limit) {
+			return 0;
+		}
+		int count = 1;
+		for (int i = position; i < limit; i++) {
+			if (buffer.get(i) == ' ') {
+				count++;
+			}
+		}
+		return count;
+	}
+	
+	/**
+	 * Tests whether the bytes at the current position of the buffer
+	 * consist of the given ASCII keyword followed by either a space or 
+	 * the limit of the buffer. The position of the buffer is not 
+	 * modified.
+	 * 
+	 * @param buffer the buffer to test
+	 * @param keyword the ASCII encoded keyword
+	 * @return true iff the first token of the buffer equals the keyword
+	 */
+	public static final boolean startsWithToken(ByteBuffer buffer, byte[] keyword) {
+		int position = buffer.position();
+		if (buffer.remaining() < keyword.length) {
+			return false;
+		}
+		for (int i = 0; i < keyword.length; i++) {
+			if (buffer.get(position + i) != keyword[i]) {
+				return false;
+			}
+		}
+		int end = position + keyword.length;
+		return end == buffer.limit() || buffer.get(end) == ' ';
+	}
+	
+	/**
+	 * Decodes the remaining bytes of the buffer as US-ASCII String without
+	 * modifying the position of the buffer. This method is meant for
+	 * error messages and logging, not for the processing of each frame.
+	 * 
+	 * @param buffer the buffer to decode
+	 * @return the decoded String
+	 */
+	public static final String toASCIIString(ByteBuffer buffer) {
+		StringBuilder builder = new StringBuilder(buffer.remaining());
+		for (int i = buffer.position(); i < buffer.limit(); i++) {
+			builder.append((char) (buffer.get(i) & 0xff));
+		}
+		return builder.toString();
+	}
+	
 }
@@ -0,0 +1,147 @@
+/*
+ *  Copyright 2006 Simon Raess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.sf.beep4j.internal.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded, lock-free multi-producer/single-consumer ring buffer of 
+ * preallocated entries. A producer claims a sequence number, fills the
+ * entry of that sequence and publishes it. The consumer processes the
+ * published entries in the order of their sequence numbers. No objects
+ * are allocated after construction.
+ * 
+ * <pre>
+ *   long sequence = ring.tryClaim();        // producer
+ *   if (sequence >= 0) {
+ *     ring.get(sequence).set(...);
+ *     ring.publish(sequence);
+ *   }
+ * 
+ *   E entry;                                // consumer
+ *   while ((entry = ring.peek()) != null) {
+ *     process(entry);
+ *     ring.advance();
+ *   }
+ * </pre>
+ * 
+ * <p>At most one thread at a time may act as consumer.</p>
+ * 
+ * @author Simon Raess
+ * @param <E> the type of the entries
+ */
+public final class MpscRingBuffer<E> {
+	
+	private final E[] entries;
+	
+	private final int mask;
+	
+	/**
+	 * The sequence number last published in each slot.
+	 */
+	private final AtomicLongArray published;
+	
+	/**
+	 * The next sequence number to be claimed.
+	 */
+	private final AtomicLong tail = new AtomicLong();
+	
+	/**
+	 * The next sequence number to be consumed. Only written by the consumer.
+	 */
+	private volatile long head;
+	
+	/**
+	 * Creates a new ring buffer holding the given entries.
+	 * 
+	 * @param entries the preallocated entries, the length must be a power of two
+	 */
+	public MpscRingBuffer(E[] entries) {
+		Assert.notNull("entries", entries);
+		if (entries.length == 0 || Integer.bitCount(entries.length) != 1) {
+			throw new IllegalArgumentException("capacity must be a power of two: " 
+					+ entries.length);
+		}
+		this.entries = entries;
+		this.mask = entries.length - 1;
+		this.published = new AtomicLongArray(entries.length);
+		for (int i = 0; i < entries.length; i++) {
+			published.set(i, -1);
+		}
+	}
+	
+	public int getCapacity() {
+		return entries.length;
+	}
+	
+	/**
+	 * Claims the next free slot.
+	 * 
+	 * @return the sequence number of the slot or -1 if the ring is full
+	 */
+	public long tryClaim() {
+		while (true) {
+			long current = tail.get();
+			if (current - head >= entries.length) {
+				return -1;
+			}
+			if (tail.compareAndSet(current, current + 1)) {
+				return current;
+			}
+		}
+	}
+	
+	/**
+	 * Gets the entry of a claimed slot.
+	 * 
+	 * @param sequence the claimed sequence number
+	 * @return the entry to be filled by the producer
+	 */
+	public E get(long sequence) {
+		return entries[(int) sequence & mask];
+	}
+	
+	/**
+	 * Makes the entry of a claimed slot visible to the consumer.
+	 * 
+	 * @param sequence the claimed sequence number
+	 */
+	public void publish(long sequence) {
+		published.set((int) sequence & mask, sequence);
+	}
+	
+	/**
+	 * Gets the next entry to be consumed. Entries claimed later may have
+	 * been published already, but they are only returned in order.
+	 * 
+	 * @return the next entry or null if it has not been published yet
+	 */
+	public E peek() {
+		long current = head;
+		int index = (int) current & mask;
+		return published.get(index) == current ? entries[index] : null;
+	}
+	
+	/**
+	 * Releases the entry returned by {@link #peek()} for reuse by the
+	 * producers.
+	 */
+	public void advance() {
+		head = head + 1;
+	}
+	
+}
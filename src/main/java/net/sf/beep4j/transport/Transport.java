@@ -17,9 +17,13 @@ package net.sf.beep4j.transport;
 
 import java.nio.ByteBuffer;
 
+import net.sf.beep4j.buffer.ReferenceCounted;
+
 /**
  * The Transport interface has to be implemented by the transport
- * layer
+ * layer. The send methods are called concurrently from different
+ * channels; the bytes passed to one call must be written without
+ * being interleaved with those of another call.
  * 
  * @author Simon Raess
  */
@@ -31,6 +35,19 @@ public interface Transport {
 	 * @param buffer the ByteBuffer holding the bytes to be transfered
 	 */
 	void sendBytes(ByteBuffer buffer);
+	
+	/**
+	 * Sends the bytes of all the passed in buffers, in order, to the other
+	 * peer. Transports should write them with a single gathering write
+	 * where possible. The buffers may be shared with the caller, so 
+	 * the transport must not modify their content. If <var>owner</var> 
+	 * is not null, the transport must release it as soon as it does not 
+	 * need the buffers anymore, i.e. after the bytes have been written.
+	 * 
+	 * @param buffers the ByteBuffers holding the bytes to be transfered
+	 * @param owner the owner of the buffers, may be null
+	 */
+	void sendBytes(ByteBuffer[] buffers, ReferenceCounted owner);
 
 	/**
 	 * Instructs the transport layer to close the connection.
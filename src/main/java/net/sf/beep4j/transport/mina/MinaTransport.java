@@ -15,16 +15,27 @@
  */
 package net.sf.beep4j.transport.mina;
 
+import net.sf.beep4j.AckStrategy;
+import net.sf.beep4j.ReceiveWindowTuning;
 import net.sf.beep4j.SessionHandler;
+import net.sf.beep4j.SillyWindowAvoidance;
+import net.sf.beep4j.WriteLimits;
+import net.sf.beep4j.buffer.BufferAllocator;
+import net.sf.beep4j.buffer.HeapBufferAllocator;
+import net.sf.beep4j.buffer.ReferenceCounted;
+import net.sf.beep4j.dispatch.Dispatcher;
+import net.sf.beep4j.dispatch.SynchronousDispatcher;
 import net.sf.beep4j.internal.SessionImpl;
-import net.sf.beep4j.internal.TransportMapping;
 import net.sf.beep4j.internal.tcp.TCPMapping;
 import net.sf.beep4j.transport.Transport;
 import net.sf.beep4j.transport.TransportContext;
 
 import org.apache.mina.common.ByteBuffer;
+import org.apache.mina.common.IoFuture;
+import org.apache.mina.common.IoFutureListener;
 import org.apache.mina.common.IoHandlerAdapter;
 import org.apache.mina.common.IoSession;
+import org.apache.mina.common.WriteFuture;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -36,20 +47,174 @@ public class MinaTransport extends IoHandlerAdapter implements Transport {
 	
 	private TransportContext context;
 	
+	private final boolean zeroCopy;
+	
+	private final TCPMapping mapping;
+	
 	public MinaTransport(boolean initiator, SessionHandler sessionHandler) {
 	    this(initiator, sessionHandler, TCPMapping.DEFAULT_BUFFER_SIZE);
 	}
         
 	public MinaTransport(boolean initiator, SessionHandler sessionHandler, int receiveBufferSize) {
-		TransportMapping mapping = new TCPMapping(this, null, receiveBufferSize);
-		context = new SessionImpl(initiator, sessionHandler, mapping);
+		this(initiator, sessionHandler, receiveBufferSize, false);
+	}
+	
+	/**
+	 * Creates a new MinaTransport. If <var>zeroCopy</var> is true, the
+	 * received MINA buffers are acquired and never returned to the MINA
+	 * buffer pool. Frame payloads can then be passed to the application
+	 * without copying them.
+	 * 
+	 * @param initiator whether this is the initiating peer
+	 * @param sessionHandler the SessionHandler of the application
+	 * @param receiveBufferSize the receive buffer size of the channels
+	 * @param zeroCopy whether received buffers are shared with the session
+	 */
+	public MinaTransport(boolean initiator, SessionHandler sessionHandler, int receiveBufferSize, boolean zeroCopy) {
+		this(initiator, sessionHandler, receiveBufferSize, zeroCopy, HeapBufferAllocator.INSTANCE);
+	}
+	
+	/**
+	 * Creates a new MinaTransport whose session allocates its buffers 
+	 * from the given allocator.
+	 * 
+	 * @param initiator whether this is the initiating peer
+	 * @param sessionHandler the SessionHandler of the application
+	 * @param receiveBufferSize the receive buffer size of the channels
+	 * @param zeroCopy whether received buffers are shared with the session
+	 * @param allocator the BufferAllocator of the session
+	 */
+	public MinaTransport(boolean initiator, SessionHandler sessionHandler, int receiveBufferSize, 
+			boolean zeroCopy, BufferAllocator allocator) {
+		this(initiator, sessionHandler, receiveBufferSize, zeroCopy, allocator, SynchronousDispatcher.INSTANCE);
+	}
+	
+	/**
+	 * Creates a new MinaTransport whose session delivers received messages
+	 * through the given dispatcher instead of the MINA I/O thread.
+	 * 
+	 * @param initiator whether this is the initiating peer
+	 * @param sessionHandler the SessionHandler of the application
+	 * @param receiveBufferSize the receive buffer size of the channels
+	 * @param zeroCopy whether received buffers are shared with the session
+	 * @param allocator the BufferAllocator of the session
+	 * @param dispatcher the Dispatcher of the session
+	 */
+	public MinaTransport(boolean initiator, SessionHandler sessionHandler, int receiveBufferSize, 
+			boolean zeroCopy, BufferAllocator allocator, Dispatcher dispatcher) {
+		this(initiator, sessionHandler, receiveBufferSize, zeroCopy, allocator, dispatcher, WriteLimits.DEFAULT);
+	}
+	
+	/**
+	 * Creates a new MinaTransport that limits the outbound data buffered
+	 * for peers that do not keep up.
+	 * 
+	 * @param initiator whether this is the initiating peer
+	 * @param sessionHandler the SessionHandler of the application
+	 * @param receiveBufferSize the receive buffer size of the channels
+	 * @param zeroCopy whether received buffers are shared with the session
+	 * @param allocator the BufferAllocator of the session
+	 * @param dispatcher the Dispatcher of the session
+	 * @param limits the limits for pending outbound data
+	 */
+	public MinaTransport(boolean initiator, SessionHandler sessionHandler, int receiveBufferSize, 
+			boolean zeroCopy, BufferAllocator allocator, Dispatcher dispatcher, WriteLimits limits) {
+		this.mapping = new TCPMapping(this, null, 
+				TCPMapping.DEFAULT_BUFFER_SIZE, receiveBufferSize, limits);
+		mapping.setBufferAllocator(allocator);
+		this.zeroCopy = zeroCopy;
+		this.context = new SessionImpl(initiator, sessionHandler, mapping, zeroCopy, 
+				allocator, dispatcher, limits.getPolicy());
+	}
+	
+	/**
+	 * Sets the maximum payload size of the frames sent by the session
+	 * of this transport.
+	 * 
+	 * @param maxFrameSize the maximum payload size of a frame
+	 * @see TCPMapping#setMaxFrameSize(int)
+	 */
+	public void setMaxFrameSize(int maxFrameSize) {
+		mapping.setMaxFrameSize(maxFrameSize);
+	}
+	
+	/**
+	 * Sets the silly window avoidance policy of the session of this 
+	 * transport.
+	 * 
+	 * @param policy the silly window avoidance policy
+	 * @see TCPMapping#setSillyWindowAvoidance(SillyWindowAvoidance)
+	 */
+	public void setSillyWindowAvoidance(SillyWindowAvoidance policy) {
+		mapping.setSillyWindowAvoidance(policy);
 	}
 	
-	public void sendBytes(java.nio.ByteBuffer buffer) {
+	/**
+	 * Enables the autotuning of the receive windows of the session of 
+	 * this transport. The receive buffer size passed to the constructor
+	 * is the minimum window size.
+	 * 
+	 * @param tuning the bounds of the autotuning
+	 * @see TCPMapping#setReceiveWindowTuning(ReceiveWindowTuning)
+	 */
+	public void setReceiveWindowTuning(ReceiveWindowTuning tuning) {
+		mapping.setReceiveWindowTuning(tuning);
+	}
+	
+	/**
+	 * Sets the strategy that determines when the SEQ frames of the 
+	 * session of this transport are written.
+	 * 
+	 * @param strategy the ack strategy
+	 * @see TCPMapping#setAckStrategy(AckStrategy)
+	 */
+	public void setAckStrategy(AckStrategy strategy) {
+		mapping.setAckStrategy(strategy);
+	}
+	
+	/**
+	 * Enables or disables the batching of the writes issued while the
+	 * session of this transport processes received data.
+	 * 
+	 * @param writeBatching whether writes are batched per receive cycle
+	 * @see TCPMapping#setWriteBatching(boolean)
+	 */
+	public void setWriteBatching(boolean writeBatching) {
+		mapping.setWriteBatching(writeBatching);
+	}
+	
+	public synchronized void sendBytes(java.nio.ByteBuffer buffer) {
 		LOG.info("send " + buffer.remaining() + " bytes");
 		session.write(ByteBuffer.wrap(buffer));
 	}
 	
+	/*
+	 * MINA 1.x has no gathering write, the buffers are therefore written 
+	 * one after the other. They are wrapped, not copied, and MINA keeps
+	 * the order of the writes of a session. The owner is released when
+	 * the last buffer has been written. Different channels send 
+	 * concurrently, the writes of one frame must not be interleaved with
+	 * those of another.
+	 */
+	public synchronized void sendBytes(java.nio.ByteBuffer[] buffers, final ReferenceCounted owner) {
+		LOG.info("send " + buffers.length + " buffers");
+		WriteFuture future = null;
+		for (int i = 0; i < buffers.length; i++) {
+			future = session.write(ByteBuffer.wrap(buffers[i]));
+		}
+		if (owner != null) {
+			if (future == null) {
+				owner.release();
+			} else {
+				future.addListener(new IoFutureListener() {
+					public void operationComplete(IoFuture future) {
+						owner.release();
+					}
+				});
+			}
+		}
+	}
+	
 	public void closeTransport() {
 		LOG.info("close transport");
 		session.close();
@@ -71,6 +236,10 @@ public class MinaTransport extends IoHandlerAdapter implements Transport {
 	public void messageReceived(IoSession session, Object message) throws Exception {
 		ByteBuffer buffer = (ByteBuffer) message;
 		LOG.info("received " + buffer.remaining() + " bytes in transport layer");
+		if (zeroCopy) {
+			// keep MINA from recycling the buffer, the payloads may still refer to it
+			buffer.acquire();
+		}
 		context.messageReceived(buffer.buf());
 	}
 	
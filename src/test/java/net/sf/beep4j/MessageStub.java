@@ -53,5 +53,9 @@ public class MessageStub implements Message {
 	public ByteBuffer asByteBuffer() {
 		return ByteBuffer.allocate(0);
 	}
+	
+	public ByteBuffer[] asByteBuffers() {
+		return new ByteBuffer[] { asByteBuffer() };
+	}
 
 }
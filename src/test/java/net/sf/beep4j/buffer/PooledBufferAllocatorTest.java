@@ -0,0 +1,91 @@
+/*
+ *  Copyright 2006 Simon Raess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.sf.beep4j.buffer;
+
+import junit.framework.TestCase;
+
+public class PooledBufferAllocatorTest extends TestCase {
+	
+	public void testAllocate() throws Exception {
+		PooledBufferAllocator allocator = new PooledBufferAllocator(false, 64, 1024, 10);
+		ManagedBuffer buffer = allocator.allocate(100);
+		assertEquals(0, buffer.getBuffer().position());
+		assertEquals(100, buffer.getBuffer().limit());
+		assertEquals(128, buffer.getBuffer().capacity());
+		assertEquals(1, buffer.getReferenceCount());
+	}
+	
+	public void testAllocateDirect() throws Exception {
+		PooledBufferAllocator allocator = new PooledBufferAllocator(true);
+		assertTrue(allocator.allocate(10).getBuffer().isDirect());
+	}
+	
+	public void testRecycle() throws Exception {
+		PooledBufferAllocator allocator = new PooledBufferAllocator(false, 64, 1024, 10);
+		ManagedBuffer buffer = allocator.allocate(100);
+		buffer.getBuffer().put((byte) 1);
+		buffer.release();
+		assertEquals(1, allocator.getPooledCount());
+		
+		ManagedBuffer recycled = allocator.allocate(70);
+		assertSame(buffer, recycled);
+		assertEquals(0, recycled.getBuffer().position());
+		assertEquals(70, recycled.getBuffer().limit());
+		assertEquals(1, recycled.getReferenceCount());
+		assertEquals(0, allocator.getPooledCount());
+	}
+	
+	public void testRetain() throws Exception {
+		PooledBufferAllocator allocator = new PooledBufferAllocator(false);
+		ManagedBuffer buffer = allocator.allocate(100);
+		buffer.retain();
+		buffer.release();
+		assertEquals(0, allocator.getPooledCount());
+		buffer.release();
+		assertEquals(1, allocator.getPooledCount());
+	}
+	
+	public void testReleaseTwice() throws Exception {
+		PooledBufferAllocator allocator = new PooledBufferAllocator(false);
+		ManagedBuffer buffer = allocator.allocate(100);
+		buffer.release();
+		try {
+			buffer.release();
+			fail("releasing a released buffer must fail");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		assertEquals(1, allocator.getPooledCount());
+	}
+	
+	public void testLargeBuffersAreNotPooled() throws Exception {
+		PooledBufferAllocator allocator = new PooledBufferAllocator(false, 64, 1024, 10);
+		ManagedBuffer buffer = allocator.allocate(2000);
+		assertEquals(2000, buffer.getBuffer().capacity());
+		buffer.release();
+		assertEquals(0, allocator.getPooledCount());
+	}
+	
+	public void testMaxPooled() throws Exception {
+		PooledBufferAllocator allocator = new PooledBufferAllocator(false, 64, 1024, 1);
+		ManagedBuffer b1 = allocator.allocate(100);
+		ManagedBuffer b2 = allocator.allocate(100);
+		b1.release();
+		b2.release();
+		assertEquals(1, allocator.getPooledCount());
+	}
+	
+}
@@ -0,0 +1,98 @@
+/*
+ *  Copyright 2006 Simon Raess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.sf.beep4j.dispatch;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
+/**
+ * Compares the synchronous delivery on the transport thread with the
+ * LeaderFollowersDispatcher. A single feeder thread, playing the role of
+ * the transport, passes events for 1, 4 and 16 busy channels round robin
+ * to the dispatcher. Each event burns a fixed amount of CPU, like a 
+ * ChannelHandler processing a message. Run with
+ * 
+ * <pre>
+ *   java net.sf.beep4j.dispatch.DispatcherBenchmark [threads] [events] [work]
+ * </pre>
+ * 
+ * @author Simon Raess
+ */
+public class DispatcherBenchmark {
+	
+	private static final int[] CHANNELS = { 1, 4, 16 };
+	
+	private static volatile long sink;
+	
+	public static void main(String[] args) throws Exception {
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) 
+				: Runtime.getRuntime().availableProcessors();
+		int events = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+		int work = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+		
+		System.out.println("threads=" + threads + ", events=" + events + ", work=" + work);
+		
+		// warm up
+		run(SynchronousDispatcher.INSTANCE, 4, events / 4, work);
+		LeaderFollowersDispatcher pool = new LeaderFollowersDispatcher(threads);
+		try {
+			run(pool, 4, events / 4, work);
+			
+			System.out.println("channels   synchronous   leader/followers   (events/s)");
+			for (int channels : CHANNELS) {
+				double sync = run(SynchronousDispatcher.INSTANCE, channels, events, work);
+				double lf = run(pool, channels, events, work);
+				System.out.println(String.format("%8d   %11.0f   %16.0f", channels, sync, lf));
+			}
+		} finally {
+			pool.dispose();
+		}
+	}
+	
+	private static double run(Dispatcher dispatcher, int channels, int events, final int work) 
+			throws InterruptedException {
+		Executor[] queues = new Executor[channels];
+		for (int i = 0; i < channels; i++) {
+			queues[i] = dispatcher.createQueue();
+		}
+		
+		final CountDownLatch done = new CountDownLatch(events);
+		Runnable event = new Runnable() {
+			public void run() {
+				burn(work);
+				done.countDown();
+			}
+		};
+		
+		long start = System.nanoTime();
+		for (int i = 0; i < events; i++) {
+			queues[i % channels].execute(event);
+		}
+		done.await();
+		long elapsed = System.nanoTime() - start;
+		
+		return events * 1e9 / elapsed;
+	}
+	
+	private static void burn(int work) {
+		long value = work;
+		for (int i = 0; i < work; i++) {
+			value = value * 6364136223846793005L + 1442695040888963407L;
+		}
+		sink = value;
+	}
+	
+}
@@ -0,0 +1,107 @@
+/*
+ *  Copyright 2006 Simon Raess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.sf.beep4j.dispatch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+public class ExecutorDispatcherTest extends TestCase {
+	
+	private ExecutorService executor;
+	
+	@Override
+	protected void setUp() throws Exception {
+		executor = Executors.newCachedThreadPool();
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		executor.shutdownNow();
+	}
+	
+	public void testOrderWithinChannel() throws Exception {
+		Dispatcher dispatcher = new ExecutorDispatcher(executor);
+		final int events = 1000;
+		final CountDownLatch done = new CountDownLatch(events);
+		final List<Integer> received = Collections.synchronizedList(new ArrayList<Integer>());
+		Executor queue = dispatcher.createQueue();
+		
+		for (int e = 0; e < events; e++) {
+			final int value = e;
+			queue.execute(new Runnable() {
+				public void run() {
+					received.add(value);
+					done.countDown();
+				}
+			});
+		}
+		
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		for (int e = 0; e < events; e++) {
+			assertEquals(e, received.get(e).intValue());
+		}
+	}
+	
+	public void testBlockedChannelDoesNotStallOthers() throws Exception {
+		Dispatcher dispatcher = new ExecutorDispatcher(executor);
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(1);
+		
+		dispatcher.createQueue().execute(new Runnable() {
+			public void run() {
+				try {
+					release.await(10, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					// ignored
+				}
+			}
+		});
+		dispatcher.createQueue().execute(new Runnable() {
+			public void run() {
+				done.countDown();
+			}
+		});
+		
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		release.countDown();
+	}
+	
+	public void testVirtualThreadDispatcher() throws Exception {
+		Dispatcher dispatcher;
+		try {
+			dispatcher = ExecutorDispatcher.newVirtualThreadDispatcher();
+		} catch (UnsupportedOperationException e) {
+			// runtime without virtual threads
+			return;
+		}
+		final CountDownLatch done = new CountDownLatch(1);
+		dispatcher.createQueue().execute(new Runnable() {
+			public void run() {
+				done.countDown();
+			}
+		});
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+	}
+	
+}
@@ -0,0 +1,165 @@
+/*
+ *  Copyright 2006 Simon Raess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.sf.beep4j.dispatch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+public class LeaderFollowersDispatcherTest extends TestCase {
+	
+	private LeaderFollowersDispatcher dispatcher;
+	
+	@Override
+	protected void setUp() throws Exception {
+		dispatcher = new LeaderFollowersDispatcher(4, 2);
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		dispatcher.dispose();
+	}
+	
+	public void testOrderWithinChannel() throws Exception {
+		final int channels = 8;
+		final int events = 500;
+		final CountDownLatch done = new CountDownLatch(channels * events);
+		List<List<Integer>> received = new ArrayList<List<Integer>>();
+		
+		List<Executor> queues = new ArrayList<Executor>();
+		for (int i = 0; i < channels; i++) {
+			queues.add(dispatcher.createQueue());
+			received.add(Collections.synchronizedList(new ArrayList<Integer>()));
+		}
+		
+		for (int e = 0; e < events; e++) {
+			for (int i = 0; i < channels; i++) {
+				final List<Integer> list = received.get(i);
+				final int value = e;
+				queues.get(i).execute(new Runnable() {
+					public void run() {
+						list.add(value);
+						done.countDown();
+					}
+				});
+			}
+		}
+		
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		for (List<Integer> list : received) {
+			assertEquals(events, list.size());
+			for (int e = 0; e < events; e++) {
+				assertEquals(e, list.get(e).intValue());
+			}
+		}
+	}
+	
+	public void testNoConcurrencyWithinChannel() throws Exception {
+		final int events = 200;
+		final CountDownLatch done = new CountDownLatch(events);
+		final int[] active = new int[1];
+		final boolean[] overlap = new boolean[1];
+		Executor queue = dispatcher.createQueue();
+		
+		for (int e = 0; e < events; e++) {
+			queue.execute(new Runnable() {
+				public void run() {
+					synchronized (active) {
+						if (++active[0] > 1) {
+							overlap[0] = true;
+						}
+					}
+					Thread.yield();
+					synchronized (active) {
+						active[0]--;
+					}
+					done.countDown();
+				}
+			});
+		}
+		
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		assertFalse(overlap[0]);
+	}
+	
+	public void testChannelsInParallel() throws Exception {
+		// each event blocks until all channels have started an event
+		final int channels = 4;
+		final CountDownLatch started = new CountDownLatch(channels);
+		final CountDownLatch done = new CountDownLatch(channels);
+		for (int i = 0; i < channels; i++) {
+			dispatcher.createQueue().execute(new Runnable() {
+				public void run() {
+					started.countDown();
+					try {
+						if (started.await(10, TimeUnit.SECONDS)) {
+							done.countDown();
+						}
+					} catch (InterruptedException e) {
+						// fail below
+					}
+				}
+			});
+		}
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+	}
+	
+	public void testExceptionDoesNotStopChannel() throws Exception {
+		final CountDownLatch done = new CountDownLatch(1);
+		Executor queue = dispatcher.createQueue();
+		queue.execute(new Runnable() {
+			public void run() {
+				throw new RuntimeException("expected");
+			}
+		});
+		queue.execute(new Runnable() {
+			public void run() {
+				done.countDown();
+			}
+		});
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+	}
+	
+	public void testDispose() throws Exception {
+		Executor queue = dispatcher.createQueue();
+		dispatcher.dispose();
+		try {
+			queue.execute(new Runnable() {
+				public void run() {
+				}
+			});
+			fail("disposed dispatcher must not accept events");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+	
+	public void testSynchronousDispatcher() throws Exception {
+		final Thread[] thread = new Thread[1];
+		SynchronousDispatcher.INSTANCE.createQueue().execute(new Runnable() {
+			public void run() {
+				thread[0] = Thread.currentThread();
+			}
+		});
+		assertSame(Thread.currentThread(), thread[0]);
+	}
+	
+}
@@ -0,0 +1,146 @@
+/*
+ *  Copyright 2006 Simon Raess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.sf.beep4j.flow;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import net.sf.beep4j.Message;
+import net.sf.beep4j.MessageStub;
+
+public class AnswerPublisherTest extends TestCase {
+	
+	private AnswerPublisher publisher;
+	
+	private RecordingSubscriber subscriber;
+	
+	@Override
+	protected void setUp() throws Exception {
+		publisher = new AnswerPublisher();
+		subscriber = new RecordingSubscriber();
+	}
+	
+	public void testAnswersDeliveredOnDemand() throws Exception {
+		Message m1 = new MessageStub();
+		Message m2 = new MessageStub();
+		publisher.subscribe(subscriber);
+		publisher.receiveANS(m1);
+		publisher.receiveANS(m2);
+		publisher.receiveNUL();
+		assertTrue(subscriber.items.isEmpty());
+		
+		subscriber.subscription.request(1);
+		assertEquals(1, subscriber.items.size());
+		assertSame(m1, subscriber.items.get(0));
+		assertFalse(subscriber.completed);
+		
+		subscriber.subscription.request(1);
+		assertEquals(2, subscriber.items.size());
+		assertSame(m2, subscriber.items.get(1));
+		assertTrue(subscriber.completed);
+	}
+	
+	public void testSubscribeAfterCompletion() throws Exception {
+		publisher.receiveANS(new MessageStub());
+		publisher.receiveNUL();
+		subscriber.initialRequest = Long.MAX_VALUE;
+		publisher.subscribe(subscriber);
+		assertEquals(1, subscriber.items.size());
+		assertTrue(subscriber.completed);
+	}
+	
+	public void testRequestFromOnNext() throws Exception {
+		subscriber.initialRequest = 1;
+		subscriber.requestOnNext = true;
+		publisher.subscribe(subscriber);
+		for (int i = 0; i < 3; i++) {
+			publisher.receiveANS(new MessageStub());
+		}
+		publisher.receiveNUL();
+		assertEquals(3, subscriber.items.size());
+		assertTrue(subscriber.completed);
+	}
+	
+	public void testReceiveRPY() throws Exception {
+		Message message = new MessageStub();
+		subscriber.initialRequest = 1;
+		publisher.subscribe(subscriber);
+		publisher.receiveRPY(message);
+		assertSame(message, subscriber.items.get(0));
+		assertTrue(subscriber.completed);
+	}
+	
+	public void testReceiveERR() throws Exception {
+		Message message = new MessageStub();
+		publisher.subscribe(subscriber);
+		publisher.receiveERR(message);
+		assertTrue(subscriber.error instanceof ErrorReplyException);
+		assertSame(message, ((ErrorReplyException) subscriber.error).getReply());
+	}
+	
+	public void testNonPositiveRequest() throws Exception {
+		publisher.subscribe(subscriber);
+		subscriber.subscription.request(0);
+		assertTrue(subscriber.error instanceof IllegalArgumentException);
+	}
+	
+	public void testCancel() throws Exception {
+		publisher.subscribe(subscriber);
+		publisher.receiveANS(new MessageStub());
+		subscriber.subscription.cancel();
+		subscriber.subscription.request(1);
+		publisher.receiveNUL();
+		assertTrue(subscriber.items.isEmpty());
+		assertFalse(subscriber.completed);
+	}
+	
+	public void testSecondSubscriberRejected() throws Exception {
+		publisher.subscribe(subscriber);
+		RecordingSubscriber second = new RecordingSubscriber();
+		publisher.subscribe(second);
+		assertTrue(second.error instanceof IllegalStateException);
+		assertNull(subscriber.error);
+	}
+	
+	private static class RecordingSubscriber implements Subscriber<Message> {
+		private Subscription subscription;
+		private long initialRequest;
+		private boolean requestOnNext;
+		private final List<Message> items = new ArrayList<Message>();
+		private boolean completed;
+		private Throwable error;
+		public void onSubscribe(Subscription subscription) {
+			this.subscription = subscription;
+			if (initialRequest > 0) {
+				subscription.request(initialRequest);
+			}
+		}
+		public void onNext(Message item) {
+			items.add(item);
+			if (requestOnNext) {
+				subscription.request(1);
+			}
+		}
+		public void onError(Throwable throwable) {
+			error = throwable;
+		}
+		public void onComplete() {
+			completed = true;
+		}
+	}
+	
+}
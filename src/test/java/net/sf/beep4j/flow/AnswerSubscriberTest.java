@@ -0,0 +1,143 @@
+/*
+ *  Copyright 2006 Simon Raess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.sf.beep4j.flow;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import net.sf.beep4j.Message;
+import net.sf.beep4j.MessageBuilder;
+import net.sf.beep4j.MessageStub;
+import net.sf.beep4j.ResponseHandler;
+import net.sf.beep4j.buffer.ReferenceCounted;
+import net.sf.beep4j.internal.message.DefaultMessage;
+import net.sf.beep4j.internal.message.DefaultMessageBuilder;
+import net.sf.beep4j.internal.message.MessageHeader;
+
+public class AnswerSubscriberTest extends TestCase {
+	
+	private RecordingResponseHandler handler;
+	
+	private RecordingSubscription subscription;
+	
+	@Override
+	protected void setUp() throws Exception {
+		handler = new RecordingResponseHandler();
+		subscription = new RecordingSubscription();
+	}
+	
+	public void testRequestsWhenSent() throws Exception {
+		AnswerSubscriber subscriber = new AnswerSubscriber(handler, 2);
+		subscriber.onSubscribe(subscription);
+		assertEquals(2, subscription.requested);
+		
+		subscriber.onNext(new MessageStub());
+		subscriber.onNext(new MessageStub());
+		assertEquals("ANS ANS ", handler.calls.toString());
+		assertEquals(2, subscription.requested);
+		
+		handler.callbacks.remove(0).run();
+		assertEquals(3, subscription.requested);
+		
+		subscriber.onComplete();
+		assertEquals("ANS ANS NUL ", handler.calls.toString());
+	}
+	
+	public void testPassesOwnershipOfAnswers() throws Exception {
+		CountingOwner owner = new CountingOwner();
+		Message message = new DefaultMessage(new MessageHeader(), ByteBuffer.allocate(10), owner);
+		AnswerSubscriber subscriber = new AnswerSubscriber(handler);
+		subscriber.onSubscribe(subscription);
+		
+		subscriber.onNext(message);
+		assertEquals(1, owner.references);
+		
+		handler.callbacks.remove(0).run();
+		assertEquals(1, owner.references);
+		assertEquals(2, subscription.requested);
+	}
+	
+	public void testSecondSubscriptionCancelled() throws Exception {
+		AnswerSubscriber subscriber = new AnswerSubscriber(handler);
+		subscriber.onSubscribe(subscription);
+		RecordingSubscription second = new RecordingSubscription();
+		subscriber.onSubscribe(second);
+		assertTrue(second.cancelled);
+		assertEquals(0, second.requested);
+	}
+	
+	public void testErrorBeforeFirstAnswer() throws Exception {
+		AnswerSubscriber subscriber = new AnswerSubscriber(handler);
+		subscriber.onSubscribe(subscription);
+		subscriber.onError(new RuntimeException("failed"));
+		assertEquals("ERR ", handler.calls.toString());
+	}
+	
+	public void testErrorAfterAnswer() throws Exception {
+		AnswerSubscriber subscriber = new AnswerSubscriber(handler);
+		subscriber.onSubscribe(subscription);
+		subscriber.onNext(new MessageStub());
+		subscriber.onError(new RuntimeException("failed"));
+		assertEquals("ANS NUL ", handler.calls.toString());
+	}
+	
+	private static class CountingOwner implements ReferenceCounted {
+		private int references = 1;
+		public void retain() {
+			references++;
+		}
+		public void release() {
+			references--;
+		}
+	}
+	
+	private static class RecordingSubscription implements Subscription {
+		private long requested;
+		private boolean cancelled;
+		public void request(long n) {
+			requested += n;
+		}
+		public void cancel() {
+			cancelled = true;
+		}
+	}
+	
+	private static class RecordingResponseHandler implements ResponseHandler {
+		private final StringBuilder calls = new StringBuilder();
+		private final List<Runnable> callbacks = new ArrayList<Runnable>();
+		public MessageBuilder createMessageBuilder() {
+			return new DefaultMessageBuilder();
+		}
+		public void sendANS(Message message) {
+			calls.append("ANS ");
+		}
+		public void sendNUL() {
+			calls.append("NUL ");
+		}
+		public void sendERR(Message message) {
+			calls.append("ERR ");
+		}
+		public void sendRPY(Message message) {
+			calls.append("RPY ");
+		}
+		public void whenSent(Runnable callback) {
+			callbacks.add(callback);
+		}
+	}
+	
+}
@@ -0,0 +1,120 @@
+/*
+ *  Copyright 2006 Simon Raess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.sf.beep4j.internal;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import junit.framework.TestCase;
+import net.sf.beep4j.ProtocolException;
+import net.sf.beep4j.internal.DataHeader.ANSHeader;
+
+public class DataHeaderTest extends TestCase {
+	
+	private static final Charset CHARSET = Charset.forName("US-ASCII");
+	
+	private static ByteBuffer encode(String header) {
+		return CHARSET.encode(header);
+	}
+	
+	public void testIsDataHeader() throws Exception {
+		assertTrue(DataHeader.isDataHeader(encode("MSG 0 0 . 0 100")));
+		assertTrue(DataHeader.isDataHeader(encode("RPY 0 0 . 0 100")));
+		assertTrue(DataHeader.isDataHeader(encode("ERR 0 0 . 0 100")));
+		assertTrue(DataHeader.isDataHeader(encode("ANS 0 0 . 0 100 1")));
+		assertTrue(DataHeader.isDataHeader(encode("NUL 0 0 . 0 0")));
+		assertFalse(DataHeader.isDataHeader(encode("SEQ 0 0 4096")));
+		assertFalse(DataHeader.isDataHeader(encode("MSGX 0 0 . 0 100")));
+		assertFalse(DataHeader.isDataHeader(encode("MS")));
+	}
+	
+	public void testParseHeader() throws Exception {
+		ByteBuffer buffer = encode("RPY 1 2 * 4294967295 100");
+		DataHeader header = DataHeader.parseHeader(buffer);
+		assertEquals(new DataHeader(MessageType.RPY, 1, 2, true, 4294967295L, 100), header);
+		assertFalse(buffer.hasRemaining());
+	}
+	
+	public void testParseANSHeader() throws Exception {
+		DataHeader header = DataHeader.parseHeader(encode("ANS 1 2 . 3 4 5"));
+		assertTrue(header instanceof ANSHeader);
+		assertEquals(MessageType.ANS, header.getType());
+		assertEquals(1, header.getChannel());
+		assertEquals(2, header.getMessageNumber());
+		assertFalse(header.isIntermediate());
+		assertEquals(3, header.getSequenceNumber());
+		assertEquals(4, header.getPayloadSize());
+		assertEquals(5, ((ANSHeader) header).getAnswerNumber());
+	}
+	
+	public void testParseHeaderNonZeroPosition() throws Exception {
+		ByteBuffer buffer = encode("xxxMSG 0 1 . 2 3");
+		buffer.position(3);
+		DataHeader header = DataHeader.parseHeader(buffer);
+		assertEquals(new DataHeader(MessageType.MSG, 0, 1, false, 2, 3), header);
+	}
+	
+	public void testParseHeaderInvalidTokenCount() throws Exception {
+		assertInvalid("MSG 0 0 . 0");
+		assertInvalid("MSG 0 0 . 0 100 1");
+		assertInvalid("ANS 0 0 . 0 100");
+	}
+	
+	public void testParseHeaderInvalidValues() throws Exception {
+		assertInvalid("MSG a 0 . 0 100");
+		assertInvalid("MSG 0 0 . 0 -1");
+		assertInvalid("MSG 2147483648 0 . 0 100");
+		assertInvalid("MSG 0 0 . 4294967296 100");
+		assertInvalid("MSG 0 0 x 0 100");
+		assertInvalid("MSG 0 0 .. 0 100");
+		assertInvalid("XYZ 0 0 . 0 100");
+	}
+	
+	public void testAsByteBuffer() throws Exception {
+		DataHeader header = new DataHeader(MessageType.MSG, 0, 1, false, 0, 10);
+		assertEquals(encode("MSG 0 1 . 0 10\r\n"), header.asByteBuffer());
+		
+		header = new DataHeader(MessageType.RPY, 2147483647, 10, true, 4294967295L, 1000);
+		assertEquals(encode("RPY 2147483647 10 * 4294967295 1000\r\n"), header.asByteBuffer());
+	}
+	
+	public void testANSHeaderAsByteBuffer() throws Exception {
+		DataHeader header = new ANSHeader(1, 2, true, 3, 4, 50);
+		assertEquals(encode("ANS 1 2 * 3 4 50\r\n"), header.asByteBuffer());
+		assertEquals(18, header.getEncodedLength());
+	}
+	
+	public void testWriteTo() throws Exception {
+		DataHeader header = new DataHeader(MessageType.ERR, 5, 99, false, 100, 0);
+		ByteBuffer buffer = ByteBuffer.allocate(50);
+		buffer.put((byte) 'x');
+		header.writeTo(buffer);
+		assertEquals(1 + header.getEncodedLength(), buffer.position());
+		buffer.flip();
+		buffer.get();
+		assertEquals(encode("ERR 5 99 . 100 0\r\n"), buffer);
+	}
+	
+	private void assertInvalid(String header) {
+		try {
+			DataHeader.parseHeader(encode(header));
+			fail("header '" + header + "' must be rejected");
+		} catch (ProtocolException e) {
+			// expected
+		}
+	}
+	
+}
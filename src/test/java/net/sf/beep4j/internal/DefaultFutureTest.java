@@ -0,0 +1,133 @@
+/*
+ *  Copyright 2006 Simon Raess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.sf.beep4j.internal;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import junit.framework.TestCase;
+import net.sf.beep4j.BeepFuture;
+import net.sf.beep4j.FutureListener;
+
+public class DefaultFutureTest extends TestCase {
+	
+	private static final Executor DIRECT = new Executor() {
+		public void execute(Runnable command) {
+			command.run();
+		}
+	};
+	
+	public void testSetValue() throws Exception {
+		DefaultFuture<String> future = new DefaultFuture<String>();
+		assertFalse(future.isDone());
+		assertTrue(future.setValue("abc"));
+		assertTrue(future.isDone());
+		assertFalse(future.isCancelled());
+		assertEquals("abc", future.get());
+		assertFalse(future.setValue("def"));
+		assertFalse(future.setFailure(new RuntimeException()));
+		assertEquals("abc", future.get(1, TimeUnit.MILLISECONDS));
+	}
+	
+	public void testSetFailure() throws Exception {
+		DefaultFuture<String> future = new DefaultFuture<String>();
+		RuntimeException failure = new RuntimeException();
+		assertTrue(future.setFailure(failure));
+		try {
+			future.get();
+			fail("get must throw ExecutionException");
+		} catch (ExecutionException e) {
+			assertSame(failure, e.getCause());
+		}
+	}
+	
+	public void testCancel() throws Exception {
+		DefaultFuture<String> future = new DefaultFuture<String>();
+		assertTrue(future.cancel(false));
+		assertTrue(future.isCancelled());
+		assertFalse(future.setValue("abc"));
+		try {
+			future.get();
+			fail("get must throw CancellationException");
+		} catch (CancellationException e) {
+			// expected
+		}
+	}
+	
+	public void testGetTimeout() throws Exception {
+		DefaultFuture<String> future = new DefaultFuture<String>();
+		try {
+			future.get(10, TimeUnit.MILLISECONDS);
+			fail("get must time out");
+		} catch (TimeoutException e) {
+			// expected
+		}
+	}
+	
+	public void testGetBlocksUntilCompleted() throws Exception {
+		final DefaultFuture<String> future = new DefaultFuture<String>();
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				future.setValue("abc");
+			}
+		};
+		thread.start();
+		assertEquals("abc", future.get(5, TimeUnit.SECONDS));
+		thread.join();
+	}
+	
+	public void testListenerRunsOnExecutor() throws Exception {
+		final int[] executed = new int[1];
+		final int[] notified = new int[1];
+		Executor executor = new Executor() {
+			public void execute(Runnable command) {
+				executed[0]++;
+				command.run();
+			}
+		};
+		DefaultFuture<String> future = new DefaultFuture<String>();
+		future.addListener(new FutureListener<String>() {
+			public void operationComplete(BeepFuture<String> f) {
+				notified[0]++;
+			}
+		}, executor);
+		assertEquals(0, notified[0]);
+		future.setValue("abc");
+		assertEquals(1, executed[0]);
+		assertEquals(1, notified[0]);
+	}
+	
+	public void testListenerAddedAfterCompletion() throws Exception {
+		final String[] result = new String[1];
+		DefaultFuture<String> future = new DefaultFuture<String>();
+		future.setValue("abc");
+		future.addListener(new FutureListener<String>() {
+			public void operationComplete(BeepFuture<String> f) {
+				try {
+					result[0] = f.get();
+				} catch (Exception e) {
+					fail(e.getMessage());
+				}
+			}
+		}, DIRECT);
+		assertEquals("abc", result[0]);
+	}
+	
+}
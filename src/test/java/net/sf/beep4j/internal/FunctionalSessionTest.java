@@ -64,6 +64,8 @@ public class FunctionalSessionTest extends MockObjectTestCase {
 	
 	private void setupTransportMapping() {
 		transportMappingMock.expects(once()).method("channelStarted").with(eq(0));
+		transportMappingMock.stubs().method("isWritable").will(returnValue(true));
+		transportMappingMock.stubs().method("sessionClosed");
 	}
 
 	/*
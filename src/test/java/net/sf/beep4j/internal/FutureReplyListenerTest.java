@@ -0,0 +1,121 @@
+/*
+ *  Copyright 2006 Simon Raess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.sf.beep4j.internal;
+
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+import net.sf.beep4j.BeepException;
+import net.sf.beep4j.Message;
+import net.sf.beep4j.MessageStub;
+import net.sf.beep4j.Reply;
+import net.sf.beep4j.buffer.ReferenceCounted;
+import net.sf.beep4j.internal.message.DefaultMessage;
+import net.sf.beep4j.internal.message.MessageHeader;
+
+public class FutureReplyListenerTest extends TestCase {
+	
+	private DefaultFuture<Reply> future;
+	
+	private FutureReplyListener listener;
+	
+	@Override
+	protected void setUp() throws Exception {
+		future = new DefaultFuture<Reply>();
+		listener = new FutureReplyListener(future);
+	}
+	
+	public void testReceiveRPY() throws Exception {
+		Message message = new MessageStub();
+		listener.receiveRPY(message);
+		Reply reply = future.get();
+		assertFalse(reply.isError());
+		assertSame(message, reply.getMessage());
+		assertTrue(reply.getAnswers().isEmpty());
+	}
+	
+	public void testReceiveERR() throws Exception {
+		Message message = new MessageStub();
+		listener.receiveERR(message);
+		Reply reply = future.get();
+		assertTrue(reply.isError());
+		assertSame(message, reply.getMessage());
+	}
+	
+	public void testReceiveANS() throws Exception {
+		Message m1 = new MessageStub();
+		Message m2 = new MessageStub();
+		listener.receiveANS(m1);
+		listener.receiveANS(m2);
+		assertFalse(future.isDone());
+		listener.receiveNUL();
+		Reply reply = future.get();
+		assertFalse(reply.isError());
+		assertNull(reply.getMessage());
+		assertEquals(2, reply.getAnswers().size());
+		assertSame(m1, reply.getAnswers().get(0));
+		assertSame(m2, reply.getAnswers().get(1));
+	}
+	
+	public void testCancelledRPYReleased() throws Exception {
+		CountingOwner owner = new CountingOwner();
+		future.cancel(false);
+		listener.receiveRPY(createMessage(owner));
+		assertEquals(1, owner.references);
+	}
+	
+	public void testCancelledAnswersReleased() throws Exception {
+		CountingOwner owner1 = new CountingOwner();
+		CountingOwner owner2 = new CountingOwner();
+		CountingOwner owner3 = new CountingOwner();
+		listener.receiveANS(createMessage(owner1));
+		listener.receiveANS(createMessage(owner2));
+		assertEquals(2, owner1.references);
+		future.cancel(false);
+		listener.receiveANS(createMessage(owner3));
+		listener.receiveNUL();
+		assertEquals(1, owner1.references);
+		assertEquals(1, owner2.references);
+		assertEquals(1, owner3.references);
+	}
+	
+	public void testFailedAnswersReleased() throws Exception {
+		CountingOwner owner1 = new CountingOwner();
+		CountingOwner owner2 = new CountingOwner();
+		listener.receiveANS(createMessage(owner1));
+		listener.receiveANS(createMessage(owner2));
+		future.setFailure(new BeepException("session has been closed"));
+		assertEquals(1, owner1.references);
+		assertEquals(1, owner2.references);
+		listener.receiveNUL();
+		assertEquals(1, owner1.references);
+	}
+	
+	private static Message createMessage(ReferenceCounted owner) {
+		return new DefaultMessage(new MessageHeader(), ByteBuffer.allocate(10), owner);
+	}
+	
+	private static class CountingOwner implements ReferenceCounted {
+		private int references = 1;
+		public void retain() {
+			references++;
+		}
+		public void release() {
+			references--;
+		}
+	}
+	
+}
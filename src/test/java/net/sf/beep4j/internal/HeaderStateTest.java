@@ -17,22 +17,18 @@ package net.sf.beep4j.internal;
 
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import junit.framework.TestCase;
 
-import org.easymock.MockControl;
-
 public class HeaderStateTest extends TestCase {
 	
 	public void testProcessMappingFrame() throws Exception {
-		MockControl control = MockControl.createControl(ParseStateContext.class);
-		control.setDefaultMatcher(MockControl.ARRAY_MATCHER);
-		ParseStateContext context = (ParseStateContext) control.getMock();
-		
-		context.handleHeader(new String[] { "SEQ", "0", "0", "4096" });
-		control.replay();
-		
+		RecordingContext context = new RecordingContext();
 		Charset charset = Charset.forName("US-ASCII");
+		
 		ByteBuffer buffer = charset.encode("SEQ 0 0 4096\r\n");
 				
 		ParseState state = new HeaderState();
@@ -40,18 +36,13 @@ public class HeaderStateTest extends TestCase {
 		
 		assertEquals(14, buffer.position());
 		
-		control.verify();
+		assertEquals(Arrays.asList("SEQ 0 0 4096"), context.headers);
 	}
 	
 	public void testProcessDataFrame() throws Exception {
-		MockControl control = MockControl.createControl(ParseStateContext.class);
-		control.setDefaultMatcher(MockControl.ARRAY_MATCHER);
-		ParseStateContext context = (ParseStateContext) control.getMock();
-		
-		context.handleHeader(new String[] { "MSG", "0", "0", ".", "0", "100" });
-		control.replay();
-
+		RecordingContext context = new RecordingContext();
 		Charset charset = Charset.forName("US-ASCII");
+
 		ByteBuffer buffer = charset.encode("MSG 0 0 . 0 100\r\nbluberi");
 		
 		ParseState state = new HeaderState();
@@ -59,18 +50,13 @@ public class HeaderStateTest extends TestCase {
 		
 		assertEquals(17, buffer.position());
 		
-		control.verify();
+		assertEquals(Arrays.asList("MSG 0 0 . 0 100"), context.headers);
 	}
 	
 	public void testProcessMultiPass() throws Exception {
-		MockControl control = MockControl.createControl(ParseStateContext.class);
-		control.setDefaultMatcher(MockControl.ARRAY_MATCHER);
-		ParseStateContext context = (ParseStateContext) control.getMock();
-		
-		context.handleHeader(new String[] { "MSG", "0", "0", ".", "0", "100" });
-		control.replay();
-
+		RecordingContext context = new RecordingContext();
 		Charset charset = Charset.forName("US-ASCII");
+
 		ByteBuffer buffer = charset.encode("MSG 0 0 .");
 		
 		ParseState state = new HeaderState();
@@ -81,19 +67,13 @@ public class HeaderStateTest extends TestCase {
 		assertTrue(state.process(buffer, context));
 		assertEquals(8, buffer.position());
 		
-		control.verify();
+		assertEquals(Arrays.asList("MSG 0 0 . 0 100"), context.headers);
 	}
 	
 	public void testProcessComplex() throws Exception {
-		MockControl control = MockControl.createControl(ParseStateContext.class);
-		control.setDefaultMatcher(MockControl.ARRAY_MATCHER);
-		ParseStateContext context = (ParseStateContext) control.getMock();
-		
-		context.handleHeader(new String[] { "MSG", "0", "0", ".", "0", "100" });
-		context.handleHeader(new String[] { "MSG", "2", "1", ".", "0", "100" });
-		control.replay();
-
+		RecordingContext context = new RecordingContext();
 		Charset charset = Charset.forName("US-ASCII");
+
 		ParseState state = new HeaderState();
 		
 		ByteBuffer buffer = charset.encode("MSG 0 0 . 0 100\r\n");
@@ -104,18 +84,13 @@ public class HeaderStateTest extends TestCase {
 		assertFalse(state.process(buffer, context));
 		assertEquals(17, buffer.position());
 		
-		control.verify();
+		assertEquals(Arrays.asList("MSG 0 0 . 0 100", "MSG 2 1 . 0 100"), context.headers);
 	}
 	
 	public void testProcessNonZeroPosition() throws Exception {
-		MockControl control = MockControl.createControl(ParseStateContext.class);
-		control.setDefaultMatcher(MockControl.ARRAY_MATCHER);
-		ParseStateContext context = (ParseStateContext) control.getMock();
-		
-		context.handleHeader(new String[] { "MSG", "0", "0", ".", "0", "100" });
-		control.replay();
-
+		RecordingContext context = new RecordingContext();
 		Charset charset = Charset.forName("US-ASCII");
+
 		ParseState state = new HeaderState();
 		
 		ByteBuffer buffer = charset.encode("abcdefgMSG 0 0 . 0 100\r\n");
@@ -123,18 +98,14 @@ public class HeaderStateTest extends TestCase {
 		assertFalse(state.process(buffer, context));
 		assertEquals(24, buffer.position());
 		
-		control.verify();
+		assertEquals(Arrays.asList("MSG 0 0 . 0 100"), context.headers);
 	}
 	
 	public void testProcessSplitHeader() throws Exception {
-		MockControl control = MockControl.createControl(ParseStateContext.class);
-		control.setDefaultMatcher(MockControl.ARRAY_MATCHER);
-		ParseStateContext context = (ParseStateContext) control.getMock();
+		RecordingContext context = new RecordingContext();
+		Charset charset = Charset.forName("US-ASCII");
 
-		context.handleHeader(new String[] { "MSG", "0", "0", ".", "0", "100" });
-		control.replay();
 
-		Charset charset = Charset.forName("US-ASCII");
 		ByteBuffer buffer1 = charset.encode("MSG 0 0 . 0 100\r");
 
 		ParseState state = new HeaderState();
@@ -145,18 +116,12 @@ public class HeaderStateTest extends TestCase {
 
 		assertTrue(state.process(buffer2, context));
 		assertEquals(1, buffer2.position());
-
-		control.verify();
+		
+		assertEquals(Arrays.asList("MSG 0 0 . 0 100"), context.headers);
 	}
 
 	public void testProcessFullySplitHeader() throws Exception {
-		MockControl control = MockControl.createControl(ParseStateContext.class);
-		control.setDefaultMatcher(MockControl.ARRAY_MATCHER);
-		ParseStateContext context = (ParseStateContext) control.getMock();
-
-		context.handleHeader(new String[] { "MSG", "0", "0", ".", "0", "100" });
-		control.replay();
-
+		RecordingContext context = new RecordingContext();
 		Charset charset = Charset.forName("US-ASCII");
 
 		char[] toSplit = "MSG 0 0 . 0 100\r\n".toCharArray();
@@ -169,8 +134,28 @@ public class HeaderStateTest extends TestCase {
 			assertFalse(state.process(buffer, context));
 			assertEquals(1, buffer.position());
 		}
-
-		control.verify();
+		
+		assertEquals(Arrays.asList("MSG 0 0 . 0 100"), context.headers);
+	}
+	
+	/*
+	 * The header buffer is only valid during the call, the headers are 
+	 * therefore recorded as strings.
+	 */
+	private static class RecordingContext implements ParseStateContext {
+		private final List<String> headers = new ArrayList<String>();
+		public void handleHeader(ByteBuffer header) {
+			headers.add(Charset.forName("US-ASCII").decode(header.duplicate()).toString());
+		}
+		public ByteBuffer allocatePayload(int size) {
+			throw new UnsupportedOperationException();
+		}
+		public void handlePayload(ByteBuffer buffer) {
+			throw new UnsupportedOperationException();
+		}
+		public void handleTrailer() {
+			throw new UnsupportedOperationException();
+		}
 	}
 	
 }
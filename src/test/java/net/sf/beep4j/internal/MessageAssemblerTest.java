@@ -18,6 +18,7 @@ package net.sf.beep4j.internal;
 import java.nio.ByteBuffer;
 
 import junit.framework.TestCase;
+import net.sf.beep4j.buffer.ReferenceCounted;
 import net.sf.beep4j.internal.DataHeader.ANSHeader;
 
 import org.easymock.MockControl;
@@ -78,6 +79,23 @@ public class MessageAssemblerTest extends TestCase {
 		target.handleFrame(frame);
 	}
 	
+	public void testMSGFragmentsConsumedBeforeComplete() throws Exception {
+		handler.receiveMSG(0, 0, null);
+		control.replay();
+		
+		// test
+		ConsumableOwner first = new ConsumableOwner();
+		DataHeader header = new DataHeader(MessageType.MSG, 0, 0, true, 0, 10);
+		target.handleFrame(new Frame(header, getByteBuffer(10), first));
+		assertEquals(1, first.consumed);
+		
+		ConsumableOwner last = new ConsumableOwner();
+		header = new DataHeader(MessageType.MSG, 0, 0, false, 10, 10);
+		target.handleFrame(new Frame(header, getByteBuffer(10), last));
+		assertEquals(1, first.consumed);
+		assertEquals(0, last.consumed);
+	}
+	
 	public void testMSGMessageNumberMismatch() throws Exception {
 		control.replay();
 		
@@ -283,4 +301,17 @@ public class MessageAssemblerTest extends TestCase {
 		control.verify();
 	}
 	
+	private static class ConsumableOwner implements ReferenceCounted, Frame.Consumable {
+		private int consumed;
+		public void retain() {
+			// ignored
+		}
+		public void release() {
+			// ignored
+		}
+		public void consumed() {
+			consumed++;
+		}
+	}
+	
 }
@@ -30,6 +30,8 @@ public class PayloadStateTest extends TestCase {
 		MockControl control = MockControl.createControl(ParseStateContext.class);
 		ParseStateContext context = (ParseStateContext) control.getMock();
 		
+		context.allocatePayload(9);
+		control.setReturnValue(ByteBuffer.allocate(9));
 		context.handlePayload(charset.encode("123456789"));
 		control.replay();
 		
@@ -48,6 +50,8 @@ public class PayloadStateTest extends TestCase {
 		MockControl control = MockControl.createControl(ParseStateContext.class);
 		ParseStateContext context = (ParseStateContext) control.getMock();
 		
+		context.allocatePayload(9);
+		control.setReturnValue(ByteBuffer.allocate(9));
 		context.handlePayload(charset.encode("123456789"));
 		control.replay();
 		
@@ -66,4 +70,55 @@ public class PayloadStateTest extends TestCase {
 		control.verify();
 	}
 	
+	public void testProcessZeroCopy() throws Exception {
+		CapturingContext context = new CapturingContext();
+		ByteBuffer buffer = charset.encode("1234567890");
+		buffer.position(1);
+		
+		ParseState state = new PayloadState(5, true);
+		assertTrue(state.process(buffer, context));
+		assertEquals(6, buffer.position());
+		
+		assertEquals(charset.encode("23456"), context.payload);
+		
+		// the payload shares the content of the processed buffer
+		buffer.put(1, (byte) 'x');
+		assertEquals(charset.encode("x3456"), context.payload);
+	}
+	
+	public void testProcessZeroCopySplitPayload() throws Exception {
+		CapturingContext context = new CapturingContext();
+		ParseState state = new PayloadState(9, true);
+		
+		ByteBuffer buffer = charset.encode("12345");
+		assertFalse(state.process(buffer, context));
+		assertNull(context.payload);
+		
+		buffer = charset.encode("67890");
+		assertTrue(state.process(buffer, context));
+		assertEquals(4, buffer.position());
+		
+		assertEquals(charset.encode("123456789"), context.payload);
+		
+		// the payload has been copied
+		buffer.put(0, (byte) 'x');
+		assertEquals(charset.encode("123456789"), context.payload);
+	}
+	
+	private static class CapturingContext implements ParseStateContext {
+		private ByteBuffer payload;
+		public void handleHeader(ByteBuffer header) {
+			throw new UnsupportedOperationException();
+		}
+		public ByteBuffer allocatePayload(int size) {
+			return ByteBuffer.allocate(size);
+		}
+		public void handlePayload(ByteBuffer buffer) {
+			this.payload = buffer;
+		}
+		public void handleTrailer() {
+			throw new UnsupportedOperationException();
+		}
+	}
+	
 }
@@ -15,11 +15,23 @@
  */
 package net.sf.beep4j.internal;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+
+import net.sf.beep4j.BeepException;
+import net.sf.beep4j.BeepFuture;
+import net.sf.beep4j.Channel;
 import net.sf.beep4j.ChannelHandler;
 import net.sf.beep4j.Message;
 import net.sf.beep4j.MessageStub;
+import net.sf.beep4j.ProtocolException;
 import net.sf.beep4j.NullCloseChannelCallback;
 import net.sf.beep4j.ReplyListener;
+import net.sf.beep4j.ResponseHandler;
 import net.sf.beep4j.SessionHandler;
 import net.sf.beep4j.internal.profile.BEEPError;
 import net.sf.beep4j.internal.profile.ChannelManagementProfile;
@@ -27,6 +39,8 @@ import net.sf.beep4j.internal.profile.Greeting;
 
 import org.jmock.Mock;
 import org.jmock.MockObjectTestCase;
+import org.jmock.core.Invocation;
+import org.jmock.core.Stub;
 
 public class SessionImplTest extends MockObjectTestCase {
 	
@@ -44,6 +58,8 @@ public class SessionImplTest extends MockObjectTestCase {
 		
 		mappingMock = mock(TransportMapping.class);
 		mapping = (TransportMapping) mappingMock.proxy();
+		mappingMock.stubs().method("isWritable").will(returnValue(true));
+		mappingMock.stubs().method("sessionClosed");
 		
 		sessionHandlerMock = mock(SessionHandler.class);
 		sessionHandler = (SessionHandler) sessionHandlerMock.proxy();
@@ -194,6 +210,206 @@ public class SessionImplTest extends MockObjectTestCase {
 		session.receiveRPY(0, 1, reply);
 	}
 	
+	public void testReceiveUnexpectedRPY() throws Exception {
+		Mock profileMock = mock(ChannelManagementProfile.class);
+		final ChannelManagementProfile profile = (ChannelManagementProfile) profileMock.proxy(); 
+		Mock channelHandlerMock = mock(ChannelHandler.class);
+		ChannelHandler channelHandler = (ChannelHandler) channelHandlerMock.proxy();
+		
+		Message greeting = new MessageStub();
+		Message reply = new MessageStub();
+		
+		// define expectations
+		sessionHandlerMock.expects(once()).method("sessionOpened").with(ANYTHING);
+		mappingMock.expects(once()).method("channelStarted").with(eq(0));
+		profileMock.expects(once()).method("createChannelHandler").with(ANYTHING).will(returnValue(channelHandler));
+		channelHandlerMock.expects(once()).method("channelOpened").with(ANYTHING);
+		profileMock.expects(once()).method("receivedGreeting")
+				.with(same(greeting))
+				.will(returnValue(new Greeting(new String[0], new String[0], new String[] { "abc" })));
+
+		// test
+		SessionImpl session = new SessionImpl(false, sessionHandler, mapping) {
+			@Override
+			protected ChannelManagementProfile createChannelManagementProfile(boolean initiator) {
+				return profile;
+			}
+		};
+		session.receiveRPY(0, 0, greeting);
+		try {
+			session.receiveRPY(0, 1, reply);
+			fail("RPY without outstanding MSG must fail");
+		} catch (ProtocolException e) {
+			// expected
+		}
+	}
+	
+	public void testPendingFutureFailedOnConnectionClosed() throws Exception {
+		Mock profileMock = mock(ChannelManagementProfile.class);
+		final ChannelManagementProfile profile = (ChannelManagementProfile) profileMock.proxy(); 
+		Mock channelHandlerMock = mock(ChannelHandler.class);
+		ChannelHandler channelHandler = (ChannelHandler) channelHandlerMock.proxy();
+		Message greeting = new MessageStub();
+		
+		// define expectations
+		sessionHandlerMock.expects(once()).method("sessionOpened").with(ANYTHING);
+		mappingMock.expects(once()).method("channelStarted").with(eq(0));
+		profileMock.expects(once()).method("createChannelHandler").with(ANYTHING).will(returnValue(channelHandler));
+		channelHandlerMock.expects(once()).method("channelOpened").with(ANYTHING);
+		profileMock.expects(once()).method("receivedGreeting")
+				.with(same(greeting))
+				.will(returnValue(new Greeting(new String[0], new String[0], new String[] { "abc" })));
+		profileMock.expects(once()).method("startChannel").with(eq(2), ANYTHING, ANYTHING);
+		sessionHandlerMock.expects(once()).method("sessionClosed");
+		
+		// test
+		SessionImpl session = new SessionImpl(false, sessionHandler, mapping) {
+			@Override
+			protected ChannelManagementProfile createChannelManagementProfile(boolean initiator) {
+				return profile;
+			}
+		};
+		session.receiveRPY(0, 0, greeting);
+		BeepFuture<Channel> future = session.startChannel("http://example.org/profile/echo", channelHandler);
+		assertFalse(future.isDone());
+		
+		session.connectionClosed();
+		assertTrue(future.isDone());
+		try {
+			future.get();
+			fail("the future must fail when the connection is lost");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof BeepException);
+		}
+	}
+	
+	public void testRepliesSentInMessageOrder() throws Exception {
+		Mock profileMock = mock(ChannelManagementProfile.class);
+		final ChannelManagementProfile profile = (ChannelManagementProfile) profileMock.proxy(); 
+		Mock channelHandlerMock = mock(ChannelHandler.class);
+		ChannelHandler channelHandler = (ChannelHandler) channelHandlerMock.proxy();
+		
+		Message greeting = new MessageStub();
+		Message message1 = new MessageStub();
+		Message message2 = new MessageStub();
+		Message reply1 = new MessageStub();
+		Message reply2 = new MessageStub();
+		
+		ParameterCaptureStub<ResponseHandler> capture1 = 
+			new ParameterCaptureStub<ResponseHandler>(1, ResponseHandler.class, null);
+		ParameterCaptureStub<ResponseHandler> capture2 = 
+			new ParameterCaptureStub<ResponseHandler>(1, ResponseHandler.class, null);
+		
+		// define expectations
+		sessionHandlerMock.expects(once()).method("sessionOpened").with(ANYTHING);
+		mappingMock.expects(once()).method("channelStarted").with(eq(0));
+		profileMock.expects(once()).method("createChannelHandler").with(ANYTHING).will(returnValue(channelHandler));
+		channelHandlerMock.expects(once()).method("channelOpened").with(ANYTHING);
+		profileMock.expects(once()).method("receivedGreeting").with(same(greeting));
+		channelHandlerMock.expects(once()).method("messageReceived").with(same(message1), ANYTHING).will(capture1);
+		channelHandlerMock.expects(once()).method("messageReceived").with(same(message2), ANYTHING).will(capture2);
+		
+		// the reply to the second message must wait for the first reply
+		mappingMock.expects(once()).method("sendRPY").with(eq(0), eq(1), same(reply1)).id("reply1");
+		mappingMock.expects(once()).method("sendRPY").with(eq(0), eq(2), same(reply2)).after("reply1");
+		
+		// test
+		SessionImpl session = new SessionImpl(false, sessionHandler, mapping) {
+			@Override
+			protected ChannelManagementProfile createChannelManagementProfile(boolean initiator) {
+				return profile;
+			}
+		};
+		session.receiveRPY(0, 0, greeting);
+		session.receiveMSG(0, 1, message1);
+		session.receiveMSG(0, 2, message2);
+		capture2.getParameter().sendRPY(reply2);
+		capture1.getParameter().sendRPY(reply1);
+	}
+	
+	public void testConcurrentRepliesSentInMessageOrder() throws Exception {
+		for (int i = 0; i < 100; i++) {
+			assertConcurrentRepliesSentInMessageOrder();
+		}
+	}
+	
+	private void assertConcurrentRepliesSentInMessageOrder() throws Exception {
+		Mock mappingMock = mock(TransportMapping.class);
+		TransportMapping mapping = (TransportMapping) mappingMock.proxy();
+		Mock profileMock = mock(ChannelManagementProfile.class);
+		final ChannelManagementProfile profile = (ChannelManagementProfile) profileMock.proxy(); 
+		Mock channelHandlerMock = mock(ChannelHandler.class);
+		ChannelHandler channelHandler = (ChannelHandler) channelHandlerMock.proxy();
+		Mock sessionHandlerMock = mock(SessionHandler.class);
+		SessionHandler sessionHandler = (SessionHandler) sessionHandlerMock.proxy();
+		
+		Message greeting = new MessageStub();
+		Message message1 = new MessageStub();
+		Message message2 = new MessageStub();
+		
+		ParameterCaptureStub<ResponseHandler> capture1 = 
+			new ParameterCaptureStub<ResponseHandler>(1, ResponseHandler.class, null);
+		ParameterCaptureStub<ResponseHandler> capture2 = 
+			new ParameterCaptureStub<ResponseHandler>(1, ResponseHandler.class, null);
+		final List<Integer> wire = Collections.synchronizedList(new ArrayList<Integer>());
+		
+		// define expectations
+		sessionHandlerMock.expects(once()).method("sessionOpened").with(ANYTHING);
+		mappingMock.stubs().method("isWritable").will(returnValue(true));
+		mappingMock.stubs().method("sessionClosed");
+		mappingMock.expects(once()).method("channelStarted").with(eq(0));
+		profileMock.expects(once()).method("createChannelHandler").with(ANYTHING).will(returnValue(channelHandler));
+		channelHandlerMock.expects(once()).method("channelOpened").with(ANYTHING);
+		profileMock.expects(once()).method("receivedGreeting").with(same(greeting));
+		channelHandlerMock.expects(once()).method("messageReceived").with(same(message1), ANYTHING).will(capture1);
+		channelHandlerMock.expects(once()).method("messageReceived").with(same(message2), ANYTHING).will(capture2);
+		mappingMock.expects(exactly(2)).method("sendRPY").will(new Stub() {
+			public Object invoke(Invocation invocation) throws Throwable {
+				wire.add((Integer) invocation.parameterValues.get(1));
+				return null;
+			}
+			public StringBuffer describeTo(StringBuffer buffer) {
+				return buffer.append("records the message number");
+			}
+		});
+		
+		// test
+		SessionImpl session = new SessionImpl(false, sessionHandler, mapping) {
+			@Override
+			protected ChannelManagementProfile createChannelManagementProfile(boolean initiator) {
+				return profile;
+			}
+		};
+		session.receiveRPY(0, 0, greeting);
+		session.receiveMSG(0, 1, message1);
+		session.receiveMSG(0, 2, message2);
+		
+		CountDownLatch start = new CountDownLatch(1);
+		Thread thread1 = sendRPY(start, capture1.getParameter());
+		Thread thread2 = sendRPY(start, capture2.getParameter());
+		start.countDown();
+		thread1.join();
+		thread2.join();
+		
+		// verify
+		assertEquals(Arrays.asList(1, 2), wire);
+	}
+	
+	private static Thread sendRPY(final CountDownLatch start, final ResponseHandler handler) {
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					start.await();
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+				handler.sendRPY(new MessageStub());
+			}
+		});
+		thread.start();
+		return thread;
+	}
+	
 	// --> test SessionManager methods <--
 	
 	public void testChannelStartRequested() throws Exception {
@@ -61,6 +61,8 @@ public class StreamParserTest extends TestCase {
 		// define expectations
 		handler.handleFrame(frame);		
 		mapping.checkFrame(0, 0, 52);
+		mapping.isConsumptionDriven(0);
+		mappingCtrl.setReturnValue(false);
 		mapping.frameReceived(0, 0, 52);
 		
 		// replay
@@ -88,9 +90,13 @@ public class StreamParserTest extends TestCase {
 		// define expectations
 		handler.handleFrame(frame);		
 		mapping.checkFrame(0, 0, 52);
+		mapping.isConsumptionDriven(0);
+		mappingCtrl.setReturnValue(false);
 		mapping.frameReceived(0, 0, 52);
 		handler.handleFrame(frame);		
 		mapping.checkFrame(0, 0, 52);
+		mapping.isConsumptionDriven(0);
+		mappingCtrl.setReturnValue(false);
 		mapping.frameReceived(0, 0, 52);
 
 		// replay
@@ -107,10 +113,63 @@ public class StreamParserTest extends TestCase {
 		handlerCtrl.verify();
 	}
 	
+	public void testConsumptionDriven() throws Exception {
+		final Frame[] frames = new Frame[1];
+		FrameHandler handler = new FrameHandler() {
+			public void handleFrame(Frame frame) {
+				frame.retain();
+				frames[0] = frame;
+			}
+		};
+		
+		// define expectations
+		mapping.checkFrame(0, 0, 52);
+		mapping.isConsumptionDriven(0);
+		mappingCtrl.setReturnValue(true);
+		mapping.frameReceived(0, 0, 52);
+		mapping.frameConsumed(0, 52);
+		
+		// replay
+		mappingCtrl.replay();
+		
+		// test
+		StreamParser parser = new DefaultStreamParser(handler, mapping);
+		parser.process(getMessage("greeting/i_greeting.txt"));
+		frames[0].release();
+		frames[0].release();
+		
+		// verify
+		mappingCtrl.verify();
+	}
+	
+	public void testConsumedByHandler() throws Exception {
+		FrameHandler handler = new FrameHandler() {
+			public void handleFrame(Frame frame) {
+				frame.release();
+			}
+		};
+		
+		// define expectations
+		mapping.checkFrame(0, 0, 52);
+		mapping.isConsumptionDriven(0);
+		mappingCtrl.setReturnValue(true);
+		mapping.frameReceived(0, 0, 52);
+		mapping.frameConsumed(0, 52);
+		
+		// replay
+		mappingCtrl.replay();
+		
+		// test
+		StreamParser parser = new DefaultStreamParser(handler, mapping);
+		parser.process(getMessage("greeting/i_greeting.txt"));
+		
+		// verify
+		mappingCtrl.verify();
+	}
+	
 	public void testMappingFrame() throws Exception {
 		// define expectations
-		mapping.processMappingFrame(new String[] { "SEQ", "0", "0", "4096" });
-		mappingCtrl.setMatcher(MockControl.ARRAY_MATCHER);
+		mapping.processMappingFrame(Charset.forName("US-ASCII").encode("SEQ 0 0 4096"));
 		
 		// replay
 		mappingCtrl.replay();
@@ -136,10 +195,11 @@ public class StreamParserTest extends TestCase {
 				charset.encode("Content-Type: application/beep+xml\r\n\r\n<greeting />\r\n"));
 		
 		// define expectations
-		mapping.processMappingFrame(new String[] { "SEQ", "0", "0", "4096" });
-		mappingCtrl.setMatcher(MockControl.ARRAY_MATCHER);
+		mapping.processMappingFrame(Charset.forName("US-ASCII").encode("SEQ 0 0 4096"));
 		handler.handleFrame(frame);		
 		mapping.checkFrame(0, 0, 52);
+		mapping.isConsumptionDriven(0);
+		mappingCtrl.setReturnValue(false);
 		mapping.frameReceived(0, 0, 52);
 		
 		// replay
@@ -0,0 +1,181 @@
+/*
+ *  Copyright 2006 Simon Raess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.sf.beep4j.internal;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import net.sf.beep4j.ContentListener;
+import net.sf.beep4j.Message;
+import net.sf.beep4j.ProtocolException;
+import net.sf.beep4j.internal.DataHeader.ANSHeader;
+
+public class StreamingMessageAssemblerTest extends TestCase {
+	
+	private static final Charset CHARSET = Charset.forName("US-ASCII");
+	
+	private RecordingHandler handler;
+	
+	private MessageAssembler target;
+	
+	@Override
+	protected void setUp() throws Exception {
+		handler = new RecordingHandler();
+		target = new MessageAssembler(handler);
+	}
+	
+	private Frame createFrame(MessageType type, int messageNumber, boolean intermediate, String payload) {
+		ByteBuffer buffer = CHARSET.encode(payload);
+		DataHeader header = new DataHeader(type, 1, messageNumber, intermediate, 0, buffer.remaining());
+		return new Frame(header, buffer);
+	}
+	
+	private Frame createANSFrame(int answerNumber, boolean intermediate, String payload) {
+		ByteBuffer buffer = CHARSET.encode(payload);
+		DataHeader header = new ANSHeader(1, 0, intermediate, 0, buffer.remaining(), answerNumber);
+		return new Frame(header, buffer);
+	}
+	
+	public void testStreamMSG() throws Exception {
+		target.handleFrame(createFrame(MessageType.MSG, 0, true, "Content-Type: text/plain\r\n\r\nab"));
+		assertEquals("start MSG 0 text/plain", handler.events.get(0));
+		assertEquals("content ab", handler.events.get(1));
+		
+		target.handleFrame(createFrame(MessageType.MSG, 0, true, "cd"));
+		target.handleFrame(createFrame(MessageType.MSG, 0, false, "ef"));
+		
+		assertEquals(5, handler.events.size());
+		assertEquals("content cd", handler.events.get(2));
+		assertEquals("content ef", handler.events.get(3));
+		assertEquals("completed", handler.events.get(4));
+	}
+	
+	public void testHeaderSpansFrames() throws Exception {
+		target.handleFrame(createFrame(MessageType.RPY, 0, true, "Content-Type: text"));
+		target.handleFrame(createFrame(MessageType.RPY, 0, true, "/plain\r"));
+		assertTrue(handler.events.isEmpty());
+		target.handleFrame(createFrame(MessageType.RPY, 0, true, "\n\r"));
+		assertTrue(handler.events.isEmpty());
+		target.handleFrame(createFrame(MessageType.RPY, 0, false, "\nxyz"));
+		
+		assertEquals(3, handler.events.size());
+		assertEquals("start RPY 0 text/plain", handler.events.get(0));
+		assertEquals("content xyz", handler.events.get(1));
+		assertEquals("completed", handler.events.get(2));
+	}
+	
+	public void testDefaultHeader() throws Exception {
+		target.handleFrame(createFrame(MessageType.MSG, 0, false, "\r\nabc"));
+		
+		assertEquals(3, handler.events.size());
+		assertEquals("start MSG 0 application/octet-stream", handler.events.get(0));
+		assertEquals("content abc", handler.events.get(1));
+		assertEquals("completed", handler.events.get(2));
+	}
+	
+	public void testERRIsAssembled() throws Exception {
+		target.handleFrame(createFrame(MessageType.ERR, 0, true, "\r\nab"));
+		target.handleFrame(createFrame(MessageType.ERR, 0, false, "cd"));
+		
+		assertEquals(1, handler.events.size());
+		assertEquals("ERR 0", handler.events.get(0));
+	}
+	
+	public void testNotStreamed() throws Exception {
+		handler.streaming = false;
+		target.handleFrame(createFrame(MessageType.MSG, 0, true, "\r\nab"));
+		target.handleFrame(createFrame(MessageType.MSG, 0, false, "cd"));
+		
+		assertEquals(1, handler.events.size());
+		assertEquals("MSG 0", handler.events.get(0));
+	}
+	
+	public void testStreamInterleavedANS() throws Exception {
+		target.handleFrame(createANSFrame(0, true, "\r\na"));
+		target.handleFrame(createANSFrame(1, true, "\r\nb"));
+		target.handleFrame(createANSFrame(0, false, "c"));
+		target.handleFrame(createANSFrame(1, false, "d"));
+		target.handleFrame(new Frame(new DataHeader(MessageType.NUL, 1, 0, false, 0, 0), ByteBuffer.allocate(0)));
+		
+		assertEquals(9, handler.events.size());
+		assertEquals("start ANS 0/0 application/octet-stream", handler.events.get(0));
+		assertEquals("content a", handler.events.get(1));
+		assertEquals("start ANS 0/1 application/octet-stream", handler.events.get(2));
+		assertEquals("content b", handler.events.get(3));
+		assertEquals("content c", handler.events.get(4));
+		assertEquals("completed", handler.events.get(5));
+		assertEquals("content d", handler.events.get(6));
+		assertEquals("completed", handler.events.get(7));
+		assertEquals("NUL 0", handler.events.get(8));
+	}
+	
+	public void testNULWithUnfinishedStream() throws Exception {
+		target.handleFrame(createANSFrame(0, true, "\r\na"));
+		try {
+			target.handleFrame(new Frame(new DataHeader(MessageType.NUL, 1, 0, false, 0, 0), ByteBuffer.allocate(0)));
+			fail("unfinished ANS messages must be detected");
+		} catch (ProtocolException e) {
+			// expected
+		}
+	}
+	
+	private static class RecordingHandler implements StreamingMessageHandler {
+		private final List<String> events = new ArrayList<String>();
+		private boolean streaming = true;
+		private final ContentListener listener = new ContentListener() {
+			public void contentReceived(ByteBuffer content) {
+				events.add("content " + CHARSET.decode(content));
+			}
+			public void contentCompleted() {
+				events.add("completed");
+			}
+		};
+		public boolean isStreaming(MessageType type, int channelNumber, int messageNumber) {
+			return streaming && type != MessageType.ERR;
+		}
+		public ContentListener startMSG(int channelNumber, int messageNumber, Message header) {
+			events.add("start MSG " + messageNumber + " " + header.getContentType());
+			return listener;
+		}
+		public ContentListener startRPY(int channelNumber, int messageNumber, Message header) {
+			events.add("start RPY " + messageNumber + " " + header.getContentType());
+			return listener;
+		}
+		public ContentListener startANS(int channelNumber, int messageNumber, int answerNumber, Message header) {
+			events.add("start ANS " + messageNumber + "/" + answerNumber + " " + header.getContentType());
+			return listener;
+		}
+		public void receiveMSG(int channelNumber, int messageNumber, Message message) {
+			events.add("MSG " + messageNumber);
+		}
+		public void receiveRPY(int channelNumber, int messageNumber, Message message) {
+			events.add("RPY " + messageNumber);
+		}
+		public void receiveERR(int channelNumber, int messageNumber, Message message) {
+			events.add("ERR " + messageNumber);
+		}
+		public void receiveANS(int channelNumber, int messageNumber, int answerNumber, Message message) {
+			events.add("ANS " + messageNumber + "/" + answerNumber);
+		}
+		public void receiveNUL(int channelNumber, int messageNumber) {
+			events.add("NUL " + messageNumber);
+		}
+	}
+	
+}
@@ -0,0 +1,81 @@
+/*
+ *  Copyright 2006 Simon Raess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.sf.beep4j.internal.message;
+
+import junit.framework.TestCase;
+
+public class ContentTypeTest extends TestCase {
+	
+	public void testParseSimple() throws Exception {
+		ContentType type = ContentType.parse("application/beep+xml");
+		assertEquals("application", type.getType());
+		assertEquals("beep+xml", type.getSubtype());
+		assertNull(type.getParameter("charset"));
+	}
+	
+	public void testParseParameters() throws Exception {
+		ContentType type = ContentType.parse("Text/Plain ; Charset=UTF-8;format=\"flowed; x\"");
+		assertEquals("text", type.getType());
+		assertEquals("plain", type.getSubtype());
+		assertEquals("UTF-8", type.getParameter("charset"));
+		assertEquals("flowed; x", type.getParameter("format"));
+	}
+	
+	public void testParseComment() throws Exception {
+		ContentType type = ContentType.parse("text/plain (comment); charset=ISO-8859-1");
+		assertEquals("text", type.getType());
+		assertEquals("plain", type.getSubtype());
+		assertEquals("ISO-8859-1", type.getParameter("charset"));
+	}
+	
+	public void testParseQuotedPair() throws Exception {
+		ContentType type = ContentType.parse("text/plain; name=\"a\\\"b\"");
+		assertEquals("a\"b", type.getParameter("name"));
+	}
+	
+	public void testCache() throws Exception {
+		ContentType type = ContentType.parse("text/xml; charset=UTF-8");
+		assertSame(type, ContentType.parse("text/xml; charset=UTF-8"));
+	}
+	
+	public void testCacheEvictsLeastRecentlyUsed() throws Exception {
+		ContentType used = ContentType.parse("application/beep+xml");
+		ContentType unused = ContentType.parse("text/plain; charset=US-ASCII");
+		for (int i = 0; i < ContentType.MAX_CACHE_SIZE; i++) {
+			assertSame(used, ContentType.parse("application/beep+xml"));
+			ContentType.parse("application/x-test-" + i);
+		}
+		assertSame(used, ContentType.parse("application/beep+xml"));
+		assertNotSame(unused, ContentType.parse("text/plain; charset=US-ASCII"));
+	}
+	
+	public void testParseInvalid() throws Exception {
+		assertInvalid("text");
+		assertInvalid("text/");
+		assertInvalid("text/plain; charset");
+		assertInvalid("text/plain; charset=");
+	}
+	
+	private void assertInvalid(String value) {
+		try {
+			ContentType.parse(value);
+			fail("'" + value + "' must be rejected");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+	
+}
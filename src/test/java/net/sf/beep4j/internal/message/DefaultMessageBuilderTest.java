@@ -23,6 +23,7 @@ import java.nio.channels.FileChannel;
 import java.nio.channels.FileChannel.MapMode;
 
 import junit.framework.TestCase;
+import net.sf.beep4j.HeaderTemplate;
 import net.sf.beep4j.Message;
 import net.sf.beep4j.MessageBuilder;
 
@@ -49,4 +50,41 @@ public class DefaultMessageBuilderTest extends TestCase {
 		assertEquals(getMessage("greeting/i_greeting.txt"), buffer);
 	}
 	
+	public void testBuildFromTemplate() throws Exception {
+		MessageBuilder builder = new DefaultMessageBuilder();
+		builder.setContentType("application", "beep+xml");
+		builder.setCharsetName("UTF-8");
+		HeaderTemplate template = builder.createHeaderTemplate();
+		assertEquals("application/beep+xml", template.getContentType());
+		assertEquals("UTF-8", template.getCharsetName());
+		
+		for (int i = 0; i < 2; i++) {
+			builder = new DefaultMessageBuilder();
+			builder.setHeaderTemplate(template);
+			PrintWriter writer = new PrintWriter(builder.getWriter());
+			writer.print("<greeting />\r\n");
+			writer.close();
+			
+			Message message = builder.getMessage();
+			assertEquals(getMessage("greeting/i_greeting.txt"), message.asByteBuffer());
+		}
+	}
+	
+	public void testModifyTemplate() throws Exception {
+		MessageBuilder builder = new DefaultMessageBuilder();
+		builder.setContentType("text", "plain");
+		HeaderTemplate template = builder.createHeaderTemplate();
+		
+		builder = new DefaultMessageBuilder();
+		builder.setHeaderTemplate(template);
+		builder.addHeader("Foo", "bar");
+		Message message = builder.getMessage();
+		assertEquals("text/plain", message.getContentType());
+		assertEquals("bar", message.getHeader("Foo"));
+		
+		builder = new DefaultMessageBuilder();
+		builder.setHeaderTemplate(template);
+		assertNull(builder.getMessage().getHeader("Foo"));
+	}
+	
 }
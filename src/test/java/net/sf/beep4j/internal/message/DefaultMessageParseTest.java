@@ -26,6 +26,7 @@ import java.nio.channels.FileChannel.MapMode;
 import junit.framework.TestCase;
 import net.sf.beep4j.Message;
 import net.sf.beep4j.MessageBuilder;
+import net.sf.beep4j.buffer.ReferenceCounted;
 
 public class DefaultMessageParseTest extends TestCase {
 	
@@ -91,6 +92,54 @@ public class DefaultMessageParseTest extends TestCase {
 		assertEquals(MESSAGE_2, content);
 	}
 
+	public void testParseSegments() throws Exception {
+		MessageParser parser = new DefaultMessageParser();
+		ByteBuffer buffer = readMessage("greeting/l_greeting.txt");
+		
+		// split the message at every possible position, including
+		// positions within the header block
+		for (int i = 0; i <= buffer.remaining(); i++) {
+			ByteBuffer[] segments = split(buffer, i);
+			Message message = parser.parse(segments, new CountingOwner[0]);
+			assertEquals("application/beep+xml", message.getContentType());
+			assertEquals("bar", message.getHeader("Foo"));
+			assertEquals(MESSAGE_2, getContent(message));
+			assertEquals(parser.parse(buffer.duplicate()).getContentBuffer(), 
+					message.getContentBuffer());
+		}
+	}
+	
+	public void testParseSegmentsRelease() throws Exception {
+		MessageParser parser = new DefaultMessageParser();
+		ByteBuffer buffer = readMessage("greeting/i_greeting.txt");
+		CountingOwner[] owners = new CountingOwner[] { new CountingOwner(), new CountingOwner() };
+		CompositeMessage message = (CompositeMessage) parser.parse(split(buffer, 40), owners);
+		assertEquals(2, message.getSegmentCount());
+		message.retain();
+		message.release();
+		message.release();
+		assertEquals(-1, owners[0].count);
+		assertEquals(-1, owners[1].count);
+	}
+	
+	private ByteBuffer[] split(ByteBuffer buffer, int index) {
+		ByteBuffer first = buffer.duplicate();
+		first.limit(index);
+		ByteBuffer second = buffer.duplicate();
+		second.position(index);
+		return new ByteBuffer[] { first.slice(), second.slice() };
+	}
+	
+	private static class CountingOwner implements ReferenceCounted {
+		private int count;
+		public void retain() {
+			count++;
+		}
+		public void release() {
+			count--;
+		}
+	}
+	
 	private static final String MESSAGE_1 = "<greeting />\r\n";
 
 	private static final String MESSAGE_2 = "<greeting>\r\n"
@@ -0,0 +1,69 @@
+/*
+ *  Copyright 2006 Simon Raess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.sf.beep4j.internal.message;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import junit.framework.TestCase;
+
+public class MessageHeaderTest extends TestCase {
+	
+	private static final Charset CHARSET = Charset.forName("US-ASCII");
+	
+	private static ByteBuffer encode(String block) {
+		return CHARSET.encode(block);
+	}
+	
+	public void testEmptyBlock() throws Exception {
+		MessageHeader header = new MessageHeader(encode("\r\n"));
+		assertEquals("application/octet-stream", header.getContentType());
+		assertEquals("UTF-8", header.getCharset());
+		assertEquals("binary", header.getTransferEncoding());
+		assertFalse(header.getHeaderNames().hasNext());
+	}
+	
+	public void testParseBlock() throws Exception {
+		MessageHeader header = new MessageHeader(encode(
+				"Content-Type: text/plain; charset=ISO-8859-1\r\n"
+				+ "Foo:  bar \r\n"
+				+ "Content-Transfer-Encoding: base64\r\n\r\n"));
+		assertEquals("bar", header.getHeader("Foo"));
+		assertEquals("text/plain", header.getContentType());
+		assertEquals("ISO-8859-1", header.getCharset());
+		assertEquals("base64", header.getTransferEncoding());
+	}
+	
+	public void testBlockIsCopied() throws Exception {
+		ByteBuffer block = encode("Foo: bar\r\n\r\n");
+		MessageHeader header = new MessageHeader(block);
+		block.put(0, (byte) 'X');
+		assertEquals("bar", header.getHeader("Foo"));
+	}
+	
+	public void testContentTypeParsedOnAccess() throws Exception {
+		MessageHeader header = new MessageHeader(encode(
+				"Content-Type: text\r\nFoo: bar\r\n\r\n"));
+		assertEquals("bar", header.getHeader("Foo"));
+		try {
+			header.getContentType();
+			fail("invalid content type must be rejected");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+	
+}
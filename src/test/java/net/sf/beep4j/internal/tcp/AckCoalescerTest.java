@@ -0,0 +1,134 @@
+/*
+ *  Copyright 2006 Simon Raess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.sf.beep4j.internal.tcp;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import junit.framework.TestCase;
+import net.sf.beep4j.AckStrategy;
+import net.sf.beep4j.buffer.ReferenceCounted;
+import net.sf.beep4j.transport.Transport;
+
+public class AckCoalescerTest extends TestCase {
+	
+	private RecordingTransport transport;
+	
+	private ScheduledExecutorService timer;
+	
+	private AckCoalescer target;
+	
+	@Override
+	protected void setUp() throws Exception {
+		transport = new RecordingTransport();
+		timer = Executors.newSingleThreadScheduledExecutor();
+		target = new AckCoalescer(transport, timer, timer);
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		timer.shutdownNow();
+	}
+	
+	public void testThreshold() throws Exception {
+		ByteBuffer seq = createSEQ(1, 4096);
+		target.receiveStarted();
+		target.acknowledge(1, seq);
+		
+		assertEquals(1, transport.writes.size());
+		assertSame(seq, transport.writes.get(0)[0]);
+	}
+	
+	public void testPiggyBack() throws Exception {
+		ByteBuffer seq1 = createSEQ(1, 4096);
+		ByteBuffer seq3 = createSEQ(3, 4096);
+		ByteBuffer newer = createSEQ(1, 8192);
+		ByteBuffer payload = ByteBuffer.allocate(10);
+		target.setStrategy(AckStrategy.PIGGYBACK);
+		
+		target.receiveStarted();
+		target.acknowledge(1, seq1);
+		target.acknowledge(3, seq3);
+		target.acknowledge(1, newer);
+		assertEquals(0, transport.writes.size());
+		
+		target.send(new ByteBuffer[] { payload }, null);
+		target.receiveCompleted();
+		
+		assertEquals(1, transport.writes.size());
+		ByteBuffer[] write = transport.writes.get(0);
+		assertEquals(3, write.length);
+		assertSame(seq3, write[0]);
+		assertSame(newer, write[1]);
+		assertSame(payload, write[2]);
+	}
+	
+	public void testPiggyBackFlushedAfterReceive() throws Exception {
+		target.setStrategy(AckStrategy.PIGGYBACK);
+		
+		target.receiveStarted();
+		target.acknowledge(1, createSEQ(1, 4096));
+		target.acknowledge(3, createSEQ(3, 4096));
+		assertEquals(0, transport.writes.size());
+		target.receiveCompleted();
+		
+		assertEquals(1, transport.writes.size());
+		assertEquals(2, transport.writes.get(0).length);
+	}
+	
+	public void testPiggyBackOutsideOfReceive() throws Exception {
+		target.setStrategy(AckStrategy.PIGGYBACK);
+		target.acknowledge(1, createSEQ(1, 4096));
+		assertEquals(1, transport.writes.size());
+	}
+	
+	public void testDelayed() throws Exception {
+		target.setStrategy(AckStrategy.delayed(20));
+		target.acknowledge(1, createSEQ(1, 4096));
+		target.acknowledge(3, createSEQ(3, 4096));
+		assertEquals(0, transport.size());
+		
+		for (int i = 0; i < 100 && transport.size() == 0; i++) {
+			Thread.sleep(10);
+		}
+		assertEquals(1, transport.size());
+		assertEquals(2, transport.writes.get(0).length);
+	}
+	
+	private static ByteBuffer createSEQ(int channel, int window) {
+		return new SEQHeader(channel, 0, window).asByteBuffer();
+	}
+	
+	private static class RecordingTransport implements Transport {
+		private final List<ByteBuffer[]> writes = new ArrayList<ByteBuffer[]>();
+		public synchronized void sendBytes(ByteBuffer buffer) {
+			writes.add(new ByteBuffer[] { buffer });
+		}
+		public synchronized void sendBytes(ByteBuffer[] buffers, ReferenceCounted owner) {
+			writes.add(buffers);
+		}
+		public void closeTransport() {
+			// ignored
+		}
+		private synchronized int size() {
+			return writes.size();
+		}
+	}
+	
+}
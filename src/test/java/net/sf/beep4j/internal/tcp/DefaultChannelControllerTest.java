@@ -17,9 +17,15 @@ package net.sf.beep4j.internal.tcp;
 
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
 
 import junit.framework.TestCase;
 import net.sf.beep4j.Message;
+import net.sf.beep4j.ReceiveWindowTuning;
+import net.sf.beep4j.SillyWindowAvoidance;
+import net.sf.beep4j.buffer.PooledBufferAllocator;
+import net.sf.beep4j.buffer.ReferenceCounted;
 import net.sf.beep4j.internal.Constants;
 import net.sf.beep4j.internal.DataHeader;
 import net.sf.beep4j.internal.MessageType;
@@ -27,10 +33,37 @@ import net.sf.beep4j.internal.message.DefaultMessage;
 import net.sf.beep4j.internal.message.MessageHeader;
 import net.sf.beep4j.transport.Transport;
 
+import org.easymock.ArgumentsMatcher;
 import org.easymock.MockControl;
 
 public class DefaultChannelControllerTest extends TestCase {
 	
+	/*
+	 * Matches the concatenation of the gathered buffers against the
+	 * expected frame, the owner is not compared.
+	 */
+	private static final ArgumentsMatcher GATHERING_MATCHER = new ArgumentsMatcher() {
+		public boolean matches(Object[] expected, Object[] actual) {
+			return concat((ByteBuffer[]) expected[0]).equals(concat((ByteBuffer[]) actual[0]));
+		}
+		public String toString(Object[] arguments) {
+			return "sendBytes(" + concat((ByteBuffer[]) arguments[0]) + ")";
+		}
+	};
+	
+	private static ByteBuffer concat(ByteBuffer[] buffers) {
+		int size = 0;
+		for (ByteBuffer buffer : buffers) {
+			size += buffer.remaining();
+		}
+		ByteBuffer result = ByteBuffer.allocate(size);
+		for (ByteBuffer buffer : buffers) {
+			result.put(buffer.duplicate());
+		}
+		result.flip();
+		return result;
+	}
+	
 	private MockControl transportCtrl;
 	
 	private Transport transport;
@@ -111,7 +144,8 @@ public class DefaultChannelControllerTest extends TestCase {
 		header.addHeader("content-type", "application/beep+xml");
 		
 		// define expectations
-		transport.sendBytes(createFrame(0, false, 0, 0, 50, header));
+		transport.sendBytes(new ByteBuffer[] { createFrame(0, false, 0, 0, 50, header) }, null);
+		transportCtrl.setMatcher(GATHERING_MATCHER);
 		
 		// replay
 		transportCtrl.replay();
@@ -133,7 +167,8 @@ public class DefaultChannelControllerTest extends TestCase {
 		header.addHeader("content-type", "application/beep+xml");
 		
 		// define expectations
-		transport.sendBytes(createFrame(0, true, 0, 0, 50, header));
+		transport.sendBytes(new ByteBuffer[] { createFrame(0, true, 0, 0, 50, header) }, null);
+		transportCtrl.setMatcher(GATHERING_MATCHER);
 		
 		// replay
 		transportCtrl.replay();
@@ -146,6 +181,57 @@ public class DefaultChannelControllerTest extends TestCase {
 		transportCtrl.verify();
 	}
 	
+	/*
+	 * Tests that the message header and content are passed to the transport
+	 * as separate buffers and that the message is released once its last
+	 * frame has been written.
+	 */
+	public void testMessageOwnedByFrames() throws Exception {
+		RecordingTransport transport = new RecordingTransport();
+		CountingOwner owner = new CountingOwner();
+		MessageHeader header = new MessageHeader();
+		header.addHeader("content-type", "application/beep+xml");
+		ByteBuffer content = createPayload(0, 60);
+		
+		ChannelController target = new DefaultChannelController(transport, 0, 88);
+		target.sendMSG(1, new DefaultMessage(header, content, owner));
+		assertEquals(1, transport.buffers.size());
+		assertEquals(4, transport.buffers.get(0).length);
+		assertEquals(88, transport.buffers.get(0)[1].remaining() + transport.buffers.get(0)[2].remaining());
+		assertEquals(2, owner.references);
+		
+		transport.releaseAll();
+		assertEquals(1, owner.references);
+		
+		target.updateSendWindow(88, 88);
+		assertEquals(2, transport.buffers.size());
+		assertEquals(10, transport.buffers.get(1)[1].remaining());
+		transport.releaseAll();
+		assertEquals(0, owner.references);
+		assertEquals(0, content.position());
+	}
+	
+	/*
+	 * Tests that the frame header is encoded into a buffer of the allocator,
+	 * which is returned to the allocator when the frame is released.
+	 */
+	public void testHeaderEncodedIntoAllocatorBuffer() throws Exception {
+		RecordingTransport transport = new RecordingTransport();
+		PooledBufferAllocator allocator = new PooledBufferAllocator(false);
+		MessageHeader header = new MessageHeader();
+		header.addHeader("content-type", "application/beep+xml");
+		
+		DefaultChannelController target = new DefaultChannelController(transport, 0, 88);
+		target.setBufferAllocator(allocator);
+		target.sendMSG(1, new DefaultMessage(header, createPayload(0, 10), new CountingOwner()));
+		assertEquals(new DataHeader(MessageType.MSG, 0, 1, false, 0, 48).asByteBuffer(), 
+				transport.buffers.get(0)[0]);
+		assertEquals(0, allocator.getPooledCount());
+		
+		transport.releaseAll();
+		assertEquals(1, allocator.getPooledCount());
+	}
+	
 	/*
 	 * Tests that the updateSendWindow method does what its supposed to do.
 	 * The test scenario includes an initial message of length 65 and a
@@ -164,17 +250,202 @@ public class DefaultChannelControllerTest extends TestCase {
 		header.addHeader("content-type", "application/beep+xml");
 		
 		// define expectations
-		transport.sendBytes(createFrame(0, true, 0, 0, 50, header));
-		transport.sendBytes(createFrame(0, true, 88, 50, 10));
-		transport.sendBytes(createFrame(0, false, 98, 60, 5));
+		transport.sendBytes(new ByteBuffer[] { createFrame(0, true, 0, 0, 50, header) }, null);
+		transportCtrl.setMatcher(GATHERING_MATCHER);
+		transport.sendBytes(new ByteBuffer[] { createFrame(0, true, 88, 50, 10) }, null);
+		transportCtrl.setMatcher(GATHERING_MATCHER);
+		transport.sendBytes(new ByteBuffer[] { createFrame(0, false, 98, 60, 5) }, null);
+		transportCtrl.setMatcher(GATHERING_MATCHER);
+		
+		// replay
+		transportCtrl.replay();
+		
+		// test
+		target.sendMSG(1, createMessage(0, 65));
+		target.updateSendWindow(10, 88);
+		target.updateSendWindow(15, 88);
+		
+		// verify
+		transportCtrl.verify();
+	}
+	
+	/*
+	 * Tests that a scheduled controller only sends when asked to and that
+	 * frames are split so that they do not exceed the granted number of
+	 * bytes.
+	 */
+	public void testSendQueuedFrames() throws Exception {
+		ChannelController target = new DefaultChannelController(transport, 0, 4096, 4096, true);
+		MessageHeader header = new MessageHeader();
+		header.addHeader("content-type", "application/beep+xml");
+		
+		// define expectations
+		transport.sendBytes(new ByteBuffer[] { createFrame(0, true, 0, 0, 50, header) }, null);
+		transportCtrl.setMatcher(GATHERING_MATCHER);
+		transport.sendBytes(new ByteBuffer[] { createFrame(0, true, 88, 50, 10) }, null);
+		transportCtrl.setMatcher(GATHERING_MATCHER);
+		transport.sendBytes(new ByteBuffer[] { createFrame(0, false, 98, 60, 5) }, null);
+		transportCtrl.setMatcher(GATHERING_MATCHER);
+		
+		// replay
+		transportCtrl.replay();
+		
+		// test
+		target.sendMSG(1, createMessage(0, 65));
+		assertTrue(target.hasSendableFrames());
+		assertEquals(88, target.sendQueuedFrames(88));
+		assertEquals(10, target.sendQueuedFrames(10));
+		assertEquals(5, target.sendQueuedFrames(100));
+		assertFalse(target.hasSendableFrames());
+		assertEquals(0, target.sendQueuedFrames(100));
+		
+		// verify
+		transportCtrl.verify();
+	}
+	
+	/*
+	 * Tests that messages are segmented into frames no larger than the 
+	 * maximum frame size even though the window would permit more.
+	 */
+	public void testMaxFrameSize() throws Exception {
+		ChannelController target = new DefaultChannelController(transport, 0, 4096);
+		target.setMaxFrameSize(88);
+		MessageHeader header = new MessageHeader();
+		header.addHeader("content-type", "application/beep+xml");
+		
+		// define expectations
+		transport.sendBytes(new ByteBuffer[] { createFrame(0, true, 0, 0, 50, header) }, null);
+		transportCtrl.setMatcher(GATHERING_MATCHER);
+		transport.sendBytes(new ByteBuffer[] { createFrame(0, true, 88, 50, 88) }, null);
+		transportCtrl.setMatcher(GATHERING_MATCHER);
+		transport.sendBytes(new ByteBuffer[] { createFrame(0, false, 176, 138, 12) }, null);
+		transportCtrl.setMatcher(GATHERING_MATCHER);
+		
+		// replay
+		transportCtrl.replay();
+		
+		// test
+		target.sendMSG(1, createMessage(0, 150));
+		
+		// verify
+		transportCtrl.verify();
+	}
+	
+	public void testInvalidMaxFrameSize() throws Exception {
+		ChannelController target = new DefaultChannelController(transport, 0, 4096);
+		try {
+			target.setMaxFrameSize(0);
+			fail("maximum frame size 0 must be rejected");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+	
+	/*
+	 * Tests that no tiny frame is sent while only a small part of the 
+	 * remote window is available.
+	 */
+	public void testSillyWindowAvoidance() throws Exception {
+		ChannelController target = new DefaultChannelController(transport, 0, 88, 4096, true);
+		target.setSillyWindowAvoidance(new SillyWindowAvoidance(0.5f, 60000));
+		MessageHeader header = new MessageHeader();
+		header.addHeader("content-type", "application/beep+xml");
+		
+		// define expectations
+		transport.sendBytes(new ByteBuffer[] { createFrame(0, true, 0, 0, 50, header) }, null);
+		transportCtrl.setMatcher(GATHERING_MATCHER);
+		transport.sendBytes(new ByteBuffer[] { createFrame(0, false, 88, 50, 15) }, null);
+		transportCtrl.setMatcher(GATHERING_MATCHER);
+		
+		// replay
+		transportCtrl.replay();
+		
+		// test
+		target.sendMSG(1, createMessage(0, 65));
+		assertEquals(88, target.sendQueuedFrames(1000));
+		assertEquals(-1, target.getHoldBackDelay());
+		
+		// 10 bytes are less than half the window
+		target.updateSendWindow(10, 88);
+		assertFalse(target.hasSendableFrames());
+		assertEquals(0, target.sendQueuedFrames(1000));
+		assertTrue(target.getHoldBackDelay() > 0);
+		
+		target.updateSendWindow(88, 88);
+		assertTrue(target.hasSendableFrames());
+		assertEquals(15, target.sendQueuedFrames(1000));
+		assertEquals(-1, target.getHoldBackDelay());
+		
+		// verify
+		transportCtrl.verify();
+	}
+	
+	/*
+	 * Tests that held back data is sent after the maximum delay.
+	 */
+	public void testSillyWindowAvoidanceDelay() throws Exception {
+		ChannelController target = new DefaultChannelController(transport, 0, 88, 4096, true);
+		target.setSillyWindowAvoidance(new SillyWindowAvoidance(0.5f, 1));
+		MessageHeader header = new MessageHeader();
+		header.addHeader("content-type", "application/beep+xml");
+		
+		// define expectations
+		transport.sendBytes(new ByteBuffer[] { createFrame(0, true, 0, 0, 50, header) }, null);
+		transportCtrl.setMatcher(GATHERING_MATCHER);
+		transport.sendBytes(new ByteBuffer[] { createFrame(0, true, 88, 50, 10) }, null);
+		transportCtrl.setMatcher(GATHERING_MATCHER);
+		
+		// replay
+		transportCtrl.replay();
+		
+		// test
+		target.sendMSG(1, createMessage(0, 65));
+		target.sendQueuedFrames(1000);
+		target.updateSendWindow(10, 88);
+		assertEquals(0, target.sendQueuedFrames(1000));
+		Thread.sleep(10);
+		assertEquals(0, target.getHoldBackDelay());
+		assertEquals(10, target.sendQueuedFrames(1000));
+		
+		// verify
+		transportCtrl.verify();
+	}
+	
+	public void testWhenSent() throws Exception {
+		ChannelController target = new DefaultChannelController(transport, 0, 88);
+		MessageHeader header = new MessageHeader();
+		header.addHeader("content-type", "application/beep+xml");
+		final int[] invocations = new int[1];
+		Runnable callback = new Runnable() {
+			public void run() {
+				invocations[0]++;
+			}
+		};
+		
+		// define expectations
+		transport.sendBytes(new ByteBuffer[] { createFrame(0, true, 0, 0, 50, header) }, null);
+		transportCtrl.setMatcher(GATHERING_MATCHER);
+		transport.sendBytes(new ByteBuffer[] { createFrame(0, true, 88, 50, 10) }, null);
+		transportCtrl.setMatcher(GATHERING_MATCHER);
+		transport.sendBytes(new ByteBuffer[] { createFrame(0, false, 98, 60, 5) }, null);
+		transportCtrl.setMatcher(GATHERING_MATCHER);
 		
 		// replay
 		transportCtrl.replay();
 		
 		// test
+		target.whenSent(callback);
+		assertEquals(1, invocations[0]);
+		
 		target.sendMSG(1, createMessage(0, 65));
+		target.whenSent(callback);
+		assertEquals(1, invocations[0]);
+		
 		target.updateSendWindow(10, 88);
+		assertEquals(1, invocations[0]);
+		
 		target.updateSendWindow(15, 88);
+		assertEquals(2, invocations[0]);
 		
 		// verify
 		transportCtrl.verify();
@@ -205,6 +476,111 @@ public class DefaultChannelControllerTest extends TestCase {
 		transportCtrl.verify();
 	}
 	
+	/*
+	 * Tests that the receive window grows to twice the amount of data 
+	 * received per round trip and shrinks again when the peer slows down.
+	 */
+	public void testReceiveWindowTuning() throws Exception {
+		final long[] time = new long[1];
+		DefaultChannelController controller = new DefaultChannelController(transport, 0, 4096) {
+			@Override
+			long nanoTime() {
+				return time[0];
+			}
+		};
+		ReceiveBudget budget = new ReceiveBudget(1024 * 1024);
+		controller.setReceiveWindowTuning(new ReceiveWindowTuning(64 * 1024, 1024 * 1024), budget);
+		
+		// define expectations
+		transport.sendBytes(createSEQFrame(0, 2048, 4096));
+		transport.sendBytes(createSEQFrame(0, 5048, 6000));
+		transport.sendBytes(createSEQFrame(0, 9048, 4096));
+		transportCtrl.replay();
+		
+		// test
+		controller.frameReceived(0, 2048);
+		
+		// 3000 bytes in a round trip of 10 ms
+		time[0] = 10000000L;
+		controller.frameReceived(2048, 3000);
+		assertEquals(6000, controller.getReceiveWindowSize());
+		assertEquals(1904, budget.getAllocated());
+		
+		// 4000 bytes in a second
+		time[0] = 1010000000L;
+		controller.frameReceived(5048, 4000);
+		assertEquals(4096, controller.getReceiveWindowSize());
+		assertEquals(0, budget.getAllocated());
+		
+		// verify
+		transportCtrl.verify();
+	}
+	
+	/*
+	 * Tests that the receive window does not grow beyond the session budget
+	 * and that the budget is released when the channel is closed.
+	 */
+	public void testReceiveWindowTuningBudget() throws Exception {
+		final long[] time = new long[1];
+		DefaultChannelController controller = new DefaultChannelController(transport, 0, 4096) {
+			@Override
+			long nanoTime() {
+				return time[0];
+			}
+		};
+		ReceiveBudget budget = new ReceiveBudget(1000);
+		controller.setReceiveWindowTuning(ReceiveWindowTuning.DEFAULT, budget);
+		
+		// define expectations
+		transport.sendBytes(createSEQFrame(0, 2048, 4096));
+		transport.sendBytes(createSEQFrame(0, 5048, 5096));
+		transportCtrl.replay();
+		
+		// test
+		controller.frameReceived(0, 2048);
+		time[0] = 10000000L;
+		controller.frameReceived(2048, 3000);
+		assertEquals(5096, controller.getReceiveWindowSize());
+		assertEquals(1000, budget.getAllocated());
+		
+		controller.channelClosed();
+		assertEquals(0, budget.getAllocated());
+		
+		// verify
+		transportCtrl.verify();
+	}
+	
+	/*
+	 * Tests that the window is only opened when the received data has 
+	 * been consumed.
+	 */
+	public void testConsumptionDriven() throws Exception {
+		// define expectations
+		transport.sendBytes(createSEQFrame(0, 2048, 4096));
+		transport.sendBytes(createSEQFrame(0, 4096, 4096));
+		transportCtrl.replay();
+		
+		// test
+		ChannelController controller = new DefaultChannelController(transport, 0, 4096);
+		controller.setConsumptionLimit(4096);
+		controller.checkFrame(0, 2048);
+		assertTrue(controller.isConsumptionDriven());
+		controller.frameReceived(0, 2048);
+		controller.checkFrame(2048, 2048);
+		controller.frameReceived(2048, 2048);
+		
+		controller.frameConsumed(1024);
+		controller.frameConsumed(1024);
+		
+		// the remaining data is acknowledged when switching back
+		controller.setConsumptionLimit(0);
+		assertFalse(controller.isConsumptionDriven());
+		controller.frameConsumed(2048);
+		
+		// verify
+		transportCtrl.verify();
+	}
+	
 	public void testSendMultipleUpdateWindow() throws Exception {
 		// define expectations
 		transport.sendBytes(createSEQFrame(0, 4096, 4096));
@@ -268,4 +644,36 @@ public class DefaultChannelControllerTest extends TestCase {
 		return Charset.forName("US-ASCII").encode(buf.toString());
 	}
 
+	private static class CountingOwner implements ReferenceCounted {
+		private int references = 1;
+		public void retain() {
+			references++;
+		}
+		public void release() {
+			references--;
+		}
+	}
+	
+	private static class RecordingTransport implements Transport {
+		private final List<ByteBuffer[]> buffers = new ArrayList<ByteBuffer[]>();
+		private final List<ReferenceCounted> owners = new ArrayList<ReferenceCounted>();
+		public void sendBytes(ByteBuffer buffer) {
+			sendBytes(new ByteBuffer[] { buffer }, null);
+		}
+		public void sendBytes(ByteBuffer[] buffers, ReferenceCounted owner) {
+			this.buffers.add(buffers);
+			if (owner != null) {
+				owners.add(owner);
+			}
+		}
+		public void closeTransport() {
+		}
+		private void releaseAll() {
+			for (ReferenceCounted owner : owners) {
+				owner.release();
+			}
+			owners.clear();
+		}
+	}
+	
 }
@@ -15,10 +15,21 @@
  */
 package net.sf.beep4j.internal.tcp;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
 import junit.framework.TestCase;
 import net.sf.beep4j.Message;
 import net.sf.beep4j.MessageStub;
+import net.sf.beep4j.ProtocolException;
+import net.sf.beep4j.SillyWindowAvoidance;
+import net.sf.beep4j.WriteLimits;
+import net.sf.beep4j.buffer.ReferenceCounted;
 import net.sf.beep4j.internal.TransportMapping;
+import net.sf.beep4j.internal.message.DefaultMessage;
+import net.sf.beep4j.internal.message.MessageHeader;
 import net.sf.beep4j.transport.Transport;
 
 import org.easymock.MockControl;
@@ -48,6 +59,13 @@ public class TCPMappingTest extends TestCase {
 		
 		factory.createChannelController(0, transport);
 		factoryCtrl.setReturnValue(controller);
+		
+		controller.getSentBytes();
+		controllerCtrl.setDefaultReturnValue(0L);
+		controller.hasSendableFrames();
+		controllerCtrl.setDefaultReturnValue(false);
+		controller.getHoldBackDelay();
+		controllerCtrl.setDefaultReturnValue(-1L);
 	}
 	
 	private void replay() {
@@ -87,7 +105,53 @@ public class TCPMappingTest extends TestCase {
 		replay();
 		
 		mapping.channelStarted(0);
-		mapping.processMappingFrame("SEQ 0 0 4096".split(" "));
+		mapping.processMappingFrame(Charset.forName("US-ASCII").encode("SEQ 0 0 4096"));
+		
+		verify();
+	}
+	
+	public void testSEQAcknowledgesUnsentData() throws Exception {
+		TransportMapping mapping = new TCPMapping(transport, factory, 50);
+		replay();
+		
+		mapping.channelStarted(0);
+		try {
+			mapping.processMappingFrame(Charset.forName("US-ASCII").encode("SEQ 0 100 4096"));
+			fail("acknowledging unsent data must fail");
+		} catch (ProtocolException e) {
+			// expected
+		}
+		
+		verify();
+	}
+	
+	public void testSEQShrinksWindow() throws Exception {
+		TransportMapping mapping = new TCPMapping(transport, factory, 50);
+		replay();
+		
+		mapping.channelStarted(0);
+		try {
+			mapping.processMappingFrame(Charset.forName("US-ASCII").encode("SEQ 0 0 2048"));
+			fail("moving the right window edge to the left must fail");
+		} catch (ProtocolException e) {
+			// expected
+		}
+		
+		verify();
+	}
+	
+	public void testFailedCommandClosesSession() throws Exception {
+		TransportMapping mapping = new TCPMapping(transport, factory, 50);
+		
+		// define expectations
+		controller.updateSendWindow(0, 4096);
+		controllerCtrl.setThrowable(new IllegalArgumentException());
+		transport.closeTransport();
+		
+		replay();
+		
+		mapping.channelStarted(0);
+		mapping.processMappingFrame(Charset.forName("US-ASCII").encode("SEQ 0 0 4096"));
 		
 		verify();
 	}
@@ -96,6 +160,7 @@ public class TCPMappingTest extends TestCase {
 		TransportMapping mapping = new TCPMapping(transport, factory);
 		
 		// define expectations
+		controller.channelClosed();
 		replay();
 		
 		// test
@@ -193,6 +258,389 @@ public class TCPMappingTest extends TestCase {
 		verify();
 	}
 	
+	public void testConcurrentSenders() throws Exception {
+		final int senders = 4;
+		final int count = 5000;
+		final int[] next = new int[senders];
+		final boolean[] failed = new boolean[1];
+		
+		// records the message numbers, detects concurrent invocations
+		ChannelControllerFactory recordingFactory = new ChannelControllerFactory() {
+			public ChannelController createChannelController(int channelNumber, Transport transport) {
+				return new DefaultChannelController(transport, channelNumber, 4096) {
+					private boolean active;
+					@Override
+					public void sendNUL(int messageNumber) {
+						if (active) {
+							failed[0] = true;
+						}
+						active = true;
+						int sender = messageNumber / count;
+						if (next[sender]++ != messageNumber % count) {
+							failed[0] = true;
+						}
+						Thread.yield();
+						active = false;
+					}
+				};
+			}
+		};
+		final TransportMapping mapping = new TCPMapping(transport, recordingFactory);
+		replay();
+		mapping.channelStarted(0);
+		
+		Thread[] threads = new Thread[senders];
+		for (int i = 0; i < senders; i++) {
+			final int sender = i;
+			threads[i] = new Thread() {
+				public void run() {
+					for (int j = 0; j < count; j++) {
+						mapping.sendNUL(0, sender * count + j);
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (int i = 0; i < senders; i++) {
+			threads[i].join();
+		}
+		
+		assertFalse(failed[0]);
+		for (int i = 0; i < senders; i++) {
+			assertEquals(count, next[i]);
+		}
+		transportCtrl.verify();
+	}
+	
+	public void testWhenSent() throws Exception {
+		final TransportMapping mapping = new TCPMapping(transport);
+		final int[] invocations = new int[2];
+		transportCtrl.replay();
+		mapping.channelStarted(0);
+		
+		// the callback submits a further command
+		mapping.whenSent(0, new Runnable() {
+			public void run() {
+				invocations[0]++;
+				mapping.whenSent(0, new Runnable() {
+					public void run() {
+						invocations[1]++;
+					}
+				});
+			}
+		});
+		
+		assertEquals(1, invocations[0]);
+		assertEquals(1, invocations[1]);
+		transportCtrl.verify();
+	}
+	
+	public void testChannelWritability() throws Exception {
+		Message message = createMessage(100);
+		int size = message.asByteBuffer().remaining();
+		WriteLimits limits = new WriteLimits(size, 0, 10 * size, 0, WriteLimits.Policy.NOTIFY);
+		TransportMapping mapping = new TCPMapping(new TransportStub(), null, 10, 4096, limits);
+		final int[] invocations = new int[1];
+		mapping.channelStarted(1);
+		
+		// 10 bytes fit into the window of the other peer
+		mapping.sendMSG(1, 1, message);
+		assertTrue(mapping.isWritable(1));
+		mapping.sendMSG(1, 2, message);
+		assertFalse(mapping.isWritable(1));
+		
+		mapping.whenWritable(1, new Runnable() {
+			public void run() {
+				invocations[0]++;
+			}
+		});
+		assertEquals(0, invocations[0]);
+		
+		mapping.processMappingFrame(createSEQHeader(1, 10, 2 * size));
+		assertTrue(mapping.isWritable(1));
+		assertEquals(1, invocations[0]);
+	}
+	
+	public void testSessionClosedWakesUpWaiters() throws Exception {
+		Message message = createMessage(100);
+		int size = message.asByteBuffer().remaining();
+		WriteLimits limits = new WriteLimits(size, 0, 10 * size, 0, WriteLimits.Policy.BLOCK);
+		TransportMapping mapping = new TCPMapping(new TransportStub(), null, 10, 4096, limits);
+		final int[] invocations = new int[1];
+		Runnable callback = new Runnable() {
+			public void run() {
+				invocations[0]++;
+			}
+		};
+		mapping.channelStarted(1);
+		mapping.sendMSG(1, 1, message);
+		mapping.sendMSG(1, 2, message);
+		assertFalse(mapping.isWritable(1));
+		
+		mapping.whenWritable(1, callback);
+		assertEquals(0, invocations[0]);
+		
+		mapping.sessionClosed();
+		assertEquals(1, invocations[0]);
+		
+		// nobody must wait after the session has been closed
+		mapping.whenWritable(1, callback);
+		assertEquals(2, invocations[0]);
+	}
+	
+	public void testSessionWritability() throws Exception {
+		Message message = createMessage(100);
+		int size = message.asByteBuffer().remaining();
+		WriteLimits limits = new WriteLimits(10 * size, 0, size, size - 10, WriteLimits.Policy.NOTIFY);
+		TransportMapping mapping = new TCPMapping(new TransportStub(), null, 10, 4096, limits);
+		mapping.channelStarted(1);
+		mapping.channelStarted(3);
+		
+		mapping.sendMSG(1, 1, message);
+		assertTrue(mapping.isWritable(3));
+		mapping.sendMSG(3, 1, message);
+		assertFalse(mapping.isWritable(1));
+		assertFalse(mapping.isWritable(3));
+		
+		mapping.processMappingFrame(createSEQHeader(1, 10, size));
+		assertTrue(mapping.isWritable(1));
+		assertTrue(mapping.isWritable(3));
+	}
+	
+	public void testInterleaveChannels() throws Exception {
+		final Message message = createMessage(300);
+		final RecordingTransport transport = new RecordingTransport();
+		final TCPMapping mapping = new TCPMapping(transport, null, 4096, 4096);
+		mapping.setQuantum(100);
+		mapping.channelStarted(1);
+		mapping.channelStarted(3);
+		transport.callback = new Runnable() {
+			public void run() {
+				// submitted while the writer is busy with channel 1
+				transport.callback = null;
+				mapping.sendMSG(3, 1, message);
+			}
+		};
+		
+		mapping.sendMSG(1, 1, message);
+		
+		assertEquals(2 * message.asByteBuffer().remaining(), transport.total(1) + transport.total(3));
+		assertEquals(transport.total(1), transport.total(3));
+		assertEquals(new Integer(1), transport.channels.get(1));
+		assertEquals(new Integer(3), transport.channels.get(2));
+		assertEquals(new Integer(1), transport.channels.get(3));
+		assertEquals(new Integer(3), transport.channels.get(4));
+		for (Integer size : transport.sizes) {
+			assertTrue(size.intValue() <= 100);
+		}
+	}
+	
+	public void testChannelPriority() throws Exception {
+		final Message message = createMessage(600);
+		final RecordingTransport transport = new RecordingTransport();
+		final TCPMapping mapping = new TCPMapping(transport, null, 4096, 4096);
+		mapping.setQuantum(100);
+		mapping.channelStarted(1);
+		mapping.channelStarted(3);
+		mapping.setChannelPriority(3, 3);
+		transport.callback = new Runnable() {
+			public void run() {
+				transport.callback = null;
+				mapping.sendMSG(3, 1, message);
+			}
+		};
+		
+		mapping.sendMSG(1, 1, message);
+		
+		// channel 3 sends three times as much per round
+		assertEquals(new Integer(1), transport.channels.get(1));
+		assertEquals(new Integer(100), transport.sizes.get(1));
+		assertEquals(new Integer(3), transport.channels.get(2));
+		assertEquals(new Integer(300), transport.sizes.get(2));
+	}
+	
+	public void testMaxFrameSize() throws Exception {
+		Message message = createMessage(300);
+		int size = message.asByteBuffer().remaining();
+		RecordingTransport transport = new RecordingTransport();
+		TCPMapping mapping = new TCPMapping(transport, null, 4096, 4096);
+		mapping.channelStarted(1);
+		mapping.setMaxFrameSize(100);
+		mapping.channelStarted(3);
+		mapping.setChannelMaxFrameSize(3, 200);
+		
+		mapping.sendMSG(1, 1, message);
+		mapping.sendMSG(3, 1, message);
+		
+		assertEquals(size, transport.total(1));
+		assertEquals(size, transport.total(3));
+		for (int i = 0; i < transport.channels.size(); i++) {
+			int max = transport.channels.get(i).intValue() == 1 ? 100 : 200;
+			assertTrue(transport.sizes.get(i).intValue() <= max);
+		}
+		assertEquals(new Integer(200), transport.sizes.get(transport.channels.indexOf(new Integer(3))));
+	}
+	
+	public void testSillyWindowAvoidanceWakeUp() throws Exception {
+		Message message = createMessage(100);
+		int size = message.asByteBuffer().remaining();
+		RecordingTransport transport = new RecordingTransport();
+		TCPMapping mapping = new TCPMapping(transport, null, 100, 4096);
+		mapping.setSillyWindowAvoidance(new SillyWindowAvoidance(0.5f, 50));
+		mapping.channelStarted(1);
+		
+		mapping.sendMSG(1, 1, message);
+		assertEquals(100, transport.total(1));
+		
+		// only 10 bytes are available, the rest is sent after the delay
+		mapping.processMappingFrame(createSEQHeader(1, 10, 100));
+		assertEquals(100, transport.total(1));
+		for (int i = 0; i < 100 && transport.total(1) == 100; i++) {
+			Thread.sleep(20);
+		}
+		assertEquals(110, transport.total(1));
+		
+		mapping.processMappingFrame(createSEQHeader(1, 110, 100));
+		assertEquals(size, transport.total(1));
+	}
+	
+	public void testWakeUpNotWrittenByTimer() throws Exception {
+		RecordingTransport transport = new RecordingTransport();
+		TCPMapping mapping = new TCPMapping(transport, null, 100, 4096);
+		mapping.setSillyWindowAvoidance(new SillyWindowAvoidance(0.5f, 50));
+		mapping.channelStarted(1);
+		
+		mapping.sendMSG(1, 1, createMessage(100));
+		mapping.processMappingFrame(createSEQHeader(1, 10, 100));
+		for (int i = 0; i < 100 && transport.total(1) == 100; i++) {
+			Thread.sleep(20);
+		}
+		assertEquals(110, transport.total(1));
+		assertEquals("beep4j-writer", transport.threads.get(transport.threads.size() - 1));
+	}
+	
+	public void testWriteBatching() throws Exception {
+		Message message = createMessage(100);
+		CountingTransport transport = new CountingTransport();
+		TCPMapping mapping = new TCPMapping(transport, null, 4096, 4096);
+		mapping.channelStarted(1);
+		
+		mapping.receiveStarted();
+		mapping.sendMSG(1, 1, message);
+		mapping.receiveCompleted();
+		assertEquals(1, transport.writes);
+		int frameLength = transport.lastLength;
+		
+		mapping.setWriteBatching(true);
+		mapping.receiveStarted();
+		mapping.sendMSG(1, 2, message);
+		mapping.sendMSG(1, 3, message);
+		assertEquals(1, transport.writes);
+		mapping.receiveCompleted();
+		assertEquals(2, transport.writes);
+		// the sequence numbers of the later frames have two more digits
+		assertEquals(2 * (frameLength + 2), transport.lastLength);
+	}
+	
+	public void testExplicitBatch() throws Exception {
+		Message message = createMessage(100);
+		CountingTransport transport = new CountingTransport();
+		TCPMapping mapping = new TCPMapping(transport, null, 4096, 4096);
+		mapping.channelStarted(1);
+		
+		mapping.beginBatch();
+		mapping.sendMSG(1, 1, message);
+		mapping.sendMSG(1, 2, message);
+		assertEquals(0, transport.writes);
+		mapping.endBatch();
+		assertEquals(1, transport.writes);
+	}
+	
+	public void testInvalidPriority() throws Exception {
+		TCPMapping mapping = new TCPMapping(new TransportStub(), null);
+		mapping.channelStarted(1);
+		try {
+			mapping.setChannelPriority(1, 0);
+			fail("priority 0 must be rejected");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+	
+	private static Message createMessage(int size) {
+		MessageHeader header = new MessageHeader();
+		header.addHeader("content-type", "application/octet-stream");
+		return new DefaultMessage(header, ByteBuffer.allocate(size));
+	}
+	
+	private static ByteBuffer createSEQHeader(int channel, long ackno, int window) {
+		return Charset.forName("US-ASCII").encode("SEQ " + channel + " " + ackno + " " + window);
+	}
+	
+	private static class TransportStub implements Transport {
+		public void sendBytes(ByteBuffer buffer) {
+			// ignored
+		}
+		public void sendBytes(ByteBuffer[] buffers, ReferenceCounted owner) {
+			// ignored
+		}
+		public void closeTransport() {
+			// ignored
+		}
+	}
+	
+	/*
+	 * Records channel number, payload size and writing thread of every 
+	 * frame and optionally invokes a callback from within the writer.
+	 */
+	private static class RecordingTransport extends TransportStub {
+		private final List<Integer> channels = new ArrayList<Integer>();
+		private final List<Integer> sizes = new ArrayList<Integer>();
+		private final List<String> threads = new ArrayList<String>();
+		private Runnable callback;
+		@Override
+		public synchronized void sendBytes(ByteBuffer[] buffers, ReferenceCounted owner) {
+			threads.add(Thread.currentThread().getName());
+			String header = Charset.forName("US-ASCII").decode(buffers[0].duplicate()).toString();
+			String[] tokens = header.trim().split(" ");
+			channels.add(new Integer(tokens[1]));
+			sizes.add(new Integer(tokens[5]));
+			if (callback != null) {
+				callback.run();
+			}
+		}
+		private synchronized int total(int channel) {
+			int total = 0;
+			for (int i = 0; i < channels.size(); i++) {
+				if (channels.get(i).intValue() == channel) {
+					total += sizes.get(i).intValue();
+				}
+			}
+			return total;
+		}
+	}
+	
+	/*
+	 * Counts the writes and records the number of bytes of the last one.
+	 */
+	private static class CountingTransport extends TransportStub {
+		private int writes;
+		private int lastLength;
+		@Override
+		public synchronized void sendBytes(ByteBuffer buffer) {
+			writes++;
+			lastLength = buffer.remaining();
+		}
+		@Override
+		public synchronized void sendBytes(ByteBuffer[] buffers, ReferenceCounted owner) {
+			writes++;
+			lastLength = 0;
+			for (int i = 0; i < buffers.length; i++) {
+				lastLength += buffers[i].remaining();
+			}
+		}
+	}
+	
 	public void testCloseTransport() throws Exception {
 		TransportMapping mapping = new TCPMapping(transport, factory);
 		
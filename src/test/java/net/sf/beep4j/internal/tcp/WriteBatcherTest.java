@@ -0,0 +1,229 @@
+/*
+ *  Copyright 2006 Simon Raess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.sf.beep4j.internal.tcp;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import net.sf.beep4j.buffer.ReferenceCounted;
+import net.sf.beep4j.transport.Transport;
+
+public class WriteBatcherTest extends TestCase {
+	
+	private RecordingTransport transport;
+	
+	private WriteBatcher target;
+	
+	@Override
+	protected void setUp() throws Exception {
+		transport = new RecordingTransport();
+		target = new WriteBatcher(transport);
+	}
+	
+	public void testWithoutBatch() throws Exception {
+		ByteBuffer seq = ByteBuffer.allocate(10);
+		ByteBuffer[] frame = new ByteBuffer[] { ByteBuffer.allocate(20) };
+		target.sendBytes(seq);
+		target.sendBytes(frame, null);
+		
+		assertEquals(2, transport.writes.size());
+		assertSame(seq, transport.writes.get(0)[0]);
+		assertSame(frame, transport.writes.get(1));
+	}
+	
+	public void testBatch() throws Exception {
+		ByteBuffer seq = ByteBuffer.allocate(10);
+		ByteBuffer header = ByteBuffer.allocate(20);
+		ByteBuffer payload = ByteBuffer.allocate(WriteBatcher.COPY_THRESHOLD);
+		Owner owner1 = new Owner();
+		Owner owner2 = new Owner();
+		
+		target.begin();
+		target.sendBytes(seq);
+		target.sendBytes(new ByteBuffer[] { header, payload }, owner1);
+		target.sendBytes(new ByteBuffer[] { payload }, owner2);
+		assertEquals(0, transport.writes.size());
+		target.end();
+		
+		assertEquals(1, transport.writes.size());
+		ByteBuffer[] write = transport.writes.get(0);
+		assertEquals(4, write.length);
+		assertSame(seq, write[0]);
+		assertSame(header, write[1]);
+		assertSame(payload, write[2]);
+		assertSame(payload, write[3]);
+		
+		assertEquals(0, owner1.released);
+		transport.owners.get(0).release();
+		assertEquals(1, owner1.released);
+		assertEquals(1, owner2.released);
+	}
+	
+	public void testSmallBatchCopied() throws Exception {
+		ByteBuffer seq = ByteBuffer.wrap(new byte[] { 1, 2 });
+		ByteBuffer payload = ByteBuffer.wrap(new byte[] { 3, 4, 5 });
+		Owner owner = new Owner();
+		
+		target.begin();
+		target.sendBytes(seq);
+		target.sendBytes(new ByteBuffer[] { payload }, owner);
+		target.end();
+		
+		assertEquals(1, transport.writes.size());
+		assertEquals(1, transport.writes.get(0).length);
+		assertEquals(ByteBuffer.wrap(new byte[] { 1, 2, 3, 4, 5 }), transport.writes.get(0)[0]);
+		assertEquals(2, seq.remaining());
+		assertEquals(1, owner.released);
+	}
+	
+	public void testNestedBatches() throws Exception {
+		target.begin();
+		target.begin();
+		target.sendBytes(ByteBuffer.allocate(10));
+		target.end();
+		assertEquals(0, transport.writes.size());
+		target.end();
+		assertEquals(1, transport.writes.size());
+	}
+	
+	public void testWriteOfOtherThread() throws Exception {
+		ByteBuffer held = ByteBuffer.allocate(10);
+		final ByteBuffer other = ByteBuffer.allocate(20);
+		target.begin();
+		target.sendBytes(held);
+		
+		run(new Runnable() {
+			public void run() {
+				target.sendBytes(other);
+			}
+		});
+		
+		// the held data is written first, together with the other write
+		assertEquals(1, transport.writes.size());
+		assertEquals(1, transport.writes.get(0).length);
+		assertEquals(30, transport.writes.get(0)[0].remaining());
+		target.end();
+		assertEquals(1, transport.writes.size());
+	}
+	
+	public void testBatchOfOtherThread() throws Exception {
+		target.begin();
+		target.sendBytes(ByteBuffer.allocate(10));
+		
+		run(new Runnable() {
+			public void run() {
+				target.begin();
+				target.sendBytes(ByteBuffer.allocate(20));
+				target.end();
+			}
+		});
+		
+		assertEquals(1, transport.writes.size());
+		assertEquals(30, transport.writes.get(0)[0].remaining());
+		target.sendBytes(ByteBuffer.allocate(10));
+		assertEquals(1, transport.writes.size());
+		target.end();
+		assertEquals(2, transport.writes.size());
+	}
+	
+	public void testEndOnOtherThread() throws Exception {
+		target.begin();
+		final RuntimeException[] failure = new RuntimeException[1];
+		run(new Runnable() {
+			public void run() {
+				try {
+					target.end();
+				} catch (IllegalStateException e) {
+					failure[0] = e;
+				}
+			}
+		});
+		assertNotNull(failure[0]);
+	}
+	
+	public void testFlush() throws Exception {
+		target.begin();
+		target.sendBytes(ByteBuffer.allocate(10));
+		target.flush();
+		assertEquals(1, transport.writes.size());
+		target.sendBytes(ByteBuffer.allocate(10));
+		target.end();
+		assertEquals(2, transport.writes.size());
+	}
+	
+	public void testFlushWhenFull() throws Exception {
+		target.begin();
+		target.sendBytes(ByteBuffer.allocate(WriteBatcher.MAX_BATCH_SIZE - 1));
+		assertEquals(0, transport.writes.size());
+		target.sendBytes(ByteBuffer.allocate(1));
+		assertEquals(1, transport.writes.size());
+		assertEquals(2, transport.writes.get(0).length);
+		target.end();
+		assertEquals(1, transport.writes.size());
+	}
+	
+	public void testCloseTransport() throws Exception {
+		target.begin();
+		target.sendBytes(ByteBuffer.allocate(10));
+		target.closeTransport();
+		assertEquals(1, transport.writes.size());
+		assertTrue(transport.closed);
+	}
+	
+	public void testEndWithoutBegin() throws Exception {
+		try {
+			target.end();
+			fail("end without begin must fail");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+	
+	private static void run(Runnable runnable) throws InterruptedException {
+		Thread thread = new Thread(runnable);
+		thread.start();
+		thread.join();
+	}
+	
+	private static class Owner implements ReferenceCounted {
+		private int released;
+		public void retain() {
+			// ignored
+		}
+		public void release() {
+			released++;
+		}
+	}
+	
+	private static class RecordingTransport implements Transport {
+		private final List<ByteBuffer[]> writes = new ArrayList<ByteBuffer[]>();
+		private final List<ReferenceCounted> owners = new ArrayList<ReferenceCounted>();
+		private boolean closed;
+		public synchronized void sendBytes(ByteBuffer buffer) {
+			writes.add(new ByteBuffer[] { buffer });
+		}
+		public synchronized void sendBytes(ByteBuffer[] buffers, ReferenceCounted owner) {
+			writes.add(buffers);
+			owners.add(owner);
+		}
+		public void closeTransport() {
+			closed = true;
+		}
+	}
+	
+}
@@ -0,0 +1,126 @@
+/*
+ *  Copyright 2006 Simon Raess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.sf.beep4j.internal.util;
+
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+
+public class MpscRingBufferTest extends TestCase {
+	
+	private static class Entry {
+		private long value;
+	}
+	
+	private static MpscRingBuffer<Entry> createRing(int capacity) {
+		Entry[] entries = new Entry[capacity];
+		for (int i = 0; i < capacity; i++) {
+			entries[i] = new Entry();
+		}
+		return new MpscRingBuffer<Entry>(entries);
+	}
+	
+	public void testCapacityMustBePowerOfTwo() throws Exception {
+		try {
+			createRing(6);
+			fail("capacity 6 must be rejected");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+	
+	public void testClaimPublishConsume() throws Exception {
+		MpscRingBuffer<Entry> ring = createRing(4);
+		assertNull(ring.peek());
+		
+		long first = ring.tryClaim();
+		long second = ring.tryClaim();
+		assertEquals(0, first);
+		assertEquals(1, second);
+		
+		// published out of order, consumed in order
+		ring.get(second).value = 2;
+		ring.publish(second);
+		assertNull(ring.peek());
+		
+		ring.get(first).value = 1;
+		ring.publish(first);
+		assertEquals(1, ring.peek().value);
+		ring.advance();
+		assertEquals(2, ring.peek().value);
+		ring.advance();
+		assertNull(ring.peek());
+	}
+	
+	public void testFull() throws Exception {
+		MpscRingBuffer<Entry> ring = createRing(2);
+		ring.publish(ring.tryClaim());
+		ring.publish(ring.tryClaim());
+		assertEquals(-1, ring.tryClaim());
+		
+		ring.peek();
+		ring.advance();
+		long sequence = ring.tryClaim();
+		assertEquals(2, sequence);
+		assertSame(ring.get(0), ring.get(sequence));
+	}
+	
+	public void testConcurrentProducers() throws Exception {
+		final MpscRingBuffer<Entry> ring = createRing(64);
+		final int producers = 4;
+		final int count = 20000;
+		final CountDownLatch start = new CountDownLatch(1);
+		
+		for (int p = 0; p < producers; p++) {
+			final int id = p;
+			new Thread() {
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int i = 0; i < count; i++) {
+						long sequence;
+						while ((sequence = ring.tryClaim()) < 0) {
+							Thread.yield();
+						}
+						ring.get(sequence).value = ((long) id << 32) | i;
+						ring.publish(sequence);
+					}
+				}
+			}.start();
+		}
+		
+		start.countDown();
+		int[] next = new int[producers];
+		int received = 0;
+		while (received < producers * count) {
+			Entry entry = ring.peek();
+			if (entry == null) {
+				Thread.yield();
+				continue;
+			}
+			int id = (int) (entry.value >>> 32);
+			int value = (int) entry.value;
+			assertEquals("order of producer " + id, next[id], value);
+			next[id]++;
+			received++;
+			ring.advance();
+		}
+	}
+	
+}